@@ -0,0 +1,178 @@
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+// Scores a Weka classifier without building Instances objects per call. Each thread
+// gets one cached header and one mutable instance whose value array is overwritten in
+// place, so after the first call the scorer itself allocates nothing.
+public class BatchScorer implements TemperaturePredictor {
+    private final Classifier model;
+    private final Instances header;
+    private final ThreadLocal<MutableInstance> scratch;
+
+    // DenseInstance.setValue copies the value array on every call; this writes through
+    private static class MutableInstance extends DenseInstance {
+        private static final long serialVersionUID = 1L;
+
+        MutableInstance(Instances header) {
+            super(1.0, new double[header.numAttributes()]);
+            m_AttValues[header.classIndex()] = Double.NaN;
+            setDataset(header);
+        }
+
+        void set(int index, double value) {
+            m_AttValues[index] = value;
+        }
+    }
+
+    public BatchScorer(Classifier model, String prefix) {
+        this(model, createHeader(prefix));
+    }
+
+    public BatchScorer(Classifier model, Instances header) {
+        this.model = model;
+        this.header = new Instances(header, 0);
+        this.scratch = ThreadLocal.withInitial(() -> new MutableInstance(new Instances(this.header, 0)));
+    }
+
+    // Same (current, next) schema the models are trained on
+    public static Instances createHeader(String prefix) {
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        attributes.add(new Attribute("current_" + prefix + "_temp"));
+        attributes.add(new Attribute("next_" + prefix + "_temp"));
+        Instances header = new Instances(prefix.substring(0, 1).toUpperCase() + prefix.substring(1)
+                + "TemperatureData", attributes, 0);
+        header.setClassIndex(1);
+        return header;
+    }
+
+    public Classifier model() {
+        return model;
+    }
+
+    public Instances header() {
+        return header;
+    }
+
+    @Override
+    public double predict(double currentTemp) throws Exception {
+        MutableInstance instance = scratch.get();
+        instance.set(0, currentTemp);
+        return model.classifyInstance(instance);
+    }
+
+    @Override
+    public void predict(double[] inputs, double[] outputs) throws Exception {
+        if (outputs.length < inputs.length) {
+            throw new IllegalArgumentException("Output array too small: " + outputs.length + " < " + inputs.length);
+        }
+        MutableInstance instance = scratch.get();
+        for (int i = 0; i < inputs.length; i++) {
+            instance.set(0, inputs[i]);
+            outputs[i] = model.classifyInstance(instance);
+        }
+    }
+
+    // Features in header order, without the class
+    @Override
+    public double predictRow(double[] features) throws Exception {
+        if (features.length != header.numAttributes() - 1) {
+            throw new IllegalArgumentException("Expected " + (header.numAttributes() - 1) + " features, got "
+                    + features.length);
+        }
+        MutableInstance instance = scratch.get();
+        for (int i = 0; i < features.length; i++) {
+            instance.set(i < header.classIndex() ? i : i + 1, features[i]);
+        }
+        return model.classifyInstance(instance);
+    }
+
+    // Checks that the steady state allocates nothing and compares with per-call Instances construction
+    public static void main(String[] args) {
+        try {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long threadId = Thread.currentThread().getId();
+            double[] inputs = new double[10_000];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = -5 + (i % 400) * 0.1;
+            }
+            double[] outputs = new double[inputs.length];
+
+            // An allocation-free model isolates the overhead of the scoring path itself
+            Classifier identity = new AbstractClassifier() {
+                @Override
+                public void buildClassifier(Instances data) {
+                }
+
+                @Override
+                public double classifyInstance(Instance instance) {
+                    return instance.value(0);
+                }
+            };
+            BatchScorer scorer = new BatchScorer(identity, "min");
+            for (int i = 0; i < 50; i++) {
+                scorer.predict(inputs, outputs);
+            }
+            long before = threads.getThreadAllocatedBytes(threadId);
+            long calibration = threads.getThreadAllocatedBytes(threadId) - before;
+            before = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < 100; i++) {
+                scorer.predict(inputs, outputs);
+            }
+            long scorerBytes = threads.getThreadAllocatedBytes(threadId) - before - calibration;
+            System.out.println("Scorer overhead: " + scorerBytes + " bytes for " + (100 * inputs.length) + " predictions");
+
+            // Real model: old per-call construction vs the batch scorer
+            String modelPath = args.length > 0 ? args[0] : "model/min/random_forest.model";
+            Classifier model = (Classifier) SerializationHelper.read(modelPath);
+            BatchScorer modelScorer = new BatchScorer(model, "min");
+            Instances perCallHeader = createHeader("min");
+            for (int i = 0; i < 5; i++) {
+                modelScorer.predict(inputs, outputs);
+                for (double input : inputs) {
+                    DenseInstance instance = new DenseInstance(1.0, new double[]{input, Double.NaN});
+                    instance.setDataset(perCallHeader);
+                    model.classifyInstance(instance);
+                }
+            }
+
+            before = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (double input : inputs) {
+                DenseInstance instance = new DenseInstance(1.0, new double[]{input, Double.NaN});
+                instance.setDataset(perCallHeader);
+                model.classifyInstance(instance);
+            }
+            long perCallNanos = System.nanoTime() - start;
+            long perCallBytes = threads.getThreadAllocatedBytes(threadId) - before;
+
+            before = threads.getThreadAllocatedBytes(threadId);
+            start = System.nanoTime();
+            modelScorer.predict(inputs, outputs);
+            long batchNanos = System.nanoTime() - start;
+            long batchBytes = threads.getThreadAllocatedBytes(threadId) - before;
+
+            System.out.printf("Per-call instances: %.1f bytes/prediction, %.0f ns/prediction%n",
+                    (double) perCallBytes / inputs.length, (double) perCallNanos / inputs.length);
+            System.out.printf("Batch scorer:       %.1f bytes/prediction, %.0f ns/prediction%n",
+                    (double) batchBytes / inputs.length, (double) batchNanos / inputs.length);
+            System.out.println("(remaining bytes are allocated inside " + model.getClass().getSimpleName() + ")");
+
+            if (scorerBytes > 0) {
+                System.err.println("FAIL: scoring path allocated " + scorerBytes + " bytes in steady state");
+                System.exit(1);
+            }
+            System.out.println("PASS: steady-state scoring path is allocation-free");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,412 @@
+import weka.classifiers.Classifier;
+import weka.classifiers.trees.RandomForest;
+import weka.classifiers.trees.RandomTree;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// A trained RandomForest (regression) flattened into structure-of-arrays form.
+//
+// All trees share one set of node arrays. Internal nodes store the split feature and
+// threshold, and the index of their left child; the right child always sits at
+// left + 1, so a step down the tree is a compare and an add. Leaves have feature -1
+// and carry the value the Weka tree would return, including the fallback to the
+// nearest ancestor for empty leaves. Leaves also point at themselves with an infinite
+// threshold, so the batch path can take a fixed number of steps per tree without
+// checking for leaves. That only holds for inputs below +Infinity: a batch containing
+// NaN or +Infinity is scored one input at a time by the scalar path instead. Averaging
+// follows Bagging: tree outputs are summed in tree order and divided by the number of
+// non-missing predictions.
+//
+// Only numeric splits are supported. Missing (NaN) inputs are scored, but not the way
+// Weka scores them: NaN takes the right branch at every split, where Weka spreads it
+// over both, so both paths agree with each other but not necessarily with Weka.
+public class CompiledForest implements TemperaturePredictor {
+    private final int[] roots;
+    private final int[] depths;
+    private final int[] feature;
+    private final double[] threshold;
+    private final int[] child;
+    private final double[] value;
+    private final int numFeatures;
+    private final boolean hasMissingLeaves;
+
+    CompiledForest(int[] roots, int[] depths, int[] feature, double[] threshold, int[] child, double[] value,
+                   int numFeatures) {
+        this.roots = roots;
+        this.depths = depths;
+        this.feature = feature;
+        this.threshold = threshold;
+        this.child = child;
+        this.value = value;
+        this.numFeatures = numFeatures;
+        boolean missing = false;
+        for (int i = 0; i < value.length; i++) {
+            missing |= feature[i] < 0 && Double.isNaN(value[i]);
+        }
+        this.hasMissingLeaves = missing;
+    }
+
+    public static CompiledForest compile(RandomForest forest) throws Exception {
+        Classifier[] trees = (Classifier[]) field(forest, "m_Classifiers");
+        Builder builder = new Builder();
+        int[] roots = new int[trees.length];
+        int[] depths = new int[trees.length];
+        for (int t = 0; t < trees.length; t++) {
+            roots[t] = builder.addTree((RandomTree) trees[t]);
+            depths[t] = builder.lastDepth;
+        }
+        return builder.build(roots, depths);
+    }
+
+    public int numTrees() {
+        return roots.length;
+    }
+
+    public int numNodes() {
+        return feature.length;
+    }
+
+    @Override
+    public double predict(double currentTemp) {
+        double sum = 0;
+        int count = 0;
+        for (int root : roots) {
+            int node = root;
+            while (feature[node] >= 0) {
+                node = child[node] + (currentTemp < threshold[node] ? 0 : 1);
+            }
+            double leaf = value[node];
+            if (leaf == leaf) {
+                sum += leaf;
+                count++;
+            }
+        }
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    // Scores a full feature vector (for forests trained on more than one input)
+    @Override
+    public double predictRow(double[] features) {
+        double sum = 0;
+        int count = 0;
+        for (int root : roots) {
+            int node = root;
+            while (feature[node] >= 0) {
+                node = child[node] + (features[feature[node]] < threshold[node] ? 0 : 1);
+            }
+            double leaf = value[node];
+            if (leaf == leaf) {
+                sum += leaf;
+                count++;
+            }
+        }
+        return count == 0 ? Double.NaN : sum / count;
+    }
+
+    // Tree-major batch evaluation: every input walks one tree before moving to the next,
+    // keeping that tree's nodes hot in cache. Four inputs step down the tree together,
+    // each taking exactly depth steps, so the inner loop has no data-dependent branches.
+    @Override
+    public void predict(double[] inputs, double[] outputs) {
+        int n = inputs.length;
+        if (outputs.length < n) {
+            throw new IllegalArgumentException("Output array too small: " + outputs.length + " < " + n);
+        }
+        if (numFeatures != 1) {
+            throw new IllegalStateException("Forest has " + numFeatures + " features, use predictRow");
+        }
+        if (hasMissingLeaves || !belowInfinity(inputs, n)) {
+            // Rare cases: some leaves are unclassified and must be left out of the average,
+            // or an input would step past a leaf in the fixed-depth walk
+            for (int i = 0; i < n; i++) {
+                outputs[i] = predict(inputs[i]);
+            }
+            return;
+        }
+
+        Arrays.fill(outputs, 0, n, 0.0);
+        int blocked = n & ~3;
+        for (int t = 0; t < roots.length; t++) {
+            int root = roots[t];
+            int depth = depths[t];
+            for (int i = 0; i < blocked; i += 4) {
+                double x0 = inputs[i];
+                double x1 = inputs[i + 1];
+                double x2 = inputs[i + 2];
+                double x3 = inputs[i + 3];
+                int n0 = root;
+                int n1 = root;
+                int n2 = root;
+                int n3 = root;
+                for (int d = 0; d < depth; d++) {
+                    n0 = child[n0] + (x0 < threshold[n0] ? 0 : 1);
+                    n1 = child[n1] + (x1 < threshold[n1] ? 0 : 1);
+                    n2 = child[n2] + (x2 < threshold[n2] ? 0 : 1);
+                    n3 = child[n3] + (x3 < threshold[n3] ? 0 : 1);
+                }
+                outputs[i] += value[n0];
+                outputs[i + 1] += value[n1];
+                outputs[i + 2] += value[n2];
+                outputs[i + 3] += value[n3];
+            }
+            for (int i = blocked; i < n; i++) {
+                double x = inputs[i];
+                int node = root;
+                while (feature[node] >= 0) {
+                    node = child[node] + (x < threshold[node] ? 0 : 1);
+                }
+                outputs[i] += value[node];
+            }
+        }
+        double trees = roots.length;
+        for (int i = 0; i < n; i++) {
+            outputs[i] /= trees;
+        }
+    }
+
+    // NaN and +Infinity compare false against a leaf's infinite threshold
+    private static boolean belowInfinity(double[] inputs, int n) {
+        for (int i = 0; i < n; i++) {
+            if (!(inputs[i] < Double.POSITIVE_INFINITY)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Writes the node arrays as-is; see ModelArtifact for the surrounding file format
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(numFeatures);
+        out.writeInt(roots.length);
+        out.writeInt(feature.length);
+        for (int i = 0; i < roots.length; i++) {
+            out.writeInt(roots[i]);
+            out.writeInt(depths[i]);
+        }
+        for (int i = 0; i < feature.length; i++) {
+            out.writeInt(feature[i]);
+            out.writeInt(child[i]);
+        }
+        for (int i = 0; i < feature.length; i++) {
+            out.writeDouble(threshold[i]);
+        }
+        for (int i = 0; i < feature.length; i++) {
+            out.writeDouble(value[i]);
+        }
+    }
+
+    static CompiledForest read(ByteBuffer in) {
+        int numFeatures = in.getInt();
+        int numTrees = in.getInt();
+        int numNodes = in.getInt();
+        int[] roots = new int[numTrees];
+        int[] depths = new int[numTrees];
+        for (int i = 0; i < numTrees; i++) {
+            roots[i] = in.getInt();
+            depths[i] = in.getInt();
+        }
+        int[] feature = new int[numNodes];
+        int[] child = new int[numNodes];
+        for (int i = 0; i < numNodes; i++) {
+            feature[i] = in.getInt();
+            child[i] = in.getInt();
+        }
+        double[] threshold = new double[numNodes];
+        in.asDoubleBuffer().get(threshold);
+        in.position(in.position() + numNodes * Double.BYTES);
+        double[] value = new double[numNodes];
+        in.asDoubleBuffer().get(value);
+        in.position(in.position() + numNodes * Double.BYTES);
+        return new CompiledForest(roots, depths, feature, threshold, child, value, numFeatures);
+    }
+
+    // Flattens Weka trees into growable node arrays, keeping sibling pairs adjacent
+    private static class Builder {
+        private int size;
+        private int[] feature = new int[1024];
+        private double[] threshold = new double[1024];
+        private int[] child = new int[1024];
+        private double[] value = new double[1024];
+        private int numFeatures = 1;
+        private int lastDepth;
+
+        int addTree(RandomTree tree) throws Exception {
+            Classifier zeroR = (Classifier) field(tree, "m_zeroR");
+            Instances info = (Instances) field(tree, "m_Info");
+            int root = allocate(1);
+            lastDepth = 0;
+            if (zeroR != null) {
+                // The tree was replaced by a constant predictor during training
+                DenseInstance instance = new DenseInstance(info.numAttributes());
+                instance.setDataset(info);
+                setLeaf(root, zeroR.classifyInstance(instance));
+            } else {
+                boolean allowUnclassified = tree.getAllowUnclassifiedInstances();
+                fill(root, field(tree, "m_Tree"), info, allowUnclassified, Double.NaN, 0);
+            }
+            return root;
+        }
+
+        // inherited is the value of the nearest ancestor with a class distribution
+        private void fill(int index, Object node, Instances info, boolean allowUnclassified, double inherited,
+                          int depth) throws Exception {
+            lastDepth = Math.max(lastDepth, depth);
+            double[] distribution = (double[]) field(node, "m_ClassDistribution");
+            double own = distribution == null ? Double.NaN : distribution[0];
+            int attribute = (Integer) field(node, "m_Attribute");
+
+            if (attribute < 0) {
+                // Empty leaf: Weka either returns missing or falls back to an ancestor
+                setLeaf(index, distribution != null ? own : (allowUnclassified ? Double.NaN : inherited));
+                return;
+            }
+            if (!info.attribute(attribute).isNumeric()) {
+                throw new Exception("Cannot compile nominal split on " + info.attribute(attribute).name());
+            }
+
+            Object[] successors = (Object[]) field(node, "m_Successors");
+            int left = allocate(2);
+            feature[index] = attribute;
+            threshold[index] = (Double) field(node, "m_SplitPoint");
+            child[index] = left;
+            numFeatures = Math.max(numFeatures, attribute + 1);
+
+            double next = distribution != null ? own : inherited;
+            fill(left, successors[0], info, allowUnclassified, next, depth + 1);
+            fill(left + 1, successors[1], info, allowUnclassified, next, depth + 1);
+        }
+
+        private void setLeaf(int index, double leafValue) {
+            feature[index] = -1;
+            threshold[index] = Double.POSITIVE_INFINITY;
+            child[index] = index;
+            value[index] = leafValue;
+        }
+
+        private int allocate(int count) {
+            if (size + count > feature.length) {
+                int capacity = Math.max(size + count, feature.length * 2);
+                feature = Arrays.copyOf(feature, capacity);
+                threshold = Arrays.copyOf(threshold, capacity);
+                child = Arrays.copyOf(child, capacity);
+                value = Arrays.copyOf(value, capacity);
+            }
+            int index = size;
+            size += count;
+            return index;
+        }
+
+        CompiledForest build(int[] roots, int[] depths) {
+            return new CompiledForest(roots, depths, Arrays.copyOf(feature, size), Arrays.copyOf(threshold, size),
+                    Arrays.copyOf(child, size), Arrays.copyOf(value, size), numFeatures);
+        }
+    }
+
+    // Helper method to read a protected Weka field by name from the class hierarchy
+    static Object field(Object target, String name) throws Exception {
+        for (Class<?> type = target.getClass(); type != null; type = type.getSuperclass()) {
+            try {
+                Field field = type.getDeclaredField(name);
+                field.setAccessible(true);
+                return field.get(target);
+            } catch (NoSuchFieldException e) {
+                // keep looking in the superclass
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+
+    // Verifies the compiled forests against classifyInstance and compares latency
+    public static void main(String[] args) {
+        try {
+            TemperatureSeries series = TemperatureCsvReader.read("data/daily_temp.csv");
+            String[] targets = {"min", "max"};
+            for (String target : targets) {
+                RandomForest forest = (RandomForest) SerializationHelper.read("model/" + target + "/random_forest.model");
+                long start = System.nanoTime();
+                CompiledForest compiled = compile(forest);
+                long compileNanos = System.nanoTime() - start;
+
+                double[] inputs = target.equals("min") ? series.minTemps() : series.maxTemps();
+                BatchScorer scorer = new BatchScorer(forest, target);
+                double[] expected = scorer.predict(inputs);
+                double[] single = new double[inputs.length];
+                for (int i = 0; i < inputs.length; i++) {
+                    single[i] = compiled.predict(inputs[i]);
+                }
+                double[] batch = compiled.predict(inputs);
+
+                double maxError = 0;
+                for (int i = 0; i < inputs.length; i++) {
+                    maxError = Math.max(maxError, Math.abs(expected[i] - single[i]));
+                    maxError = Math.max(maxError, Math.abs(expected[i] - batch[i]));
+                }
+                // A batch with non-finite inputs must agree with the scalar path row by row
+                double[] edges = {inputs[0], Double.NaN, Double.POSITIVE_INFINITY, inputs[1],
+                        Double.NEGATIVE_INFINITY, inputs[2], inputs[3], inputs[4]};
+                double[] edgeBatch = compiled.predict(edges);
+                for (int i = 0; i < edges.length; i++) {
+                    if (Double.compare(edgeBatch[i], compiled.predict(edges[i])) != 0) {
+                        System.err.println("FAIL: batch and scalar paths differ for input " + edges[i]);
+                        System.exit(1);
+                    }
+                }
+
+                // Warm up both paths before timing
+                double sink = 0;
+                for (int round = 0; round < 20; round++) {
+                    for (double input : inputs) {
+                        sink += compiled.predict(input);
+                    }
+                }
+                sink += scorer.predict(inputs)[0];
+
+                start = System.nanoTime();
+                for (double input : inputs) {
+                    sink += scorer.predict(input);
+                }
+                double wekaNanos = (double) (System.nanoTime() - start) / inputs.length;
+
+                start = System.nanoTime();
+                for (int round = 0; round < 10; round++) {
+                    for (double input : inputs) {
+                        sink += compiled.predict(input);
+                    }
+                }
+                double singleNanos = (double) (System.nanoTime() - start) / (10.0 * inputs.length);
+
+                start = System.nanoTime();
+                for (int round = 0; round < 10; round++) {
+                    compiled.predict(inputs, batch);
+                }
+                double batchNanos = (double) (System.nanoTime() - start) / (10.0 * inputs.length);
+                sink += batch[0];
+
+                System.out.println("\n=== " + target + " random forest ===");
+                System.out.println("Trees: " + compiled.numTrees() + ", nodes: " + compiled.numNodes()
+                        + ", compiled in " + compileNanos / 1_000_000 + " ms");
+                System.out.println("Max abs error vs classifyInstance over " + inputs.length + " rows: " + maxError);
+                System.out.printf("classifyInstance: %.0f ns/prediction%n", wekaNanos);
+                System.out.printf("compiled single:  %.0f ns/prediction (%.1fx)%n", singleNanos, wekaNanos / singleNanos);
+                System.out.printf("compiled batch:   %.0f ns/prediction (%.1fx)%n", batchNanos, wekaNanos / batchNanos);
+                if (maxError > 1e-9) {
+                    System.err.println("FAIL: compiled forest does not match classifyInstance");
+                    System.exit(1);
+                }
+                if (sink == 42) {
+                    System.out.println();
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
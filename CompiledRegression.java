@@ -0,0 +1,478 @@
+import weka.classifiers.Classifier;
+import weka.classifiers.functions.LinearRegression;
+import weka.classifiers.functions.SMOreg;
+import weka.classifiers.functions.supportVector.Kernel;
+import weka.classifiers.functions.supportVector.PolyKernel;
+import weka.classifiers.functions.supportVector.RBFKernel;
+import weka.classifiers.functions.supportVector.SMOset;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.Normalize;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// A trained SMOreg or LinearRegression exported into plain arrays.
+//
+// Both models become  y = (sum_i coefficient[i] * K(z, vector[i]) - bias) * x1 + x0,
+// where z is the input after the model's Normalize filter. A linear machine (a PolyKernel
+// with exponent 1, and every LinearRegression) keeps a single weight instead of support
+// vectors. Support vectors are stored in the order SMOreg visits them and the scalar path
+// accumulates in that order starting from -bias, so it returns exactly what
+// classifyInstance returns. The batch path hands the kernel sums to an Engine: the
+// Vector API engine (simd/VectorKernels.java) when it was compiled and
+// jdk.incubator.vector is on the module path, otherwise the scalar loop below.
+// Missing inputs get the prediction for the training mean, like ReplaceMissingValues.
+//
+// Only single-input models with a PolyKernel or RBFKernel and the default Normalize (or
+// no) filter are supported; compile throws IllegalArgumentException for anything else.
+//
+//   -Dregression.vector=false   forces the scalar engine
+public class CompiledRegression implements TemperaturePredictor {
+    static final byte LINEAR = 0;
+    static final byte POLY = 1;
+    static final byte RBF = 2;
+
+    static final Engine SCALAR = new ScalarEngine();
+    static final Engine VECTOR = loadVectorEngine();
+
+    private final byte kernel;
+    // Normalize: z = (x - min) / range * scale + translation, or 0 when range is 0
+    private final double min;
+    private final double range;
+    private final double scale;
+    private final double translation;
+    private final boolean normalize;
+    // LINEAR keeps the weight in coefficients[0] and has no vectors
+    private final double[] vectors;
+    private final double[] squares;
+    private final double[] coefficients;
+    private final double exponent;
+    private final boolean lowerOrder;
+    private final double gamma;
+    private final double bias;
+    private final double x1;
+    private final double x0;
+    private double missingValue = Double.NaN;
+
+    // Kernel sums for a batch; values holds z on entry and start + sum_i c_i * K(z, s_i) on exit
+    interface Engine {
+        void poly(double[] vectors, double[] coefficients, double exponent, boolean lowerOrder, double start,
+                  double[] values, int n);
+
+        void rbf(double[] vectors, double[] squares, double[] coefficients, double gamma, double start,
+                 double[] values, int n);
+
+        String name();
+    }
+
+    CompiledRegression(byte kernel, boolean normalize, double min, double range, double scale, double translation,
+                       double[] vectors, double[] coefficients, double exponent, boolean lowerOrder, double gamma,
+                       double bias, double x1, double x0) {
+        this.kernel = kernel;
+        this.normalize = normalize;
+        this.min = min;
+        this.range = range;
+        this.scale = scale;
+        this.translation = translation;
+        this.vectors = vectors;
+        this.coefficients = coefficients;
+        this.exponent = exponent;
+        this.lowerOrder = lowerOrder;
+        this.gamma = gamma;
+        this.bias = bias;
+        this.x1 = x1;
+        this.x0 = x0;
+        // RBFKernel precomputes <s, s> for every support vector
+        this.squares = new double[vectors.length];
+        for (int i = 0; i < vectors.length; i++) {
+            squares[i] = vectors[i] * vectors[i];
+        }
+    }
+
+    // Helper method to fix the output for missing inputs once the model can score
+    private CompiledRegression withMissingInput(double input) {
+        missingValue = Double.isNaN(input) ? Double.NaN : predict(input);
+        return this;
+    }
+
+    public static CompiledRegression compile(Classifier model) throws Exception {
+        if (model instanceof SMOreg) {
+            return compile((SMOreg) model);
+        }
+        if (model instanceof LinearRegression) {
+            return compile((LinearRegression) model);
+        }
+        throw new IllegalArgumentException("Not a SMOreg or LinearRegression model: " + model.getClass().getName());
+    }
+
+    public static CompiledRegression compile(SMOreg svm) throws Exception {
+        Object optimizer = CompiledForest.field(svm, "m_optimizer");
+        Instances data = (Instances) CompiledForest.field(optimizer, "m_data");
+        if (data == null || data.numAttributes() != 2 || data.classIndex() != 1) {
+            throw new IllegalArgumentException("Only single-input SMOreg models are supported");
+        }
+        if (CompiledForest.field(svm, "m_NominalToBinary") != null) {
+            throw new IllegalArgumentException("Nominal inputs are not supported");
+        }
+
+        Filter filter = (Filter) CompiledForest.field(svm, "m_Filter");
+        boolean normalize = filter != null;
+        double min = 0;
+        double range = 1;
+        double scale = 1;
+        double translation = 0;
+        if (filter instanceof Normalize) {
+            Normalize normalizer = (Normalize) filter;
+            min = ((double[]) CompiledForest.field(normalizer, "m_MinArray"))[0];
+            double max = ((double[]) CompiledForest.field(normalizer, "m_MaxArray"))[0];
+            range = Double.isNaN(min) ? 0 : max - min;
+            scale = normalizer.getScale();
+            translation = normalizer.getTranslation();
+        } else if (filter != null) {
+            throw new IllegalArgumentException("Unsupported SMOreg filter: " + filter.getClass().getSimpleName());
+        }
+
+        double bias = (Double) CompiledForest.field(optimizer, "m_b");
+        double x1 = (Double) CompiledForest.field(svm, "m_x1");
+        double x0 = (Double) CompiledForest.field(svm, "m_x0");
+        double missingInput = mean(CompiledForest.field(svm, "m_Missing"));
+
+        double[] weights = (double[]) CompiledForest.field(optimizer, "m_weights");
+        if (weights != null) {
+            return new CompiledRegression(LINEAR, normalize, min, range, scale, translation, new double[0],
+                    new double[]{weights[0]}, 1, false, 0, bias, x1, x0).withMissingInput(missingInput);
+        }
+
+        double[] alpha = (double[]) CompiledForest.field(optimizer, "m_alpha");
+        double[] alphaStar = (double[]) CompiledForest.field(optimizer, "m_alphaStar");
+        SMOset supportVectors = (SMOset) CompiledForest.field(optimizer, "m_supportVectors");
+        double[] vectors = new double[supportVectors.numElements()];
+        double[] coefficients = new double[vectors.length];
+        int count = 0;
+        for (int i = supportVectors.getNext(-1); i != -1; i = supportVectors.getNext(i)) {
+            vectors[count] = data.instance(i).value(0);
+            coefficients[count] = alpha[i] - alphaStar[i];
+            count++;
+        }
+
+        Kernel kernel = svm.getKernel();
+        if (kernel instanceof PolyKernel) {
+            PolyKernel poly = (PolyKernel) kernel;
+            return new CompiledRegression(POLY, normalize, min, range, scale, translation, vectors, coefficients,
+                    poly.getExponent(), poly.getUseLowerOrder(), 0, bias, x1, x0).withMissingInput(missingInput);
+        }
+        if (kernel instanceof RBFKernel) {
+            return new CompiledRegression(RBF, normalize, min, range, scale, translation, vectors, coefficients,
+                    1, false, ((RBFKernel) kernel).getGamma(), bias, x1, x0).withMissingInput(missingInput);
+        }
+        throw new IllegalArgumentException("Unsupported kernel: " + kernel.getClass().getSimpleName());
+    }
+
+    // regressionPrediction is intercept + coefficient * x, the same as a linear machine with
+    // bias -intercept and no filter or output scaling
+    public static CompiledRegression compile(LinearRegression regression) throws Exception {
+        double[] coefficients = regression.coefficients();
+        if (coefficients.length != 3) {
+            throw new IllegalArgumentException("Only single-input LinearRegression models are supported");
+        }
+        // A ZeroR fallback ignores the input; with checks turned off a missing input stays missing
+        double missingInput;
+        if ((Boolean) CompiledForest.field(regression, "m_isZeroR")) {
+            missingInput = 0;
+        } else if ((Boolean) CompiledForest.field(regression, "m_checksTurnedOff")) {
+            missingInput = Double.NaN;
+        } else {
+            missingInput = mean(CompiledForest.field(regression, "m_MissingFilter"));
+        }
+        return new CompiledRegression(LINEAR, false, 0, 1, 1, 0, new double[0], new double[]{coefficients[0]},
+                1, false, 0, -coefficients[2], 1, 0).withMissingInput(missingInput);
+    }
+
+    // The value ReplaceMissingValues substitutes for a missing input
+    private static double mean(Object replaceMissing) throws Exception {
+        if (replaceMissing == null) {
+            return Double.NaN;
+        }
+        return ((double[]) CompiledForest.field(replaceMissing, "m_ModesAndMeans"))[0];
+    }
+
+    private static Engine loadVectorEngine() {
+        if (!Boolean.parseBoolean(System.getProperty("regression.vector", "true"))) {
+            return null;
+        }
+        try {
+            return (Engine) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // not compiled, or started without --add-modules jdk.incubator.vector
+            return null;
+        }
+    }
+
+    public static String engineName() {
+        return (VECTOR != null ? VECTOR : SCALAR).name();
+    }
+
+    public int numSupportVectors() {
+        return vectors.length;
+    }
+
+    public String kernelName() {
+        return kernel == LINEAR ? "linear" : kernel == POLY ? "poly" : "rbf";
+    }
+
+    private double normalize(double x) {
+        if (!normalize) {
+            return x;
+        }
+        return range == 0 ? 0 : (x - min) / range * scale + translation;
+    }
+
+    @Override
+    public double predict(double currentTemp) {
+        if (Double.isNaN(currentTemp)) {
+            return missingValue;
+        }
+        double z = normalize(currentTemp);
+        double result = -bias;
+        switch (kernel) {
+            case LINEAR:
+                result += coefficients[0] * z;
+                break;
+            case POLY:
+                for (int i = 0; i < vectors.length; i++) {
+                    result += coefficients[i] * poly(z * vectors[i], exponent, lowerOrder);
+                }
+                break;
+            default:
+                double zz = z * z;
+                for (int i = 0; i < vectors.length; i++) {
+                    result += coefficients[i] * Math.exp(-gamma * (zz - 2.0 * (z * vectors[i]) + squares[i]));
+                }
+        }
+        return result * x1 + x0;
+    }
+
+    private static double poly(double dot, double exponent, boolean lowerOrder) {
+        double result = lowerOrder ? dot + 1.0 : dot;
+        return exponent != 1.0 ? Math.pow(result, exponent) : result;
+    }
+
+    @Override
+    public void predict(double[] inputs, double[] outputs) {
+        predict(inputs, outputs, VECTOR != null ? VECTOR : SCALAR);
+    }
+
+    void predict(double[] inputs, double[] outputs, Engine engine) {
+        int n = inputs.length;
+        if (outputs.length < n) {
+            throw new IllegalArgumentException("Output array too small: " + outputs.length + " < " + n);
+        }
+        for (int i = 0; i < n; i++) {
+            outputs[i] = normalize(inputs[i]);
+        }
+        switch (kernel) {
+            case LINEAR:
+                double weight = coefficients[0];
+                for (int i = 0; i < n; i++) {
+                    outputs[i] = -bias + weight * outputs[i];
+                }
+                break;
+            case POLY:
+                engine.poly(vectors, coefficients, exponent, lowerOrder, -bias, outputs, n);
+                break;
+            default:
+                engine.rbf(vectors, squares, coefficients, gamma, -bias, outputs, n);
+        }
+        for (int i = 0; i < n; i++) {
+            outputs[i] = Double.isNaN(inputs[i]) ? missingValue : outputs[i] * x1 + x0;
+        }
+    }
+
+    // One input at a time over the support vectors, in SMOreg's order
+    private static class ScalarEngine implements Engine {
+        @Override
+        public void poly(double[] vectors, double[] coefficients, double exponent, boolean lowerOrder, double start,
+                         double[] values, int n) {
+            for (int j = 0; j < n; j++) {
+                double z = values[j];
+                double result = start;
+                for (int i = 0; i < vectors.length; i++) {
+                    result += coefficients[i] * CompiledRegression.poly(z * vectors[i], exponent, lowerOrder);
+                }
+                values[j] = result;
+            }
+        }
+
+        @Override
+        public void rbf(double[] vectors, double[] squares, double[] coefficients, double gamma, double start,
+                        double[] values, int n) {
+            for (int j = 0; j < n; j++) {
+                double z = values[j];
+                double zz = z * z;
+                double result = start;
+                for (int i = 0; i < vectors.length; i++) {
+                    result += coefficients[i] * Math.exp(-gamma * (zz - 2.0 * (z * vectors[i]) + squares[i]));
+                }
+                values[j] = result;
+            }
+        }
+
+        @Override
+        public String name() {
+            return "scalar";
+        }
+    }
+
+    // See ModelArtifact for the surrounding file format
+    void write(DataOutputStream out) throws IOException {
+        out.writeByte(kernel);
+        out.writeBoolean(normalize);
+        out.writeBoolean(lowerOrder);
+        out.writeDouble(min);
+        out.writeDouble(range);
+        out.writeDouble(scale);
+        out.writeDouble(translation);
+        out.writeDouble(exponent);
+        out.writeDouble(gamma);
+        out.writeDouble(bias);
+        out.writeDouble(x1);
+        out.writeDouble(x0);
+        out.writeDouble(missingValue);
+        out.writeInt(vectors.length);
+        out.writeInt(coefficients.length);
+        for (double vector : vectors) {
+            out.writeDouble(vector);
+        }
+        for (double coefficient : coefficients) {
+            out.writeDouble(coefficient);
+        }
+    }
+
+    static CompiledRegression read(ByteBuffer in) {
+        byte kernel = in.get();
+        boolean normalize = in.get() != 0;
+        boolean lowerOrder = in.get() != 0;
+        double min = in.getDouble();
+        double range = in.getDouble();
+        double scale = in.getDouble();
+        double translation = in.getDouble();
+        double exponent = in.getDouble();
+        double gamma = in.getDouble();
+        double bias = in.getDouble();
+        double x1 = in.getDouble();
+        double x0 = in.getDouble();
+        double missingValue = in.getDouble();
+        double[] vectors = new double[in.getInt()];
+        double[] coefficients = new double[in.getInt()];
+        in.asDoubleBuffer().get(vectors);
+        in.position(in.position() + vectors.length * Double.BYTES);
+        in.asDoubleBuffer().get(coefficients);
+        in.position(in.position() + coefficients.length * Double.BYTES);
+        CompiledRegression model = new CompiledRegression(kernel, normalize, min, range, scale, translation, vectors,
+                coefficients, exponent, lowerOrder, gamma, bias, x1, x0);
+        model.missingValue = missingValue;
+        return model;
+    }
+
+    // Verifies the exported models against classifyInstance and compares batch throughput.
+    // The saved SVRs use the default linear PolyKernel, so an RBF model (a kernel the
+    // hyperparameter search can pick) is trained here to exercise the support-vector path.
+    public static void main(String[] args) {
+        try {
+            TemperatureSeries series = TemperatureCsvReader.read("data/daily_temp.csv");
+            System.out.println("Batch engine: " + engineName());
+            boolean failed = false;
+            for (String target : new String[]{"min", "max"}) {
+                double[] values = target.equals("min") ? series.minTemps() : series.maxTemps();
+                double[] inputs = java.util.Arrays.copyOf(values, values.length + 1);
+                inputs[values.length] = Double.NaN;
+                for (String file : new String[]{"linear_regression", "support_vector_regression"}) {
+                    Classifier model = (Classifier) SerializationHelper.read("model/" + target + "/" + file + ".model");
+                    failed |= !report(target + " " + file, model, target, inputs);
+                }
+
+                int rows = Math.min(values.length, Integer.getInteger("regression.benchRows", 2000));
+                SMOreg rbf = new SMOreg();
+                rbf.setOptions(weka.core.Utils.splitOptions(
+                        "-K \"weka.classifiers.functions.supportVector.RBFKernel -C 250007 -G 10.0\""));
+                long start = System.nanoTime();
+                rbf.buildClassifier(SeriesDataset.lagged(target, values, 0, rows, 1));
+                System.out.printf("%nTrained RBF SMOreg on %d rows in %d ms%n", rows,
+                        (System.nanoTime() - start) / 1_000_000);
+                failed |= !report(target + " rbf (gamma 10)", rbf, target, inputs);
+            }
+            if (failed) {
+                System.err.println("FAIL: compiled models do not match classifyInstance");
+                System.exit(1);
+            }
+            System.out.println("\nPASS: compiled models match classifyInstance");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // Helper method to check one model on every engine and print ns/prediction for each
+    private static boolean report(String label, Classifier model, String target, double[] inputs) throws Exception {
+        CompiledRegression compiled = compile(model);
+        BatchScorer scorer = new BatchScorer(model, target);
+        double[] expected = scorer.predict(inputs);
+        double[] outputs = new double[inputs.length];
+
+        System.out.println("\n=== " + label + " ===");
+        System.out.println("Kernel: " + compiled.kernelName() + ", support vectors: " + compiled.numSupportVectors());
+        double singleError = 0;
+        for (int i = 0; i < inputs.length; i++) {
+            singleError = Math.max(singleError, difference(expected[i], compiled.predict(inputs[i])));
+        }
+        System.out.println("single:  max abs error " + singleError);
+
+        int rounds = Math.max(1, 20_000 / Math.max(1, compiled.numSupportVectors()));
+        double sink = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < Math.max(1, rounds / 20); round++) {
+            sink += scorer.predict(inputs)[0];
+        }
+        double wekaNanos = (double) (System.nanoTime() - start) / (Math.max(1, rounds / 20) * inputs.length);
+        System.out.printf("classifyInstance:  %8.1f ns/prediction%n", wekaNanos);
+
+        boolean matches = singleError <= 1e-9;
+        for (Engine engine : new Engine[]{SCALAR, VECTOR}) {
+            if (engine == null) {
+                System.out.println("vector engine unavailable (see simd/VectorKernels.java)");
+                continue;
+            }
+            compiled.predict(inputs, outputs, engine);
+            double error = 0;
+            for (int i = 0; i < inputs.length; i++) {
+                error = Math.max(error, difference(expected[i], outputs[i]));
+            }
+            for (int round = 0; round < rounds; round++) {
+                compiled.predict(inputs, outputs, engine);
+            }
+            start = System.nanoTime();
+            for (int round = 0; round < rounds; round++) {
+                compiled.predict(inputs, outputs, engine);
+                sink += outputs[0];
+            }
+            double nanos = (double) (System.nanoTime() - start) / ((double) rounds * inputs.length);
+            System.out.printf("%-18s %8.1f ns/prediction (%.1fx), max abs error %s%n", engine.name() + ":", nanos,
+                    wekaNanos / nanos, error);
+            matches &= error <= 1e-9;
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+        return matches;
+    }
+
+    private static double difference(double expected, double actual) {
+        if (Double.isNaN(expected) || Double.isNaN(actual)) {
+            return Double.isNaN(expected) && Double.isNaN(actual) ? 0 : Double.POSITIVE_INFINITY;
+        }
+        return Math.abs(expected - actual);
+    }
+}
@@ -0,0 +1,228 @@
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+
+// Direct multi-horizon forecast for one target. Model h (h = 1..H) is trained on the
+// pairs (values[i], values[i + h]) and predicts h days ahead from today's value in a
+// single step, so errors do not compound the way they do when the 1-day model is
+// chained, and no horizon waits for the one before it.
+//
+// Every horizon is evaluated once on the 0.1-degree grid the data is recorded in and
+// stored as one row of H values per grid point, so a forecast from an observed value is
+// a single row copy whatever H is. Other inputs score each horizon's model in turn.
+// Forecasts longer than H continue recursively from day H with the 1-day model.
+public class DirectForecaster {
+    // Horizons trained by TimeSeriesForecaster; -Dforecaster.directHorizons=0 disables them
+    public static final int DEFAULT_HORIZONS = Integer.getInteger("forecaster.directHorizons", 14);
+    private static final String DATA_FILE = "data/daily_temp.csv";
+    private static final String STORE_FILE = "data/daily_temp.tss";
+    // Grid positions this close to a whole number are treated as exact hits
+    private static final double SNAP = 1e-6;
+
+    private final TemperaturePredictor[] models;
+    private double low;
+    private double high;
+    private double inverseStep;
+    // table[row * H + h - 1] is the h-day forecast from grid point row
+    private double[] table;
+
+    public DirectForecaster(TemperaturePredictor[] models) {
+        if (models.length == 0) {
+            throw new IllegalArgumentException("A direct forecaster needs at least one horizon");
+        }
+        this.models = models;
+    }
+
+    public static DirectForecaster of(Classifier[] models, String target) throws Exception {
+        TemperaturePredictor[] predictors = new TemperaturePredictor[models.length];
+        for (int h = 0; h < models.length; h++) {
+            predictors[h] = TemperaturePredictor.forModel(models[h], target);
+        }
+        return new DirectForecaster(predictors);
+    }
+
+    // Training set for horizon h from values[from, to): pairs (values[i], values[i + h])
+    static Instances dataset(String target, double[] values, int from, int to, int horizon) {
+        return SeriesDataset.lagged(target, values, from, to, horizon);
+    }
+
+    // Fits one copy of the template per horizon on values[from, to), all horizons at once
+    public static Classifier[] train(ParallelTrainer trainer, Classifier template, String target,
+                                     double[] values, int from, int to, int horizons) throws Exception {
+        ParallelTrainer.PendingModel[] pending = new ParallelTrainer.PendingModel[horizons];
+        for (int h = 1; h <= horizons; h++) {
+            pending[h - 1] = trainer.submit(template, dataset(target, values, from, to, h));
+        }
+        Classifier[] models = new Classifier[horizons];
+        for (int h = 0; h < horizons; h++) {
+            models[h] = pending[h].get().model;
+        }
+        return models;
+    }
+
+    // Precomputes every horizon on the grid [low, high] with the given step
+    public DirectForecaster tabulate(double low, double high, double step) throws Exception {
+        if (!(step > 0) || !(high >= low)) {
+            throw new IllegalArgumentException("Invalid grid [" + low + ", " + high + "] step " + step);
+        }
+        int points = (int) Math.round((high - low) / step) + 1;
+        double[] grid = new double[points];
+        for (int i = 0; i < points; i++) {
+            // Rounded to the step's decimals so 0.1-degree grid points equal parsed inputs
+            grid[i] = Math.round((low + i * step) * 1e9) / 1e9;
+        }
+        double[] rows = new double[points * models.length];
+        double[] column = new double[points];
+        for (int h = 0; h < models.length; h++) {
+            models[h].predict(grid, column);
+            for (int i = 0; i < points; i++) {
+                rows[i * models.length + h] = column[i];
+            }
+        }
+        this.low = grid[0];
+        this.high = grid[points - 1];
+        this.inverseStep = 1.0 / step;
+        this.table = rows;
+        return this;
+    }
+
+    public int horizons() {
+        return models.length;
+    }
+
+    // Model for one horizon, 1..horizons()
+    public TemperaturePredictor model(int horizon) {
+        return models[horizon - 1];
+    }
+
+    // Fills out[k] with the forecast k + 1 days after currentTemp
+    public void forecast(double currentTemp, double[] out) throws Exception {
+        int direct = Math.min(out.length, models.length);
+        int row = row(currentTemp);
+        if (row >= 0) {
+            System.arraycopy(table, row * models.length, out, 0, direct);
+        } else {
+            for (int h = 0; h < direct; h++) {
+                out[h] = models[h].predict(currentTemp);
+            }
+        }
+        for (int h = direct; h < out.length; h++) {
+            out[h] = models[0].predict(out[h - 1]);
+        }
+    }
+
+    public double[] forecast(double currentTemp, int days) throws Exception {
+        double[] out = new double[days];
+        forecast(currentTemp, out);
+        return out;
+    }
+
+    // Grid row of an input, or -1 when it is not on the grid
+    private int row(double currentTemp) {
+        if (table == null || !(currentTemp >= low && currentTemp <= high)) {
+            return -1;
+        }
+        double position = (currentTemp - low) * inverseStep;
+        long index = Math.round(position);
+        return Math.abs(position - index) < SNAP ? (int) index : -1;
+    }
+
+    // java DirectForecaster [min|max] [model name]
+    // Trains direct and 1-day models on the first 80% of the data and reports per-horizon
+    // errors of both forecasts over every origin in the last 20%, then the time per
+    // forecast for several lengths.
+    public static void main(String[] args) {
+        try {
+            String target = args.length > 0 ? args[0] : "min";
+            String modelName = args.length > 1 ? args[1] : "Random Forest";
+            int horizons = Math.max(1, DEFAULT_HORIZONS);
+            int parallelism = Integer.getInteger("forecaster.parallelism", Runtime.getRuntime().availableProcessors());
+
+            TemperatureSeries series = TemperatureStore.loadSeries(DATA_FILE, STORE_FILE);
+            double[] values = target.equals("min") ? series.minTemps() : series.maxTemps();
+            int split = values.length * 4 / 5;
+            ModelRegistry registry = ModelRegistry.open();
+
+            long start = System.nanoTime();
+            DirectForecaster direct;
+            try (ParallelTrainer trainer = new ParallelTrainer(parallelism, 0, 1)) {
+                direct = of(train(trainer, registry.newLearner(target, modelName), target, values, 0, split,
+                        horizons), target);
+            }
+            System.out.printf("Trained %d %s horizons on %d days in %.1f s (%d threads)%n", horizons, modelName,
+                    split, (System.nanoTime() - start) / 1e9, parallelism);
+            double low = Double.POSITIVE_INFINITY;
+            double high = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < split; i++) {
+                low = Math.min(low, values[i]);
+                high = Math.max(high, values[i]);
+            }
+            direct.tabulate(low, high, 0.1);
+
+            // The horizon-1 model is exactly the 1-day model the recursive chain uses
+            TemperaturePredictor oneDay = direct.model(1);
+            WalkForwardBacktester.Result directErrors = new WalkForwardBacktester.Result(horizons);
+            WalkForwardBacktester.Result recursiveErrors = new WalkForwardBacktester.Result(horizons);
+            double[] path = new double[horizons];
+            for (int origin = split; origin + 1 < values.length; origin++) {
+                direct.forecast(values[origin], path);
+                double current = values[origin];
+                for (int h = 0; h < horizons && origin + h + 1 < values.length; h++) {
+                    current = oneDay.predict(current);
+                    directErrors.add(h, path[h], values[origin + h + 1]);
+                    recursiveErrors.add(h, current, values[origin + h + 1]);
+                }
+            }
+
+            System.out.println("\n=== " + target + " " + modelName + ", holdout of " + (values.length - split)
+                    + " days ===");
+            System.out.println("Horizon  Forecasts  Recursive RMSE  Direct RMSE  Recursive MAE  Direct MAE");
+            for (int h = 1; h <= horizons; h++) {
+                System.out.printf("%7d  %9d  %14.4f  %11.4f  %13.4f  %10.4f%n", h, directErrors.forecasts(h),
+                        recursiveErrors.rmse(h), directErrors.rmse(h), recursiveErrors.mae(h), directErrors.mae(h));
+            }
+
+            System.out.println("\nTime per forecast from observed values:");
+            System.out.println("   Days   Recursive ns   Direct ns");
+            for (int days : new int[]{1, 7, horizons, 30}) {
+                double[] out = new double[days];
+                double recursiveNanos = nanosPerForecast(values, split, input -> {
+                    double current = input;
+                    for (int d = 0; d < days; d++) {
+                        current = oneDay.predict(current);
+                        out[d] = current;
+                    }
+                    return out[days - 1];
+                });
+                double directNanos = nanosPerForecast(values, split, input -> {
+                    direct.forecast(input, out);
+                    return out[days - 1];
+                });
+                System.out.printf("%7d  %13.0f  %10.0f%n", days, recursiveNanos, directNanos);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private interface Forecast {
+        double run(double input) throws Exception;
+    }
+
+    private static double nanosPerForecast(double[] values, int from, Forecast forecast) throws Exception {
+        double best = Double.MAX_VALUE;
+        double sink = 0;
+        int calls = 20_000;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                sink += forecast.run(values[from + i % (values.length - from)]);
+            }
+            best = Math.min(best, (double) (System.nanoTime() - start) / calls);
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+        return best;
+    }
+}
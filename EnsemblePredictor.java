@@ -0,0 +1,405 @@
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Weighted ensemble of the trained models with a per-request latency budget.
+//
+// Members are ordered cheapest first. The first member (Linear Regression) is scored on
+// the caller's thread, so every request has an answer; the others run in parallel on
+// the ensemble's pool. A request waits for them until its deadline and averages the
+// members that finished, with their weights renormalized. Members still queued at the
+// deadline are cancelled; one that is already running finishes and its answer is
+// dropped. Each member's time from submission to result is tracked as a moving
+// average, and a member expected to miss the remaining budget is not started at all
+// (except every PROBE_EVERY-th time, so the estimate can recover). Batches keep their
+// own average per input row, so a batch's estimate scales with its size. Weights are the
+// inverse cross-validated MSE (1 / rmse^2) of each member, normalized, or equal when
+// no metrics have been recorded. Every Result says which members contributed.
+//
+//   -Densemble.budgetMicros=1000   budget for predict(double) and predict(double[], double[])
+//   -Densemble.parallelism=N       pool threads, default: one per member after the first
+public class EnsemblePredictor implements TemperaturePredictor, AutoCloseable {
+    // Cheapest first; the first member always contributes
+    public static final String[] MODELS = {"Linear Regression", "Support Vector Regression", "Random Forest"};
+    private static final long BUDGET_NANOS = TimeUnit.MICROSECONDS.toNanos(Long.getLong("ensemble.budgetMicros", 1000));
+    private static final int PROBE_EVERY = 64;
+
+    private final String[] names;
+    private final TemperaturePredictor[] members;
+    private final double[] weights;
+    private final ForkJoinPool pool;
+    private final long budgetNanos;
+    // Moving average of submission-to-result time per member, and skips since the last start
+    private final AtomicLongArray expectedNanos;
+    private final AtomicIntegerArray skipped;
+    // The same for batches, per input row
+    private final AtomicLongArray expectedBatchRowNanos;
+    private final AtomicIntegerArray skippedBatches;
+
+    public static class Result {
+        public final double value;
+        // Bit i is set when member i contributed
+        public final int members;
+        private final String[] names;
+
+        Result(double value, int members, String[] names) {
+            this.value = value;
+            this.members = members;
+            this.names = names;
+        }
+
+        public boolean complete() {
+            return members == (1 << names.length) - 1;
+        }
+
+        public List<String> memberNames() {
+            List<String> contributed = new ArrayList<>();
+            for (int i = 0; i < names.length; i++) {
+                if ((members & (1 << i)) != 0) {
+                    contributed.add(names[i]);
+                }
+            }
+            return contributed;
+        }
+    }
+
+    // rmse[i] <= 0 or NaN for any member gives equal weights
+    public EnsemblePredictor(String[] names, TemperaturePredictor[] members, double[] rmse, int parallelism,
+                             long budgetNanos) {
+        if (names.length != members.length || rmse.length != members.length || members.length == 0
+                || members.length > 31) {
+            throw new IllegalArgumentException("Need 1 to 31 members with one name and rmse each");
+        }
+        this.names = names.clone();
+        this.members = members.clone();
+        this.weights = weights(rmse);
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+        this.budgetNanos = budgetNanos;
+        this.expectedNanos = new AtomicLongArray(members.length);
+        this.skipped = new AtomicIntegerArray(members.length);
+        this.expectedBatchRowNanos = new AtomicLongArray(members.length);
+        this.skippedBatches = new AtomicIntegerArray(members.length);
+    }
+
+    // All of MODELS for a target, weighted by the metrics recorded at training time
+    public static EnsemblePredictor fromRegistry(ModelRegistry registry, String target) throws Exception {
+        registry.prefetch(target);
+        TemperaturePredictor[] members = new TemperaturePredictor[MODELS.length];
+        double[] rmse = new double[MODELS.length];
+        for (int i = 0; i < MODELS.length; i++) {
+            members[i] = registry.predictor(target, MODELS[i]);
+            ModelRegistry.Entry entry = registry.entry(target, MODELS[i]);
+            rmse[i] = entry == null ? Double.NaN : entry.rmse;
+        }
+        return new EnsemblePredictor(MODELS, members, rmse,
+                Integer.getInteger("ensemble.parallelism", MODELS.length - 1), BUDGET_NANOS);
+    }
+
+    static double[] weights(double[] rmse) {
+        double[] weights = new double[rmse.length];
+        double total = 0;
+        for (int i = 0; i < rmse.length; i++) {
+            if (!(rmse[i] > 0) || Double.isInfinite(rmse[i])) {
+                Arrays.fill(weights, 1.0 / rmse.length);
+                return weights;
+            }
+            weights[i] = 1 / (rmse[i] * rmse[i]);
+            total += weights[i];
+        }
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] /= total;
+        }
+        return weights;
+    }
+
+    public String[] names() {
+        return names.clone();
+    }
+
+    public double weight(int member) {
+        return weights[member];
+    }
+
+    public long budgetNanos() {
+        return budgetNanos;
+    }
+
+    @Override
+    public double predict(double currentTemp) throws Exception {
+        return predict(currentTemp, System.nanoTime() + budgetNanos).value;
+    }
+
+    // Best answer available at deadlineNanos (System.nanoTime() based)
+    public Result predict(double currentTemp, long deadlineNanos) throws Exception {
+        List<CompletableFuture<Double>> pending = new ArrayList<>(members.length);
+        pending.add(null);
+        for (int i = 1; i < members.length; i++) {
+            if (!worthStarting(skipped, i, expectedNanos.get(i), deadlineNanos)) {
+                pending.add(null);
+                continue;
+            }
+            int index = i;
+            long submitted = System.nanoTime();
+            pending.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    double value = members[index].predict(currentTemp);
+                    observe(expectedNanos, index, System.nanoTime() - submitted);
+                    return value;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, pool));
+        }
+
+        double sum = weights[0] * members[0].predict(currentTemp);
+        double weight = weights[0];
+        int contributed = 1;
+        for (int i = 1; i < members.length; i++) {
+            Double value = await(pending.get(i), deadlineNanos);
+            if (value != null) {
+                sum += weights[i] * value;
+                weight += weights[i];
+                contributed |= 1 << i;
+            }
+        }
+        return record(new Result(sum / weight, contributed, names));
+    }
+
+    @Override
+    public void predict(double[] inputs, double[] outputs) throws Exception {
+        predict(inputs, outputs, System.nanoTime() + budgetNanos);
+    }
+
+    // Scores a batch under one deadline; members contribute whole batches or nothing.
+    // Allocates one output array per parallel member, since a member that misses the
+    // deadline may still be writing to it afterwards.
+    public Result predict(double[] inputs, double[] outputs, long deadlineNanos) throws Exception {
+        if (outputs.length < inputs.length) {
+            throw new IllegalArgumentException("Output array too small: " + outputs.length + " < " + inputs.length);
+        }
+        int rows = Math.max(1, inputs.length);
+        List<CompletableFuture<double[]>> pending = new ArrayList<>(members.length);
+        pending.add(null);
+        for (int i = 1; i < members.length; i++) {
+            // Batch times are not comparable with the single-prediction estimates
+            if (!worthStarting(skippedBatches, i, expectedBatchRowNanos.get(i) * rows, deadlineNanos)) {
+                pending.add(null);
+                continue;
+            }
+            int index = i;
+            long submitted = System.nanoTime();
+            pending.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    double[] values = members[index].predict(inputs);
+                    observe(expectedBatchRowNanos, index, (System.nanoTime() - submitted) / rows);
+                    return values;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, pool));
+        }
+
+        members[0].predict(inputs, outputs);
+        for (int j = 0; j < inputs.length; j++) {
+            outputs[j] *= weights[0];
+        }
+        double weight = weights[0];
+        int contributed = 1;
+        for (int i = 1; i < members.length; i++) {
+            double[] values = await(pending.get(i), deadlineNanos);
+            if (values != null) {
+                for (int j = 0; j < inputs.length; j++) {
+                    outputs[j] += weights[i] * values[j];
+                }
+                weight += weights[i];
+                contributed |= 1 << i;
+            }
+        }
+        for (int j = 0; j < inputs.length; j++) {
+            outputs[j] /= weight;
+        }
+        return record(new Result(Double.NaN, contributed, names));
+    }
+
+    private static boolean worthStarting(AtomicIntegerArray skipped, int member, long expectedNanos,
+                                         long deadlineNanos) {
+        if (expectedNanos <= deadlineNanos - System.nanoTime()
+                || skipped.incrementAndGet(member) >= PROBE_EVERY) {
+            skipped.set(member, 0);
+            return true;
+        }
+        Metrics.increment("ensemble_skipped", 1);
+        return false;
+    }
+
+    // Exponential moving average with weight 1/8 for the new sample; races only lose samples
+    private static void observe(AtomicLongArray expectedNanos, int member, long nanos) {
+        long expected = expectedNanos.get(member);
+        expectedNanos.compareAndSet(member, expected, expected + (nanos - expected) / 8);
+    }
+
+    // Helper method to wait for a member until the deadline; null when it missed it, failed
+    // or was never started
+    private <T> T await(CompletableFuture<T> future, long deadlineNanos) {
+        if (future == null) {
+            return null;
+        }
+        long remaining = deadlineNanos - System.nanoTime();
+        try {
+            return remaining > 0 ? future.get(remaining, TimeUnit.NANOSECONDS) : future.getNow(null);
+        } catch (TimeoutException | CancellationException e) {
+            // a queued member never starts; a running one finishes unobserved
+            future.cancel(false);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+            return null;
+        } catch (ExecutionException | CompletionException e) {
+            Metrics.increment("ensemble_member_errors", 1);
+            return null;
+        } finally {
+            if (!future.isDone()) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static Result record(Result result) {
+        Metrics.increment(result.complete() ? "ensemble_complete" : "ensemble_partial", 1);
+        return result;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    // Accuracy vs latency: members are trained on the first 80% of each series with
+    // cross-validated weights, then every day of the last 20% is forecast as one request
+    // under each budget.
+    //
+    //   java EnsemblePredictor [target] [budgetMicros,...]
+    public static void main(String[] args) {
+        String[] targets = args.length > 0 ? new String[]{args[0]} : new String[]{"min", "max"};
+        String[] budgetArgs = (args.length > 1 ? args[1] : "2,5,10,20,50,100,1000").split(",");
+        try {
+            TemperatureSeries series = TemperatureCsvReader.read("data/daily_temp.csv");
+            ModelRegistry registry = ModelRegistry.open();
+            for (String target : targets) {
+                double[] values = target.equals("min") ? series.minTemps() : series.maxTemps();
+                int pairs = values.length - 1;
+                int testFrom = pairs - pairs / 5;
+                double[] inputs = Arrays.copyOfRange(values, testFrom, pairs);
+                double[] actuals = Arrays.copyOfRange(values, testFrom + 1, pairs + 1);
+                Instances training = SeriesDataset.lagged(target, values, 0, testFrom + 1, 1);
+
+                TemperaturePredictor[] members = new TemperaturePredictor[MODELS.length];
+                double[] cvRmse = new double[MODELS.length];
+                long start = System.nanoTime();
+                try (ParallelTrainer trainer = new ParallelTrainer(Runtime.getRuntime().availableProcessors(), 10, 1)) {
+                    trainer.setCache(TrainingCache.open());
+                    ParallelTrainer.PendingModel[] pending = new ParallelTrainer.PendingModel[MODELS.length];
+                    for (int i = 0; i < MODELS.length; i++) {
+                        pending[i] = trainer.submit(registry.newLearner(target, MODELS[i]), training);
+                    }
+                    for (int i = 0; i < MODELS.length; i++) {
+                        ParallelTrainer.TrainingResult result = pending[i].get();
+                        members[i] = TemperaturePredictor.forModel(result.model, target);
+                        cvRmse[i] = result.evaluation.rootMeanSquaredError();
+                    }
+                }
+                System.out.printf("%n=== %s: trained on %d days, tested on %d (%.1f s) ===%n", target, testFrom,
+                        inputs.length, (System.nanoTime() - start) / 1e9);
+
+                try (EnsemblePredictor ensemble = new EnsemblePredictor(MODELS, members, cvRmse, MODELS.length - 1,
+                        BUDGET_NANOS)) {
+                    System.out.printf("%-28s %8s %8s %10s %10s%n", "Member", "CV RMSE", "Weight", "Test RMSE",
+                            "p99 (us)");
+                    for (int i = 0; i < MODELS.length; i++) {
+                        LatencyHistogram latency = new LatencyHistogram();
+                        double[] predictions = new double[inputs.length];
+                        for (int round = 0; round < 3; round++) {
+                            for (int j = 0; j < inputs.length; j++) {
+                                long began = System.nanoTime();
+                                predictions[j] = members[i].predict(inputs[j]);
+                                latency.recordSince(began);
+                            }
+                        }
+                        System.out.printf("%-28s %8.3f %8.3f %10.3f %10.1f%n", MODELS[i], cvRmse[i],
+                                ensemble.weight(i), rmse(predictions, actuals), latency.quantileNanos(0.99) / 1e3);
+                    }
+
+                    System.out.printf("%n%-12s %10s %10s %10s %10s  %s%n", "Budget (us)", "p50 (us)", "p99 (us)",
+                            "Complete", "Test RMSE", "Members (requests)");
+                    for (String budgetArg : budgetArgs) {
+                        long budget = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(budgetArg.trim()));
+                        // The first pass warms up the pool threads and JIT at this budget
+                        for (int round = 0; round < 2; round++) {
+                            LatencyHistogram latency = new LatencyHistogram();
+                            double[] predictions = new double[inputs.length];
+                            int[] combinations = new int[1 << MODELS.length];
+                            for (int j = 0; j < inputs.length; j++) {
+                                long began = System.nanoTime();
+                                Result result = ensemble.predict(inputs[j], began + budget);
+                                latency.recordSince(began);
+                                predictions[j] = result.value;
+                                combinations[result.members]++;
+                            }
+                            if (round == 1) {
+                                StringBuilder mix = new StringBuilder();
+                                for (int mask = 0; mask < combinations.length; mask++) {
+                                    if (combinations[mask] > 0) {
+                                        mix.append(mix.length() > 0 ? ", " : "").append(initials(mask))
+                                                .append(' ').append(combinations[mask]);
+                                    }
+                                }
+                                System.out.printf("%-12s %10.1f %10.1f %9.1f%% %10.3f  %s%n", budgetArg.trim(),
+                                        latency.quantileNanos(0.5) / 1e3, latency.quantileNanos(0.99) / 1e3,
+                                        100.0 * combinations[combinations.length - 1] / inputs.length,
+                                        rmse(predictions, actuals), mix);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // Helper method to label a member combination, e.g. "LR+RF"
+    private static String initials(int mask) {
+        StringBuilder label = new StringBuilder();
+        for (int i = 0; i < MODELS.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                label.append(label.length() > 0 ? "+" : "");
+                for (String word : MODELS[i].split(" ")) {
+                    label.append(word.charAt(0));
+                }
+            }
+        }
+        return label.toString();
+    }
+
+    private static double rmse(double[] predictions, double[] actuals) {
+        double sum = 0;
+        for (int i = 0; i < actuals.length; i++) {
+            double error = predictions[i] - actuals[i];
+            sum += error * error;
+        }
+        return Math.sqrt(sum / actuals.length);
+    }
+}
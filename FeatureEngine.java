@@ -0,0 +1,629 @@
+import weka.classifiers.Classifier;
+import weka.classifiers.functions.LinearRegression;
+import weka.classifiers.trees.RandomForest;
+import weka.core.Attribute;
+import weka.core.Instances;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Lag, rolling-window and seasonal features of a daily series, kept up to date one
+// observation at a time. Training rows and serving inputs come from the same State,
+// so a model always sees the features it was trained on.
+//
+// A State holds the last observations in a ring buffer, a running sum for the rolling
+// mean and block-wise prefix/suffix extremes for the rolling min and max, so push() is
+// amortized O(1) in the window length and allocates nothing. Lags and windows count
+// observations, not calendar days, the same as SeriesDataset. The seasonal pair is
+// sin/cos of the target day's phase in a 365.2425-day year, which needs no calendar and
+// is continuous across leap years; on consecutive days it is rotated by one day instead
+// of calling sin/cos. The sum and the rotation are recomputed every RESUM_EVERY
+// observations so rounding errors cannot build up.
+//
+// Attributes, for target "min" with the defaults:
+//   lag1_min_temp, lag2_min_temp, lag3_min_temp, lag7_min_temp, mean7_min_temp,
+//   min7_min_temp, max7_min_temp, season_sin, season_cos, next_min_temp (class)
+//
+// A window of 0 leaves out the rolling and seasonal features. Lag 1 alone with window 0
+// is the (current, next) pair every other class is built on: lagged() uses
+// BatchScorer.createHeader and SeriesDataset.lagged for it, so those models keep their
+// compiled scorers and batch paths. TimeSeriesForecaster and Pipeline pick the engine
+// with -Dforecaster.features / -Dpipeline.features (see named()), and ModelRegistry
+// records the lags and window with each model, so serving rebuilds the same engine and
+// scores through a Scorer.
+//
+//   -Dfeatures.lags=1,2,3,7   observations back; lag1 is the latest
+//   -Dfeatures.window=7       rolling mean/min/max length
+public class FeatureEngine {
+    private static final double YEAR_DAYS = 365.2425;
+    private static final int RESUM_EVERY = 1 << 16;
+    private static final double DAY_SIN = Math.sin(2 * Math.PI / YEAR_DAYS);
+    private static final double DAY_COS = Math.cos(2 * Math.PI / YEAR_DAYS);
+
+    private final int[] lags;
+    private final int window;
+    private final int horizon;
+    // Observations needed before every feature is defined
+    private final int history;
+    private final int mask;
+
+    public FeatureEngine(int[] lags, int window, int horizon) {
+        if (lags.length == 0 || window < 0 || horizon < 1) {
+            throw new IllegalArgumentException("Need at least one lag, a window of at least 0 and a horizon of at least 1");
+        }
+        int longest = window;
+        for (int lag : lags) {
+            if (lag < 1) {
+                throw new IllegalArgumentException("Lags start at 1, got " + lag);
+            }
+            longest = Math.max(longest, lag);
+        }
+        this.lags = lags.clone();
+        this.window = window;
+        this.horizon = horizon;
+        this.history = longest;
+        this.mask = Integer.highestOneBit(Math.max(1, longest - 1)) * 2 - 1;
+    }
+
+    public static FeatureEngine fromProperties(int horizon) {
+        String[] parts = System.getProperty("features.lags", "1,2,3,7").split(",");
+        int[] lags = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            lags[i] = Integer.parseInt(parts[i].trim());
+        }
+        return new FeatureEngine(lags, Integer.getInteger("features.window", 7), horizon);
+    }
+
+    // The previous day's value alone
+    public static FeatureEngine lagged(int horizon) {
+        return new FeatureEngine(new int[]{1}, 0, horizon);
+    }
+
+    // "lag1" or "engine" (fromProperties), the values of -Dforecaster.features and -Dpipeline.features
+    public static FeatureEngine named(String name, int horizon) {
+        switch (name) {
+            case "lag1":
+                return lagged(horizon);
+            case "engine":
+                return fromProperties(horizon);
+            default:
+                throw new IllegalArgumentException("Unknown features " + name + ", expected lag1 or engine");
+        }
+    }
+
+    public boolean isLagged() {
+        return window == 0 && lags.length == 1 && lags[0] == 1;
+    }
+
+    public int[] lags() {
+        return lags.clone();
+    }
+
+    public int window() {
+        return window;
+    }
+
+    public String describe() {
+        if (isLagged()) {
+            return "lag-1";
+        }
+        StringBuilder text = new StringBuilder("lags ");
+        for (int i = 0; i < lags.length; i++) {
+            text.append(i == 0 ? "" : ",").append(lags[i]);
+        }
+        return window == 0 ? text.toString() : text.append(", window ").append(window).append(", season").toString();
+    }
+
+    // Number of input features, without the class
+    public int numFeatures() {
+        return lags.length + (window > 0 ? 5 : 0);
+    }
+
+    // Observations a State needs before it is ready()
+    public int history() {
+        return history;
+    }
+
+    public int horizon() {
+        return horizon;
+    }
+
+    public Instances header(String prefix) {
+        if (isLagged()) {
+            return BatchScorer.createHeader(prefix);
+        }
+        ArrayList<Attribute> attributes = new ArrayList<>();
+        for (int lag : lags) {
+            attributes.add(new Attribute("lag" + lag + "_" + prefix + "_temp"));
+        }
+        if (window > 0) {
+            attributes.add(new Attribute("mean" + window + "_" + prefix + "_temp"));
+            attributes.add(new Attribute("min" + window + "_" + prefix + "_temp"));
+            attributes.add(new Attribute("max" + window + "_" + prefix + "_temp"));
+            attributes.add(new Attribute("season_sin"));
+            attributes.add(new Attribute("season_cos"));
+        }
+        attributes.add(new Attribute("next_" + prefix + "_temp"));
+        Instances header = new Instances(prefix.substring(0, 1).toUpperCase() + prefix.substring(1)
+                + "TemperatureFeatures", attributes, 0);
+        header.setClassIndex(attributes.size() - 1);
+        return header;
+    }
+
+    public State newState() {
+        return new State();
+    }
+
+    // Training rows over [from, to): the features after each observation from the
+    // history()-th on, with the value horizon observations later as the class. The rows
+    // are written into one row-major matrix that the dataset reads from, so building it
+    // allocates no Instance per row; lag-1 pairs are read from values directly.
+    public SeriesDataset dataset(String prefix, int[] days, double[] values, int from, int to) {
+        if (from < 0 || to > values.length || to > days.length || from > to) {
+            throw new IllegalArgumentException("Invalid range [" + from + ", " + to + ") of " + values.length + " values");
+        }
+        if (isLagged()) {
+            return SeriesDataset.lagged(prefix, values, from, to, horizon);
+        }
+        int width = numFeatures() + 1;
+        int rows = Math.max(0, to - from - history - horizon + 1);
+        if ((long) rows * width > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException(rows + " rows of " + width + " values do not fit one array");
+        }
+        double[] matrix = new double[rows * width];
+        State state = newState();
+        int offset = 0;
+        for (int i = from; i + horizon < to; i++) {
+            state.push(days[i], values[i]);
+            if (state.ready()) {
+                state.features(matrix, offset);
+                matrix[offset + width - 1] = values[i + horizon];
+                offset += width;
+            }
+        }
+        return SeriesDataset.matrix(header(prefix), matrix, rows);
+    }
+
+    // Features of one series; not thread-safe, keep one per series and thread
+    public final class State {
+        private final double[] ring = new double[mask + 1];
+        // Min/max from each position to the end of the last completed block of window
+        // observations, and of the block being filled so far
+        private final double[] suffixMin = new double[window];
+        private final double[] suffixMax = new double[window];
+        private double prefixMin;
+        private double prefixMax;
+        private int blockPosition;
+        private long count;
+        private double sum;
+        private int lastDay;
+        private double seasonSin;
+        private double seasonCos;
+
+        State() {
+            reset();
+        }
+
+        public void push(int epochDay, double value) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                throw new IllegalArgumentException("Non-finite observation " + value + " on day " + epochDay);
+            }
+            long seq = count;
+            if (window == 0) {
+                // Lags only
+                ring[(int) (seq & mask)] = value;
+                count = seq + 1;
+                lastDay = epochDay;
+                return;
+            }
+            // Leaves the window before its ring slot can be reused
+            if (seq >= window) {
+                sum -= ring[(int) ((seq - window) & mask)];
+            }
+            ring[(int) (seq & mask)] = value;
+            sum += value;
+            count = seq + 1;
+
+            // van Herk/Gil-Werman: the window is a suffix of the previous block plus a
+            // prefix of the current one, so min/max cost two comparisons and no
+            // data-dependent branches; a full block is swept once when it completes
+            prefixMin = Math.min(prefixMin, value);
+            prefixMax = Math.max(prefixMax, value);
+            if (++blockPosition == window) {
+                double low = Double.POSITIVE_INFINITY;
+                double high = Double.NEGATIVE_INFINITY;
+                for (int k = window - 1; k >= 0; k--) {
+                    double x = ring[(int) ((seq - (window - 1 - k)) & mask)];
+                    low = Math.min(low, x);
+                    high = Math.max(high, x);
+                    suffixMin[k] = low;
+                    suffixMax[k] = high;
+                }
+                blockPosition = 0;
+                prefixMin = Double.POSITIVE_INFINITY;
+                prefixMax = Double.NEGATIVE_INFINITY;
+            }
+
+            boolean nextDay = seq > 0 && epochDay == lastDay + 1;
+            lastDay = epochDay;
+            if (count % RESUM_EVERY == 0) {
+                sum = 0;
+                for (long s = count - Math.min(count, window); s < count; s++) {
+                    sum += ring[(int) (s & mask)];
+                }
+                nextDay = false;
+            }
+            if (nextDay) {
+                // Consecutive days advance the phase by one day's rotation instead of sin/cos
+                double sin = seasonSin * DAY_COS + seasonCos * DAY_SIN;
+                seasonCos = seasonCos * DAY_COS - seasonSin * DAY_SIN;
+                seasonSin = sin;
+            } else {
+                double phase = 2 * Math.PI * ((epochDay + horizon) / YEAR_DAYS);
+                seasonSin = Math.sin(phase);
+                seasonCos = Math.cos(phase);
+            }
+        }
+
+        public boolean ready() {
+            return count >= history;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public int lastDay() {
+            return lastDay;
+        }
+
+        // The latest observation
+        public double latest() {
+            if (count == 0) {
+                throw new IllegalStateException("No observations");
+            }
+            return ring[(int) ((count - 1) & mask)];
+        }
+
+        // An independent state with the same observations, for branching forecasts
+        public State copy() {
+            State copy = new State();
+            System.arraycopy(ring, 0, copy.ring, 0, ring.length);
+            System.arraycopy(suffixMin, 0, copy.suffixMin, 0, window);
+            System.arraycopy(suffixMax, 0, copy.suffixMax, 0, window);
+            copy.prefixMin = prefixMin;
+            copy.prefixMax = prefixMax;
+            copy.blockPosition = blockPosition;
+            copy.count = count;
+            copy.sum = sum;
+            copy.lastDay = lastDay;
+            copy.seasonSin = seasonSin;
+            copy.seasonCos = seasonCos;
+            return copy;
+        }
+
+        // Writes numFeatures() values at out[offset..] for the day horizon after the latest observation
+        public void features(double[] out, int offset) {
+            if (!ready()) {
+                throw new IllegalStateException("Need " + history + " observations, have " + count);
+            }
+            int i = offset;
+            for (int lag : lags) {
+                out[i++] = ring[(int) ((count - lag) & mask)];
+            }
+            if (window == 0) {
+                return;
+            }
+            out[i++] = sum / window;
+            out[i++] = Math.min(suffixMin[blockPosition], prefixMin);
+            out[i++] = Math.max(suffixMax[blockPosition], prefixMax);
+            out[i++] = seasonSin;
+            out[i] = seasonCos;
+        }
+
+        public void reset() {
+            count = 0;
+            sum = 0;
+            blockPosition = 0;
+            prefixMin = Double.POSITIVE_INFINITY;
+            prefixMax = Double.NEGATIVE_INFINITY;
+            Arrays.fill(suffixMin, Double.POSITIVE_INFINITY);
+            Arrays.fill(suffixMax, Double.NEGATIVE_INFINITY);
+        }
+    }
+
+    // Serves a model trained on dataset(): observe() each new day, then predict() the
+    // value horizon days later. Reuses one feature row, so it allocates nothing itself.
+    // Not thread-safe; copy() a primed scorer for each request or simulated path.
+    public final class Scorer {
+        private final TemperaturePredictor model;
+        private final State state;
+        private final double[] row = new double[numFeatures()];
+
+        public Scorer(TemperaturePredictor model) {
+            this(model, newState());
+        }
+
+        public Scorer(Classifier model, String prefix) {
+            this(new BatchScorer(model, header(prefix)));
+        }
+
+        private Scorer(TemperaturePredictor model, State state) {
+            this.model = model;
+            this.state = state;
+        }
+
+        public void observe(int epochDay, double value) {
+            state.push(epochDay, value);
+        }
+
+        // Primes the state with the observations in [from, to)
+        public void observe(int[] days, double[] values, int from, int to) {
+            for (int i = Math.max(from, to - history); i < to; i++) {
+                state.push(days[i], values[i]);
+            }
+        }
+
+        public State state() {
+            return state;
+        }
+
+        public TemperaturePredictor model() {
+            return model;
+        }
+
+        public FeatureEngine engine() {
+            return FeatureEngine.this;
+        }
+
+        public double predict() throws Exception {
+            state.features(row, 0);
+            return model.predictRow(row);
+        }
+
+        public Scorer copy() {
+            return new Scorer(model, state.copy());
+        }
+
+        // The next days, each forecast observed as the following day's value; this scorer
+        // is left unchanged
+        public double[] forecast(int days) throws Exception {
+            if (horizon != 1) {
+                throw new IllegalStateException("Recursive forecasts need a horizon of 1, not " + horizon);
+            }
+            Scorer walker = copy();
+            double[] forecast = new double[days];
+            for (int d = 0; d < days; d++) {
+                forecast[d] = walker.predict();
+                walker.observe(walker.state.lastDay() + 1, forecast[d]);
+            }
+            return forecast;
+        }
+
+        // Observes values[from, to); element i - from of the result is the forecast made
+        // after values[i], NaN while the state is not ready. Lag-1 models score the whole
+        // range in one batch.
+        public double[] walk(int[] days, double[] values, int from, int to) throws Exception {
+            double[] forecasts = new double[to - from];
+            if (isLagged()) {
+                model.predict(Arrays.copyOfRange(values, from, to), forecasts);
+                observe(days, values, from, to);
+                return forecasts;
+            }
+            for (int i = from; i < to; i++) {
+                state.push(days[i], values[i]);
+                forecasts[i - from] = state.ready() ? predict() : Double.NaN;
+            }
+            return forecasts;
+        }
+    }
+
+    // The same features computed from the raw values ending at index end (inclusive),
+    // the way a per-request feature builder would; the reference for the checks below
+    void recompute(int[] days, double[] values, int end, double[] out, int offset) {
+        int i = offset;
+        for (int lag : lags) {
+            out[i++] = values[end - lag + 1];
+        }
+        if (window == 0) {
+            return;
+        }
+        double total = 0;
+        double low = Double.POSITIVE_INFINITY;
+        double high = Double.NEGATIVE_INFINITY;
+        for (int j = end - window + 1; j <= end; j++) {
+            total += values[j];
+            low = Math.min(low, values[j]);
+            high = Math.max(high, values[j]);
+        }
+        out[i++] = total / window;
+        out[i++] = low;
+        out[i++] = high;
+        double phase = 2 * Math.PI * ((days[end] + horizon) / YEAR_DAYS);
+        out[i++] = Math.sin(phase);
+        out[i] = Math.cos(phase);
+    }
+
+    // Checks the incremental features against recomputation and training rows against
+    // serving inputs, compares accuracy with the lag-1 models and measures throughput
+    public static void main(String[] args) {
+        try {
+            int observations = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+            TemperatureSeries series = TemperatureStore.loadSeries("data/daily_temp.csv", "data/daily_temp.tss");
+            int[] days = series.epochDays();
+            FeatureEngine engine = fromProperties(1);
+
+            // Incremental vs recomputed, every day of both targets
+            double[] incremental = new double[engine.numFeatures()];
+            double[] recomputed = new double[engine.numFeatures()];
+            for (double[] values : new double[][]{series.minTemps(), series.maxTemps()}) {
+                State state = engine.newState();
+                for (int i = 0; i < values.length; i++) {
+                    state.push(days[i], values[i]);
+                    if (state.ready()) {
+                        state.features(incremental, 0);
+                        engine.recompute(days, values, i, recomputed, 0);
+                        for (int f = 0; f < incremental.length; f++) {
+                            if (Math.abs(incremental[f] - recomputed[f]) > 1e-9) {
+                                throw new AssertionError("Feature " + f + " differs on day " + i + ": "
+                                        + incremental[f] + " vs " + recomputed[f]);
+                            }
+                        }
+                    }
+                }
+            }
+            System.out.println("PASS: incremental features match recomputation on " + days.length + " days");
+
+            // Train on the first 80%, serve the rest day by day through a Scorer
+            int split = days.length * 4 / 5;
+            System.out.println("\nHold-out RMSE, trained on " + split + " days, scored on the next "
+                    + (days.length - split - 1) + ":");
+            System.out.printf("%-8s %-18s %10s %10s%n", "Target", "Model", "lag-1", "features");
+            for (String target : new String[]{"min", "max"}) {
+                double[] values = "min".equals(target) ? series.minTemps() : series.maxTemps();
+                Instances training = engine.dataset(target, days, values, 0, split + 1);
+                // Rows from the whole series; those past the split are what serving must reproduce
+                Instances all = engine.dataset(target, days, values, 0, values.length);
+                for (Classifier learner : new Classifier[]{new LinearRegression(), new RandomForest()}) {
+                    Classifier lagged = weka.classifiers.AbstractClassifier.makeCopy(learner);
+                    lagged.buildClassifier(SeriesDataset.lagged(target, values, 0, split + 1, 1));
+                    TemperaturePredictor baseline = TemperaturePredictor.forModel(lagged, target);
+                    learner.buildClassifier(training);
+
+                    Scorer scorer = engine.new Scorer(learner, target);
+                    scorer.observe(days, values, 0, split);
+                    double baselineError = 0;
+                    double featureError = 0;
+                    int scored = 0;
+                    for (int i = split; i + 1 < values.length; i++) {
+                        scorer.observe(days[i], values[i]);
+                        scorer.state().features(incremental, 0);
+                        // Equal up to the rounding of the running sum, which saw a different history
+                        double[] row = all.instance(i - engine.history() + 1).toDoubleArray();
+                        for (int f = 0; f < incremental.length; f++) {
+                            if (Math.abs(row[f] - incremental[f]) > 1e-9) {
+                                throw new AssertionError("Serving feature " + f + " differs from the training row on day " + i);
+                            }
+                        }
+                        double actual = values[i + 1];
+                        baselineError += Math.pow(baseline.predict(values[i]) - actual, 2);
+                        featureError += Math.pow(scorer.predict() - actual, 2);
+                        scored++;
+                    }
+                    System.out.printf("%-8s %-18s %10.3f %10.3f%n", target, learner.getClass().getSimpleName(),
+                            Math.sqrt(baselineError / scored), Math.sqrt(featureError / scored));
+                }
+            }
+            System.out.println("PASS: serving features equal the training rows");
+
+            benchmark(observations);
+        } catch (Throwable e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // Feature vectors per second for a long synthetic series, incremental vs recomputed
+    private static void benchmark(int observations) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        int[] days = new int[observations];
+        double[] values = new double[observations];
+        java.util.Random random = new java.util.Random(1);
+        for (int i = 0; i < observations; i++) {
+            days[i] = i;
+            values[i] = 12 + 8 * Math.cos(2 * Math.PI * (i - 200) / YEAR_DAYS) + 3 * random.nextGaussian();
+        }
+
+        System.out.printf("%n%,d observations, 1 feature vector per observation:%n", observations);
+        System.out.printf("%-8s %-14s %12s %14s %10s%n", "Window", "Method", "ns/update", "updates/s", "bytes");
+        for (int window : new int[]{7, 30, 365}) {
+            FeatureEngine engine = new FeatureEngine(new int[]{1, 2, 3, 7}, window, 1);
+            double[] out = new double[engine.numFeatures()];
+            double sink = 0;
+            for (int pass = 0; pass < 2; pass++) {
+                boolean report = pass == 1;
+                State state = engine.newState();
+                long before = threads.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                for (int i = 0; i < observations; i++) {
+                    state.push(days[i], values[i]);
+                    if (state.ready()) {
+                        state.features(out, 0);
+                        sink += out[engine.lags.length];
+                    }
+                }
+                long nanos = System.nanoTime() - start;
+                long bytes = threads.getThreadAllocatedBytes(threadId) - before;
+                if (report) {
+                    print(window, "incremental", nanos, bytes, observations);
+                }
+                // After RESUM_EVERY boundaries and millions of rotations the features still agree
+                double[] expected = new double[out.length];
+                engine.recompute(days, values, observations - 1, expected, 0);
+                for (int f = 0; f < out.length; f++) {
+                    if (Math.abs(out[f] - expected[f]) > 1e-9) {
+                        throw new AssertionError("Feature " + f + " drifted to " + out[f] + ", expected " + expected[f]);
+                    }
+                }
+
+                before = threads.getThreadAllocatedBytes(threadId);
+                start = System.nanoTime();
+                for (int i = engine.history() - 1; i < observations; i++) {
+                    engine.recompute(days, values, i, out, 0);
+                    sink += out[engine.lags.length];
+                }
+                nanos = System.nanoTime() - start;
+                bytes = threads.getThreadAllocatedBytes(threadId) - before;
+                if (report) {
+                    print(window, "recompute", nanos, bytes, observations);
+                }
+            }
+            if (sink == 42) {
+                System.out.println();
+            }
+        }
+
+        // Training rows of the whole series: one matrix, or a DenseInstance and a double[] per row
+        FeatureEngine engine = new FeatureEngine(new int[]{1, 2, 3, 7}, 7, 1);
+        System.out.printf("%n%,d training rows of %d values:%n", observations - engine.history(),
+                engine.numFeatures() + 1);
+        System.out.printf("%-22s %10s %14s%n", "Rows", "Build ms", "Allocated B/row");
+        for (int pass = 0; pass < 2; pass++) {
+            for (boolean matrix : new boolean[]{true, false}) {
+                long before = threads.getThreadAllocatedBytes(threadId);
+                long start = System.nanoTime();
+                Instances data = matrix ? engine.dataset("min", days, values, 0, observations)
+                        : engine.denseDataset("min", days, values, 0, observations);
+                long nanos = System.nanoTime() - start;
+                long bytes = threads.getThreadAllocatedBytes(threadId) - before;
+                if (pass == 1) {
+                    System.out.printf("%-22s %10.0f %14.1f%n", matrix ? "SeriesDataset matrix" : "DenseInstance per row",
+                            nanos / 1e6, (double) bytes / data.numInstances());
+                }
+            }
+        }
+    }
+
+    // dataset() as it was built before the matrix: one DenseInstance per row, for comparison
+    private Instances denseDataset(String prefix, int[] days, double[] values, int from, int to) {
+        Instances data = new Instances(header(prefix), Math.max(0, to - from - history - horizon + 1));
+        State state = newState();
+        for (int i = from; i + horizon < to; i++) {
+            state.push(days[i], values[i]);
+            if (state.ready()) {
+                double[] row = new double[numFeatures() + 1];
+                state.features(row, 0);
+                row[row.length - 1] = values[i + horizon];
+                data.add(new weka.core.DenseInstance(1.0, row));
+            }
+        }
+        return data;
+    }
+
+    private static void print(int window, String method, long nanos, long bytes, int observations) {
+        System.out.printf("%-8d %-14s %12.1f %,14.0f %10d%n", window, method, (double) nanos / observations,
+                observations / (nanos / 1e9), bytes);
+    }
+}
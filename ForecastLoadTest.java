@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Closed-loop load test for ForecastServer on localhost: each client thread sends
+// /forecast requests back to back for a fixed time and every response time goes into
+// a LatencyHistogram. Without -Dloadtest.url it starts in-process servers and compares
+// direct scoring with micro-batching.
+//
+//   -Dloadtest.url=http://127.0.0.1:8080   test a running server instead
+//   -Dloadtest.concurrency=32              client threads
+//   -Dloadtest.seconds=10                  measured time per run, after a 3 s warm-up
+//   -Dloadtest.days=7                      forecast length per request
+public class ForecastLoadTest {
+    private static final String DATA_FILE = "data/daily_temp.csv";
+
+    public static class Report {
+        public final long requests;
+        public final long errors;
+        public final double seconds;
+        public final LatencyHistogram latency;
+
+        Report(long requests, long errors, double seconds, LatencyHistogram latency) {
+            this.requests = requests;
+            this.errors = errors;
+            this.seconds = seconds;
+            this.latency = latency;
+        }
+
+        public void print(String title) {
+            System.out.println("\n=== " + title + " ===");
+            System.out.printf("Requests:   %d (%d errors) in %.1f s%n", requests, errors, seconds);
+            System.out.printf("Throughput: %.0f requests/s%n", requests / seconds);
+            System.out.printf("Latency:    p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, max %.3f ms%n",
+                    latency.quantileNanos(0.5) / 1e6, latency.quantileNanos(0.9) / 1e6,
+                    latency.quantileNanos(0.99) / 1e6, latency.maxNanos() / 1e6);
+        }
+    }
+
+    public static Report run(String baseUrl, int concurrency, int days, double[] temps,
+                             long warmupMillis, long measureMillis) throws Exception {
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong requests = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        AtomicBoolean measuring = new AtomicBoolean();
+        AtomicBoolean running = new AtomicBoolean(true);
+
+        List<Thread> clients = new ArrayList<>();
+        for (int c = 0; c < concurrency; c++) {
+            Random random = new Random(c);
+            Thread client = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                while (running.get()) {
+                    int day = random.nextInt(temps.length / 2);
+                    String url = baseUrl + "/forecast?min=" + temps[2 * day] + "&max=" + temps[2 * day + 1]
+                            + "&days=" + days;
+                    long start = System.nanoTime();
+                    boolean ok = get(url, buffer);
+                    if (measuring.get()) {
+                        latency.recordSince(start);
+                        requests.incrementAndGet();
+                        if (!ok) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            }, "load-client-" + c);
+            client.setDaemon(true);
+            clients.add(client);
+            client.start();
+        }
+
+        Thread.sleep(warmupMillis);
+        measuring.set(true);
+        long start = System.nanoTime();
+        Thread.sleep(measureMillis);
+        measuring.set(false);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        running.set(false);
+        for (Thread client : clients) {
+            client.join();
+        }
+        return new Report(requests.get(), errors.get(), seconds, latency);
+    }
+
+    // Reads the whole response so the connection goes back to the keep-alive pool
+    private static boolean get(String url, byte[] buffer) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            int status = connection.getResponseCode();
+            InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (body != null) {
+                try (InputStream in = body) {
+                    while (in.read(buffer) >= 0) {
+                        // Drain
+                    }
+                }
+            }
+            return status == 200;
+        } catch (IOException e) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return false;
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            int concurrency = Integer.getInteger("loadtest.concurrency", 32);
+            long measureMillis = Long.getLong("loadtest.seconds", 10) * 1000;
+            int days = Integer.getInteger("loadtest.days", 7);
+            // One keep-alive connection per client
+            System.setProperty("http.maxConnections", Integer.toString(concurrency));
+
+            // Real (min, max) pairs as request inputs
+            TemperatureSeries series = TemperatureCsvReader.read(DATA_FILE);
+            double[] temps = new double[2 * series.size()];
+            for (int i = 0; i < series.size(); i++) {
+                temps[2 * i] = series.minTemp(i);
+                temps[2 * i + 1] = series.maxTemp(i);
+            }
+
+            String url = System.getProperty("loadtest.url");
+            if (url != null) {
+                run(url, concurrency, days, temps, 3000, measureMillis)
+                        .print(url + ", " + concurrency + " clients, " + days + "-day forecasts");
+                return;
+            }
+
+            for (long batchMicros : new long[]{0, Long.getLong("server.batchMicros", 500)}) {
+                ForecastServer server = new ForecastServer("127.0.0.1", 0, ModelRegistry.open(), batchMicros,
+                        Integer.getInteger("server.maxBatch", 256));
+                server.start();
+                long batchesBefore = Metrics.counter("batches");
+                long batchedBefore = Metrics.counter("batched_predictions");
+                try {
+                    Report report = run("http://127.0.0.1:" + server.port(), concurrency, days, temps,
+                            3000, measureMillis);
+                    report.print((batchMicros == 0 ? "Direct scoring" : "Micro-batching (" + batchMicros + " us)")
+                            + ", " + concurrency + " clients, " + days + "-day forecasts, "
+                            + (server.usesVirtualThreads() ? "virtual" : "platform") + " threads");
+                    long batches = Metrics.counter("batches") - batchesBefore;
+                    if (batches > 0) {
+                        System.out.printf("Mean batch: %.1f predictions%n",
+                                (double) (Metrics.counter("batched_predictions") - batchedBefore) / batches);
+                    }
+                } finally {
+                    server.stop();
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,416 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Headless forecasting service on the JDK's embedded HTTP server.
+//
+//   GET /forecast?min=12.5&max=21.0&days=7
+//   GET /forecast                      starts from the latest stored observation
+//   GET /forecast?budgetMicros=200     ensemble mode: latency budget for this request
+//   GET /health
+//   GET /metrics                       Prometheus text, see Metrics
+//
+// The forecast is the same as the TemperatureDisplay forecast: entry 0 is the starting
+// day and entry d is d days later. Every entry predicts from the one before it with the
+// best model per target, and each step's min and max predictions of all in-flight
+// requests are grouped by a MicroBatcher per target. With -Dserver.direct=true, and
+// when direct multi-horizon models have been trained (see DirectForecaster), each
+// target is forecast in one pass from the starting day instead. Models trained on FeatureEngine rows need more than the
+// previous day: each request continues a copy of a FeatureEngine.Scorer that has
+// observed the stored history, with min and max, when given, as the day after it.
+//
+// With -Dserver.ensemble=true every step is scored by an EnsemblePredictor per target
+// instead, under one deadline for the whole request (-Densemble.budgetMicros unless
+// the request sets budgetMicros), and each entry lists the models that contributed.
+//
+// Requests run on virtual threads when the JVM has them (JDK 21+) and on a cached
+// thread pool otherwise.
+public class ForecastServer {
+    private static final String DATA_FILE = "data/daily_temp.csv";
+    private static final String STORE_FILE = "data/daily_temp.tss";
+    private static final int DEFAULT_DAYS = 7;
+    private static final int MAX_DAYS = 366;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final MicroBatcher minBatcher;
+    private final MicroBatcher maxBatcher;
+    private final TemperaturePredictor minScorer;
+    private final TemperaturePredictor maxScorer;
+    // Primed with the stored history when a best model is trained on more than lag 1,
+    // null otherwise; requests only copy them
+    private final FeatureEngine.Scorer minHistory;
+    private final FeatureEngine.Scorer maxHistory;
+    // null unless direct mode is on and direct models have been trained
+    private final DirectForecaster minDirect;
+    private final DirectForecaster maxDirect;
+    // null unless the server runs in ensemble mode
+    private final EnsemblePredictor minEnsemble;
+    private final EnsemblePredictor maxEnsemble;
+    private final String minModel;
+    private final String maxModel;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final boolean batching;
+    private double latestMin = 15.0;
+    private double latestMax = 25.0;
+    private LocalDate latestDate;
+
+    static {
+        // The server writes headers and body separately; without TCP_NODELAY every small
+        // response waits ~40 ms for the client's delayed ACK
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    // batchDelayMicros == 0 disables micro-batching and scores every request directly
+    public ForecastServer(String host, int port, ModelRegistry registry, long batchDelayMicros, int maxBatch)
+            throws Exception {
+        this(host, port, registry, batchDelayMicros, maxBatch, false, false);
+    }
+
+    public ForecastServer(String host, int port, ModelRegistry registry, long batchDelayMicros, int maxBatch,
+                          boolean ensemble) throws Exception {
+        this(host, port, registry, batchDelayMicros, maxBatch, ensemble, false);
+    }
+
+    // direct: forecast from the direct multi-horizon models when they have been trained
+    public ForecastServer(String host, int port, ModelRegistry registry, long batchDelayMicros, int maxBatch,
+                          boolean ensemble, boolean direct) throws Exception {
+        minEnsemble = ensemble ? EnsemblePredictor.fromRegistry(registry, "min") : null;
+        maxEnsemble = ensemble ? EnsemblePredictor.fromRegistry(registry, "max") : null;
+        DirectForecaster min = null;
+        DirectForecaster max = null;
+        if (direct && !ensemble) {
+            registry.prefetchDirect("min", "max");
+            min = registry.direct("min");
+            max = registry.direct("max");
+        }
+        minDirect = min != null && max != null ? min : null;
+        maxDirect = min != null && max != null ? max : null;
+        minModel = ensemble ? "Ensemble" : minDirect != null ? registry.directModel("min") : registry.bestModel("min");
+        maxModel = ensemble ? "Ensemble" : maxDirect != null ? registry.directModel("max") : registry.bestModel("max");
+        boolean lagged = registry.features("min", registry.bestModel("min")).isLagged()
+                && registry.features("max", registry.bestModel("max")).isLagged();
+        minHistory = ensemble || minDirect != null || lagged ? null : registry.scorer("min");
+        maxHistory = minHistory == null ? null : registry.scorer("max");
+        // The 1-day models: the first horizon of the direct forecasters when there are any
+        minScorer = minHistory != null ? null : minDirect != null ? minDirect.model(1) : registry.predictor("min");
+        maxScorer = maxHistory != null ? null : maxDirect != null ? maxDirect.model(1) : registry.predictor("max");
+        batching = batchDelayMicros > 0 && minHistory == null;
+        long delayNanos = TimeUnit.MICROSECONDS.toNanos(batchDelayMicros);
+        minBatcher = batching ? new MicroBatcher("min", minScorer, delayNanos, maxBatch, inFlight::get) : null;
+        maxBatcher = batching ? new MicroBatcher("max", maxScorer, delayNanos, maxBatch, inFlight::get) : null;
+        loadLatestObservation();
+
+        executor = newRequestExecutor();
+        server = HttpServer.create(new InetSocketAddress(host, port), 0);
+        server.setExecutor(executor);
+        server.createContext("/forecast", this::handleForecast);
+        server.createContext("/health", exchange -> respond(exchange, 200, "{\"status\":\"ok\"}"));
+        server.createContext("/metrics", exchange -> {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            send(exchange, 200, Metrics.prometheus());
+        });
+    }
+
+    // Virtual thread per request where available; looked up reflectively so the
+    // project still compiles and runs on JDK 8-20
+    static ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "forecast-request");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public boolean usesVirtualThreads() {
+        return !(executor instanceof ThreadPoolExecutor);
+    }
+
+    // Same starting point as the display, read from the store when it is up to date
+    private void loadLatestObservation() {
+        try {
+            TemperatureSeries series = TemperatureStore.loadSeries(DATA_FILE, STORE_FILE);
+            if (series.size() > 0) {
+                latestMin = series.minTemp(series.size() - 1);
+                latestMax = series.maxTemp(series.size() - 1);
+                latestDate = series.date(series.size() - 1);
+            }
+            if (minHistory != null) {
+                minHistory.observe(series.epochDays(), series.minTemps(), 0, series.size());
+                maxHistory.observe(series.epochDays(), series.maxTemps(), 0, series.size());
+            }
+        } catch (IOException e) {
+            System.err.println("Could not read " + DATA_FILE + ", using example temperatures: " + e.getMessage());
+        }
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+        if (batching) {
+            minBatcher.close();
+            maxBatcher.close();
+        }
+        if (minEnsemble != null) {
+            minEnsemble.close();
+            maxEnsemble.close();
+        }
+    }
+
+    private void handleForecast(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                respond(exchange, 405, error("Only GET is supported"));
+                return;
+            }
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            double min;
+            double max;
+            int days;
+            long budgetNanos = minEnsemble != null ? minEnsemble.budgetNanos() : 0;
+            try {
+                min = query.containsKey("min") ? Double.parseDouble(query.get("min")) : latestMin;
+                max = query.containsKey("max") ? Double.parseDouble(query.get("max")) : latestMax;
+                days = query.containsKey("days") ? Integer.parseInt(query.get("days")) : DEFAULT_DAYS;
+                if (query.containsKey("budgetMicros")) {
+                    budgetNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(query.get("budgetMicros")));
+                }
+            } catch (NumberFormatException e) {
+                respond(exchange, 400, error("Invalid number: " + e.getMessage()));
+                return;
+            }
+            if (Double.isNaN(min) || Double.isInfinite(min) || Double.isNaN(max) || Double.isInfinite(max)) {
+                respond(exchange, 400, error("min and max must be finite"));
+                return;
+            }
+            if (days < 1 || days > MAX_DAYS) {
+                respond(exchange, 400, error("days must be between 1 and " + MAX_DAYS));
+                return;
+            }
+            if (budgetNanos < 0) {
+                respond(exchange, 400, error("budgetMicros must not be negative"));
+                return;
+            }
+            // Dates only make sense when the chain starts from the stored observation
+            LocalDate start = query.containsKey("min") || query.containsKey("max") ? null : latestDate;
+            String body;
+            if (minEnsemble != null) {
+                respond(exchange, 200, ensembleJson(min, max, days, start, System.nanoTime() + budgetNanos));
+                return;
+            }
+            if (minHistory != null) {
+                respond(exchange, 200, featureJson(query.containsKey("min") ? min : Double.NaN,
+                        query.containsKey("max") ? max : Double.NaN, days, start));
+                return;
+            }
+            // Only requests inside the prediction chain can join a batch
+            inFlight.incrementAndGet();
+            try {
+                body = forecastJson(min, max, days, start);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            respond(exchange, 200, body);
+        } catch (Exception e) {
+            respond(exchange, 500, error(e.getMessage()));
+        }
+    }
+
+    private String forecastJson(double min, double max, int days, LocalDate start) throws Exception {
+        StringBuilder json = new StringBuilder(64 + days * 64);
+        json.append("{\"minModel\":\"").append(minModel).append("\",\"maxModel\":\"").append(maxModel)
+                .append("\",\"forecast\":[");
+        double[] minTemps = null;
+        double[] maxTemps = null;
+        if (minDirect != null) {
+            minTemps = minDirect.forecast(min, days - 1);
+            maxTemps = maxDirect.forecast(max, days - 1);
+        }
+        double minTemp = min;
+        double maxTemp = max;
+        for (int day = 0; day < days; day++) {
+            if (day > 0) {
+                json.append(',');
+                // Predict next day's temperatures, both targets in flight at once
+                if (minTemps != null) {
+                    minTemp = minTemps[day - 1];
+                    maxTemp = maxTemps[day - 1];
+                } else if (batching) {
+                    CompletableFuture<Double> nextMin = minBatcher.submit(minTemp);
+                    CompletableFuture<Double> nextMax = maxBatcher.submit(maxTemp);
+                    minTemp = nextMin.get();
+                    maxTemp = nextMax.get();
+                } else {
+                    minTemp = minScorer.predict(minTemp);
+                    maxTemp = maxScorer.predict(maxTemp);
+                }
+            }
+            json.append("{\"day\":").append(day);
+            if (start != null) {
+                json.append(",\"date\":\"").append(start.plusDays(day)).append('"');
+            }
+            json.append(",\"min\":").append(minTemp).append(",\"max\":").append(maxTemp).append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    // Continues copies of the primed scorers; a given (non-NaN) min or max is observed
+    // as the day after the stored history first
+    private String featureJson(double min, double max, int days, LocalDate start) throws Exception {
+        FeatureEngine.Scorer minWalk = minHistory.copy();
+        FeatureEngine.Scorer maxWalk = maxHistory.copy();
+        if (!Double.isNaN(min)) {
+            minWalk.observe(minWalk.state().lastDay() + 1, min);
+        }
+        if (!Double.isNaN(max)) {
+            maxWalk.observe(maxWalk.state().lastDay() + 1, max);
+        }
+        double[] minTemps = minWalk.forecast(days - 1);
+        double[] maxTemps = maxWalk.forecast(days - 1);
+        StringBuilder json = new StringBuilder(64 + days * 64);
+        json.append("{\"minModel\":\"").append(minModel).append("\",\"maxModel\":\"").append(maxModel)
+                .append("\",\"forecast\":[");
+        for (int day = 0; day < days; day++) {
+            if (day > 0) {
+                json.append(',');
+            }
+            json.append("{\"day\":").append(day);
+            if (start != null) {
+                json.append(",\"date\":\"").append(start.plusDays(day)).append('"');
+            }
+            json.append(",\"min\":").append(day == 0 ? minWalk.state().latest() : minTemps[day - 1])
+                    .append(",\"max\":").append(day == 0 ? maxWalk.state().latest() : maxTemps[day - 1]).append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    // Every step gets whatever the ensemble members deliver before the request's deadline;
+    // once it has passed only the first (inline) member contributes
+    private String ensembleJson(double min, double max, int days, LocalDate start, long deadlineNanos)
+            throws Exception {
+        StringBuilder json = new StringBuilder(64 + days * 192);
+        json.append("{\"minModel\":\"").append(minModel).append("\",\"maxModel\":\"").append(maxModel)
+                .append("\",\"forecast\":[");
+        double minTemp = min;
+        double maxTemp = max;
+        for (int day = 0; day < days; day++) {
+            EnsemblePredictor.Result minResult = null;
+            EnsemblePredictor.Result maxResult = null;
+            if (day > 0) {
+                json.append(',');
+                minResult = minEnsemble.predict(minTemp, deadlineNanos);
+                maxResult = maxEnsemble.predict(maxTemp, deadlineNanos);
+                minTemp = minResult.value;
+                maxTemp = maxResult.value;
+            }
+            json.append("{\"day\":").append(day);
+            if (start != null) {
+                json.append(",\"date\":\"").append(start.plusDays(day)).append('"');
+            }
+            json.append(",\"min\":").append(minTemp).append(",\"max\":").append(maxTemp);
+            if (day > 0) {
+                appendMembers(json.append(",\"minMembers\":"), minResult);
+                appendMembers(json.append(",\"maxMembers\":"), maxResult);
+            }
+            json.append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    private static void appendMembers(StringBuilder json, EnsemblePredictor.Result result) {
+        json.append('[');
+        List<String> names = result.memberNames();
+        for (int i = 0; i < names.size(); i++) {
+            json.append(i > 0 ? ",\"" : "\"").append(names.get(i)).append('"');
+        }
+        json.append(']');
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String key = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            query.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return query;
+    }
+
+    private static String error(String message) {
+        String text = message == null ? "Internal error" : message.replace("\\", "\\\\").replace("\"", "\\\"");
+        return "{\"error\":\"" + text + "\"}";
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        send(exchange, status, json);
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    // java ForecastServer
+    //   -Dserver.host=127.0.0.1        bind address (0.0.0.0 to listen on all interfaces)
+    //   -Dserver.port=8080
+    //   -Dserver.batchMicros=500       longest a prediction waits for others to join its batch
+    //   -Dserver.maxBatch=256
+    //   -Dserver.ensemble=false        score with all models under a latency budget, see EnsemblePredictor
+    //   -Dserver.direct=false          forecast from the direct multi-horizon models when trained
+    public static void main(String[] args) {
+        try {
+            ForecastServer server = new ForecastServer(
+                    System.getProperty("server.host", "127.0.0.1"),
+                    Integer.getInteger("server.port", 8080),
+                    ModelRegistry.open(),
+                    Long.getLong("server.batchMicros", 500),
+                    Integer.getInteger("server.maxBatch", 256),
+                    Boolean.getBoolean("server.ensemble"),
+                    Boolean.getBoolean("server.direct"));
+            server.start();
+            System.out.println("Forecast server listening on port " + server.port() + " ("
+                    + (server.usesVirtualThreads() ? "virtual threads" : "platform threads") + ", min model "
+                    + server.minModel + ", max model " + server.maxModel + ")");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
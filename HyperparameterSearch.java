@@ -0,0 +1,276 @@
+import weka.classifiers.Classifier;
+import weka.core.Instances;
+import weka.core.OptionHandler;
+import weka.core.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Tunes the options of every model with successive halving: all configurations are
+// trained on a small, recent slice of the history, the best third moves on to a slice
+// three times larger, and only the finalists are fit on the whole training range.
+// Candidates of a rung train in parallel; each model gets an equal share of the
+// remaining wall-clock budget, and a rung cut short by the deadline ranks only the
+// configurations that finished. Weka's buildClassifier ignores interrupts, so a fit
+// cut short keeps its thread until it returns: the pool is shared by every search and
+// made of daemon threads, so such a fit delays the next search's queue instead of
+// competing with it and never keeps the JVM alive. A rung is not started at all when
+// the previous rung's mean fit time, times ETA for the larger slice, says its fits
+// cannot finish in the remaining budget.
+//
+// Scoring is one-step RMSE on the most recent VALIDATION_FRACTION of the series, which
+// is never used for training. Winners are recorded in the model registry and picked up
+// by TimeSeriesForecaster, IncrementalUpdater and WalkForwardBacktester.
+public class HyperparameterSearch implements AutoCloseable {
+    private static final String DATA_FILE = "data/daily_temp.csv";
+    private static final String STORE_FILE = "data/daily_temp.tss";
+    private static final String[] TARGETS = {"min", "max"};
+    private static final String[] MODELS = {"Linear Regression", "Random Forest", "Support Vector Regression"};
+    private static final double VALIDATION_FRACTION = 0.2;
+    // Keep 1 / ETA of the candidates per rung and grow the training slice by ETA
+    private static final int ETA = 3;
+    private static final int RUNGS = 3;
+
+    private static final String POLY_KERNEL = "weka.classifiers.functions.supportVector.PolyKernel -E 1.0 -C 250007";
+    private static final String RBF_KERNEL = "weka.classifiers.functions.supportVector.RBFKernel -C 250007 -G ";
+
+    private final int parallelism;
+    private final ExecutorService pool;
+
+    public static class Candidate {
+        public final String modelName;
+        final String[] options;
+        // Validation RMSE at the highest rung this candidate completed
+        double rmse = Double.NaN;
+        int rung = -1;
+
+        Candidate(String modelName, String... options) {
+            this.modelName = modelName;
+            this.options = options;
+        }
+
+        // Untrained learner with this candidate's options applied on top of the defaults
+        public Classifier newLearner() throws Exception {
+            Classifier learner = ModelRegistry.defaultLearner(modelName);
+            ((OptionHandler) learner).setOptions(options.clone());
+            return learner;
+        }
+
+        public String label() {
+            return Utils.joinOptions(options);
+        }
+    }
+
+    public static class Outcome {
+        public final Candidate best;
+        public final int candidates;
+        public final int fits;
+        // Training cost in units of one fit on the full training range
+        public final double fullFitEquivalents;
+        public final long elapsedNanos;
+
+        Outcome(Candidate best, int candidates, int fits, double fullFitEquivalents, long elapsedNanos) {
+            this.best = best;
+            this.candidates = candidates;
+            this.fits = fits;
+            this.fullFitEquivalents = fullFitEquivalents;
+            this.elapsedNanos = elapsedNanos;
+        }
+    }
+
+    public HyperparameterSearch(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        this.pool = Executors.newFixedThreadPool(this.parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "tuning-fit");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Search space per model; the first entry is the Weka default
+    static List<Candidate> grid(String modelName) {
+        List<Candidate> grid = new ArrayList<>();
+        switch (modelName) {
+            case "Linear Regression":
+                for (String method : new String[]{"0", "1"}) {
+                    for (String ridge : new String[]{"1.0E-8", "1.0E-4", "0.01", "1.0", "100.0"}) {
+                        grid.add(new Candidate(modelName, "-S", method, "-R", ridge));
+                    }
+                }
+                break;
+            case "Random Forest":
+                for (String trees : new String[]{"100", "50", "200"}) {
+                    for (String depth : new String[]{"0", "8", "16"}) {
+                        for (String leaf : new String[]{"1", "5", "20"}) {
+                            grid.add(new Candidate(modelName, "-I", trees, "-depth", depth, "-M", leaf));
+                        }
+                    }
+                }
+                break;
+            case "Support Vector Regression":
+                for (String c : new String[]{"1.0", "0.5", "2.0"}) {
+                    grid.add(new Candidate(modelName, "-C", c, "-K", POLY_KERNEL));
+                    grid.add(new Candidate(modelName, "-C", c, "-K", RBF_KERNEL + "1.0"));
+                    grid.add(new Candidate(modelName, "-C", c, "-K", RBF_KERNEL + "10.0"));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown model: " + modelName);
+        }
+        return grid;
+    }
+
+    // Runs successive halving over the grid until it finishes or the deadline passes;
+    // best is null when not even the first rung completed in time
+    public Outcome search(String modelName, String target, double[] values, long deadlineNanos) throws Exception {
+        long start = System.nanoTime();
+        int pairs = values.length - 1;
+        int validationFrom = pairs - (int) (pairs * VALIDATION_FRACTION);
+        double[] validationInputs = Arrays.copyOfRange(values, validationFrom, pairs);
+        double[] validationActuals = Arrays.copyOfRange(values, validationFrom + 1, pairs + 1);
+
+        List<Candidate> survivors = grid(modelName);
+        int candidates = survivors.size();
+        Candidate best = null;
+        int fits = 0;
+        double fullFitEquivalents = 0;
+        // Mean time of one fit at the previous rung; 0 before the first rung
+        long fitNanos = 0;
+        for (int rung = 0; rung < RUNGS && !survivors.isEmpty(); rung++) {
+            // Most recent slice of the training range, ETA times larger per rung
+            int size = (int) (validationFrom / Math.pow(ETA, RUNGS - 1 - rung));
+            Instances slice = dataset(target, values, validationFrom - size, validationFrom);
+
+            long remaining = deadlineNanos - System.nanoTime();
+            long waves = (survivors.size() + parallelism - 1) / parallelism;
+            long estimate = fitNanos * ETA * waves;
+            if (remaining <= 0 || estimate > remaining) {
+                if (remaining > 0) {
+                    System.out.printf("  rung %d skipped: estimated %.1f s, %.1f s left%n", rung, estimate / 1e9,
+                            remaining / 1e9);
+                }
+                break;
+            }
+
+            long[] elapsed = new long[survivors.size()];
+            List<Callable<Double>> tasks = new ArrayList<>();
+            for (int i = 0; i < survivors.size(); i++) {
+                Candidate candidate = survivors.get(i);
+                int index = i;
+                tasks.add(() -> {
+                    long began = System.nanoTime();
+                    Classifier model = candidate.newLearner();
+                    model.buildClassifier(slice);
+                    elapsed[index] = System.nanoTime() - began;
+                    return rmse(TemperaturePredictor.forModel(model, target), validationInputs, validationActuals);
+                });
+            }
+            List<Future<Double>> results = pool.invokeAll(tasks, remaining, TimeUnit.NANOSECONDS);
+
+            List<Candidate> finished = new ArrayList<>();
+            long finishedNanos = 0;
+            for (int i = 0; i < survivors.size(); i++) {
+                Candidate candidate = survivors.get(i);
+                try {
+                    candidate.rmse = results.get(i).get();
+                    candidate.rung = rung;
+                    finished.add(candidate);
+                    finishedNanos += elapsed[i];
+                    fits++;
+                    fullFitEquivalents += (double) size / validationFrom;
+                } catch (CancellationException e) {
+                    // Ran out of budget; the candidate is dropped
+                } catch (ExecutionException e) {
+                    System.err.println("  " + candidate.label() + " failed: " + e.getCause());
+                }
+            }
+            if (finished.isEmpty()) {
+                System.out.printf("  rung %d: no configuration finished on %d days before the deadline%n", rung, size);
+                break;
+            }
+            fitNanos = finishedNanos / finished.size();
+            finished.sort((a, b) -> Double.compare(a.rmse, b.rmse));
+            best = finished.get(0);
+            System.out.printf("  rung %d: %d/%d configurations on %d days, best RMSE %.4f (%s)%n",
+                    rung, finished.size(), survivors.size(), size, best.rmse, best.label());
+            survivors = finished.subList(0, (finished.size() + ETA - 1) / ETA);
+            if (finished.size() < tasks.size()) {
+                break;
+            }
+        }
+        return new Outcome(best, candidates, fits, fullFitEquivalents, System.nanoTime() - start);
+    }
+
+    // Fits still running past a deadline are abandoned to their daemon threads
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    // Helper method to build the lag-1 training set for pairs [from, to)
+    private static Instances dataset(String target, double[] values, int from, int to) {
+        return SeriesDataset.lagged(target, values, from, to + 1, 1);
+    }
+
+    private static double rmse(TemperaturePredictor model, double[] inputs, double[] actuals) throws Exception {
+        double[] predicted = model.predict(inputs);
+        double sum = 0;
+        for (int i = 0; i < actuals.length; i++) {
+            double error = predicted[i] - actuals[i];
+            sum += error * error;
+        }
+        return Math.sqrt(sum / actuals.length);
+    }
+
+    // java HyperparameterSearch [min|max ...]
+    //   -Dtuning.budgetSeconds=N   wall-clock budget for the whole search (default 600)
+    //   -Dtuning.parallelism=N     concurrent training jobs (default: available cores)
+    public static void main(String[] args) {
+        try {
+            long budgetNanos = TimeUnit.SECONDS.toNanos(Long.getLong("tuning.budgetSeconds", 600));
+            int parallelism = Integer.getInteger("tuning.parallelism", Runtime.getRuntime().availableProcessors());
+            String[] targets = args.length > 0 ? args : TARGETS;
+
+            long start = System.nanoTime();
+            long deadline = start + budgetNanos;
+            TemperatureSeries series = TemperatureStore.loadSeries(DATA_FILE, STORE_FILE);
+            ModelRegistry registry = ModelRegistry.open();
+            try (HyperparameterSearch search = new HyperparameterSearch(parallelism)) {
+                int searchesLeft = targets.length * MODELS.length;
+                for (String target : targets) {
+                    double[] values = target.equals("min") ? series.minTemps() : series.maxTemps();
+                    for (String modelName : MODELS) {
+                        // Equal share of what is left, so a slow model cannot starve the others
+                        long share = (deadline - System.nanoTime()) / searchesLeft--;
+                        System.out.println("\n=== " + target + " " + modelName + " ===");
+                        Outcome outcome = search.search(modelName, target, values, System.nanoTime() + share);
+                        if (outcome.best == null) {
+                            System.out.println("  budget exhausted before the first rung finished, keeping current options");
+                            continue;
+                        }
+                        registry.setTunedOptions(target, modelName, outcome.best.newLearner());
+                        System.out.printf("  %d configurations, %d fits (%.1f full-data fits) in %.1f s%n",
+                                outcome.candidates, outcome.fits, outcome.fullFitEquivalents,
+                                outcome.elapsedNanos / 1e9);
+                        System.out.println("  selected: " + registry.tunedOptions(target, modelName));
+                    }
+                }
+            }
+
+            registry.save();
+            System.out.printf("%nSearch finished in %.1f s; rerun TimeSeriesForecaster to train with the selected options%n",
+                    (System.nanoTime() - start) / 1e9);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
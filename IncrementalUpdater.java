@@ -0,0 +1,163 @@
+import weka.classifiers.Classifier;
+import weka.classifiers.UpdateableClassifier;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.io.File;
+import java.time.LocalDate;
+
+// Folds newly arrived daily observations into the registered models without rerunning
+// TimeSeriesForecaster:
+//   - Linear Regression keeps running sufficient statistics (O(1) per new row)
+//   - Weka models that implement UpdateableClassifier are updated row by row
+//   - everything else is refit on a bounded sliding window of recent days, as are the
+//     per-horizon models of the direct forecaster and models trained on FeatureEngine
+//     rows (rebuilt from the feature spec recorded with the model)
+// Cross-validation metrics in the registry are left as recorded by the last full run.
+public class IncrementalUpdater {
+    private static final String DATA_FILE = "data/daily_temp.csv";
+    private static final String STORE_FILE = "data/daily_temp.tss";
+    private static final String[] TARGETS = {"min", "max"};
+    private static final String[] MODELS = {"Linear Regression", "Random Forest", "Support Vector Regression"};
+    // Days of history used when a model has to be refit; override with -Dupdate.window=N
+    private static final int WINDOW_DAYS = Integer.getInteger("update.window", 3 * 365);
+
+    public static void main(String[] args) {
+        try {
+            ModelRegistry registry = ModelRegistry.open();
+            int lastDay = registry.lastObservedDay();
+            if (lastDay < 0) {
+                System.err.println("No training watermark in the registry, run TimeSeriesForecaster first");
+                System.exit(1);
+            }
+
+            long start = System.nanoTime();
+            TemperatureSeries series = TemperatureStore.loadSeries(DATA_FILE, STORE_FILE);
+            int firstNew = 0;
+            while (firstNew < series.size() && series.epochDay(firstNew) <= lastDay) {
+                firstNew++;
+            }
+            int newRows = series.size() - firstNew;
+            if (newRows == 0) {
+                System.out.println("Models are up to date through " + LocalDate.ofEpochDay(lastDay));
+                return;
+            }
+            System.out.println("Updating models with " + newRows + " new rows ("
+                    + series.date(firstNew) + " to " + series.date(series.size() - 1) + ")");
+
+            for (String target : TARGETS) {
+                double[] values = target.equals("min") ? series.minTemps() : series.maxTemps();
+                updateTarget(registry, target, MODELS, series.epochDays(), values, firstNew);
+            }
+
+            registry.setLastObservedDay(series.epochDay(series.size() - 1));
+            registry.save();
+            appendToStore(series);
+            System.out.printf("Incremental update finished in %.1f ms%n", (System.nanoTime() - start) / 1e6);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // Updates every model of one target and its direct forecaster with values[firstNew..]
+    static void updateTarget(ModelRegistry registry, String target, String[] models, int[] days, double[] values,
+                             int firstNew) throws Exception {
+        TimeSeriesForecaster.recordInputRange(registry, target, values);
+        for (String modelName : models) {
+            long modelStart = System.nanoTime();
+            String how = updateModel(registry, target, modelName, days, values, firstNew);
+            System.out.printf("%s %s: %s in %.1f ms%n", target, modelName, how,
+                    (System.nanoTime() - modelStart) / 1e6);
+        }
+        if (registry.directHorizons(target) > 0) {
+            long directStart = System.nanoTime();
+            String how = updateDirect(registry, target, values);
+            System.out.printf("%s direct forecaster: %s in %.1f ms%n", target, how,
+                    (System.nanoTime() - directStart) / 1e6);
+        }
+    }
+
+    // New training pairs start at (values[firstNew - 1], values[firstNew])
+    private static String updateModel(ModelRegistry registry, String target, String modelName,
+                                      int[] days, double[] values, int firstNew) throws Exception {
+        FeatureEngine features = registry.features(target, modelName);
+        if (!features.isLagged()) {
+            // The same rows the model was trained on, over the most recent window
+            int windowFrom = Math.max(0, values.length - WINDOW_DAYS - features.history());
+            Instances window = features.dataset(target, days, values, windowFrom, values.length);
+            Classifier model = registry.newLearner(target, modelName);
+            long start = System.nanoTime();
+            model.buildClassifier(window);
+            Metrics.histogram("build_classifier", model.getClass().getSimpleName()).recordSince(start);
+            registry.update(target, modelName, model);
+            return "refit on last " + window.size() + " days of " + features.describe();
+        }
+
+        int pairsFrom = Math.max(0, firstNew - 1);
+        TemperaturePredictor current = Metrics.unwrap(registry.predictor(target, modelName));
+        if (current instanceof TabulatedPredictor) {
+            current = ((TabulatedPredictor) current).fallback();
+        }
+
+        if (modelName.equals("Linear Regression")) {
+            OnlineLinearRegression linear;
+            if (current instanceof OnlineLinearRegression) {
+                linear = (OnlineLinearRegression) current;
+                linear.updateAll(values, pairsFrom, values.length);
+            } else {
+                // First incremental run after a full training: seed the statistics once
+                linear = new OnlineLinearRegression();
+                linear.updateAll(values, 0, values.length);
+            }
+            registry.update(target, modelName, linear);
+            return "updated sufficient statistics (" + linear.count() + " pairs)";
+        }
+
+        if (current instanceof BatchScorer && ((BatchScorer) current).model() instanceof UpdateableClassifier) {
+            BatchScorer scorer = (BatchScorer) current;
+            UpdateableClassifier updateable = (UpdateableClassifier) scorer.model();
+            for (int i = pairsFrom; i + 1 < values.length; i++) {
+                DenseInstance instance = new DenseInstance(1.0, new double[]{values[i], values[i + 1]});
+                instance.setDataset(scorer.header());
+                updateable.updateClassifier(instance);
+            }
+            registry.update(target, modelName, scorer.model());
+            return "updated in place";
+        }
+
+        // Refit on the most recent window only, so the cost does not grow with the history
+        int windowFrom = Math.max(0, values.length - WINDOW_DAYS - 1);
+        Instances window = SeriesDataset.lagged(target, values, windowFrom, values.length, 1);
+        Classifier model = registry.newLearner(target, modelName);
+        long start = System.nanoTime();
+        model.buildClassifier(window);
+        Metrics.histogram("build_classifier", model.getClass().getSimpleName()).recordSince(start);
+        registry.update(target, modelName, model);
+        return "refit on last " + window.size() + " days";
+    }
+
+    // Refits every horizon on the recent window, in parallel, with the learner it was trained with
+    private static String updateDirect(ModelRegistry registry, String target, double[] values) throws Exception {
+        String modelName = registry.directModel(target);
+        int horizons = registry.directHorizons(target);
+        int windowFrom = Math.max(0, values.length - WINDOW_DAYS - horizons);
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        try (ParallelTrainer trainer = new ParallelTrainer(parallelism, 0, 1)) {
+            Classifier[] models = DirectForecaster.train(trainer, registry.newLearner(target, modelName), target,
+                    values, windowFrom, values.length, horizons);
+            registry.recordDirect(target, modelName, models);
+        }
+        return "refit " + horizons + " " + modelName + " horizons on last " + (values.length - windowFrom) + " days";
+    }
+
+    // Keeps the columnar store in step with the CSV so the next run reads it directly
+    private static void appendToStore(TemperatureSeries series) throws Exception {
+        if (!new File(STORE_FILE).exists()) {
+            return;
+        }
+        try (TemperatureStore store = TemperatureStore.open(STORE_FILE)) {
+            store.append(series);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Fixed-size, lock-free latency histogram in nanoseconds with HdrHistogram-style
+// log-linear buckets: values below 128 ns are exact, above that every power of two is
+// split into 64 buckets, so any recorded value is known to within 1/64 (~1.6%).
+// Values up to 2^42 ns (~73 minutes) are tracked; larger ones land in the last bucket.
+// Recording is a bucket increment, an adder and a max check, and never allocates.
+public class LatencyHistogram {
+    private static final int EXACT_LIMIT = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int SUB_BITS = 6;
+    private static final long MAX_VALUE = (1L << 42) - 1;
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    static int index(long value) {
+        if (value < EXACT_LIMIT) {
+            return (int) Math.max(0, value);
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BITS;
+        return EXACT_LIMIT + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    // Midpoint of the values that map to a bucket
+    static double value(int index) {
+        if (index < EXACT_LIMIT) {
+            return index;
+        }
+        int shift = (index - EXACT_LIMIT) / SUB_BUCKETS + 1;
+        long mantissa = (index - EXACT_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return (mantissa << shift) + ((1L << shift) - 1) / 2.0;
+    }
+
+    public void record(long nanos) {
+        long value = Math.min(nanos, MAX_VALUE);
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    // Convenience for call sites that took a System.nanoTime() start stamp
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    // Summed from the buckets so recording touches one counter less
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public long sumNanos() {
+        return sum.sum();
+    }
+
+    public long maxNanos() {
+        return max.get();
+    }
+
+    public double meanNanos() {
+        long n = count();
+        return n == 0 ? 0 : (double) sumNanos() / n;
+    }
+
+    // Value at the given quantile (0..1); concurrent recording may shift it by a bucket
+    public double quantileNanos(double quantile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(value(i), maxNanos());
+            }
+        }
+        return maxNanos();
+    }
+}
@@ -0,0 +1,76 @@
+// Largest-Triangle-Three-Buckets downsampling (Steinarsson, 2013).
+//
+// Keeps the first and last point and splits the rest into threshold - 2 equal buckets.
+// From each bucket it keeps the point that forms the largest triangle with the point
+// kept from the previous bucket and the average of the next bucket. Peaks and troughs
+// survive, so a line through the kept points looks like the full series at chart
+// resolution. One pass, no allocation beyond the output.
+public class Lttb {
+    // Indices of the points to keep, ascending; all indices when n <= threshold
+    public static int[] select(double[] x, double[] y, int from, int to, int threshold) {
+        int n = to - from;
+        if (n <= threshold) {
+            int[] all = new int[Math.max(0, n)];
+            for (int i = 0; i < all.length; i++) {
+                all[i] = from + i;
+            }
+            return all;
+        }
+        if (threshold < 3) {
+            throw new IllegalArgumentException("LTTB needs a threshold of at least 3, got " + threshold);
+        }
+
+        int[] kept = new int[threshold];
+        double bucketSize = (double) (n - 2) / (threshold - 2);
+        int selected = from;
+        kept[0] = from;
+        for (int bucket = 0; bucket < threshold - 2; bucket++) {
+            int start = from + 1 + (int) (bucket * bucketSize);
+            int end = from + 1 + (int) ((bucket + 1) * bucketSize);
+
+            // Average of the next bucket; the last bucket looks at the final point
+            int nextStart = end;
+            int nextEnd = Math.min(from + 1 + (int) ((bucket + 2) * bucketSize), to);
+            if (bucket == threshold - 3) {
+                nextStart = to - 1;
+                nextEnd = to;
+            }
+            double avgX = 0;
+            double avgY = 0;
+            for (int i = nextStart; i < nextEnd; i++) {
+                avgX += x[i];
+                avgY += y[i];
+            }
+            avgX /= nextEnd - nextStart;
+            avgY /= nextEnd - nextStart;
+
+            double ax = x[selected];
+            double ay = y[selected];
+            double maxArea = -1;
+            int best = start;
+            for (int i = start; i < end; i++) {
+                // Twice the triangle area; the factor does not change the maximum
+                double area = Math.abs((ax - avgX) * (y[i] - ay) - (ax - x[i]) * (avgY - ay));
+                if (area > maxArea) {
+                    maxArea = area;
+                    best = i;
+                }
+            }
+            kept[bucket + 1] = best;
+            selected = best;
+        }
+        kept[threshold - 1] = to - 1;
+        return kept;
+    }
+
+    // {x, y} of the kept points, in the layout DefaultXYDataset.addSeries expects
+    public static double[][] downsample(double[] x, double[] y, int from, int to, int threshold) {
+        int[] kept = select(x, y, from, to, threshold);
+        double[][] points = new double[2][kept.length];
+        for (int i = 0; i < kept.length; i++) {
+            points[0][i] = x[kept[i]];
+            points[1][i] = y[kept[i]];
+        }
+        return points;
+    }
+}
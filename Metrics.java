@@ -0,0 +1,384 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Process-wide latency histograms and counters for the pipeline's hot paths:
+//   data_load{name=csv|store}           parsing or decoding the temperature series
+//   build_classifier{name=<class>}      full model fits
+//   cv_fold{name=<class>}               cross-validation fold fits
+//   model_load{name=<target>/<model>}   reading a model from the registry
+//   predict / predict_batch{name=...}   predictions served by the registry
+// and the counters rows_ingested and rows_malformed.
+//
+// Everything is registered as an MXBean under "TemperatureForecaster:*" and can be
+// exported as Prometheus text:
+//   -Dmetrics.file=<path>   write the text at JVM exit
+//   -Dmetrics.port=<port>   serve it on http://127.0.0.1:<port>/metrics
+//   -Dmetrics.enabled=false stop timing individual predictions
+//   -Dmetrics.predictSampleEvery=N  time one prediction in N (rounded up to a power of two)
+//
+// A timed prediction costs two System.nanoTime() calls plus LatencyHistogram.record;
+// run "java Metrics" to see what that adds per model on the current machine.
+public class Metrics {
+    public static final boolean PREDICTIONS_ENABLED = !"false".equals(System.getProperty("metrics.enabled"));
+    private static final int PREDICT_SAMPLE_MASK = sampleMask(Integer.getInteger("metrics.predictSampleEvery", 1));
+    private static final String DOMAIN = "TemperatureForecaster";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    public interface LatencyMXBean {
+        long getCount();
+        double getMeanMillis();
+        double getP50Millis();
+        double getP99Millis();
+        double getMaxMillis();
+    }
+
+    public interface CounterMXBean {
+        long getValue();
+    }
+
+    static {
+        String file = System.getProperty("metrics.file");
+        if (file != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    writeTo(Paths.get(file));
+                } catch (IOException e) {
+                    System.err.println("Could not write metrics to " + file + ": " + e.getMessage());
+                }
+            }));
+        }
+        Integer port = Integer.getInteger("metrics.port");
+        if (port != null) {
+            try {
+                serve(port);
+            } catch (IOException e) {
+                System.err.println("Could not serve metrics on port " + port + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public static LatencyHistogram histogram(String operation) {
+        return histogram(operation, null);
+    }
+
+    // Callers on hot paths should look the histogram up once and keep it
+    public static LatencyHistogram histogram(String operation, String name) {
+        String key = name == null ? operation : operation + "|" + name;
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = histograms.computeIfAbsent(key, k -> {
+                LatencyHistogram created = new LatencyHistogram();
+                register("type=Latency,operation=" + operation + (name == null ? "" : ",name=" + name),
+                        latencyBean(created));
+                return created;
+            });
+        }
+        return histogram;
+    }
+
+    public static void increment(String counter, long delta) {
+        LongAdder adder = counters.get(counter);
+        if (adder == null) {
+            adder = counters.computeIfAbsent(counter, k -> {
+                LongAdder created = new LongAdder();
+                register("type=Counter,name=" + counter, new CounterMXBean() {
+                    @Override
+                    public long getValue() {
+                        return created.sum();
+                    }
+                });
+                return created;
+            });
+        }
+        adder.add(delta);
+    }
+
+    public static long counter(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    // Times every prediction made through the returned predictor
+    public static TemperaturePredictor instrument(TemperaturePredictor predictor, String model) {
+        if (!PREDICTIONS_ENABLED || predictor instanceof InstrumentedPredictor) {
+            return predictor;
+        }
+        return new InstrumentedPredictor(predictor, histogram("predict", model), histogram("predict_batch", model),
+                PREDICT_SAMPLE_MASK);
+    }
+
+    private static int sampleMask(int every) {
+        return every <= 1 ? 0 : Integer.highestOneBit(every - 1) * 2 - 1;
+    }
+
+    // The underlying predictor, for callers that need its concrete type
+    public static TemperaturePredictor unwrap(TemperaturePredictor predictor) {
+        return predictor instanceof InstrumentedPredictor ? ((InstrumentedPredictor) predictor).delegate : predictor;
+    }
+
+    static class InstrumentedPredictor implements TemperaturePredictor {
+        private final TemperaturePredictor delegate;
+        private final LatencyHistogram single;
+        private final LatencyHistogram batch;
+        private final int sampleMask;
+        // Only picks which calls get timed, so lost updates between threads do not matter
+        private int calls;
+
+        InstrumentedPredictor(TemperaturePredictor delegate, LatencyHistogram single, LatencyHistogram batch,
+                              int sampleMask) {
+            this.delegate = delegate;
+            this.single = single;
+            this.batch = batch;
+            this.sampleMask = sampleMask;
+        }
+
+        @Override
+        public double predict(double currentTemp) throws Exception {
+            if ((calls++ & sampleMask) != 0) {
+                return delegate.predict(currentTemp);
+            }
+            long start = System.nanoTime();
+            double prediction = delegate.predict(currentTemp);
+            single.recordSince(start);
+            return prediction;
+        }
+
+        @Override
+        public void predict(double[] inputs, double[] outputs) throws Exception {
+            long start = System.nanoTime();
+            delegate.predict(inputs, outputs);
+            batch.recordSince(start);
+        }
+
+        @Override
+        public double predictRow(double[] features) throws Exception {
+            if ((calls++ & sampleMask) != 0) {
+                return delegate.predictRow(features);
+            }
+            long start = System.nanoTime();
+            double prediction = delegate.predictRow(features);
+            single.recordSince(start);
+            return prediction;
+        }
+    }
+
+    private static LatencyMXBean latencyBean(LatencyHistogram histogram) {
+        return new LatencyMXBean() {
+            @Override
+            public long getCount() {
+                return histogram.count();
+            }
+
+            @Override
+            public double getMeanMillis() {
+                return histogram.meanNanos() / 1e6;
+            }
+
+            @Override
+            public double getP50Millis() {
+                return histogram.quantileNanos(0.5) / 1e6;
+            }
+
+            @Override
+            public double getP99Millis() {
+                return histogram.quantileNanos(0.99) / 1e6;
+            }
+
+            @Override
+            public double getMaxMillis() {
+                return histogram.maxNanos() / 1e6;
+            }
+        };
+    }
+
+    private static void register(String properties, Object bean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(bean, name);
+            }
+        } catch (Exception e) {
+            System.err.println("Could not register MXBean " + properties + ": " + e.getMessage());
+        }
+    }
+
+    // Prometheus text exposition format, latencies as summaries in seconds
+    public static String prometheus() {
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP forecaster_operation_seconds Latency of pipeline operations\n");
+        text.append("# TYPE forecaster_operation_seconds summary\n");
+        Map<String, LatencyHistogram> sorted = new TreeMap<>(histograms);
+        for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+            String labels = labels(entry.getKey());
+            LatencyHistogram histogram = entry.getValue();
+            for (double quantile : QUANTILES) {
+                text.append("forecaster_operation_seconds{").append(labels).append(",quantile=\"")
+                        .append(quantile).append("\"} ").append(histogram.quantileNanos(quantile) / 1e9).append('\n');
+            }
+            text.append("forecaster_operation_seconds_sum{").append(labels).append("} ")
+                    .append(histogram.sumNanos() / 1e9).append('\n');
+            text.append("forecaster_operation_seconds_count{").append(labels).append("} ")
+                    .append(histogram.count()).append('\n');
+        }
+        text.append("# HELP forecaster_operation_max_seconds Slowest recorded operation\n");
+        text.append("# TYPE forecaster_operation_max_seconds gauge\n");
+        for (Map.Entry<String, LatencyHistogram> entry : sorted.entrySet()) {
+            text.append("forecaster_operation_max_seconds{").append(labels(entry.getKey())).append("} ")
+                    .append(entry.getValue().maxNanos() / 1e9).append('\n');
+        }
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(counters).entrySet()) {
+            String name = "forecaster_" + entry.getKey() + "_total";
+            text.append("# TYPE ").append(name).append(" counter\n");
+            text.append(name).append(' ').append(entry.getValue().sum()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static String labels(String key) {
+        int separator = key.indexOf('|');
+        if (separator < 0) {
+            return "operation=\"" + key + "\"";
+        }
+        return "operation=\"" + key.substring(0, separator) + "\",name=\"" + key.substring(separator + 1) + "\"";
+    }
+
+    public static void writeTo(Path path) throws IOException {
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path temp = parent.resolve(path.getFileName() + ".tmp");
+        Files.write(temp, prometheus().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Serves /metrics on the loopback interface only
+    public static HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        // The dispatcher thread inherits daemon status from the thread that starts the
+        // server, so start it from a daemon thread to let short-lived tools exit
+        Thread starter = new Thread(server::start, "metrics-http-start");
+        starter.setDaemon(true);
+        starter.start();
+        try {
+            starter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Serving metrics on http://127.0.0.1:" + server.getAddress().getPort() + "/metrics");
+        return server;
+    }
+
+    // java Metrics    overhead of leaving instrumentation on, per recording and per prediction
+    public static void main(String[] args) {
+        try {
+            int calls = Integer.getInteger("metrics.benchCalls", 5_000_000);
+            LatencyHistogram histogram = new LatencyHistogram();
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < calls; i++) {
+                    histogram.record(i & 0xFFFFF);
+                }
+                long elapsed = System.nanoTime() - start;
+                if (round == 2) {
+                    System.out.printf("LatencyHistogram.record: %.1f ns/call%n", (double) elapsed / calls);
+                }
+            }
+
+            // Added cost per prediction, measured around the cheapest model so the difference
+            // is not lost in the noise of slower ones
+            ModelRegistry registry = ModelRegistry.open();
+            double[] inputs = TemperatureCsvReader.read("data/daily_temp.csv").minTemps();
+            TemperaturePredictor linear = unwrap(registry.predictor("min", "Linear Regression"));
+            TemperaturePredictor timed = new InstrumentedPredictor(linear, new LatencyHistogram(),
+                    new LatencyHistogram(), 0);
+            TemperaturePredictor sampled = new InstrumentedPredictor(linear, new LatencyHistogram(),
+                    new LatencyHistogram(), sampleMask(16));
+            double[] nanos = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+            // Alternate so JIT and frequency effects hit all variants equally, and keep each
+            // variant's best round to filter out noise from other processes
+            for (int round = 0; round < 7; round++) {
+                double[] roundNanos = {
+                        timePredictions(linear, inputs, calls),
+                        timePredictions(timed, inputs, calls),
+                        timePredictions(sampled, inputs, calls)
+                };
+                for (int v = 0; round >= 2 && v < nanos.length; v++) {
+                    nanos[v] = Math.min(nanos[v], roundNanos[v]);
+                }
+            }
+            double everyCall = nanos[1] - nanos[0];
+            double oneIn16 = nanos[2] - nanos[0];
+            System.out.printf("Added per prediction: %.1f ns timing every call, %.1f ns timing 1 in 16%n",
+                    everyCall, oneIn16);
+
+            System.out.printf("%-27s %12s %14s %14s%n", "Model (min)", "Raw ns/call", "Every call", "1 in 16");
+            for (String modelName : new String[]{"Linear Regression", "Random Forest", "Support Vector Regression"}) {
+                TemperaturePredictor raw = unwrap(registry.predictor("min", modelName));
+                int n = modelName.equals("Linear Regression") ? calls : calls / 50;
+                double best = Double.MAX_VALUE;
+                for (int round = 0; round < 5; round++) {
+                    best = Math.min(best, timePredictions(raw, inputs, n));
+                }
+                System.out.printf("%-27s %12.1f %13.1f%% %13.1f%%%n", modelName, best,
+                        everyCall / best * 100, oneIn16 / best * 100);
+            }
+
+            long clockStart = System.nanoTime();
+            long clockSink = 0;
+            for (int i = 0; i < calls; i++) {
+                clockSink += System.nanoTime();
+            }
+            System.out.printf("System.nanoTime: %.1f ns/call%s%n", (double) (System.nanoTime() - clockStart) / calls,
+                    clockSink == 42 ? " " : "");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static double timePredictions(TemperaturePredictor predictor, double[] inputs, int n) throws Exception {
+        double sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            sink += predictor.predict(inputs[i % inputs.length]);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42) {
+            System.out.println();
+        }
+        return (double) elapsed / n;
+    }
+}
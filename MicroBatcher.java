@@ -0,0 +1,120 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+// Groups single predictions from concurrent callers into batch calls of one predictor.
+// A batch is scored as soon as it is full, as soon as every caller that could join it
+// has (so a lone request never waits), or when the oldest entry has waited maxDelay.
+public class MicroBatcher implements AutoCloseable {
+    private final TemperaturePredictor predictor;
+    private final long maxDelayNanos;
+    private final int maxBatch;
+    // Number of callers that may submit to the current batch
+    private final IntSupplier participants;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread worker;
+    private volatile boolean closed;
+
+    private static class Pending {
+        final double input;
+        final CompletableFuture<Double> result = new CompletableFuture<>();
+
+        Pending(double input) {
+            this.input = input;
+        }
+    }
+
+    public MicroBatcher(String name, TemperaturePredictor predictor, long maxDelayNanos, int maxBatch,
+                        IntSupplier participants) {
+        this.predictor = predictor;
+        this.maxDelayNanos = maxDelayNanos;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.participants = participants;
+        this.worker = new Thread(this::run, "batcher-" + name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    public CompletableFuture<Double> submit(double input) {
+        Pending pending = new Pending(input);
+        if (closed) {
+            pending.result.completeExceptionally(new IllegalStateException("Batcher is closed"));
+        } else {
+            queue.add(pending);
+        }
+        return pending.result;
+    }
+
+    public double predict(double input) throws Exception {
+        try {
+            return submit(input).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        while (!closed) {
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    queue.drainTo(batch, maxBatch - batch.size());
+                    if (batch.size() >= maxBatch || batch.size() >= participants.getAsInt()) {
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    Pending next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                // Batch predictors score whole arrays, so size them to the batch
+                double[] inputs = new double[batch.size()];
+                double[] outputs = new double[batch.size()];
+                for (int i = 0; i < batch.size(); i++) {
+                    inputs[i] = batch.get(i).input;
+                }
+                try {
+                    predictor.predict(inputs, outputs);
+                    for (int i = 0; i < batch.size(); i++) {
+                        batch.get(i).result.complete(outputs[i]);
+                    }
+                } catch (Exception e) {
+                    for (Pending pending : batch) {
+                        pending.result.completeExceptionally(e);
+                    }
+                }
+                Metrics.increment("batches", 1);
+                Metrics.increment("batched_predictions", batch.size());
+                batch.clear();
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        for (Pending pending : batch) {
+            pending.result.completeExceptionally(new IllegalStateException("Batcher is closed"));
+        }
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            pending.result.completeExceptionally(new IllegalStateException("Batcher is closed"));
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+    }
+}
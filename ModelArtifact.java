@@ -0,0 +1,126 @@
+import weka.classifiers.Classifier;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+// Versioned binary model file, loaded with a single read and bulk array copies.
+//
+// Layout: int magic, short version, byte kind, UTF-8 target prefix, then a payload
+// that depends on the kind. Models without a native encoding are stored as a
+// Java-serialized Weka classifier so every model can live in the registry.
+public class ModelArtifact {
+    private static final int MAGIC = 0x544D4131;  // "TMA1"
+    private static final short VERSION = 1;
+    static final byte KIND_FOREST = 1;
+    static final byte KIND_WEKA = 2;
+    static final byte KIND_LINEAR = 3;
+    static final byte KIND_REGRESSION = 4;
+
+    public static final String EXTENSION = ".bin";
+
+    // Writes the model in its most compact supported form, replacing the file atomically
+    public static void write(Path path, Classifier model, String prefix) throws Exception {
+        DataOutputStream out = open(path);
+        try {
+            byte[] prefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+            TemperaturePredictor compiled = TemperaturePredictor.forModel(model, prefix);
+            if (compiled instanceof CompiledForest) {
+                out.writeByte(KIND_FOREST);
+                writeBytes(out, prefixBytes);
+                ((CompiledForest) compiled).write(out);
+            } else if (compiled instanceof CompiledRegression) {
+                out.writeByte(KIND_REGRESSION);
+                writeBytes(out, prefixBytes);
+                ((CompiledRegression) compiled).write(out);
+            } else {
+                out.writeByte(KIND_WEKA);
+                writeBytes(out, prefixBytes);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (ObjectOutputStream objects = new ObjectOutputStream(bytes)) {
+                    objects.writeObject(model);
+                }
+                writeBytes(out, bytes.toByteArray());
+            }
+        } finally {
+            out.close();
+        }
+        commit(path);
+    }
+
+    public static void write(Path path, OnlineLinearRegression model, String prefix) throws Exception {
+        DataOutputStream out = open(path);
+        try {
+            out.writeByte(KIND_LINEAR);
+            writeBytes(out, prefix.getBytes(StandardCharsets.UTF_8));
+            model.write(out);
+        } finally {
+            out.close();
+        }
+        commit(path);
+    }
+
+    // Helper method to start a new artifact in a temporary file next to the target
+    private static DataOutputStream open(Path path) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp(path))));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        return out;
+    }
+
+    private static void commit(Path path) throws IOException {
+        Files.move(temp(path), path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Path temp(Path path) {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    public static TemperaturePredictor read(Path path) throws Exception {
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (in.remaining() < 7 || in.getInt() != MAGIC) {
+            throw new IOException("Not a model artifact: " + path);
+        }
+        short version = in.getShort();
+        if (version != VERSION) {
+            throw new IOException("Unsupported model artifact version " + version + ": " + path);
+        }
+        byte kind = in.get();
+        String prefix = new String(readBytes(in), StandardCharsets.UTF_8);
+        switch (kind) {
+            case KIND_FOREST:
+                return CompiledForest.read(in);
+            case KIND_LINEAR:
+                return OnlineLinearRegression.read(in);
+            case KIND_REGRESSION:
+                return CompiledRegression.read(in);
+            case KIND_WEKA:
+                try (ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)))) {
+                    return new BatchScorer((Classifier) objects.readObject(), prefix);
+                }
+            default:
+                throw new IOException("Unknown model artifact kind " + kind + ": " + path);
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return bytes;
+    }
+}
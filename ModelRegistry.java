@@ -0,0 +1,508 @@
+import weka.classifiers.Classifier;
+import weka.classifiers.functions.LinearRegression;
+import weka.classifiers.functions.SMOreg;
+import weka.classifiers.trees.RandomForest;
+import weka.core.OptionHandler;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Records which model won for each target (with its CV metrics) and serves trained
+// models as TemperaturePredictors. Models are loaded lazily on first use, in parallel,
+// from compact ModelArtifact files and kept in a bounded LRU cache.
+//
+// Registry file (model/registry.properties):
+//   <target>.best=Random Forest
+//   <target>.random_forest.rmse / .mae / .correlation
+//   <target>.random_forest.options=<tuned Weka options, see HyperparameterSearch>
+//   <target>.random_forest.features.lags=1,2,3,7 / .features.window=7 (models trained on
+//     FeatureEngine rows; absent for lag-1 models)
+//   <target>.input.low / .high=<range of the target seen in training, see TabulatedPredictor>
+//   <target>.direct=Random Forest, <target>.direct.horizons=14 (models in <target>/direct/h<N>.bin,
+//     see DirectForecaster)
+//   data.lastDay=<epoch day of the last observation the models have seen>
+//
+// Next to each artifact, <target>/<model>.residuals holds the model's out-of-fold
+// errors for MonteCarloForecaster: an int count followed by that many doubles.
+// Recording or updating an artifact deletes them, since they belong to the old model.
+public class ModelRegistry {
+    public static final String DEFAULT_DIR = "model";
+    private static final String REGISTRY_FILE = "registry.properties";
+    // Used when no training run has recorded a winner yet
+    private static final String DEFAULT_MODEL = "Random Forest";
+    private static final int DEFAULT_CACHE_SIZE = Integer.getInteger("registry.cacheSize", 8);
+    // Serve lookup tables instead of the models themselves: -Dregistry.tabulated=true
+    private static final boolean TABULATED = Boolean.getBoolean("registry.tabulated");
+    private static final double TABULATED_STEP = Double.parseDouble(System.getProperty("registry.tabulatedStep", "0.1"));
+    // Table range for targets trained before input ranges were recorded
+    private static final double DEFAULT_LOW = -40;
+    private static final double DEFAULT_HIGH = 50;
+
+    private final String dir;
+    private final Properties properties = new Properties();
+    private final Map<String, CompletableFuture<TemperaturePredictor>> cache;
+    // One entry per target, so no eviction
+    private final Map<String, CompletableFuture<DirectForecaster>> directCache = new HashMap<>();
+    private final ExecutorService loader;
+
+    public static class Entry {
+        public final String target;
+        public final String modelName;
+        public final double rmse;
+        public final double mae;
+        public final double correlation;
+
+        Entry(String target, String modelName, double rmse, double mae, double correlation) {
+            this.target = target;
+            this.modelName = modelName;
+            this.rmse = rmse;
+            this.mae = mae;
+            this.correlation = correlation;
+        }
+    }
+
+    public ModelRegistry(String dir, int cacheSize) throws IOException {
+        this.dir = dir;
+        this.cache = new LinkedHashMap<String, CompletableFuture<TemperaturePredictor>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<TemperaturePredictor>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+        this.loader = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "model-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Path registryPath = Paths.get(dir, REGISTRY_FILE);
+        if (Files.exists(registryPath)) {
+            try (InputStream in = Files.newInputStream(registryPath)) {
+                properties.load(in);
+            }
+        }
+    }
+
+    public static ModelRegistry open() throws IOException {
+        return new ModelRegistry(DEFAULT_DIR, DEFAULT_CACHE_SIZE);
+    }
+
+    // File name stem used for a model, e.g. "Random Forest" -> "random_forest"
+    public static String slug(String modelName) {
+        return modelName.toLowerCase().replace(" ", "_");
+    }
+
+    // Stores a trained lag-1 model as an artifact and records its metrics
+    public void record(String target, String modelName, Classifier model,
+                       double rmse, double mae, double correlation) throws Exception {
+        record(target, modelName, model, FeatureEngine.lagged(1), rmse, mae, correlation);
+    }
+
+    // Stores a model trained on features.dataset() and records its metrics and feature spec
+    public synchronized void record(String target, String modelName, Classifier model, FeatureEngine features,
+                                    double rmse, double mae, double correlation) throws Exception {
+        ModelArtifact.write(artifactPath(target, modelName), model, target);
+        Files.deleteIfExists(residualsPath(target, modelName));
+        String key = target + "." + slug(modelName);
+        if (features.isLagged()) {
+            properties.remove(key + ".features.lags");
+            properties.remove(key + ".features.window");
+        } else {
+            StringBuilder lags = new StringBuilder();
+            for (int lag : features.lags()) {
+                lags.append(lags.length() == 0 ? "" : ",").append(lag);
+            }
+            properties.setProperty(key + ".features.lags", lags.toString());
+            properties.setProperty(key + ".features.window", Integer.toString(features.window()));
+        }
+        properties.setProperty(key + ".name", modelName);
+        properties.setProperty(key + ".rmse", Double.toString(rmse));
+        properties.setProperty(key + ".mae", Double.toString(mae));
+        properties.setProperty(key + ".correlation", Double.toString(correlation));
+        cache.remove(cacheKey(target, modelName));
+    }
+
+    // Replaces a model's artifact after an incremental update, keeping its recorded metrics
+    public synchronized void update(String target, String modelName, Classifier model) throws Exception {
+        ModelArtifact.write(artifactPath(target, modelName), model, target);
+        Files.deleteIfExists(residualsPath(target, modelName));
+        cache.remove(cacheKey(target, modelName));
+    }
+
+    public synchronized void update(String target, String modelName, OnlineLinearRegression model) throws Exception {
+        ModelArtifact.write(artifactPath(target, modelName), model, target);
+        Files.deleteIfExists(residualsPath(target, modelName));
+        cache.remove(cacheKey(target, modelName));
+    }
+
+    // Stores one artifact per horizon for the direct forecaster of a target
+    public synchronized void recordDirect(String target, String modelName, Classifier[] models) throws Exception {
+        for (int h = 1; h <= models.length; h++) {
+            ModelArtifact.write(directPath(target, h), models[h - 1], target);
+        }
+        properties.setProperty(target + ".direct", modelName);
+        properties.setProperty(target + ".direct.horizons", Integer.toString(models.length));
+        directCache.remove(target);
+    }
+
+    // Stores a model's cross-validation errors (actual - predicted), replacing the file
+    // atomically; call it after record(), which deletes them
+    public synchronized void recordResiduals(String target, String modelName, double[] residuals) throws IOException {
+        Path path = residualsPath(target, modelName);
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + residuals.length * Double.BYTES);
+        buffer.putInt(residuals.length);
+        buffer.asDoubleBuffer().put(residuals);
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, buffer.array());
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // The recorded cross-validation errors of a model, or null when none were recorded
+    public double[] residuals(String target, String modelName) throws IOException {
+        Path path = residualsPath(target, modelName);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        int count = buffer.getInt();
+        if (count < 0 || buffer.remaining() != count * Double.BYTES) {
+            throw new IOException("Corrupt residuals file: " + path);
+        }
+        double[] residuals = new double[count];
+        buffer.asDoubleBuffer().get(residuals);
+        return residuals;
+    }
+
+    // Drops the direct forecaster of a target, e.g. once its 1-day models use other features
+    public synchronized void removeDirect(String target) {
+        properties.remove(target + ".direct");
+        properties.remove(target + ".direct.horizons");
+        directCache.remove(target);
+    }
+
+    // Features a model was trained on; lag-1 for models recorded without a spec
+    public synchronized FeatureEngine features(String target, String modelName) {
+        String key = target + "." + slug(modelName);
+        String lags = properties.getProperty(key + ".features.lags");
+        if (lags == null) {
+            return FeatureEngine.lagged(1);
+        }
+        String[] parts = lags.split(",");
+        int[] parsed = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            parsed[i] = Integer.parseInt(parts[i].trim());
+        }
+        return new FeatureEngine(parsed, Integer.parseInt(properties.getProperty(key + ".features.window")), 1);
+    }
+
+    // Number of direct horizons trained for a target, 0 when there is no direct forecaster
+    public synchronized int directHorizons(String target) {
+        return Integer.parseInt(properties.getProperty(target + ".direct.horizons", "0"));
+    }
+
+    public synchronized String directModel(String target) {
+        return properties.getProperty(target + ".direct");
+    }
+
+    // Weka class used for each model name
+    public static Classifier defaultLearner(String modelName) {
+        switch (modelName) {
+            case "Linear Regression": return new LinearRegression();
+            case "Random Forest": return new RandomForest();
+            case "Support Vector Regression": return new SMOreg();
+            default: throw new IllegalArgumentException("Unknown model: " + modelName);
+        }
+    }
+
+    // A fresh, untrained learner configured with the tuned options recorded for the target
+    public Classifier newLearner(String target, String modelName) throws Exception {
+        Classifier learner = defaultLearner(modelName);
+        String options = tunedOptions(target, modelName);
+        if (options != null) {
+            ((OptionHandler) learner).setOptions(Utils.splitOptions(options));
+        }
+        return learner;
+    }
+
+    public synchronized void setTunedOptions(String target, String modelName, Classifier tuned) {
+        String options = Utils.joinOptions(((OptionHandler) tuned).getOptions());
+        properties.setProperty(target + "." + slug(modelName) + ".options", options);
+    }
+
+    public synchronized String tunedOptions(String target, String modelName) {
+        return properties.getProperty(target + "." + slug(modelName) + ".options");
+    }
+
+    // Widens the recorded input range of a target to include [low, high]
+    public synchronized void setInputRange(String target, double low, double high) {
+        String lowKey = target + ".input.low";
+        String highKey = target + ".input.high";
+        if (properties.getProperty(lowKey) != null) {
+            low = Math.min(low, Double.parseDouble(properties.getProperty(lowKey)));
+            high = Math.max(high, Double.parseDouble(properties.getProperty(highKey)));
+        }
+        properties.setProperty(lowKey, Double.toString(low));
+        properties.setProperty(highKey, Double.toString(high));
+    }
+
+    public synchronized double[] inputRange(String target) {
+        return new double[]{
+                Double.parseDouble(properties.getProperty(target + ".input.low", Double.toString(DEFAULT_LOW))),
+                Double.parseDouble(properties.getProperty(target + ".input.high", Double.toString(DEFAULT_HIGH)))
+        };
+    }
+
+    public synchronized void setLastObservedDay(int epochDay) {
+        properties.setProperty("data.lastDay", Integer.toString(epochDay));
+    }
+
+    // Epoch day of the newest observation the models were trained on, or -1 if unknown
+    public synchronized int lastObservedDay() {
+        return Integer.parseInt(properties.getProperty("data.lastDay", "-1"));
+    }
+
+    public synchronized void setBest(String target, String modelName) {
+        properties.setProperty(target + ".best", modelName);
+    }
+
+    public synchronized void save() throws IOException {
+        Path registryPath = Paths.get(dir, REGISTRY_FILE);
+        Files.createDirectories(registryPath.getParent());
+        Path temp = Paths.get(dir, REGISTRY_FILE + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            properties.store(out, "Best model per target and cross-validation metrics");
+        }
+        Files.move(temp, registryPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public synchronized String bestModel(String target) {
+        return properties.getProperty(target + ".best", DEFAULT_MODEL);
+    }
+
+    // Metrics recorded for a model, or null when it has not been trained through the registry
+    public synchronized Entry entry(String target, String modelName) {
+        String key = target + "." + slug(modelName);
+        if (properties.getProperty(key + ".rmse") == null) {
+            return null;
+        }
+        return new Entry(target, modelName,
+                Double.parseDouble(properties.getProperty(key + ".rmse")),
+                Double.parseDouble(properties.getProperty(key + ".mae")),
+                Double.parseDouble(properties.getProperty(key + ".correlation")));
+    }
+
+    // Starts loading the best model of each target in the background
+    public void prefetch(String... targets) {
+        for (String target : targets) {
+            load(target, bestModel(target));
+        }
+    }
+
+    // Starts loading the direct forecaster of each target, or its best 1-day model when
+    // no direct forecaster has been trained
+    public void prefetchDirect(String... targets) {
+        for (String target : targets) {
+            if (loadDirect(target) == null) {
+                load(target, bestModel(target));
+            }
+        }
+    }
+
+    public TemperaturePredictor predictor(String target) throws Exception {
+        return predictor(target, bestModel(target));
+    }
+
+    // The model as a function of the current temperature; only for lag-1 models, see scorer()
+    public TemperaturePredictor predictor(String target, String modelName) throws Exception {
+        FeatureEngine features = features(target, modelName);
+        if (!features.isLagged()) {
+            throw new IllegalStateException(modelName + " for " + target + " is trained on " + features.describe()
+                    + ", serve it through scorer()");
+        }
+        return join(load(target, modelName));
+    }
+
+    // A Scorer over the features the model was trained on, with no observations yet;
+    // prime it with the recent history before predicting. Works for every model.
+    public FeatureEngine.Scorer scorer(String target) throws Exception {
+        return scorer(target, bestModel(target));
+    }
+
+    public FeatureEngine.Scorer scorer(String target, String modelName) throws Exception {
+        return features(target, modelName).new Scorer(join(load(target, modelName)));
+    }
+
+    // The direct multi-horizon forecaster of a target, or null when none has been trained
+    public DirectForecaster direct(String target) throws Exception {
+        CompletableFuture<DirectForecaster> future = loadDirect(target);
+        return future == null ? null : join(future);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // Concurrent callers for the same model share one load
+    private synchronized CompletableFuture<TemperaturePredictor> load(String target, String modelName) {
+        String key = cacheKey(target, modelName);
+        CompletableFuture<TemperaturePredictor> future = cache.get(key);
+        if (future == null || future.isCompletedExceptionally()) {
+            future = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return readModel(target, modelName);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, loader);
+            cache.put(key, future);
+        }
+        return future;
+    }
+
+    private synchronized CompletableFuture<DirectForecaster> loadDirect(String target) {
+        int horizons = directHorizons(target);
+        if (horizons == 0) {
+            return null;
+        }
+        CompletableFuture<DirectForecaster> future = directCache.get(target);
+        if (future == null || future.isCompletedExceptionally()) {
+            future = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return readDirect(target, horizons);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, loader);
+            directCache.put(target, future);
+        }
+        return future;
+    }
+
+    // Reads every horizon concurrently, then tabulates them over the recorded input range
+    private DirectForecaster readDirect(String target, int horizons) throws Exception {
+        long start = System.nanoTime();
+        List<CompletableFuture<TemperaturePredictor>> parts = new ArrayList<>(horizons);
+        for (int h = 1; h <= horizons; h++) {
+            Path path = directPath(target, h);
+            parts.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return ModelArtifact.read(path);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, loader));
+        }
+        TemperaturePredictor[] models = new TemperaturePredictor[horizons];
+        for (int h = 0; h < horizons; h++) {
+            models[h] = join(parts.get(h));
+        }
+        double[] range = inputRange(target);
+        DirectForecaster forecaster = new DirectForecaster(models).tabulate(range[0], range[1], TABULATED_STEP);
+        Metrics.histogram("model_load", target + "/direct").recordSince(start);
+        return forecaster;
+    }
+
+    private TemperaturePredictor readModel(String target, String modelName) throws Exception {
+        long start = System.nanoTime();
+        TemperaturePredictor predictor = deserialize(target, modelName);
+        FeatureEngine features = features(target, modelName);
+        if (predictor instanceof BatchScorer && !features.isLagged()) {
+            // Artifacts keep the target prefix only; the feature header comes from the spec
+            predictor = new BatchScorer(((BatchScorer) predictor).model(), features.header(target));
+        }
+        if (TABULATED && features.isLagged()) {
+            double[] range = inputRange(target);
+            predictor = TabulatedPredictor.build(predictor, range[0], range[1], TABULATED_STEP);
+        }
+        Metrics.histogram("model_load", cacheKey(target, modelName)).recordSince(start);
+        return Metrics.instrument(predictor, cacheKey(target, modelName));
+    }
+
+    private TemperaturePredictor deserialize(String target, String modelName) throws Exception {
+        Path artifact = artifactPath(target, modelName);
+        if (Files.exists(artifact)) {
+            return ModelArtifact.read(artifact);
+        }
+
+        // Models trained before the registry existed: convert once, then use the artifact
+        String wekaPath = dir + File.separator + target + File.separator + slug(modelName) + ".model";
+        Classifier model = (Classifier) SerializationHelper.read(wekaPath);
+        try {
+            ModelArtifact.write(artifact, model, target);
+        } catch (IOException e) {
+            System.err.println("Could not write model artifact " + artifact + ": " + e.getMessage());
+        }
+        return TemperaturePredictor.forModel(model, target);
+    }
+
+    private Path artifactPath(String target, String modelName) {
+        return Paths.get(dir, target, slug(modelName) + ModelArtifact.EXTENSION);
+    }
+
+    private Path residualsPath(String target, String modelName) {
+        return Paths.get(dir, target, slug(modelName) + ".residuals");
+    }
+
+    private Path directPath(String target, int horizon) {
+        return Paths.get(dir, target, "direct", "h" + horizon + ModelArtifact.EXTENSION);
+    }
+
+    private static String cacheKey(String target, String modelName) {
+        return target + "/" + slug(modelName);
+    }
+
+    // Measures cold start to the first forecast; run once per mode in a fresh JVM:
+    //   java ModelRegistry weka       (SerializationHelper + classifyInstance)
+    //   java ModelRegistry registry   (lazy, concurrent artifact loading)
+    public static void main(String[] args) {
+        try {
+            String mode = args.length > 0 ? args[0] : "registry";
+            long start = System.nanoTime();
+            double minForecast;
+            double maxForecast;
+            if (mode.equals("weka")) {
+                Classifier minModel = (Classifier) SerializationHelper.read("model/min/random_forest.model");
+                Classifier maxModel = (Classifier) SerializationHelper.read("model/max/random_forest.model");
+                minForecast = new BatchScorer(minModel, "min").predict(15.0);
+                maxForecast = new BatchScorer(maxModel, "max").predict(25.0);
+            } else {
+                ModelRegistry registry = open();
+                registry.prefetch("min", "max");
+                minForecast = registry.predictor("min").predict(15.0);
+                maxForecast = registry.predictor("max").predict(25.0);
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("Cold start to first forecast (%s): %.1f ms (min %.2f, max %.2f)%n",
+                    mode, elapsed / 1e6, minForecast, maxForecast);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,435 @@
+import weka.classifiers.evaluation.Evaluation;
+import weka.classifiers.evaluation.NumericPrediction;
+import weka.classifiers.evaluation.Prediction;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Forecast ranges for one target by Monte Carlo simulation of the recursive chain.
+//
+// Every path starts at today's value and applies the 1-day model day after day, adding
+// an error drawn from the model's cross-validation residuals at each step, so the
+// spread grows the way the errors of the chain compound. Models trained on FeatureEngine
+// rows start from a Scorer that has observed the history; each path then continues a
+// copy of it, so its lags and rolling features follow the simulated values.
+//
+// Paths are simulated in chunks of CHUNK, each chunk a task on the pool with its own
+// SplittableRandom, split off the seeded root in chunk order: the bands depend on the
+// seed but not on the number of threads. A chunk scores all its paths for one day with
+// a single batch predict() and writes them into one day-major primitive buffer
+// (buffer[day * paths + path]); each day's slice is then sorted in place for its
+// P10/P50/P90. Feature models score path by path instead, as every path has its own
+// feature state.
+//
+// Residuals are the out-of-fold errors TimeSeriesForecaster records in the registry.
+// For models trained before those were recorded, the model's one-step errors over the
+// history are used instead, scaled up to the recorded CV RMSE when they are smaller.
+//
+//   -Dmontecarlo.parallelism=<cores>   -Dmontecarlo.seed=1
+public class MonteCarloForecaster {
+    public static final int PARALLELISM = Integer.getInteger("montecarlo.parallelism",
+            Runtime.getRuntime().availableProcessors());
+    public static final long SEED = Long.getLong("montecarlo.seed", 1);
+    private static final int CHUNK = 512;
+    private static final double[] QUANTILES = {0.1, 0.5, 0.9};
+    private static volatile ForkJoinPool sharedPool;
+
+    private final TemperaturePredictor model;
+    private final FeatureEngine features;
+    private final double[] residuals;
+    private final String source;
+
+    // Percentiles per day; index 0 is the day after the start value
+    public static class Bands {
+        public final double[] p10;
+        public final double[] p50;
+        public final double[] p90;
+        public final int paths;
+
+        Bands(double[] p10, double[] p50, double[] p90, int paths) {
+            this.p10 = p10;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.paths = paths;
+        }
+
+        public int days() {
+            return p50.length;
+        }
+    }
+
+    // A lag-1 model
+    public MonteCarloForecaster(TemperaturePredictor model, double[] residuals) {
+        this(FeatureEngine.lagged(1), model, residuals, "given");
+    }
+
+    // A model trained on features.dataset()
+    public MonteCarloForecaster(FeatureEngine features, TemperaturePredictor model, double[] residuals) {
+        this(features, model, residuals, "given");
+    }
+
+    private MonteCarloForecaster(FeatureEngine features, TemperaturePredictor model, double[] residuals,
+                                 String source) {
+        if (residuals.length == 0) {
+            throw new IllegalArgumentException("Need at least one residual to sample from");
+        }
+        if (features.horizon() != 1) {
+            throw new IllegalArgumentException("The chain needs a 1-day model, not horizon " + features.horizon());
+        }
+        this.model = model;
+        this.features = features;
+        this.residuals = residuals;
+        this.source = source;
+    }
+
+    // The best model of a target with its recorded residuals, or with residuals over the
+    // given history when none were recorded (days and history may then be null)
+    public static MonteCarloForecaster fromRegistry(ModelRegistry registry, String target, int[] days,
+                                                    double[] history) throws Exception {
+        String modelName = registry.bestModel(target);
+        FeatureEngine.Scorer scorer = registry.scorer(target, modelName);
+        FeatureEngine features = scorer.engine();
+        double[] recorded = registry.residuals(target, modelName);
+        if (recorded != null && recorded.length > 0) {
+            return new MonteCarloForecaster(features, scorer.model(), recorded, "cross-validation");
+        }
+        if (history == null || history.length < features.history() + 1) {
+            throw new IllegalStateException("No residuals recorded for " + target + " " + modelName
+                    + " and no history to estimate them from");
+        }
+        double[] inSample = oneStepResiduals(scorer, days, history);
+        ModelRegistry.Entry entry = registry.entry(target, modelName);
+        double rmse = rmse(inSample);
+        if (entry != null && rmse > 0 && entry.rmse > rmse) {
+            for (int i = 0; i < inSample.length; i++) {
+                inSample[i] *= entry.rmse / rmse;
+            }
+            return new MonteCarloForecaster(features, scorer.model(), inSample, "in-sample, scaled to CV RMSE");
+        }
+        return new MonteCarloForecaster(features, scorer.model(), inSample, "in-sample");
+    }
+
+    // Out-of-fold errors (actual - predicted) of a cross-validated model
+    public static double[] residuals(Evaluation evaluation) {
+        ArrayList<Prediction> predictions = evaluation.predictions();
+        if (predictions == null) {
+            throw new IllegalArgumentException("The evaluation discarded its predictions");
+        }
+        double[] residuals = new double[predictions.size()];
+        int count = 0;
+        for (Prediction prediction : predictions) {
+            double error = ((NumericPrediction) prediction).error();
+            if (!Double.isNaN(error)) {
+                // NumericPrediction.error() is predicted - actual
+                residuals[count++] = -error;
+            }
+        }
+        return Arrays.copyOf(residuals, count);
+    }
+
+    // Errors of the 1-day model on consecutive days of the history, from the first day
+    // the features are defined
+    static double[] oneStepResiduals(FeatureEngine.Scorer scorer, int[] days, double[] values) throws Exception {
+        double[] predicted = scorer.walk(days, values, 0, values.length - 1);
+        double[] residuals = new double[predicted.length];
+        int count = 0;
+        for (int i = 0; i < predicted.length; i++) {
+            if (!Double.isNaN(predicted[i])) {
+                residuals[count++] = values[i + 1] - predicted[i];
+            }
+        }
+        return Arrays.copyOf(residuals, count);
+    }
+
+    private static double rmse(double[] errors) {
+        double sum = 0;
+        for (double error : errors) {
+            sum += error * error;
+        }
+        return errors.length == 0 ? 0 : Math.sqrt(sum / errors.length);
+    }
+
+    // Where the residuals came from, for status lines
+    public String residualSource() {
+        return source;
+    }
+
+    public FeatureEngine features() {
+        return features;
+    }
+
+    // A scorer over the model that has observed values[0, to), to start paths from
+    public FeatureEngine.Scorer scorer(int[] days, double[] values, int to) {
+        FeatureEngine.Scorer scorer = features.new Scorer(model);
+        scorer.observe(days, values, 0, to);
+        return scorer;
+    }
+
+    // Paths from a single value; lag-1 models only, as other features need the history
+    public Bands simulate(double start, int days, int paths) throws Exception {
+        return simulate(start, days, paths, SEED, pool());
+    }
+
+    public Bands simulate(double start, int days, int paths, long seed, ForkJoinPool pool) throws Exception {
+        if (!features.isLagged()) {
+            throw new IllegalStateException("A model on " + features.describe() + " starts from the history,"
+                    + " see scorer(days, values, to)");
+        }
+        FeatureEngine.Scorer from = features.new Scorer(model);
+        from.observe(0, start);
+        return simulate(from, days, paths, seed, pool);
+    }
+
+    // Paths continuing the observations of from, which is left unchanged
+    public Bands simulate(FeatureEngine.Scorer from, int days, int paths) throws Exception {
+        return simulate(from, days, paths, SEED, pool());
+    }
+
+    // Runs on the given pool, or on the calling thread when it is null
+    public Bands simulate(FeatureEngine.Scorer from, int days, int paths, long seed, ForkJoinPool pool)
+            throws Exception {
+        if (from.engine() != features && !features.isLagged()) {
+            throw new IllegalArgumentException("Start from a scorer of this forecaster, see scorer()");
+        }
+        if (!from.state().ready()) {
+            throw new IllegalArgumentException("The start has " + from.state().count() + " observations, the model needs "
+                    + features.history());
+        }
+        if (days < 1 || paths < 1) {
+            throw new IllegalArgumentException("Need at least one day and one path, got " + days + " and " + paths);
+        }
+        double[] buffer = new double[days * paths];
+        SplittableRandom root = new SplittableRandom(seed);
+        List<Callable<Void>> chunks = new ArrayList<>();
+        for (int first = 0; first < paths; first += CHUNK) {
+            int chunkFrom = first;
+            int chunkTo = Math.min(paths, first + CHUNK);
+            SplittableRandom random = root.split();
+            chunks.add(() -> {
+                if (features.isLagged()) {
+                    simulateChunk(from.state().latest(), days, paths, chunkFrom, chunkTo, random, buffer);
+                } else {
+                    simulateChunk(from, days, paths, chunkFrom, chunkTo, random, buffer);
+                }
+                return null;
+            });
+        }
+        runAll(chunks, pool);
+
+        double[][] bands = new double[QUANTILES.length][days];
+        List<Callable<Void>> sorts = new ArrayList<>();
+        for (int day = 0; day < days; day++) {
+            int d = day;
+            sorts.add(() -> {
+                int offset = d * paths;
+                Arrays.sort(buffer, offset, offset + paths);
+                for (int q = 0; q < QUANTILES.length; q++) {
+                    bands[q][d] = buffer[offset + rank(QUANTILES[q], paths)];
+                }
+                return null;
+            });
+        }
+        runAll(sorts, pool);
+        return new Bands(bands[0], bands[1], bands[2], paths);
+    }
+
+    // Paths [from, to) for every day, one batch prediction per day
+    private void simulateChunk(double start, int days, int paths, int from, int to, SplittableRandom random,
+                               double[] buffer) throws Exception {
+        int n = to - from;
+        double[] current = new double[n];
+        double[] next = new double[n];
+        Arrays.fill(current, start);
+        for (int day = 0; day < days; day++) {
+            model.predict(current, next);
+            int offset = day * paths + from;
+            for (int i = 0; i < n; i++) {
+                double value = next[i] + residuals[random.nextInt(residuals.length)];
+                next[i] = value;
+                buffer[offset + i] = value;
+            }
+            double[] swap = current;
+            current = next;
+            next = swap;
+        }
+    }
+
+    // Paths [from, to) of a feature model, each on its own copy of the start state
+    private void simulateChunk(FeatureEngine.Scorer start, int days, int paths, int from, int to,
+                               SplittableRandom random, double[] buffer) throws Exception {
+        int n = to - from;
+        FeatureEngine.Scorer[] walkers = new FeatureEngine.Scorer[n];
+        for (int i = 0; i < n; i++) {
+            walkers[i] = start.copy();
+        }
+        int day0 = start.state().lastDay() + 1;
+        for (int day = 0; day < days; day++) {
+            int offset = day * paths + from;
+            for (int i = 0; i < n; i++) {
+                double value = walkers[i].predict() + residuals[random.nextInt(residuals.length)];
+                walkers[i].observe(day0 + day, value);
+                buffer[offset + i] = value;
+            }
+        }
+    }
+
+    // Nearest-rank index of a quantile in n sorted values
+    private static int rank(double quantile, int n) {
+        return Math.min(n - 1, Math.max(0, (int) Math.ceil(quantile * n) - 1));
+    }
+
+    private static ForkJoinPool pool() {
+        if (PARALLELISM <= 1) {
+            return null;
+        }
+        ForkJoinPool pool = sharedPool;
+        if (pool == null) {
+            synchronized (MonteCarloForecaster.class) {
+                pool = sharedPool;
+                if (pool == null) {
+                    pool = sharedPool = new ForkJoinPool(PARALLELISM);
+                }
+            }
+        }
+        return pool;
+    }
+
+    private static void runAll(List<Callable<Void>> tasks, ForkJoinPool pool) throws Exception {
+        if (pool == null || tasks.size() <= 1) {
+            for (Callable<Void> task : tasks) {
+                task.call();
+            }
+            return;
+        }
+        for (Future<Void> future : pool.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+    }
+
+    // Prints today's bands, checks how often the P10-P90 range held the actual value over
+    // the last year of history, and times 10k paths against a path-at-a-time loop
+    //   java MonteCarloForecaster [paths] [days]
+    public static void main(String[] args) {
+        try {
+            int paths = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+            int days = args.length > 1 ? Integer.parseInt(args[1]) : 7;
+            TemperatureSeries series = TemperatureStore.loadSeries("data/daily_temp.csv", "data/daily_temp.tss");
+            ModelRegistry registry = ModelRegistry.open();
+            ForkJoinPool pool = new ForkJoinPool(Math.max(1, PARALLELISM));
+
+            int[] epochDays = series.epochDays();
+            for (String target : new String[]{"min", "max"}) {
+                double[] values = "min".equals(target) ? series.minTemps() : series.maxTemps();
+                MonteCarloForecaster forecaster = fromRegistry(registry, target, epochDays, values);
+                double today = values[values.length - 1];
+                Bands bands = forecaster.simulate(forecaster.scorer(epochDays, values, values.length), days, paths,
+                        SEED, pool);
+                System.out.printf("%n%s (%s, %s residuals), %d paths from %.1f on %s:%n", target,
+                        registry.bestModel(target), forecaster.residualSource(), paths, today,
+                        series.date(series.size() - 1));
+                System.out.printf("%-5s %7s %7s %7s%n", "Day", "P10", "P50", "P90");
+                for (int d = 0; d < bands.days(); d++) {
+                    System.out.printf("+%-4d %7.1f %7.1f %7.1f%n", d + 1, bands.p10[d], bands.p50[d], bands.p90[d]);
+                }
+
+                // Share of actual values inside P10-P90, 80% when the bands are calibrated
+                int starts = Math.min(365, values.length - days - 1);
+                int[] inside = new int[days];
+                for (int s = 0; s < starts; s++) {
+                    int origin = values.length - days - 1 - s;
+                    Bands past = forecaster.simulate(forecaster.scorer(epochDays, values, origin + 1), days, 2000,
+                            SEED + s, pool);
+                    for (int d = 0; d < days; d++) {
+                        double actual = values[origin + d + 1];
+                        if (actual >= past.p10[d] && actual <= past.p90[d]) {
+                            inside[d]++;
+                        }
+                    }
+                }
+                StringBuilder coverage = new StringBuilder();
+                for (int d = 0; d < days; d++) {
+                    coverage.append(String.format(" +%d: %.0f%%", d + 1, 100.0 * inside[d] / starts));
+                }
+                System.out.println("P10-P90 coverage over the last " + starts + " starts:" + coverage);
+            }
+
+            benchmark(registry, epochDays, series.minTemps(), paths, days, pool);
+            pool.shutdown();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void benchmark(ModelRegistry registry, int[] epochDays, double[] values, int paths, int days,
+                                  ForkJoinPool pool) throws Exception {
+        MonteCarloForecaster forecaster = fromRegistry(registry, "min", epochDays, values);
+        FeatureEngine.Scorer start = forecaster.scorer(epochDays, values, values.length);
+        System.out.printf("%n%d paths x %d days, min %s on %s:%n", paths, days, registry.bestModel("min"),
+                forecaster.features.describe());
+
+        // Path at a time with scalar predictions, boxed values and a shared Random; the
+        // lag-1 chain only needs the previous value
+        Random shared = new Random(SEED);
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 5 && forecaster.features.isLagged(); round++) {
+            long began = System.nanoTime();
+            List<List<Double>> simulated = new ArrayList<>();
+            for (int p = 0; p < paths; p++) {
+                List<Double> path = new ArrayList<>();
+                double value = start.state().latest();
+                for (int d = 0; d < days; d++) {
+                    value = forecaster.model.predict(value)
+                            + forecaster.residuals[shared.nextInt(forecaster.residuals.length)];
+                    path.add(value);
+                }
+                simulated.add(path);
+            }
+            for (int d = 0; d < days; d++) {
+                double[] column = new double[paths];
+                for (int p = 0; p < paths; p++) {
+                    column[p] = simulated.get(p).get(d);
+                }
+                Arrays.sort(column);
+            }
+            best = Math.min(best, System.nanoTime() - began);
+        }
+        if (forecaster.features.isLagged()) {
+            System.out.printf("%-32s %8.1f ms%n", "Path at a time", best / 1e6);
+        }
+
+        for (int threads : new int[]{1, PARALLELISM}) {
+            ForkJoinPool runOn = threads == 1 ? null : pool;
+            best = Long.MAX_VALUE;
+            for (int round = 0; round < 5; round++) {
+                long began = System.nanoTime();
+                forecaster.simulate(start, days, paths, SEED, runOn);
+                best = Math.min(best, System.nanoTime() - began);
+            }
+            System.out.printf("%-32s %8.1f ms%n", "Batched chunks, " + threads + " thread(s)", best / 1e6);
+            if (PARALLELISM == 1) {
+                break;
+            }
+        }
+
+        // Same seed, same bands, whatever the number of threads
+        Bands sequential = forecaster.simulate(start, days, paths, SEED, null);
+        Bands parallel = forecaster.simulate(start, days, paths, SEED, new ForkJoinPool(4));
+        if (!Arrays.equals(sequential.p50, parallel.p50) || !Arrays.equals(sequential.p10, parallel.p10)
+                || !Arrays.equals(sequential.p90, parallel.p90)) {
+            throw new AssertionError("Bands depend on the number of threads");
+        }
+        System.out.println("PASS: bands are identical on 1 and 4 threads");
+    }
+}
@@ -0,0 +1,83 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Single-input least-squares line kept as running sufficient statistics, so new
+// (current, next) pairs are folded in with O(1) work each. Uses Welford-style
+// centered sums for numerical stability and the same small ridge as Weka's
+// LinearRegression.
+public class OnlineLinearRegression implements TemperaturePredictor {
+    private static final double RIDGE = 1.0e-8;
+
+    private long count;
+    private double meanX;
+    private double meanY;
+    private double sxx;
+    private double sxy;
+
+    // Coefficients are recomputed after every update
+    private double slope;
+    private double intercept;
+
+    public void update(double x, double y) {
+        count++;
+        double dx = x - meanX;
+        meanX += dx / count;
+        meanY += (y - meanY) / count;
+        sxx += dx * (x - meanX);
+        sxy += dx * (y - meanY);
+        slope = sxx == 0 ? 0 : sxy / (sxx + RIDGE * sxx);
+        intercept = meanY - slope * meanX;
+    }
+
+    // Folds in every consecutive pair of the column (values[i] -> values[i + 1])
+    public void updateAll(double[] values, int from, int to) {
+        for (int i = from; i + 1 < to; i++) {
+            update(values[i], values[i + 1]);
+        }
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public double slope() {
+        return slope;
+    }
+
+    public double intercept() {
+        return intercept;
+    }
+
+    @Override
+    public double predict(double currentTemp) {
+        return intercept + slope * currentTemp;
+    }
+
+    @Override
+    public void predict(double[] inputs, double[] outputs) {
+        for (int i = 0; i < inputs.length; i++) {
+            outputs[i] = intercept + slope * inputs[i];
+        }
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeLong(count);
+        out.writeDouble(meanX);
+        out.writeDouble(meanY);
+        out.writeDouble(sxx);
+        out.writeDouble(sxy);
+    }
+
+    static OnlineLinearRegression read(ByteBuffer in) {
+        OnlineLinearRegression model = new OnlineLinearRegression();
+        model.count = in.getLong();
+        model.meanX = in.getDouble();
+        model.meanY = in.getDouble();
+        model.sxx = in.getDouble();
+        model.sxy = in.getDouble();
+        model.slope = model.sxx == 0 ? 0 : model.sxy / (model.sxx + RIDGE * model.sxx);
+        model.intercept = model.meanY - model.slope * model.meanX;
+        return model;
+    }
+}
@@ -0,0 +1,175 @@
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.evaluation.Evaluation;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Runs the full fit and every cross-validation fold of each submitted model as
+// independent tasks on a bounded pool. Folds are cut exactly the way
+// Evaluation.crossValidateModel cuts them and merged back in fold order, so the
+// resulting metrics are identical to the single-threaded path for the same seed.
+// With a TrainingCache set, a model whose fit and folds are already stored is not
+// trained again.
+public class ParallelTrainer implements AutoCloseable {
+    private final ExecutorService pool;
+    private final boolean ownsPool;
+    private final int numFolds;
+    private final long seed;
+    private TrainingCache cache;
+
+    public static class TrainingResult {
+        public final Classifier model;
+        // null when the trainer was created with zero folds
+        public final Evaluation evaluation;
+
+        TrainingResult(Classifier model, Evaluation evaluation) {
+            this.model = model;
+            this.evaluation = evaluation;
+        }
+    }
+
+    // Handle for a submitted model; get() blocks until the full fit and all folds are done
+    public class PendingModel {
+        private final Instances dataset;
+        private final Future<Classifier> fullFit;
+        private final List<Instances> trainFolds;
+        private final List<Instances> testFolds;
+        private final List<Future<Classifier>> foldFits;
+        // Cache key of a model being trained, null without a cache
+        private final String key;
+        private TrainingResult result;
+
+        PendingModel(Instances dataset, Future<Classifier> fullFit, List<Instances> trainFolds,
+                     List<Instances> testFolds, List<Future<Classifier>> foldFits, String key) {
+            this.dataset = dataset;
+            this.fullFit = fullFit;
+            this.trainFolds = trainFolds;
+            this.testFolds = testFolds;
+            this.foldFits = foldFits;
+            this.key = key;
+        }
+
+        // A model found in the cache
+        PendingModel(TrainingResult result) {
+            this(null, null, null, null, null, null);
+            this.result = result;
+        }
+
+        public synchronized TrainingResult get() throws Exception {
+            if (result != null) {
+                return result;
+            }
+            Evaluation eval = null;
+            if (numFolds > 0) {
+                eval = new Evaluation(dataset);
+                for (int i = 0; i < numFolds; i++) {
+                    // Same sequence of calls as crossValidateModel, just with prebuilt fold models
+                    eval.setPriors(trainFolds.get(i));
+                    eval.evaluateModel(await(foldFits.get(i)), testFolds.get(i));
+                }
+            }
+            result = new TrainingResult(await(fullFit), eval);
+            if (key != null) {
+                cache.put(key, result.model, eval);
+            }
+            return result;
+        }
+    }
+
+    public ParallelTrainer(int parallelism, int numFolds, long seed) {
+        this(new ForkJoinPool(Math.max(1, parallelism)), true, numFolds, seed);
+    }
+
+    // Runs on a pool owned by the caller, e.g. the one running the caller's own tasks;
+    // close() leaves it running
+    public ParallelTrainer(ForkJoinPool pool, int numFolds, long seed) {
+        this(pool, false, numFolds, seed);
+    }
+
+    private ParallelTrainer(ExecutorService pool, boolean ownsPool, int numFolds, long seed) {
+        this.pool = pool;
+        this.ownsPool = ownsPool;
+        this.numFolds = numFolds;
+        this.seed = seed;
+    }
+
+    public void setCache(TrainingCache cache) {
+        this.cache = cache;
+    }
+
+    // Schedules one full fit plus numFolds fold fits for the given (unbuilt) classifier;
+    // with zero folds only the full fit runs
+    public PendingModel submit(Classifier template, Instances dataset) throws Exception {
+        String key = null;
+        if (cache != null) {
+            key = TrainingCache.key(template, dataset, numFolds, seed);
+            TrainingCache.Entry entry = cache.get(key);
+            if (entry != null) {
+                return new PendingModel(new TrainingResult(entry.model, entry.evaluation));
+            }
+        }
+        Future<Classifier> fullFit = pool.submit(buildTask(template, dataset, "build_classifier"));
+        if (numFolds == 0) {
+            return new PendingModel(dataset, fullFit, null, null, null, key);
+        }
+
+        // Cut the folds up front on the calling thread: trainCV consumes the shared
+        // Random, so the order of these calls must match crossValidateModel
+        // A SeriesDataset shuffles and cuts its folds as row indexes over the shared column
+        Random random = new Random(seed);
+        Instances data = dataset instanceof SeriesDataset ? ((SeriesDataset) dataset).view() : new Instances(dataset);
+        data.randomize(random);
+
+        List<Instances> trainFolds = new ArrayList<>(numFolds);
+        List<Instances> testFolds = new ArrayList<>(numFolds);
+        List<Future<Classifier>> foldFits = new ArrayList<>(numFolds);
+        for (int i = 0; i < numFolds; i++) {
+            Instances train = data.trainCV(numFolds, i, random);
+            trainFolds.add(train);
+            testFolds.add(data.testCV(numFolds, i));
+            foldFits.add(pool.submit(buildTask(template, train, "cv_fold")));
+        }
+
+        return new PendingModel(dataset, fullFit, trainFolds, testFolds, foldFits, key);
+    }
+
+    // Helper method to build a private copy of the template on the given data, timed
+    // under the given operation name
+    private static Callable<Classifier> buildTask(Classifier template, Instances data, String operation)
+            throws Exception {
+        Classifier copy = AbstractClassifier.makeCopy(template);
+        LatencyHistogram latency = Metrics.histogram(operation, template.getClass().getSimpleName());
+        return () -> {
+            long start = System.nanoTime();
+            copy.buildClassifier(data);
+            latency.recordSince(start);
+            return copy;
+        };
+    }
+
+    private static Classifier await(Future<Classifier> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ownsPool) {
+            pool.shutdownNow();
+        }
+    }
+}
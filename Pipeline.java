@@ -0,0 +1,639 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+
+// Ingest, features, training, forecast and charts as one dependency graph that only
+// redoes what its inputs require.
+//
+//   ingest -> features/min -> train/min -> forecast/min -> plot/min
+//          -> features/max -> train/max -> forecast/max -> plot/max
+//
+// A stage's input fingerprint is a SHA-256 over its own settings and the output
+// fingerprints of the stages it depends on; ingest hashes the CSV itself. A stage whose
+// input fingerprint matches the one recorded in pipeline.properties, and whose outputs
+// exist, is skipped. A stage that runs but produces the same output as last time (say
+// features/min after only a max value was corrected) stops the change there. Stages
+// start as soon as their dependencies finish, so the min and max branches run at the
+// same time, and every fit is submitted to one shared pool.
+//
+// When the new data only appends rows to what a target was trained on, with the same
+// training settings, train updates its models with IncrementalUpdater instead of
+// retraining them with cross-validation; any other change, or --full, retrains from
+// scratch (through the TrainingCache). Training rows come from FeatureEngine, lag-1 by
+// default; with -Dpipeline.features=engine the forecast and plot stages serve the models
+// through a FeatureEngine.Scorer primed with the history.
+// Every stage run is appended to pipeline.log with its status and time.
+//
+//   java Pipeline [--full]       run, from data/daily_temp.csv into model/ and plots/
+//   java Pipeline bench [years]  cold build, no change, one new row, full rebuild and one
+//                                corrected value, on a synthetic series in a temp directory
+//
+//   -Dpipeline.data=data/daily_temp.csv   -Dpipeline.modelDir=model   -Dpipeline.plotDir=plots
+//   -Dpipeline.models=Linear Regression,Random Forest,Support Vector Regression
+//   -Dpipeline.folds=10   -Dpipeline.parallelism=<cores, at least 2>   -Dpipeline.days=7
+//   -Dpipeline.paths=10000   -Dpipeline.features=lag1 (or engine, see FeatureEngine.named)
+public class Pipeline {
+    private static final String[] TARGETS = {"min", "max"};
+    private static final String STATE_FILE = "pipeline.properties";
+    private static final String LOG_FILE = "pipeline.log";
+    private static final long CV_SEED = 1;
+    private static final int CHART_DAYS = 30;
+    private static final int CHART_POINTS = 2000;
+
+    private final Path dataFile;
+    private final Path storeFile;
+    private final Path modelDir;
+    private final Path plotDir;
+    private final String[] models;
+    private final int folds;
+    private final int parallelism;
+    private final int forecastDays;
+    private final int paths;
+    private final FeatureEngine features;
+    private final List<Stage> stages = new ArrayList<>();
+
+    enum Status { RAN, SKIPPED, FAILED, BLOCKED }
+
+    public static class StageResult {
+        public final String stage;
+        public final Status status;
+        public final long nanos;
+        public final String detail;
+
+        StageResult(String stage, Status status, long nanos, String detail) {
+            this.stage = stage;
+            this.status = status;
+            this.nanos = nanos;
+            this.detail = detail;
+        }
+    }
+
+    public static class RunResult {
+        public final List<StageResult> stages;
+        public final long nanos;
+
+        RunResult(List<StageResult> stages, long nanos) {
+            this.stages = stages;
+            this.nanos = nanos;
+        }
+
+        public int count(Status status) {
+            int count = 0;
+            for (StageResult result : stages) {
+                if (result.status == status) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public boolean failed() {
+            return count(Status.FAILED) > 0;
+        }
+
+        public void print() {
+            System.out.printf("%-14s %-8s %10s  %s%n", "Stage", "Status", "Time", "Detail");
+            for (StageResult result : stages) {
+                System.out.printf("%-14s %-8s %10s  %s%n", result.stage, result.status.name().toLowerCase(),
+                        result.status == Status.RAN || result.status == Status.FAILED
+                                ? String.format("%.1f ms", result.nanos / 1e6) : "-", result.detail);
+            }
+            System.out.printf("Total: %.1f ms, %d ran, %d skipped%n", nanos / 1e6, count(Status.RAN),
+                    count(Status.SKIPPED));
+        }
+    }
+
+    // What a stage does; returns the fingerprint of what it produced
+    interface Body {
+        String run(Run run, Stage stage) throws Exception;
+    }
+
+    interface Config {
+        String get(Run run) throws Exception;
+    }
+
+    interface Outputs {
+        boolean exist(Run run) throws Exception;
+    }
+
+    static final class Stage {
+        final String name;
+        final Stage[] dependencies;
+        final Config config;
+        final Outputs outputs;
+        final Body body;
+
+        Stage(String name, Stage[] dependencies, Config config, Outputs outputs, Body body) {
+            this.name = name;
+            this.dependencies = dependencies;
+            this.config = config;
+            this.outputs = outputs;
+            this.body = body;
+        }
+    }
+
+    // State shared by the stages of one run
+    final class Run {
+        final boolean full;
+        final Properties state;
+        final ModelRegistry registry;
+        final ForkJoinPool fitPool;
+        final Map<String, String> outputs = new ConcurrentHashMap<>();
+        final Map<String, String> details = new ConcurrentHashMap<>();
+        private TemperatureSeries series;
+
+        Run(boolean full, Properties state, ModelRegistry registry, ForkJoinPool fitPool) {
+            this.full = full;
+            this.state = state;
+            this.registry = registry;
+            this.fitPool = fitPool;
+        }
+
+        // Loaded by ingest, or from the store when ingest was skipped
+        synchronized TemperatureSeries series() throws IOException {
+            if (series == null) {
+                series = TemperatureStore.loadSeries(dataFile.toString(), storeFile.toString());
+            }
+            return series;
+        }
+
+        synchronized void setSeries(TemperatureSeries series) {
+            this.series = series;
+        }
+
+        String stateValue(String key) {
+            synchronized (state) {
+                return state.getProperty(key);
+            }
+        }
+
+        void setState(String key, String value) {
+            synchronized (state) {
+                state.setProperty(key, value);
+            }
+        }
+    }
+
+    public Pipeline(Path dataFile, Path modelDir, Path plotDir, String[] models, int folds, int parallelism,
+                    int forecastDays, int paths, FeatureEngine features) {
+        this.dataFile = dataFile;
+        String name = dataFile.getFileName().toString();
+        this.storeFile = dataFile.resolveSibling((name.endsWith(".csv") ? name.substring(0, name.length() - 4) : name)
+                + ".tss");
+        this.modelDir = modelDir;
+        this.plotDir = plotDir;
+        this.models = models;
+        this.folds = folds;
+        this.parallelism = Math.max(1, parallelism);
+        this.forecastDays = forecastDays;
+        this.paths = paths;
+        this.features = features;
+        buildGraph();
+    }
+
+    public static Pipeline fromProperties() {
+        return new Pipeline(Paths.get(System.getProperty("pipeline.data", "data/daily_temp.csv")),
+                Paths.get(System.getProperty("pipeline.modelDir", ModelRegistry.DEFAULT_DIR)),
+                Paths.get(System.getProperty("pipeline.plotDir", "plots")),
+                System.getProperty("pipeline.models", String.join(",", EnsemblePredictor.MODELS)).split(","),
+                Integer.getInteger("pipeline.folds", 10),
+                Integer.getInteger("pipeline.parallelism",
+                        Math.max(TARGETS.length, Runtime.getRuntime().availableProcessors())),
+                Integer.getInteger("pipeline.days", 7),
+                Integer.getInteger("pipeline.paths", 10_000),
+                FeatureEngine.named(System.getProperty("pipeline.features", "lag1"), 1));
+    }
+
+    private void buildGraph() {
+        Stage ingest = add(new Stage("ingest", new Stage[0],
+                run -> fingerprint(Files.readAllBytes(dataFile)),
+                run -> Files.exists(storeFile),
+                this::ingest));
+        for (String target : TARGETS) {
+            Stage features = add(new Stage("features/" + target, new Stage[]{ingest},
+                    run -> "lagged pairs, horizon 1",
+                    run -> true,
+                    (run, stage) -> features(run, target)));
+            Stage train = add(new Stage("train/" + target, new Stage[]{features},
+                    run -> trainingConfig(run, target),
+                    run -> Files.exists(artifact(target, run.registry.bestModel(target))),
+                    (run, stage) -> train(run, stage, target)));
+            Stage forecast = add(new Stage("forecast/" + target, new Stage[]{features, train},
+                    run -> forecastDays + " days, " + paths + " paths, seed " + MonteCarloForecaster.SEED,
+                    run -> Files.exists(forecastFile(target)),
+                    (run, stage) -> forecast(run, stage, target)));
+            add(new Stage("plot/" + target, new Stage[]{features, train, forecast},
+                    run -> CHART_DAYS + " days, " + CHART_POINTS + " points",
+                    run -> Files.exists(comparisonChart(target)) && Files.exists(bandsChart(target)),
+                    (run, stage) -> plot(run, target)));
+        }
+    }
+
+    private Stage add(Stage stage) {
+        stages.add(stage);
+        return stage;
+    }
+
+    // Runs every stage whose inputs changed (all of them with full), dependencies first
+    public RunResult run(boolean full) throws Exception {
+        long start = System.nanoTime();
+        Files.createDirectories(modelDir);
+        Properties state = loadState();
+        ForkJoinPool fitPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        ExecutorService stagePool = Executors.newFixedThreadPool(parallelism);
+        Run run = new Run(full, state, new ModelRegistry(modelDir.toString(), 8), fitPool);
+        Map<Stage, CompletableFuture<StageResult>> futures = new LinkedHashMap<>();
+        try {
+            // Stages were added in dependency order, so every dependency already has a future
+            for (Stage stage : stages) {
+                CompletableFuture<?>[] dependencies = new CompletableFuture<?>[stage.dependencies.length];
+                for (int i = 0; i < dependencies.length; i++) {
+                    dependencies[i] = futures.get(stage.dependencies[i]);
+                }
+                futures.put(stage, CompletableFuture.allOf(dependencies)
+                        .thenApplyAsync(ignored -> execute(run, stage, futures), stagePool));
+            }
+            List<StageResult> results = new ArrayList<>();
+            for (CompletableFuture<StageResult> future : futures.values()) {
+                results.add(future.join());
+            }
+            saveState(state);
+            RunResult result = new RunResult(results, System.nanoTime() - start);
+            appendLog(result);
+            return result;
+        } finally {
+            stagePool.shutdownNow();
+            fitPool.shutdownNow();
+        }
+    }
+
+    private StageResult execute(Run run, Stage stage, Map<Stage, CompletableFuture<StageResult>> futures) {
+        long start = System.nanoTime();
+        try {
+            StringBuilder inputs = new StringBuilder(stage.name).append('\n').append(stage.config.get(run));
+            for (Stage dependency : stage.dependencies) {
+                Status status = futures.get(dependency).join().status;
+                if (status == Status.FAILED || status == Status.BLOCKED) {
+                    return new StageResult(stage.name, Status.BLOCKED, 0, dependency.name + " did not finish");
+                }
+                inputs.append('\n').append(run.outputs.get(dependency.name));
+            }
+            String input = fingerprint(inputs.toString().getBytes(StandardCharsets.UTF_8));
+            String recordedOutput = run.stateValue(stage.name + ".output");
+            if (!run.full && input.equals(run.stateValue(stage.name + ".input")) && recordedOutput != null
+                    && stage.outputs.exist(run)) {
+                run.outputs.put(stage.name, recordedOutput);
+                return new StageResult(stage.name, Status.SKIPPED, System.nanoTime() - start, "up to date");
+            }
+
+            String output = stage.body.run(run, stage);
+            run.outputs.put(stage.name, output);
+            run.setState(stage.name + ".input", input);
+            run.setState(stage.name + ".output", output);
+            String detail = run.details.getOrDefault(stage.name, "");
+            if (output.equals(recordedOutput)) {
+                detail = (detail.isEmpty() ? "" : detail + ", ") + "output unchanged";
+            }
+            Metrics.histogram("pipeline_stage", stage.name).recordSince(start);
+            return new StageResult(stage.name, Status.RAN, System.nanoTime() - start, detail);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new StageResult(stage.name, Status.FAILED, System.nanoTime() - start, String.valueOf(e));
+        }
+    }
+
+    // Rebuilds the columnar store from the CSV and fingerprints the parsed rows. The stage
+    // only runs when the CSV's bytes changed, so the store is never trusted here: its
+    // mtime can tie with a CSV rewritten within the same clock tick
+    private String ingest(Run run, Stage stage) throws Exception {
+        TemperatureSeries series = TemperatureStore.convert(dataFile.toString(), storeFile.toString());
+        if (series.size() <= folds) {
+            throw new IOException(series.size() + " rows are too few for " + folds + "-fold cross-validation");
+        }
+        run.setSeries(series);
+        run.details.put(stage.name, series.size() + " rows through " + series.date(series.size() - 1));
+        return fingerprint(series.epochDays(), series.minTemps(), series.maxTemps());
+    }
+
+    // The training rows of one target are derived from its column and days alone, so the
+    // stage only has to fingerprint those: an unchanged column stops the branch here
+    private String features(Run run, String target) throws Exception {
+        TemperatureSeries series = run.series();
+        double[] values = values(series, target);
+        int rows = Math.max(0, values.length - features.history() - features.horizon() + 1);
+        run.details.put("features/" + target, rows + " rows of " + features.describe());
+        return fingerprint(series.epochDays(), values);
+    }
+
+    private String trainingConfig(Run run, String target) {
+        StringBuilder config = new StringBuilder(folds + " folds, seed " + CV_SEED + ", direct "
+                + (features.isLagged() ? DirectForecaster.DEFAULT_HORIZONS : 0) + ", features "
+                + features.describe());
+        for (String model : models) {
+            config.append('\n').append(model).append(": ").append(run.registry.tunedOptions(target, model));
+        }
+        return config.toString();
+    }
+
+    // Incremental update when rows were only appended since the last training, full otherwise
+    private String train(Run run, Stage stage, String target) throws Exception {
+        TemperatureSeries series = run.series();
+        int[] days = series.epochDays();
+        double[] values = values(series, target);
+        String rowsKey = stage.name + ".rows";
+        String prefixKey = stage.name + ".prefix";
+        String configKey = stage.name + ".config";
+        String config = trainingConfig(run, target);
+        int trainedRows = Integer.parseInt(Objects.toString(run.stateValue(rowsKey), "0"));
+        // Models are only updated in place under the settings they were trained with
+        boolean appended = !run.full && trainedRows > 0 && values.length > trainedRows
+                && config.equals(run.stateValue(configKey))
+                && fingerprint(Arrays.copyOf(days, trainedRows), Arrays.copyOf(values, trainedRows))
+                        .equals(run.stateValue(prefixKey))
+                && Files.exists(artifact(target, run.registry.bestModel(target)));
+
+        ModelRegistry registry = run.registry;
+        if (appended) {
+            IncrementalUpdater.updateTarget(registry, target, models, days, values, trainedRows);
+            int added = values.length - trainedRows;
+            run.details.put(stage.name, "incremental, " + added + (added == 1 ? " new row" : " new rows"));
+        } else {
+            String best = trainFull(run, target, days, values);
+            run.details.put(stage.name, "full, best " + best);
+        }
+        registry.setLastObservedDay(days[days.length - 1]);
+        registry.save();
+        run.setState(rowsKey, Integer.toString(values.length));
+        run.setState(prefixKey, fingerprint(days, values));
+        run.setState(configKey, config);
+
+        String best = registry.bestModel(target);
+        Path residuals = modelDir.resolve(target).resolve(ModelRegistry.slug(best) + ".residuals");
+        return fingerprint(best.getBytes(StandardCharsets.UTF_8), Files.readAllBytes(artifact(target, best)),
+                Files.exists(residuals) ? Files.readAllBytes(residuals) : new byte[0]);
+    }
+
+    // TimeSeriesForecaster's training of one target, with every fit on the shared pool
+    private String trainFull(Run run, String target, int[] days, double[] values) throws Exception {
+        TrainingCache cache = new TrainingCache(modelDir.resolve("cache"), Long.getLong("cache.maxMB", 512) << 20);
+        TimeSeriesForecaster.TargetTraining training;
+        String best;
+        try (ParallelTrainer trainer = new ParallelTrainer(run.fitPool, folds, CV_SEED)) {
+            trainer.setCache(cache);
+            training = new TimeSeriesForecaster.TargetTraining(trainer, run.registry, target, models, features,
+                    days, values);
+            best = training.select(TimeSeriesForecaster::crossValidated);
+        }
+        try (ParallelTrainer trainer = new ParallelTrainer(run.fitPool, 0, CV_SEED)) {
+            trainer.setCache(cache);
+            training.trainDirect(trainer, DirectForecaster.DEFAULT_HORIZONS);
+        }
+        return best;
+    }
+
+    // <model dir>/<target>/forecast.csv: the recursive forecast and its simulated P10/P50/P90
+    private String forecast(Run run, Stage stage, String target) throws Exception {
+        TemperatureSeries series = run.series();
+        int[] days = series.epochDays();
+        double[] values = values(series, target);
+        MonteCarloForecaster simulator = MonteCarloForecaster.fromRegistry(run.registry, target, days, values);
+        FeatureEngine.Scorer today = simulator.scorer(days, values, values.length);
+        MonteCarloForecaster.Bands bands = simulator.simulate(today, forecastDays, paths);
+        double[] forecast = today.forecast(forecastDays);
+
+        StringBuilder csv = new StringBuilder("date,forecast,p10,p50,p90\n");
+        LocalDate last = series.date(series.size() - 1);
+        for (int d = 0; d < forecastDays; d++) {
+            csv.append(last.plusDays(d + 1)).append(',').append(forecast[d]).append(',').append(bands.p10[d]).append(',')
+                    .append(bands.p50[d]).append(',').append(bands.p90[d]).append('\n');
+        }
+        byte[] bytes = csv.toString().getBytes(StandardCharsets.UTF_8);
+        writeAtomically(forecastFile(target), bytes);
+        run.details.put(stage.name, forecastDays + " days from " + last + ", " + simulator.residualSource()
+                + " residuals");
+        return fingerprint(bytes);
+    }
+
+    private String plot(Run run, String target) throws Exception {
+        Files.createDirectories(plotDir);
+        TemperatureSeries series = run.series();
+        TemperaturePlotter.save(TemperaturePlotter.chart(series, CHART_DAYS, target, run.registry.scorer(target),
+                comparisonChart(target).toFile()), CHART_POINTS);
+        TemperaturePlotter.saveBands(bandsChart(target).toFile(), series, target, readBands(forecastFile(target)),
+                CHART_DAYS);
+        return fingerprint(Files.readAllBytes(comparisonChart(target)), Files.readAllBytes(bandsChart(target)));
+    }
+
+    private MonteCarloForecaster.Bands readBands(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        int days = lines.size() - 1;
+        double[] p10 = new double[days];
+        double[] p50 = new double[days];
+        double[] p90 = new double[days];
+        for (int d = 0; d < days; d++) {
+            String[] fields = lines.get(d + 1).split(",");
+            p10[d] = Double.parseDouble(fields[2]);
+            p50[d] = Double.parseDouble(fields[3]);
+            p90[d] = Double.parseDouble(fields[4]);
+        }
+        return new MonteCarloForecaster.Bands(p10, p50, p90, paths);
+    }
+
+    private Path artifact(String target, String modelName) {
+        return modelDir.resolve(target).resolve(ModelRegistry.slug(modelName) + ModelArtifact.EXTENSION);
+    }
+
+    private Path forecastFile(String target) {
+        return modelDir.resolve(target).resolve("forecast.csv");
+    }
+
+    private Path comparisonChart(String target) {
+        return plotDir.resolve(target + "_temp_comparison.png");
+    }
+
+    private Path bandsChart(String target) {
+        return plotDir.resolve(target + "_forecast_bands.png");
+    }
+
+    private static double[] values(TemperatureSeries series, String target) {
+        return target.equals("min") ? series.minTemps() : series.maxTemps();
+    }
+
+    private Properties loadState() throws IOException {
+        Properties state = new Properties();
+        Path path = modelDir.resolve(STATE_FILE);
+        if (Files.exists(path)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                state.load(in);
+            }
+        }
+        return state;
+    }
+
+    private void saveState(Properties state) throws IOException {
+        Path temp = modelDir.resolve(STATE_FILE + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp)) {
+            state.store(out, "Input and output fingerprints of each pipeline stage");
+        }
+        Files.move(temp, modelDir.resolve(STATE_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // One line per stage: time, stage, status, milliseconds, detail
+    private void appendLog(RunResult result) throws IOException {
+        String time = Instant.now().toString();
+        try (BufferedWriter out = Files.newBufferedWriter(modelDir.resolve(LOG_FILE), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (StageResult stage : result.stages) {
+                out.write(String.format("%s\t%s\t%s\t%.1f\t%s%n", time, stage.stage,
+                        stage.status.name().toLowerCase(), stage.nanos / 1e6, stage.detail));
+            }
+            out.write(String.format("%s\ttotal\t%s\t%.1f\t%d ran, %d skipped%n", time,
+                    result.failed() ? "failed" : "ok", result.nanos / 1e6, result.count(Status.RAN),
+                    result.count(Status.SKIPPED)));
+        }
+    }
+
+    private static void writeAtomically(Path path, byte[] bytes) throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.write(temp, bytes);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static String fingerprint(byte[]... parts) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        for (byte[] part : parts) {
+            digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(part.length).array());
+            digest.update(part);
+        }
+        return hex(digest.digest());
+    }
+
+    static String fingerprint(int[] days, double[]... columns) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        ByteBuffer buffer = ByteBuffer.allocate(days.length * Integer.BYTES);
+        buffer.asIntBuffer().put(days);
+        digest.update(buffer.array());
+        for (double[] column : columns) {
+            buffer = ByteBuffer.allocate(column.length * Double.BYTES);
+            buffer.asDoubleBuffer().put(column);
+            digest.update(buffer.array());
+        }
+        return hex(digest.digest());
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length > 0 && args[0].equals("bench")) {
+                benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 5);
+                return;
+            }
+            boolean full = args.length > 0 && args[0].equals("--full");
+            RunResult result = fromProperties().run(full);
+            result.print();
+            if (result.failed()) {
+                System.exit(1);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // Runs the scenarios of a day-to-day workflow against a synthetic station in a temp directory
+    private static void benchmark(int years) throws Exception {
+        Path dir = Files.createTempDirectory("pipeline-bench");
+        StationForecaster.generate(dir, 1, years);
+        Path csv = dir.resolve("ST00000.csv");
+        Pipeline defaults = fromProperties();
+        Pipeline pipeline = new Pipeline(csv, dir.resolve("model"), dir.resolve("plots"), defaults.models,
+                defaults.folds, defaults.parallelism, defaults.forecastDays, defaults.paths, defaults.features);
+
+        List<String[]> rows = new ArrayList<>();
+        rows.add(scenario(pipeline, "Cold build", false));
+        rows.add(scenario(pipeline, "No change", false));
+        appendRow(csv);
+        rows.add(scenario(pipeline, "One new row", false));
+        appendRow(csv);
+        rows.add(scenario(pipeline, "One new row, --full", true));
+        correctMaxValue(csv);
+        rows.add(scenario(pipeline, "One max value corrected", false));
+
+        System.out.printf("%n%d years, %s, %d folds, %d stage threads:%n", years,
+                String.join(", ", pipeline.models), pipeline.folds, pipeline.parallelism);
+        System.out.printf("%-26s %10s  %s%n", "Scenario", "Time", "Stages run");
+        for (String[] row : rows) {
+            System.out.printf("%-26s %10s  %s%n", row[0], row[1], row[2]);
+        }
+        StationForecaster.deleteRecursively(dir);
+    }
+
+    private static String[] scenario(Pipeline pipeline, String name, boolean full) throws Exception {
+        System.out.println("\n=== " + name + " ===");
+        RunResult result = pipeline.run(full);
+        result.print();
+        if (result.failed()) {
+            throw new IllegalStateException(name + " failed");
+        }
+        List<String> ran = new ArrayList<>();
+        for (StageResult stage : result.stages) {
+            if (stage.status == Status.RAN) {
+                ran.add(stage.stage.startsWith("train/") ? stage.stage + " (" + stage.detail.split(",")[0] + ")"
+                        : stage.stage);
+            }
+        }
+        return new String[]{name, String.format("%.0f ms", result.nanos / 1e6),
+                ran.isEmpty() ? "none" : String.join(", ", ran)};
+    }
+
+    // The next day after the last row, close to the last observation
+    private static void appendRow(Path csv) throws IOException {
+        TemperatureSeries series = TemperatureCsvReader.read(csv.toString());
+        int last = series.size() - 1;
+        String line = LocalDate.ofEpochDay(series.epochDay(last) + 1) + "," + (series.minTemp(last) + 0.5) + ","
+                + (series.maxTemp(last) + 0.5) + "\n";
+        Files.write(csv, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    }
+
+    // Changes the max temperature of a row in the middle of the history; min is untouched
+    private static void correctMaxValue(Path csv) throws IOException {
+        List<String> lines = new ArrayList<>(Files.readAllLines(csv, StandardCharsets.UTF_8));
+        int row = lines.size() / 2;
+        String[] fields = lines.get(row).split(",");
+        fields[2] = Double.toString(Double.parseDouble(fields[2]) + 1.0);
+        lines.set(row, String.join(",", fields));
+        Files.write(csv, lines, StandardCharsets.UTF_8);
+    }
+}
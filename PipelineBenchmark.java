@@ -0,0 +1,489 @@
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.evaluation.Evaluation;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Benchmarks for every stage of the pipeline, with results written as JSON so they
+// can be compared across commits:
+//   ingest.csv          TemperatureCsvReader on the real file and synthetic 10x..1000x copies
+//   ingest.instances    building the min/max Weka datasets, as TimeSeriesForecaster does
+//   train.<model>       buildClassifier for each model type
+//   cv.<model>          10-fold Evaluation.crossValidateModel
+//   predict.weka.*      classifyInstance on each saved .model file
+//   predict.registry.*  the same models served by ModelRegistry
+//   forecast.7day.*     the recursive 7-day loop of the TemperatureDisplay forecast
+//   forecast.<n>day.direct  DirectForecaster for 1, 7 and all trained days, when trained
+//
+// The JMH benchmarks in jmh/ time the same operations; compare also reads their -rf json
+// result files.
+//
+// Each benchmark runs warm-up iterations, then measured iterations of at least
+// bench.iterationMillis each, and reports the mean time per operation.
+public class PipelineBenchmark {
+    private static final String DATA_FILE = "data/daily_temp.csv";
+    private static final String[] TARGETS = {"min", "max"};
+    private static final String[] MODELS = {"Linear Regression", "Random Forest", "Support Vector Regression"};
+    private static final String SLOW_MODEL = "Support Vector Regression";
+
+    private final int warmups = Integer.getInteger("bench.warmup", 1);
+    private final int iterations = Integer.getInteger("bench.iterations", 3);
+    private final long iterationNanos = Long.getLong("bench.iterationMillis", 1000) * 1_000_000L;
+    private final Pattern filter = Pattern.compile(System.getProperty("bench.filter", ""));
+    // SMOreg takes minutes to train above 1x and to cross-validate, so those runs are opt-in
+    private final boolean slow = Boolean.getBoolean("bench.slow");
+    private final List<Result> results = new ArrayList<>();
+
+    // Keeps results reachable so the JIT cannot drop the measured work
+    private volatile Object sink;
+
+    interface Operation {
+        Object run(int invocation) throws Exception;
+    }
+
+    static class Result {
+        final String benchmark;
+        final int scale;
+        final int rows;
+        final long invocations;
+        final double[] samples;
+
+        Result(String benchmark, int scale, int rows, long invocations, double[] samples) {
+            this.benchmark = benchmark;
+            this.scale = scale;
+            this.rows = rows;
+            this.invocations = invocations;
+            this.samples = samples;
+        }
+
+        // Mean milliseconds per operation over the measured iterations
+        double score() {
+            double sum = 0;
+            for (double sample : samples) {
+                sum += sample;
+            }
+            return sum / samples.length;
+        }
+
+        double stdev() {
+            double mean = score();
+            double sum = 0;
+            for (double sample : samples) {
+                sum += (sample - mean) * (sample - mean);
+            }
+            return samples.length > 1 ? Math.sqrt(sum / (samples.length - 1)) : 0;
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\"benchmark\":\"").append(benchmark).append("\",\"scale\":").append(scale)
+                    .append(",\"rows\":").append(rows).append(",\"unit\":\"ms/op\"")
+                    .append(",\"score\":").append(score()).append(",\"stdev\":").append(stdev())
+                    .append(",\"invocations\":").append(invocations).append(",\"samples\":[");
+            for (int i = 0; i < samples.length; i++) {
+                json.append(i > 0 ? "," : "").append(samples[i]);
+            }
+            return json.append("]}").toString();
+        }
+    }
+
+    private boolean selected(String benchmark) {
+        return filter.matcher(benchmark).find();
+    }
+
+    private void measure(String benchmark, int scale, int rows, Operation operation) throws Exception {
+        if (!selected(benchmark)) {
+            return;
+        }
+        int invocation = 0;
+        for (int i = 0; i < warmups; i++) {
+            invocation = iterate(operation, invocation, null);
+        }
+        double[] samples = new double[iterations];
+        long invocations = 0;
+        for (int i = 0; i < iterations; i++) {
+            long[] count = new long[1];
+            long start = System.nanoTime();
+            invocation = iterate(operation, invocation, count);
+            samples[i] = (System.nanoTime() - start) / 1e6 / count[0];
+            invocations += count[0];
+        }
+        Result result = new Result(benchmark, scale, rows, invocations, samples);
+        results.add(result);
+        System.out.printf("%-48s %5dx  %14.6f ms/op  +/- %.6f  (%d ops)%n",
+                benchmark, scale, result.score(), result.stdev(), invocations);
+    }
+
+    // Helper method to run one iteration: at least one call, until the iteration time is used up
+    private int iterate(Operation operation, int invocation, long[] count) throws Exception {
+        long end = System.nanoTime() + iterationNanos;
+        do {
+            sink = operation.run(invocation++);
+            if (count != null) {
+                count[0]++;
+            }
+        } while (System.nanoTime() < end);
+        return invocation;
+    }
+
+    public void run(int[] scales, int[] trainScales) throws Exception {
+        TemperatureSeries base = TemperatureCsvReader.read(DATA_FILE);
+        Map<Integer, Path> files = new LinkedHashMap<>();
+        for (int scale : scales) {
+            files.put(scale, scale == 1 ? Paths.get(DATA_FILE) : syntheticCsv(base, scale));
+        }
+
+        for (int scale : scales) {
+            Path file = files.get(scale);
+            measure("ingest.csv", scale, base.size() * scale, i -> TemperatureCsvReader.read(file));
+        }
+
+        for (int scale : trainScales) {
+            Path file = files.containsKey(scale) ? files.get(scale) : syntheticCsv(base, scale);
+            TemperatureSeries series = TemperatureCsvReader.read(file);
+            measure("ingest.instances", scale, series.size(), i -> {
+                Instances min = SeriesDataset.lagged("min", series.minTemps());
+                Instances max = SeriesDataset.lagged("max", series.maxTemps());
+                return min.size() + max.size();
+            });
+
+            Instances data = minDataset(series);
+            for (String modelName : MODELS) {
+                if (modelName.equals(SLOW_MODEL) && scale > 1 && !slow) {
+                    continue;
+                }
+                Classifier template = ModelRegistry.defaultLearner(modelName);
+                measure("train." + ModelRegistry.slug(modelName), scale, data.size(), i -> {
+                    Classifier model = AbstractClassifier.makeCopy(template);
+                    model.buildClassifier(data);
+                    return model;
+                });
+            }
+        }
+
+        Instances data = minDataset(base);
+        for (String modelName : MODELS) {
+            if (modelName.equals(SLOW_MODEL) && !slow) {
+                continue;
+            }
+            Classifier template = ModelRegistry.defaultLearner(modelName);
+            measure("cv." + ModelRegistry.slug(modelName), 1, data.size(), i -> {
+                Evaluation eval = new Evaluation(data);
+                eval.crossValidateModel(AbstractClassifier.makeCopy(template), data, 10, new Random(1));
+                return eval.rootMeanSquaredError();
+            });
+        }
+
+        benchmarkInference(base);
+    }
+
+    private void benchmarkInference(TemperatureSeries base) throws Exception {
+        ModelRegistry registry = ModelRegistry.open();
+        // Cycle through real inputs so every call takes a realistic path through the model
+        double[] inputs = base.minTemps();
+
+        Map<String, Classifier> wekaModels = new LinkedHashMap<>();
+        for (String target : TARGETS) {
+            Instances header = BatchScorer.createHeader(target);
+            for (String modelName : MODELS) {
+                String slug = ModelRegistry.slug(modelName);
+                File modelFile = new File(ModelRegistry.DEFAULT_DIR + File.separator + target
+                        + File.separator + slug + ".model");
+                if (!modelFile.exists()) {
+                    System.err.println("Skipping predict.weka." + target + "." + slug + ": no " + modelFile);
+                    continue;
+                }
+                Classifier model = (Classifier) SerializationHelper.read(modelFile.getPath());
+                wekaModels.put(target + "/" + modelName, model);
+                measure("predict.weka." + target + "." + slug, 1, 1, i -> {
+                    Instance instance = new DenseInstance(1.0, new double[]{inputs[i % inputs.length], Double.NaN});
+                    instance.setDataset(header);
+                    return model.classifyInstance(instance);
+                });
+
+                TemperaturePredictor predictor = registry.predictor(target, modelName);
+                measure("predict.registry." + target + "." + slug, 1, 1,
+                        i -> predictor.predict(inputs[i % inputs.length]));
+            }
+        }
+
+        // The display's loop: 7 chained min and max predictions from the latest observation
+        Classifier minModel = wekaModels.get("min/" + registry.bestModel("min"));
+        Classifier maxModel = wekaModels.get("max/" + registry.bestModel("max"));
+        if (minModel != null && maxModel != null) {
+            Instances minHeader = BatchScorer.createHeader("min");
+            Instances maxHeader = BatchScorer.createHeader("max");
+            measure("forecast.7day.weka", 1, 7, i -> {
+                double minTemp = inputs[i % inputs.length];
+                double maxTemp = minTemp + 8;
+                for (int day = 0; day < 7; day++) {
+                    Instance minInstance = new DenseInstance(1.0, new double[]{minTemp, Double.NaN});
+                    minInstance.setDataset(minHeader);
+                    Instance maxInstance = new DenseInstance(1.0, new double[]{maxTemp, Double.NaN});
+                    maxInstance.setDataset(maxHeader);
+                    minTemp = minModel.classifyInstance(minInstance);
+                    maxTemp = maxModel.classifyInstance(maxInstance);
+                }
+                return minTemp + maxTemp;
+            });
+        }
+        TemperaturePredictor minScorer = registry.predictor("min");
+        TemperaturePredictor maxScorer = registry.predictor("max");
+        measure("forecast.7day.registry", 1, 7, i -> {
+            double minTemp = inputs[i % inputs.length];
+            double maxTemp = minTemp + 8;
+            for (int day = 0; day < 7; day++) {
+                minTemp = minScorer.predict(minTemp);
+                maxTemp = maxScorer.predict(maxTemp);
+            }
+            return minTemp + maxTemp;
+        });
+
+        // Direct multi-horizon forecasts from observed values, when they have been trained
+        DirectForecaster minDirect = registry.direct("min");
+        DirectForecaster maxDirect = registry.direct("max");
+        if (minDirect != null && maxDirect != null) {
+            double[] maxInputs = base.maxTemps();
+            for (int days : new int[]{1, 7, minDirect.horizons()}) {
+                double[] minPath = new double[days];
+                double[] maxPath = new double[days];
+                measure("forecast." + days + "day.direct", 1, days, i -> {
+                    minDirect.forecast(inputs[i % inputs.length], minPath);
+                    maxDirect.forecast(maxInputs[i % maxInputs.length], maxPath);
+                    return minPath[days - 1] + maxPath[days - 1];
+                });
+            }
+        }
+    }
+
+    // Helper method to build the lag-1 min temperature training set
+    private static Instances minDataset(TemperatureSeries series) {
+        return SeriesDataset.lagged("min", series.minTemps());
+    }
+
+    // Writes (once) a CSV with scale times the rows of the real data: the real seasonal
+    // pattern repeated over consecutive days, with seeded noise so no two years are equal
+    static Path syntheticCsv(TemperatureSeries base, int scale) throws Exception {
+        Path dir = Paths.get(System.getProperty("bench.dataDir",
+                System.getProperty("java.io.tmpdir") + File.separator + "temperature-bench"));
+        Files.createDirectories(dir);
+        Path file = dir.resolve("daily_temp_x" + scale + ".csv");
+        if (Files.exists(file)) {
+            return file;
+        }
+        System.out.println("Generating " + file + " (" + base.size() * scale + " rows)");
+        Random random = new Random(scale);
+        Path temp = dir.resolve(file.getFileName() + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            out.write("date,minT,maxT\n");
+            int rows = base.size() * scale;
+            for (int i = 0; i < rows; i++) {
+                int source = i % base.size();
+                double min = Math.round((base.minTemp(source) + random.nextGaussian()) * 10) / 10.0;
+                double max = Math.round((base.maxTemp(source) + random.nextGaussian()) * 10) / 10.0;
+                out.write(LocalDate.ofEpochDay(base.epochDay(0) + i) + "," + min + "," + Math.max(min, max) + "\n");
+            }
+        }
+        Files.move(temp, file);
+        return file;
+    }
+
+    public void writeJson(Path path) throws Exception {
+        Path parent = path.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path, StandardCharsets.UTF_8))) {
+            out.println("{");
+            out.println("  \"commit\": \"" + gitCommit() + "\",");
+            out.println("  \"timestamp\": \"" + Instant.now() + "\",");
+            out.println("  \"jvm\": \"" + System.getProperty("java.vm.name") + " " + System.getProperty("java.version") + "\",");
+            out.println("  \"cores\": " + Runtime.getRuntime().availableProcessors() + ",");
+            out.println("  \"results\": [");
+            for (int i = 0; i < results.size(); i++) {
+                out.println("    " + results.get(i).toJson() + (i + 1 < results.size() ? "," : ""));
+            }
+            out.println("  ]");
+            out.println("}");
+        }
+    }
+
+    // Commit of the working tree, read straight from .git so no git binary is needed
+    static String gitCommit() {
+        String override = System.getProperty("bench.commit");
+        if (override != null) {
+            return override;
+        }
+        try {
+            String head = new String(Files.readAllBytes(Paths.get(".git", "HEAD")), StandardCharsets.UTF_8).trim();
+            if (!head.startsWith("ref: ")) {
+                return head;
+            }
+            String ref = head.substring(5);
+            Path refFile = Paths.get(".git", ref);
+            if (Files.exists(refFile)) {
+                return new String(Files.readAllBytes(refFile), StandardCharsets.UTF_8).trim();
+            }
+            for (String line : Files.readAllLines(Paths.get(".git", "packed-refs"))) {
+                if (line.endsWith(" " + ref)) {
+                    return line.substring(0, line.indexOf(' '));
+                }
+            }
+        } catch (Exception e) {
+            // Not a git checkout
+        }
+        return "unknown";
+    }
+
+    // benchmark + scale -> score, from a file written by writeJson, or benchmark + params
+    // -> score from the JSON of the JMH benchmarks in jmh/ (-rf json)
+    static Map<String, Double> readScores(Path path) throws Exception {
+        String json = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        if (json.trim().startsWith("[")) {
+            return readJmhScores(json);
+        }
+        Pattern line = Pattern.compile("\"benchmark\":\"([^\"]+)\",\"scale\":(\\d+).*\"score\":([-0-9.eE+]+|NaN)");
+        Map<String, Double> scores = new LinkedHashMap<>();
+        for (String text : json.split("\n")) {
+            Matcher matcher = line.matcher(text);
+            if (matcher.find()) {
+                scores.put(matcher.group(1) + " " + matcher.group(2) + "x", Double.parseDouble(matcher.group(3)));
+            }
+        }
+        return scores;
+    }
+
+    // One entry per JMH result, with the score converted to ms/op so files written with
+    // different -tu or -bm options still compare, and lower stays better
+    private static Map<String, Double> readJmhScores(String json) {
+        Pattern benchmark = Pattern.compile("\"benchmark\"\\s*:\\s*\"([^\"]+)\"");
+        Pattern params = Pattern.compile("\"params\"\\s*:\\s*\\{([^}]*)}");
+        Pattern param = Pattern.compile("\"([^\"]+)\"\\s*:\\s*\"([^\"]*)\"");
+        Pattern metric = Pattern.compile("\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*\"?([-0-9.eE+]+|NaN)\"?"
+                + "[\\s\\S]*?\"scoreUnit\"\\s*:\\s*\"([^\"]+)\"");
+        Map<String, Double> scores = new LinkedHashMap<>();
+        // Every result object starts with its "jmhVersion" field
+        for (String result : json.split("\"jmhVersion\"")) {
+            Matcher name = benchmark.matcher(result);
+            Matcher score = metric.matcher(result);
+            if (!name.find() || !score.find()) {
+                continue;
+            }
+            StringBuilder key = new StringBuilder(name.group(1).replaceFirst("^bench\\.", ""));
+            Matcher block = params.matcher(result);
+            if (block.find()) {
+                Matcher pair = param.matcher(block.group(1));
+                while (pair.find()) {
+                    key.append(' ').append(pair.group(1)).append('=').append(pair.group(2));
+                }
+            }
+            scores.put(key.toString(), millisPerOp(Double.parseDouble(score.group(1)), score.group(2)));
+        }
+        return scores;
+    }
+
+    private static double millisPerOp(double score, String unit) {
+        String[] parts = unit.split("/");
+        boolean throughput = parts[0].equals("ops");
+        double millis = unitMillis(throughput ? parts[1] : parts[0]);
+        return throughput ? millis / score : score * millis;
+    }
+
+    private static double unitMillis(String unit) {
+        switch (unit) {
+            case "ns": return 1e-6;
+            case "us": return 1e-3;
+            case "ms": return 1;
+            case "s": return 1000;
+            case "min": return 60_000;
+            default: throw new IllegalArgumentException("Unknown JMH time unit " + unit);
+        }
+    }
+
+    // Prints the change of every benchmark present in both files; returns the number of
+    // benchmarks that got slower by more than the threshold
+    static int compare(Path baseline, Path current, double threshold) throws Exception {
+        Map<String, Double> before = readScores(baseline);
+        Map<String, Double> after = readScores(current);
+        int regressions = 0;
+        // JMH keys carry their parameters, so size the name column to the longest one
+        int width = 52;
+        for (String name : after.keySet()) {
+            width = Math.max(width, name.length());
+        }
+        String row = "%-" + width + "s %14.6f %14.6f %+7.1f%%%s%n";
+        System.out.printf("%-" + width + "s %14s %14s %8s%n", "Benchmark", "Baseline", "Current", "Change");
+        for (Map.Entry<String, Double> entry : after.entrySet()) {
+            Double old = before.get(entry.getKey());
+            if (old == null) {
+                continue;
+            }
+            double change = entry.getValue() / old - 1;
+            boolean regression = change > threshold;
+            if (regression) {
+                regressions++;
+            }
+            System.out.printf(row, entry.getKey(), old, entry.getValue(),
+                    change * 100, regression ? "  REGRESSION" : "");
+        }
+        return regressions;
+    }
+
+    private static int[] parseScales(String value) {
+        String[] parts = value.split(",");
+        int[] scales = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            scales[i] = Integer.parseInt(parts[i].trim());
+        }
+        return scales;
+    }
+
+    // java PipelineBenchmark                          run and write bench-results/<commit>.json
+    // java PipelineBenchmark compare <base> <current> compare two result files
+    //   -Dbench.scales=1,10,100,1000   data sizes for ingestion
+    //   -Dbench.trainScales=1,10       data sizes for dataset building and training
+    //   -Dbench.filter=<regex>         only benchmarks whose name matches
+    //   -Dbench.slow=true              include SMOreg above 1x and its cross-validation
+    //   -Dbench.output=<file>          result file
+    public static void main(String[] args) {
+        try {
+            if (args.length > 0 && args[0].equals("compare")) {
+                double threshold = Double.parseDouble(System.getProperty("bench.threshold", "0.10"));
+                int regressions = compare(Paths.get(args[1]), Paths.get(args[2]), threshold);
+                System.out.println(regressions == 0 ? "No regressions"
+                        : regressions + " benchmark(s) slower by more than " + Math.round(threshold * 100) + "%");
+                System.exit(regressions == 0 ? 0 : 2);
+            }
+
+            PipelineBenchmark benchmark = new PipelineBenchmark();
+            benchmark.run(parseScales(System.getProperty("bench.scales", "1,10,100,1000")),
+                    parseScales(System.getProperty("bench.trainScales", "1,10")));
+
+            String commit = gitCommit();
+            Path output = Paths.get(System.getProperty("bench.output",
+                    "bench-results" + File.separator + commit.substring(0, Math.min(12, commit.length())) + ".json"));
+            benchmark.writeJson(output);
+            System.out.println("\nResults written to " + output);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,525 @@
+import weka.classifiers.Classifier;
+import weka.classifiers.evaluation.Evaluation;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.WekaEnumeration;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+
+// Weka dataset read straight from primitive values instead of one DenseInstance per row:
+// either lagged pairs (values[i], values[i + horizon]) of one series, or the rows of a
+// row-major feature matrix (see FeatureEngine.dataset). The values are wrapped, not
+// copied, so a lagged dataset costs 8 bytes per row on top of the series itself; with
+// -Ddataset.offHeap=true they are copied once into direct memory instead.
+//
+// Rows are handed out as short-lived DenseInstance copies, so buildClassifier and
+// Evaluation work unchanged, and changing a row does not change the dataset. Reordering
+// (randomize, sort, deletions) permutes an int row index, and trainCV/testCV return
+// views over the same column, which keeps cross-validation folds at 4 bytes per row.
+// Rows cannot be added and attributes cannot be inserted or removed; new Instances(data)
+// gives an ordinary, fully mutable copy.
+public class SeriesDataset extends Instances {
+    private static final long serialVersionUID = 1L;
+
+    private static final boolean OFF_HEAP = Boolean.getBoolean("dataset.offHeap");
+
+    private final DoubleBuffer values;
+    // Attribute a of row id is values[id * stride + offsets[a]]
+    private final int stride;
+    private final int[] offsets;
+    // Row ids in dataset order; null while the order is the identity 0..size-1
+    private int[] rows;
+    private int size;
+
+    // A row that remembers where it came from, so set(i, get(j)) can move rows by id
+    private static final class Row extends DenseInstance {
+        private static final long serialVersionUID = 1L;
+
+        final DoubleBuffer source;
+        final int id;
+
+        Row(SeriesDataset dataset, int id) {
+            super(1.0, dataset.row(id));
+            this.source = dataset.values;
+            this.id = id;
+            m_Dataset = dataset;
+        }
+    }
+
+    private SeriesDataset(Instances header, DoubleBuffer values, int stride, int[] offsets, int[] rows, int size) {
+        super(header, 0);
+        this.values = values;
+        this.stride = stride;
+        this.offsets = offsets;
+        this.rows = rows;
+        this.size = size;
+    }
+
+    // Pairs (values[i], values[i + horizon]) for i in [from, to - horizon), named like
+    // BatchScorer.createHeader(target)
+    public static SeriesDataset lagged(String target, double[] values, int from, int to, int horizon) {
+        if (horizon < 1 || from < 0 || to > values.length || from > to) {
+            throw new IllegalArgumentException("Invalid range [" + from + ", " + to + ") of " + values.length
+                    + " values with horizon " + horizon);
+        }
+        DoubleBuffer column = DoubleBuffer.wrap(values, from, to - from).slice();
+        if (OFF_HEAP) {
+            column = offHeap(column);
+        }
+        return new SeriesDataset(BatchScorer.createHeader(target), column, 1, new int[]{0, horizon}, null,
+                Math.max(0, to - from - horizon));
+    }
+
+    // The first rows rows of a row-major matrix with header.numAttributes() values per
+    // row, in header order with the class last
+    public static SeriesDataset matrix(Instances header, double[] matrix, int rows) {
+        int width = header.numAttributes();
+        if (header.classIndex() != width - 1 || rows < 0 || (long) rows * width > matrix.length) {
+            throw new IllegalArgumentException(rows + " rows of " + width + " attributes with the class last do not fit "
+                    + matrix.length + " values");
+        }
+        DoubleBuffer block = DoubleBuffer.wrap(matrix, 0, rows * width).slice();
+        if (OFF_HEAP) {
+            block = offHeap(block);
+        }
+        int[] offsets = new int[width];
+        for (int a = 0; a < width; a++) {
+            offsets[a] = a;
+        }
+        return new SeriesDataset(header, block, width, offsets, null, rows);
+    }
+
+    // Lag-1 pairs over the whole series
+    public static SeriesDataset lagged(String target, double[] values) {
+        return lagged(target, values, 0, values.length, 1);
+    }
+
+    private static DoubleBuffer offHeap(DoubleBuffer column) {
+        DoubleBuffer copy = ByteBuffer.allocateDirect(column.remaining() * Double.BYTES)
+                .order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        copy.put(column.duplicate());
+        copy.flip();
+        return copy;
+    }
+
+    // Another dataset over the same column with its own row order, for shuffling
+    public SeriesDataset view() {
+        return new SeriesDataset(this, values, stride, offsets, rows == null ? null : rows.clone(), size);
+    }
+
+    public boolean isOffHeap() {
+        return values.isDirect();
+    }
+
+    // Attribute value of a row without creating an Instance
+    public double value(int index, int attribute) {
+        return values.get(id(index) * stride + offsets[attribute]);
+    }
+
+    private double[] row(int id) {
+        double[] row = new double[offsets.length];
+        int base = id * stride;
+        for (int a = 0; a < row.length; a++) {
+            row[a] = values.get(base + offsets[a]);
+        }
+        return row;
+    }
+
+    private int id(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Row " + index + " of " + size);
+        }
+        return rows == null ? index : rows[index];
+    }
+
+    // Switches from the identity order to an explicit row index before reordering
+    private int[] rows() {
+        if (rows == null) {
+            rows = new int[size];
+            for (int i = 0; i < size; i++) {
+                rows[i] = i;
+            }
+        }
+        return rows;
+    }
+
+    private SeriesDataset subset(int[] ids) {
+        return new SeriesDataset(this, values, stride, offsets, ids, ids.length);
+    }
+
+    @Override
+    public int numInstances() {
+        return size;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Instance instance(int index) {
+        return new Row(this, id(index));
+    }
+
+    @Override
+    public Instance get(int index) {
+        return instance(index);
+    }
+
+    @Override
+    public Instance firstInstance() {
+        return size == 0 ? null : instance(0);
+    }
+
+    @Override
+    public Instance lastInstance() {
+        return size == 0 ? null : instance(size - 1);
+    }
+
+    @Override
+    public Enumeration<Instance> enumerateInstances() {
+        return new WekaEnumeration<>(this);
+    }
+
+    @Override
+    public void swap(int i, int j) {
+        int[] ids = rows();
+        int row = ids[i];
+        ids[i] = ids[j];
+        ids[j] = row;
+    }
+
+    // Accepts rows of this column only, which is what swapping and shuffling code passes
+    @Override
+    public Instance set(int index, Instance instance) {
+        if (!(instance instanceof Row) || ((Row) instance).source != values) {
+            throw new UnsupportedOperationException("A SeriesDataset only holds rows of its own series");
+        }
+        Instance previous = instance(index);
+        rows()[index] = ((Row) instance).id;
+        return previous;
+    }
+
+    @Override
+    public boolean add(Instance instance) {
+        throw new UnsupportedOperationException("A SeriesDataset cannot grow; copy it with new Instances(data)");
+    }
+
+    @Override
+    public void add(int index, Instance instance) {
+        add(instance);
+    }
+
+    @Override
+    public Instance remove(int index) {
+        Instance removed = instance(index);
+        delete(index);
+        return removed;
+    }
+
+    @Override
+    public void delete() {
+        rows = null;
+        size = 0;
+    }
+
+    @Override
+    public void delete(int index) {
+        id(index);
+        int[] ids = rows();
+        System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+        size--;
+    }
+
+    @Override
+    public void deleteWithMissing(int attIndex) {
+        int kept = 0;
+        int[] ids = rows();
+        int offset = offsets[attIndex];
+        for (int i = 0; i < size; i++) {
+            if (!Double.isNaN(values.get(ids[i] * stride + offset))) {
+                ids[kept++] = ids[i];
+            }
+        }
+        size = kept;
+    }
+
+    @Override
+    public void compactify() {
+        if (rows != null && rows.length > size) {
+            rows = Arrays.copyOf(rows, size);
+        }
+    }
+
+    // Stable, with missing values last, like Instances.sort for numeric attributes
+    @Override
+    public void sort(int attIndex) {
+        int[] ids = rows();
+        int offset = offsets[attIndex];
+        double[] keys = new double[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = values.get(ids[i] * stride + offset);
+        }
+        mergeSort(ids, keys, new int[size], new double[size], 0, size);
+    }
+
+    @Override
+    public void stableSort(int attIndex) {
+        sort(attIndex);
+    }
+
+    // Sorts ids[from, to) by keys, keeping equal keys in order; NaN compares as largest
+    private static void mergeSort(int[] ids, double[] keys, int[] idBuffer, double[] keyBuffer, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(ids, keys, idBuffer, keyBuffer, from, middle);
+        mergeSort(ids, keys, idBuffer, keyBuffer, middle, to);
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && Double.compare(keys[left], keys[right]) <= 0)) {
+                idBuffer[i] = ids[left];
+                keyBuffer[i] = keys[left++];
+            } else {
+                idBuffer[i] = ids[right];
+                keyBuffer[i] = keys[right++];
+            }
+        }
+        System.arraycopy(idBuffer, from, ids, from, to - from);
+        System.arraycopy(keyBuffer, from, keys, from, to - from);
+    }
+
+    // Same fold boundaries as Instances.trainCV, as a view over the column
+    @Override
+    public Instances trainCV(int numFolds, int numFold) {
+        int[] bounds = fold(numFolds, numFold);
+        int[] ids = new int[size - (bounds[1] - bounds[0])];
+        for (int i = 0, k = 0; i < size; i++) {
+            if (i < bounds[0] || i >= bounds[1]) {
+                ids[k++] = id(i);
+            }
+        }
+        return subset(ids);
+    }
+
+    @Override
+    public Instances testCV(int numFolds, int numFold) {
+        int[] bounds = fold(numFolds, numFold);
+        int[] ids = new int[bounds[1] - bounds[0]];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = id(bounds[0] + i);
+        }
+        return subset(ids);
+    }
+
+    private int[] fold(int numFolds, int numFold) {
+        if (numFolds < 2) {
+            throw new IllegalArgumentException("Number of folds must be at least 2!");
+        }
+        if (numFolds > size) {
+            throw new IllegalArgumentException("Can't have more folds than instances!");
+        }
+        int foldSize = size / numFolds;
+        int offset;
+        if (numFold < size % numFolds) {
+            foldSize++;
+            offset = numFold;
+        } else {
+            offset = size % numFolds;
+        }
+        int first = numFold * (size / numFolds) + offset;
+        return new int[]{first, first + foldSize};
+    }
+
+    @Override
+    public void insertAttributeAt(weka.core.Attribute att, int position) {
+        throw new UnsupportedOperationException("A SeriesDataset has a fixed schema");
+    }
+
+    @Override
+    public void deleteAttributeAt(int position) {
+        throw new UnsupportedOperationException("A SeriesDataset has a fixed schema");
+    }
+
+    // Serialized as an ordinary dataset, in case a model keeps a reference to its training data
+    private Object writeReplace() {
+        return new Instances(this);
+    }
+
+    // java SeriesDataset [rows]
+    // Checks that models and cross-validation are identical on both representations, then
+    // reports heap, direct memory and GC activity for the DenseInstance list, the series
+    // dataset and its off-heap variant: rows lagged pairs (default 10M) built and scanned,
+    // and one tenth of them cut into 10 cross-validation folds the way ParallelTrainer does.
+    public static void main(String[] args) {
+        try {
+            int rows = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+            TemperatureSeries series = TemperatureStore.loadSeries("data/daily_temp.csv", "data/daily_temp.tss");
+            double[] minTemps = series.minTemps();
+
+            System.out.println("=== Equivalence on " + (minTemps.length - 1) + " min temperature pairs ===");
+            boolean same = true;
+            for (String modelName : new String[]{"Linear Regression", "Random Forest"}) {
+                Classifier template = ModelRegistry.defaultLearner(modelName);
+                Instances legacy = denseInstances(minTemps, minTemps.length);
+                try (ParallelTrainer trainer = new ParallelTrainer(1, 10, 1)) {
+                    ParallelTrainer.TrainingResult dense = trainer.submit(template, legacy).get();
+                    ParallelTrainer.TrainingResult compact = trainer.submit(template, lagged("min", minTemps)).get();
+                    double worst = 0;
+                    TemperaturePredictor denseModel = TemperaturePredictor.forModel(dense.model, "min");
+                    TemperaturePredictor compactModel = TemperaturePredictor.forModel(compact.model, "min");
+                    for (double x = -10; x <= 35; x += 0.1) {
+                        worst = Math.max(worst, Math.abs(denseModel.predict(x) - compactModel.predict(x)));
+                    }
+                    boolean equal = worst == 0 && sameEvaluation(dense.evaluation, compact.evaluation);
+                    same &= equal;
+                    System.out.printf("%-18s max prediction difference %.3e, CV RMSE %.6f vs %.6f: %s%n",
+                            modelName, worst, dense.evaluation.rootMeanSquaredError(),
+                            compact.evaluation.rootMeanSquaredError(), equal ? "identical" : "DIFFERENT");
+                }
+            }
+
+            double[] values = new double[rows + 1];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = minTemps[i % minTemps.length];
+            }
+            int foldRows = rows / 10;
+            System.out.println("\n=== " + rows + " rows (scan) and " + foldRows + " rows in 10 CV folds ===");
+            System.out.println("Representation      Build ms  Heap B/row  Direct B/row  Scan ms   Folds B/row  "
+                    + "GCs  GC pause ms");
+            report("DenseInstance list", values, rows, foldRows, false, false);
+            report("SeriesDataset", values, rows, foldRows, true, false);
+            report("SeriesDataset off", values, rows, foldRows, true, true);
+            System.out.println("Heap and direct bytes are retained after a full GC and exclude the double[] series"
+                    + " itself; GCs and pauses cover build, scan and folds");
+
+            if (!same) {
+                System.err.println("FAIL: the series dataset gives different models");
+                System.exit(1);
+            }
+            System.out.println("PASS: models and cross-validation are identical on both representations");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // The representation TimeSeriesForecaster used before: one DenseInstance per pair
+    private static Instances denseInstances(double[] values, int length) {
+        Instances data = new Instances(BatchScorer.createHeader("min"), length - 1);
+        for (int i = 0; i + 1 < length; i++) {
+            data.add(new DenseInstance(1.0, new double[]{values[i], values[i + 1]}));
+        }
+        return data;
+    }
+
+    private static SeriesDataset series(double[] values, int length, boolean offHeap) {
+        SeriesDataset data = lagged("min", values, 0, length, 1);
+        if (offHeap && !data.isOffHeap()) {
+            data = new SeriesDataset(data, offHeap(data.values), 1, data.offsets, null, data.size);
+        }
+        return data;
+    }
+
+    private static boolean sameEvaluation(Evaluation a, Evaluation b) throws Exception {
+        return a.rootMeanSquaredError() == b.rootMeanSquaredError() && a.meanAbsoluteError() == b.meanAbsoluteError()
+                && a.correlationCoefficient() == b.correlationCoefficient();
+    }
+
+    private static void report(String name, double[] values, int rows, int foldRows, boolean compact,
+                               boolean offHeap) throws Exception {
+        // GC activity is counted between the forced collections of the heap measurements
+        long[] gc = new long[2];
+        long heap = usedHeap();
+        long direct = usedDirect();
+
+        long start = System.nanoTime();
+        long[] before = gcActivity();
+        Instances data = compact ? series(values, rows + 1, offHeap) : denseInstances(values, rows + 1);
+        addSince(gc, before);
+        double buildMillis = (System.nanoTime() - start) / 1e6;
+        long dataHeap = usedHeap() - heap;
+        long dataDirect = usedDirect() - direct;
+
+        // Through the Instance interface, the way Weka learners read their input
+        start = System.nanoTime();
+        before = gcActivity();
+        double sum = 0;
+        for (int i = 0; i < data.numInstances(); i++) {
+            Instance instance = data.instance(i);
+            sum += instance.value(0) + instance.classValue();
+        }
+        addSince(gc, before);
+        double scanMillis = (System.nanoTime() - start) / 1e6;
+        data = null;
+
+        // ParallelTrainer's fold cutting: copy, shuffle, then 10 train and test folds held at once
+        heap = usedHeap();
+        Instances foldSource = compact ? series(values, foldRows + 1, offHeap) : denseInstances(values, foldRows + 1);
+        long sourceHeap = usedHeap() - heap;
+        before = gcActivity();
+        Random random = new Random(1);
+        Instances shuffled = compact ? ((SeriesDataset) foldSource).view() : new Instances(foldSource);
+        shuffled.randomize(random);
+        List<Instances> folds = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            folds.add(shuffled.trainCV(10, i, random));
+            folds.add(shuffled.testCV(10, i));
+        }
+        addSince(gc, before);
+        long foldHeap = usedHeap() - heap - sourceHeap;
+
+        System.out.printf("%-18s %9.0f %11.1f %13.1f %8.0f %12.1f %5d %12d%n", name, buildMillis,
+                (double) dataHeap / rows, (double) dataDirect / rows, scanMillis, (double) foldHeap / foldRows,
+                gc[0], gc[1]);
+        if (sum == 42 && folds.isEmpty()) {
+            System.out.println();
+        }
+    }
+
+    // Collections and total collection time in ms, summed over all collectors
+    private static long[] gcActivity() {
+        long[] activity = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            activity[0] += Math.max(0, collector.getCollectionCount());
+            activity[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return activity;
+    }
+
+    private static void addSince(long[] total, long[] before) {
+        long[] now = gcActivity();
+        total[0] += now[0] - before[0];
+        total[1] += now[1] - before[1];
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long usedDirect() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+}
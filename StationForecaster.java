@@ -0,0 +1,457 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+// The TimeSeriesForecaster pipeline for many stations at once.
+//
+// Each station is one date,minT,maxT file named <station>.csv in the data directory,
+// and gets its own ModelRegistry in <model dir>/<station>/, laid out like the single
+// station model directory. Stations run as tasks on one work-stealing pool, and each
+// station submits its model and fold fits to the same pool, so idle workers pick up fits
+// from stations that are still busy. At most stations.inFlight stations are in training
+// at a time. A finished station keeps its models only in its artifacts, so memory does
+// not grow with the number of stations. Forecasts load station registries through an
+// LRU of stations.cachedStations entries. Idle stations are dropped and reload from disk.
+//
+// A station is appended to progress.log in the model directory once its registry is
+// saved, so an interrupted run carries on where it stopped. A station whose data file
+// has changed since then is trained again.
+//
+// Training is TimeSeriesForecaster's, one TargetTraining per target. Stations default to
+// lag-1 models without direct horizons, so a forecast needs the latest observation only;
+// stations.features and stations.directHorizons take the same values as the forecaster's
+// forecaster.features and forecaster.directHorizons.
+//
+//   java StationForecaster generate [stations] [years]   synthetic station files
+//   java StationForecaster train                         trains stations that are not up to date
+//   java StationForecaster forecast <station> [days]
+//   java StationForecaster bench [stations] [years]      generate, train and forecast in a temp dir
+//
+//   -Dstations.dataDir=data/stations       -Dstations.modelDir=model/stations
+//   -Dstations.models=Linear Regression,Random Forest,Support Vector Regression
+//   -Dstations.folds=10                    -Dstations.parallelism=<cores>
+//   -Dstations.inFlight=<2 x parallelism>  -Dstations.cachedStations=64
+//   -Dstations.features=lag1               -Dstations.directHorizons=0
+public class StationForecaster {
+    private static final String[] TARGETS = {"min", "max"};
+    private static final String EXTENSION = ".csv";
+    private static final String PROGRESS_FILE = "progress.log";
+    private static final long CV_SEED = 1;
+    private static final long GENERATOR_SEED = 42;
+
+    private final Path dataDir;
+    private final Path modelDir;
+    private final String[] models;
+    private final int folds;
+    private final FeatureEngine features;
+    private final int directHorizons;
+    private final int parallelism;
+    private final int inFlight;
+    private final Map<String, ModelRegistry> registries;
+    private long registryLoads;
+    private long registryHits;
+
+    public static class RunResult {
+        public final int stations;
+        public final int skipped;
+        public final int failed;
+        public final long rows;
+        public final long elapsedNanos;
+
+        RunResult(int stations, int skipped, int failed, long rows, long elapsedNanos) {
+            this.stations = stations;
+            this.skipped = skipped;
+            this.failed = failed;
+            this.rows = rows;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double stationsPerMinute() {
+            return stations * 60e9 / Math.max(1, elapsedNanos);
+        }
+    }
+
+    public StationForecaster(Path dataDir, Path modelDir, String[] models, int folds, FeatureEngine features,
+                             int directHorizons, int parallelism, int inFlight, int cachedStations) {
+        if (folds < 2) {
+            throw new IllegalArgumentException("Model selection needs at least 2 folds, got " + folds);
+        }
+        this.dataDir = dataDir;
+        this.modelDir = modelDir;
+        this.models = models;
+        this.folds = folds;
+        this.features = features;
+        this.directHorizons = directHorizons;
+        this.parallelism = Math.max(1, parallelism);
+        this.inFlight = Math.max(1, inFlight);
+        this.registries = new LinkedHashMap<String, ModelRegistry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ModelRegistry> eldest) {
+                return size() > cachedStations;
+            }
+        };
+    }
+
+    public static StationForecaster fromProperties(Path dataDir, Path modelDir) {
+        int parallelism = Integer.getInteger("stations.parallelism", Runtime.getRuntime().availableProcessors());
+        String[] models = System.getProperty("stations.models",
+                "Linear Regression,Random Forest,Support Vector Regression").split(",");
+        for (int i = 0; i < models.length; i++) {
+            models[i] = models[i].trim();
+        }
+        return new StationForecaster(dataDir, modelDir, models, Integer.getInteger("stations.folds", 10),
+                FeatureEngine.named(System.getProperty("stations.features", "lag1"), 1),
+                Integer.getInteger("stations.directHorizons", 0), parallelism, Integer.getInteger("stations.inFlight", 2 * parallelism),
+                Integer.getInteger("stations.cachedStations", 64));
+    }
+
+    // Station ids in the data directory, sorted
+    public List<String> stations() throws IOException {
+        List<String> stations = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dataDir)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.endsWith(EXTENSION))
+                    .forEach(name -> stations.add(name.substring(0, name.length() - EXTENSION.length())));
+        }
+        Collections.sort(stations);
+        return stations;
+    }
+
+    // Trains every station that progress.log does not already have for its current data
+    public RunResult trainAll() throws Exception {
+        long start = System.nanoTime();
+        Files.createDirectories(modelDir);
+        List<String> pending = new ArrayList<>();
+        int skipped = 0;
+        try (Progress progress = new Progress(modelDir.resolve(PROGRESS_FILE))) {
+            for (String station : stations()) {
+                if (progress.isDone(station, modified(station))) {
+                    skipped++;
+                } else {
+                    pending.add(station);
+                }
+            }
+            System.out.println("Training " + pending.size() + " stations (" + skipped + " up to date) on "
+                    + parallelism + " threads, " + inFlight + " stations in flight");
+
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                // Only inFlight stations are queued at once, so a worker waiting on its own
+                // fits cannot start an unbounded number of other stations
+                ExecutorCompletionService<Long> completion = new ExecutorCompletionService<>(pool);
+                Map<Future<Long>, String> running = new HashMap<>();
+                int next = 0;
+                int done = 0;
+                int failed = 0;
+                long rows = 0;
+                long lastReport = System.nanoTime();
+                while (done < pending.size()) {
+                    while (next < pending.size() && running.size() < inFlight) {
+                        String station = pending.get(next++);
+                        running.put(completion.submit(() -> trainStation(pool, progress, station)), station);
+                    }
+                    Future<Long> finished = completion.take();
+                    String station = running.remove(finished);
+                    done++;
+                    try {
+                        rows += finished.get();
+                    } catch (ExecutionException e) {
+                        failed++;
+                        System.err.println("Station " + station + " failed: " + e.getCause());
+                    }
+                    if (System.nanoTime() - lastReport > 10_000_000_000L || done == pending.size()) {
+                        lastReport = System.nanoTime();
+                        System.out.printf("  %d/%d stations, %.1f stations/min%n", done, pending.size(),
+                                (done - failed) * 60e9 / (lastReport - start));
+                    }
+                }
+                return new RunResult(done - failed, skipped, failed, rows, System.nanoTime() - start);
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    // TimeSeriesForecaster's training of both targets of one station, with every fit on
+    // the shared pool
+    private long trainStation(ForkJoinPool pool, Progress progress, String station) throws Exception {
+        long modified = modified(station);
+        TemperatureSeries series = TemperatureCsvReader.read(dataFile(station));
+        if (series.size() <= folds) {
+            throw new IOException(series.size() + " rows are too few for " + folds + "-fold cross-validation");
+        }
+        ModelRegistry registry = new ModelRegistry(modelDir.resolve(station).toString(), 1);
+        int[] days = series.epochDays();
+        double[][] values = {series.minTemps(), series.maxTemps()};
+        TimeSeriesForecaster.TargetTraining[] training = new TimeSeriesForecaster.TargetTraining[TARGETS.length];
+        String[] best = new String[TARGETS.length];
+        try (ParallelTrainer trainer = new ParallelTrainer(pool, folds, CV_SEED)) {
+            for (int t = 0; t < TARGETS.length; t++) {
+                training[t] = new TimeSeriesForecaster.TargetTraining(trainer, registry, TARGETS[t], models, features,
+                        days, values[t]);
+            }
+            for (int t = 0; t < TARGETS.length; t++) {
+                best[t] = training[t].select(TimeSeriesForecaster::crossValidated);
+            }
+        }
+        try (ParallelTrainer trainer = new ParallelTrainer(pool, 0, CV_SEED)) {
+            for (TimeSeriesForecaster.TargetTraining target : training) {
+                target.trainDirect(trainer, directHorizons);
+            }
+        }
+        registry.setLastObservedDay(series.epochDay(series.size() - 1));
+        registry.save();
+        progress.complete(station, modified, best);
+        synchronized (registries) {
+            registries.remove(station);
+        }
+        return series.size();
+    }
+
+    // Entry 0 is the station's latest observation, entry d is d days later: {min, max} per day
+    public double[][] forecast(String station, int days) throws Exception {
+        ModelRegistry registry = registry(station);
+        TemperatureSeries series = TemperatureCsvReader.read(dataFile(station));
+        if (series.size() == 0) {
+            throw new IOException("No observations for station " + station);
+        }
+        int[] epochDays = series.epochDays();
+        double[] minPath = forecast(registry, "min", epochDays, series.minTemps(), days - 1);
+        double[] maxPath = forecast(registry, "max", epochDays, series.maxTemps(), days - 1);
+        double[][] forecast = new double[days][];
+        forecast[0] = new double[]{series.minTemp(series.size() - 1), series.maxTemp(series.size() - 1)};
+        for (int day = 1; day < days; day++) {
+            forecast[day] = new double[]{minPath[day - 1], maxPath[day - 1]};
+        }
+        return forecast;
+    }
+
+    // The count days after the last value: from the direct models when they have been
+    // trained, otherwise recursively with the best model on its features
+    private static double[] forecast(ModelRegistry registry, String target, int[] days, double[] values,
+                                     int count) throws Exception {
+        DirectForecaster direct = registry.direct(target);
+        if (direct != null) {
+            return direct.forecast(values[values.length - 1], count);
+        }
+        FeatureEngine.Scorer scorer = registry.scorer(target);
+        scorer.observe(days, values, 0, values.length);
+        return scorer.forecast(count);
+    }
+
+    // The station's registry from the LRU, opened again from disk after it was evicted
+    private ModelRegistry registry(String station) throws IOException {
+        synchronized (registries) {
+            ModelRegistry registry = registries.get(station);
+            if (registry != null) {
+                registryHits++;
+                return registry;
+            }
+        }
+        Path dir = modelDir.resolve(station);
+        if (!Files.isDirectory(dir)) {
+            throw new IOException("Station " + station + " has not been trained");
+        }
+        ModelRegistry registry = new ModelRegistry(dir.toString(), TARGETS.length);
+        synchronized (registries) {
+            registryLoads++;
+            registries.put(station, registry);
+        }
+        return registry;
+    }
+
+    private Path dataFile(String station) {
+        return dataDir.resolve(station + EXTENSION);
+    }
+
+    private long modified(String station) throws IOException {
+        return Files.getLastModifiedTime(dataFile(station)).toMillis();
+    }
+
+    // Append-only list of finished stations: station, data file time, best min and max model.
+    // A line cut short by an interrupted run is ignored and that station is trained again.
+    static class Progress implements Closeable {
+        private final Map<String, Long> done = new HashMap<>();
+        private final BufferedWriter out;
+
+        Progress(Path file) throws IOException {
+            boolean endsWithNewline = true;
+            if (Files.exists(file)) {
+                try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        String[] fields = line.split("\t");
+                        if (fields.length == 4) {
+                            done.put(fields[0], Long.parseLong(fields[1]));
+                        }
+                    }
+                }
+                byte[] bytes = Files.readAllBytes(file);
+                endsWithNewline = bytes.length == 0 || bytes[bytes.length - 1] == '\n';
+            }
+            out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+            if (!endsWithNewline) {
+                out.write('\n');
+            }
+        }
+
+        synchronized boolean isDone(String station, long modified) {
+            Long recorded = done.get(station);
+            return recorded != null && recorded == modified;
+        }
+
+        synchronized void complete(String station, long modified, String[] best) throws IOException {
+            out.write(station + "\t" + modified + "\t" + best[0] + "\t" + best[1] + "\n");
+            out.flush();
+            done.put(station, modified);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    // Writes station files with a seasonal cycle, a per-station climate and day-to-day
+    // persistence, so lagged models have the same kind of signal as the real data.
+    // Files that already exist are kept, so generation can be resumed too.
+    public static void generate(Path dir, int stations, int years) throws IOException {
+        Files.createDirectories(dir);
+        int firstDay = (int) LocalDate.of(2000, 1, 1).toEpochDay();
+        int days = years * 365;
+        for (int s = 0; s < stations; s++) {
+            Path file = dir.resolve(String.format("ST%05d", s) + EXTENSION);
+            if (Files.exists(file)) {
+                continue;
+            }
+            Random random = new Random(GENERATOR_SEED * 1_000_003 + s);
+            double mean = 5 + 20 * random.nextDouble();
+            double amplitude = 3 + 10 * random.nextDouble();
+            double spread = 5 + 7 * random.nextDouble();
+            // Southern hemisphere stations peak in January
+            double peakDay = random.nextBoolean() ? 200 : 17;
+            double persistence = 0.5 + 0.4 * random.nextDouble();
+            double noise = 1 + 2 * random.nextDouble();
+            double anomaly = 0;
+            Path temp = dir.resolve(file.getFileName() + ".tmp");
+            try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                out.write("date,minT,maxT\n");
+                for (int d = 0; d < days; d++) {
+                    LocalDate date = LocalDate.ofEpochDay(firstDay + d);
+                    anomaly = persistence * anomaly + noise * random.nextGaussian();
+                    double season = mean + amplitude * Math.cos(2 * Math.PI * (date.getDayOfYear() - peakDay) / 365.25);
+                    double min = Math.round((season - spread / 2 + anomaly) * 10) / 10.0;
+                    double max = Math.round((season + spread / 2 + anomaly + random.nextGaussian()) * 10) / 10.0;
+                    out.write(date + "," + min + "," + Math.max(min, max) + "\n");
+                }
+            }
+            Files.move(temp, file);
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            Path dataDir = Paths.get(System.getProperty("stations.dataDir", "data" + File.separator + "stations"));
+            Path modelDir = Paths.get(System.getProperty("stations.modelDir", "model" + File.separator + "stations"));
+            String command = args.length > 0 ? args[0] : "";
+            if (command.equals("generate")) {
+                int stations = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+                int years = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+                generate(dataDir, stations, years);
+                System.out.println("Generated " + stations + " stations of " + years + " years in " + dataDir);
+            } else if (command.equals("train")) {
+                RunResult result = fromProperties(dataDir, modelDir).trainAll();
+                System.out.printf("Trained %d stations (%d up to date, %d failed) in %.1f s: %.1f stations/min%n",
+                        result.stations, result.skipped, result.failed, result.elapsedNanos / 1e9,
+                        result.stationsPerMinute());
+            } else if (command.equals("forecast") && args.length > 1) {
+                int days = args.length > 2 ? Integer.parseInt(args[2]) : 7;
+                double[][] forecast = fromProperties(dataDir, modelDir).forecast(args[1], days + 1);
+                for (int day = 0; day < forecast.length; day++) {
+                    System.out.printf("%s +%d  min %.1f  max %.1f%n", args[1], day, forecast[day][0], forecast[day][1]);
+                }
+            } else if (command.equals("bench")) {
+                int stations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+                int years = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+                benchmark(stations, years);
+            } else {
+                System.out.println("Usage: StationForecaster generate [stations] [years]");
+                System.out.println("       StationForecaster train");
+                System.out.println("       StationForecaster forecast <station> [days]");
+                System.out.println("       StationForecaster bench [stations] [years]");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // Trains synthetic stations from scratch in a temp directory, then forecasts every
+    // station three times in random order through the registry LRU
+    private static void benchmark(int stations, int years) throws Exception {
+        Path base = Paths.get(System.getProperty("java.io.tmpdir"), "temperature-stations",
+                stations + "x" + years + "y");
+        Path dataDir = base.resolve("data");
+        Path modelDir = base.resolve("model");
+        generate(dataDir, stations, years);
+        deleteRecursively(modelDir);
+
+        StationForecaster forecaster = fromProperties(dataDir, modelDir);
+        RunResult result = forecaster.trainAll();
+        System.out.printf("%nTrained %d stations x %d years with %s (%d folds) in %.1f s%n", result.stations, years,
+                String.join(", ", forecaster.models), forecaster.folds, result.elapsedNanos / 1e9);
+        System.out.printf("Throughput: %.1f stations/min, %.0f rows/s on %d threads%n", result.stationsPerMinute(),
+                result.rows * 1e9 / result.elapsedNanos, forecaster.parallelism);
+
+        List<String> order = new ArrayList<>();
+        for (int pass = 0; pass < 3; pass++) {
+            List<String> shuffled = forecaster.stations();
+            Collections.shuffle(shuffled, new Random(pass));
+            order.addAll(shuffled);
+        }
+        long start = System.nanoTime();
+        for (String station : order) {
+            forecaster.forecast(station, 8);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("Forecasts: %d 7-day forecasts in %.1f s (%.0f/s), %d registry loads, %d cache hits%n",
+                order.size(), elapsed / 1e9, order.size() * 1e9 / elapsed, forecaster.registryLoads,
+                forecaster.registryHits);
+    }
+
+    static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        List<Path> paths = new ArrayList<>();
+        try (Stream<Path> walk = Files.walk(dir)) {
+            walk.forEach(paths::add);
+        }
+        paths.sort(Comparator.reverseOrder());
+        for (Path path : paths) {
+            Files.delete(path);
+        }
+    }
+}
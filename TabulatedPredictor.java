@@ -0,0 +1,155 @@
+import weka.classifiers.Classifier;
+import weka.core.SerializationHelper;
+
+import java.io.File;
+import java.util.Random;
+
+// Lookup-table version of a single-input model. The wrapped model is evaluated once on a
+// regular grid over [low, high] and predictions become an array lookup with linear
+// interpolation between neighbouring grid points. Inputs that fall on the grid (the
+// data is recorded to 0.1 degrees, the default step) return the model's own value.
+// Inputs outside the grid, and NaN, are passed to the wrapped model.
+public class TabulatedPredictor implements TemperaturePredictor {
+    // Grid positions this close to a whole number are treated as exact hits
+    private static final double SNAP = 1e-6;
+
+    private final TemperaturePredictor fallback;
+    private final double low;
+    private final double high;
+    private final double inverseStep;
+    private final double[] table;
+
+    private TabulatedPredictor(TemperaturePredictor fallback, double low, double high, double step, double[] table) {
+        this.fallback = fallback;
+        this.low = low;
+        this.high = high;
+        this.inverseStep = 1.0 / step;
+        this.table = table;
+    }
+
+    public static TabulatedPredictor build(TemperaturePredictor model, double low, double high, double step)
+            throws Exception {
+        if (!(step > 0) || !(high >= low)) {
+            throw new IllegalArgumentException("Invalid grid [" + low + ", " + high + "] step " + step);
+        }
+        int points = (int) Math.round((high - low) / step) + 1;
+        double[] grid = new double[points];
+        for (int i = 0; i < points; i++) {
+            // Rounded to the step's decimals so 0.1-degree grid points equal parsed inputs
+            grid[i] = Math.round((low + i * step) * 1e9) / 1e9;
+        }
+        return new TabulatedPredictor(model, grid[0], grid[points - 1], step, model.predict(grid));
+    }
+
+    public TemperaturePredictor fallback() {
+        return fallback;
+    }
+
+    public int size() {
+        return table.length;
+    }
+
+    @Override
+    public double predict(double currentTemp) throws Exception {
+        if (!(currentTemp >= low && currentTemp <= high)) {
+            Metrics.increment("tabulated_fallbacks", 1);
+            return fallback.predict(currentTemp);
+        }
+        double position = (currentTemp - low) * inverseStep;
+        int index = (int) position;
+        double fraction = position - index;
+        if (fraction < SNAP || index + 1 >= table.length) {
+            return table[index];
+        }
+        if (fraction > 1 - SNAP) {
+            return table[index + 1];
+        }
+        return table[index] + fraction * (table[index + 1] - table[index]);
+    }
+
+    @Override
+    public void predict(double[] inputs, double[] outputs) throws Exception {
+        for (int i = 0; i < inputs.length; i++) {
+            outputs[i] = predict(inputs[i]);
+        }
+    }
+
+    // Validation report: for every saved model, the tabulated predictions against
+    // classifyInstance on the 0.1-degree grid, on every observed input and on random
+    // inputs between grid points, plus the time per prediction
+    public static void main(String[] args) {
+        try {
+            double step = Double.parseDouble(System.getProperty("tabulated.step", "0.1"));
+            TemperatureSeries series = TemperatureCsvReader.read("data/daily_temp.csv");
+            String[] models = {"Linear Regression", "Random Forest", "Support Vector Regression"};
+            System.out.printf("%-4s %-26s %8s %14s %14s %14s %10s %10s%n", "", "Model", "Points",
+                    "On grid", "Observed", "Between", "Raw ns", "Table ns");
+            for (String target : new String[]{"min", "max"}) {
+                double[] observed = target.equals("min") ? series.minTemps() : series.maxTemps();
+                double low = Double.POSITIVE_INFINITY;
+                double high = Double.NEGATIVE_INFINITY;
+                for (double value : observed) {
+                    low = Math.min(low, value);
+                    high = Math.max(high, value);
+                }
+                for (String modelName : models) {
+                    String path = ModelRegistry.DEFAULT_DIR + File.separator + target + File.separator
+                            + ModelRegistry.slug(modelName) + ".model";
+                    if (!new File(path).exists()) {
+                        System.err.println("Skipping " + path + ": not found");
+                        continue;
+                    }
+                    // BatchScorer scores through classifyInstance, the reference for the table
+                    TemperaturePredictor reference = new BatchScorer((Classifier) SerializationHelper.read(path), target);
+                    TabulatedPredictor table = build(reference, low, high, step);
+
+                    // Every value the data can take: 0.1-degree steps across the observed range
+                    double gridError = 0;
+                    int dataPoints = (int) Math.round((high - low) * 10) + 1;
+                    for (int i = 0; i < dataPoints; i++) {
+                        double x = Math.round((low + i * 0.1) * 10) / 10.0;
+                        gridError = Math.max(gridError, Math.abs(table.predict(x) - reference.predict(x)));
+                    }
+                    double observedError = 0;
+                    for (double x : observed) {
+                        observedError = Math.max(observedError, Math.abs(table.predict(x) - reference.predict(x)));
+                    }
+                    double betweenError = 0;
+                    Random random = new Random(1);
+                    double[] between = new double[20000];
+                    for (int i = 0; i < between.length; i++) {
+                        between[i] = low + random.nextDouble() * (high - low);
+                        betweenError = Math.max(betweenError,
+                                Math.abs(table.predict(between[i]) - reference.predict(between[i])));
+                    }
+
+                    System.out.printf("%-4s %-26s %8d %14.3e %14.3e %14.3e %10.1f %10.1f%n", target, modelName,
+                            table.size(), gridError, observedError, betweenError,
+                            nanosPerPrediction(reference, observed), nanosPerPrediction(table, observed));
+                }
+            }
+            System.out.println("Errors are maximum absolute differences in degrees; outside the observed range "
+                    + "predictions fall back to the model");
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static double nanosPerPrediction(TemperaturePredictor predictor, double[] inputs) throws Exception {
+        double best = Double.MAX_VALUE;
+        double sink = 0;
+        int calls = Math.max(inputs.length, 200_000);
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                sink += predictor.predict(inputs[i % inputs.length]);
+            }
+            best = Math.min(best, (double) (System.nanoTime() - start) / calls);
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+        return best;
+    }
+}
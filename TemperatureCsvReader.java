@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Memory-mapped reader for date,minT,maxT files. Fields are parsed straight from the
+// mapped bytes into a TemperatureSeries; Strings are only built to describe bad rows.
+public class TemperatureCsvReader {
+    // Files larger than this are mapped in windows that end on a line boundary
+    private static final long MAX_WINDOW = 1L << 30;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Parser state for the current row
+    private long lineNumber;
+    private long rowOffset;
+    private String error;
+
+    public static TemperatureSeries read(String path) throws IOException {
+        return read(Paths.get(path));
+    }
+
+    public static TemperatureSeries read(Path path) throws IOException {
+        long start = System.nanoTime();
+        TemperatureSeries series = new TemperatureCsvReader().parse(path);
+        Metrics.histogram("data_load", "csv").recordSince(start);
+        Metrics.increment("rows_ingested", series.size());
+        Metrics.increment("rows_malformed", series.malformedRows().size());
+        return series;
+    }
+
+    private TemperatureSeries parse(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            // ~19 bytes per row in the station exports
+            TemperatureSeries series = new TemperatureSeries((int) Math.min(Integer.MAX_VALUE - 8, fileSize / 19));
+
+            long position = 0;
+            while (position < fileSize) {
+                long length = Math.min(MAX_WINDOW, fileSize - position);
+                boolean lastWindow = position + length == fileSize;
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+
+                int consumed = parseWindow(buffer, (int) length, position, lastWindow, series);
+                if (consumed == 0) {
+                    throw new IOException("Line longer than " + MAX_WINDOW + " bytes at offset " + position);
+                }
+                position += consumed;
+            }
+            return series;
+        }
+    }
+
+    // Parses every complete line in the window and returns how many bytes were consumed
+    private int parseWindow(MappedByteBuffer buffer, int length, long base, boolean lastWindow,
+                            TemperatureSeries series) {
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == length && !lastWindow) {
+                // Incomplete line, pick it up again at the start of the next window
+                break;
+            }
+
+            int contentEnd = lineEnd;
+            if (contentEnd > lineStart && buffer.get(contentEnd - 1) == '\r') {
+                contentEnd--;
+            }
+
+            lineNumber++;
+            rowOffset = base + lineStart;
+            // Line 1 is the header, blank lines carry no data
+            if (lineNumber > 1 && contentEnd > lineStart) {
+                parseRow(buffer, lineStart, contentEnd, series);
+            }
+            lineStart = lineEnd + 1;
+        }
+        return Math.min(lineStart, length);
+    }
+
+    private void parseRow(MappedByteBuffer buffer, int start, int end, TemperatureSeries series) {
+        error = null;
+        int firstComma = indexOf(buffer, ',', start, end);
+        int secondComma = firstComma < 0 ? -1 : indexOf(buffer, ',', firstComma + 1, end);
+        if (secondComma < 0) {
+            series.addMalformed(rowOffset, lineNumber, "expected 3 fields: " + text(buffer, start, end));
+            return;
+        }
+        int thirdComma = indexOf(buffer, ',', secondComma + 1, end);
+        int maxEnd = thirdComma < 0 ? end : thirdComma;
+
+        int epochDay = parseDate(buffer, start, firstComma);
+        double minTemp = parseNumber(buffer, firstComma + 1, secondComma);
+        double maxTemp = parseNumber(buffer, secondComma + 1, maxEnd);
+        if (error != null) {
+            series.addMalformed(rowOffset, lineNumber, error + ": " + text(buffer, start, end));
+            return;
+        }
+        series.add(epochDay, minTemp, maxTemp);
+    }
+
+    // Parses yyyy-MM-dd into days since 1970-01-01
+    private int parseDate(MappedByteBuffer buffer, int start, int end) {
+        if (end - start != 10 || buffer.get(start + 4) != '-' || buffer.get(start + 7) != '-') {
+            error = "invalid date";
+            return 0;
+        }
+        int year = digits(buffer, start, start + 4);
+        int month = digits(buffer, start + 5, start + 7);
+        int day = digits(buffer, start + 8, start + 10);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            error = "invalid date";
+            return 0;
+        }
+        return epochDay(year, month, day);
+    }
+
+    // Parses [-+]digits[.digits] without allocating; other notations go through Double.parseDouble
+    private double parseNumber(MappedByteBuffer buffer, int start, int end) {
+        while (start < end && buffer.get(start) == ' ') {
+            start++;
+        }
+        while (end > start && buffer.get(end - 1) == ' ') {
+            end--;
+        }
+        if (start == end) {
+            error = "missing temperature";
+            return Double.NaN;
+        }
+
+        int i = start;
+        boolean negative = false;
+        byte first = buffer.get(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digitCount = 0;
+        int fractionDigits = 0;
+        boolean seenPoint = false;
+        for (; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digitCount++;
+                if (seenPoint) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                break;
+            }
+        }
+
+        // The integer path is exact only while the mantissa fits in 53 bits
+        if (i == end && digitCount > 0 && digitCount <= 15 && fractionDigits < POWERS_OF_TEN.length) {
+            double value = mantissa / POWERS_OF_TEN[fractionDigits];
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(text(buffer, start, end));
+        } catch (NumberFormatException e) {
+            error = "invalid temperature";
+            return Double.NaN;
+        }
+    }
+
+    private static int digits(MappedByteBuffer buffer, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                return -1;
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    private static int indexOf(MappedByteBuffer buffer, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String text(MappedByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2: return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4: case 6: case 9: case 11: return 30;
+            default: return 31;
+        }
+    }
+
+    // Civil date to epoch day, same result as LocalDate.of(y, m, d).toEpochDay()
+    static int epochDay(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -1,187 +1,514 @@
 import javax.swing.*;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.Date;
-import weka.classifiers.Classifier;
-import weka.core.DenseInstance;
-import weka.core.Instances;
-import weka.core.Attribute;
-import weka.core.SerializationHelper;
 import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
+// Forecast window. It opens with a skeleton of day panels right away; the registry, the
+// latest observation and the predictions load on a SwingWorker and the day panels are
+// filled in place as values arrive, so the event dispatch thread never waits for models
+// to deserialize. Refreshing updates the existing labels instead of rebuilding the panels.
+// Forecasts come from the direct multi-horizon models when they have been trained and
+// from the chained 1-day models otherwise; models trained on FeatureEngine rows continue
+// a Scorer that has observed the whole data file. With display.paths set, each day instead
+// shows the median of that many simulated paths of the chained models with their
+// P10-P90 range (see MonteCarloForecaster).
+//
+//   -Ddisplay.horizon=3    days forecast after today (the 3 days before today are always shown)
+//   -Ddisplay.paths=0      Monte Carlo paths for forecast ranges, 0 for single values
 public class TemperatureDisplay extends JFrame {
     private static final int DAYS_TO_SHOW = 3;
-    private JPanel mainPanel;
-    private Classifier minTempModel;
-    private Classifier maxTempModel;
-    private Instances minDataset;
-    private Instances maxDataset;
-    private double currentMinTemp = 15.0;  // Starting with example temperature
-    private double currentMaxTemp = 25.0;
-
-    public TemperatureDisplay() {
+    private static final int MAX_HORIZON = 366;
+    private static final int PATHS = Integer.getInteger("display.paths", 0);
+    private static final String DATA_FILE = "data/daily_temp.csv";
+    private static final Color BACKGROUND = new Color(240, 248, 255);  // Light blue background
+    private static final Color TODAY_BACKGROUND = new Color(230, 240, 255);
+    private static final Color HIGHLIGHT = new Color(30, 144, 255);
+    private static final Color PLACEHOLDER = Color.GRAY;
+    // Shared by every panel instead of created per label on each refresh
+    private static final Font TITLE_FONT = new Font("Arial", Font.BOLD, 28);
+    private static final Font STATUS_FONT = new Font("Arial", Font.ITALIC, 12);
+    private static final Font DATE_FONT = new Font("Arial", Font.BOLD, 16);
+    private static final Font RELATIVE_FONT = new Font("Arial", Font.PLAIN, 14);
+    private static final Font TODAY_RELATIVE_FONT = new Font("Arial", Font.BOLD, 14);
+    private static final Font TEMPERATURE_FONT = new Font("Arial", Font.PLAIN, 15);
+
+    public TemperatureDisplay(int horizon, long startNanos) {
         setTitle("Temperature Forecast");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setMinimumSize(new Dimension(400, 600));
         setPreferredSize(new Dimension(500, 700));
-        getContentPane().setBackground(new Color(240, 248, 255));  // Light blue background
+        getContentPane().setBackground(BACKGROUND);
 
-        // Initialize the main panel with vertical layout
-        mainPanel = new JPanel();
-        mainPanel.setLayout(new BoxLayout(mainPanel, BoxLayout.Y_AXIS));
-        mainPanel.setBackground(new Color(240, 248, 255));
-        mainPanel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
+        ForecastPanel forecastPanel = new ForecastPanel(horizon, startNanos);
+        forecastPanel.setErrorHandler(message -> JOptionPane.showMessageDialog(this, message));
 
         // Create a scroll pane for the main panel
-        JScrollPane scrollPane = new JScrollPane(mainPanel);
+        JScrollPane scrollPane = new JScrollPane(forecastPanel);
         scrollPane.setBorder(null);
-        scrollPane.setBackground(new Color(240, 248, 255));
+        scrollPane.setBackground(BACKGROUND);
         scrollPane.getVerticalScrollBar().setUnitIncrement(16);
         scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
+        add(scrollPane);
 
-        // Add title
-        JLabel titleLabel = new JLabel("Temperature Forecast");
-        titleLabel.setFont(new Font("Arial", Font.BOLD, 28));
-        titleLabel.setForeground(new Color(30, 144, 255));
-        titleLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
-        mainPanel.add(titleLabel);
-        mainPanel.add(Box.createVerticalStrut(20));
+        forecastPanel.refresh();
+    }
 
-        try {
-            loadModels();
-            setupDatasets();
-            updateDisplay();
-        } catch (Exception e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error loading models: " + e.getMessage());
-        }
+    // Title, status line and one panel per day; everything the window shows except the frame
+    static class ForecastPanel extends JPanel {
+        private static final long serialVersionUID = 1L;
 
-        add(scrollPane);
-    }
+        private final List<DayPanel> dayPanels = new ArrayList<>();
+        private final JLabel statusLabel;
+        private final JButton refreshButton;
+        private final long startNanos;
+        // Loaded by the first worker, reused by later refreshes
+        private volatile ModelRegistry registry;
+        private Consumer<String> errorHandler = System.err::println;
+        private Runnable onForecast = () -> { };
+        private long firstPaintNanos;
+        private long refreshEdtNanos;
+        private boolean firstForecast = true;
 
-    private void loadModels() throws Exception {
-        // Load the best performing models (you can modify this to load specific models)
-        minTempModel = (Classifier) SerializationHelper.read("model/min/random_forest.model");
-        maxTempModel = (Classifier) SerializationHelper.read("model/max/random_forest.model");
-    }
+        ForecastPanel(int horizon, long startNanos) {
+            this.startNanos = startNanos;
+            setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+            setBackground(BACKGROUND);
+            setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
 
-    private void setupDatasets() {
-        // Create attributes for min and max temperatures
-        ArrayList<Attribute> minAttributes = new ArrayList<>();
-        minAttributes.add(new Attribute("current_min_temp"));
-        minAttributes.add(new Attribute("next_min_temp"));
-        minDataset = new Instances("MinTemperatureData", minAttributes, 0);
-        minDataset.setClassIndex(1);
-
-        ArrayList<Attribute> maxAttributes = new ArrayList<>();
-        maxAttributes.add(new Attribute("current_max_temp"));
-        maxAttributes.add(new Attribute("next_max_temp"));
-        maxDataset = new Instances("MaxTemperatureData", maxAttributes, 0);
-        maxDataset.setClassIndex(1);
-    }
+            // Add title
+            JLabel titleLabel = new JLabel("Temperature Forecast");
+            titleLabel.setFont(TITLE_FONT);
+            titleLabel.setForeground(HIGHLIGHT);
+            titleLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+            add(titleLabel);
+            add(Box.createVerticalStrut(5));
 
-    private void updateDisplay() {
-        mainPanel.removeAll();
-        mainPanel.add(Box.createVerticalStrut(20));  // Space after title
+            statusLabel = new JLabel("Loading models...");
+            statusLabel.setFont(STATUS_FONT);
+            statusLabel.setForeground(Color.DARK_GRAY);
+            statusLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+            add(statusLabel);
+            add(Box.createVerticalStrut(5));
 
-        SimpleDateFormat dateFormat = new SimpleDateFormat("EEEE, MMM dd");
-        Calendar calendar = Calendar.getInstance();
-        calendar.add(Calendar.DAY_OF_MONTH, -DAYS_TO_SHOW);
+            refreshButton = new JButton("Refresh");
+            refreshButton.setAlignmentX(Component.CENTER_ALIGNMENT);
+            refreshButton.setEnabled(false);
+            refreshButton.addActionListener(event -> refresh());
+            add(refreshButton);
+            add(Box.createVerticalStrut(20));  // Space after title
 
-        try {
-            double minTemp = currentMinTemp;
-            double maxTemp = currentMaxTemp;
-            
-            for (int i = 0; i < 7; i++) {
-                String date = dateFormat.format(calendar.getTime());
-                boolean isToday = (i == DAYS_TO_SHOW);
-                
-                JPanel dayPanel = createDayPanel(date, getRelativeDay(i), minTemp, maxTemp, isToday);
-                mainPanel.add(dayPanel);
-                mainPanel.add(Box.createVerticalStrut(15));  // Space between days
-                
-                // Predict next day's temperatures
-                minTemp = predictTemperature(minDataset, minTempModel, minTemp);
-                maxTemp = predictTemperature(maxDataset, maxTempModel, maxTemp);
-                
+            // Skeleton: dates are known before any model is loaded
+            SimpleDateFormat dateFormat = new SimpleDateFormat("EEEE, MMM dd");
+            Calendar calendar = Calendar.getInstance();
+            calendar.add(Calendar.DAY_OF_MONTH, -DAYS_TO_SHOW);
+            for (int i = 0; i < DAYS_TO_SHOW + 1 + horizon; i++) {
+                DayPanel dayPanel = new DayPanel(dateFormat.format(calendar.getTime()), getRelativeDay(i),
+                        i == DAYS_TO_SHOW);
+                dayPanels.add(dayPanel);
+                add(dayPanel);
+                add(Box.createVerticalStrut(15));  // Space between days
                 calendar.add(Calendar.DAY_OF_MONTH, 1);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            JOptionPane.showMessageDialog(this, "Error making predictions: " + e.getMessage());
         }
 
-        mainPanel.revalidate();
-        mainPanel.repaint();
+        void setErrorHandler(Consumer<String> errorHandler) {
+            this.errorHandler = errorHandler;
+        }
+
+        // Called on the EDT after every completed forecast
+        void setOnForecast(Runnable onForecast) {
+            this.onForecast = onForecast;
+        }
+
+        int days() {
+            return dayPanels.size();
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            if (firstPaintNanos == 0) {
+                firstPaintNanos = System.nanoTime();
+                System.out.printf("First paint: %.1f ms%n", (firstPaintNanos - startNanos) / 1e6);
+            }
+        }
+
+        // Re-reads the latest observation and predicts again on a worker thread
+        void refresh() {
+            refreshButton.setEnabled(false);
+            refreshEdtNanos = 0;
+            new ForecastWorker().execute();
+        }
+
+        // Sets one day's values; the labels only repaint when their text changes
+        void setDay(int day, double minTemp, double maxTemp) {
+            dayPanels.get(day).setTemperatures(minTemp, maxTemp);
+        }
+
+        // Sets one day's medians with their P10-P90 ranges
+        void setDay(int day, double minTemp, double maxTemp, double minLow, double minHigh,
+                    double maxLow, double maxHigh) {
+            dayPanels.get(day).setTemperatures(minTemp, maxTemp, minLow, minHigh, maxLow, maxHigh);
+        }
+
+        private class ForecastWorker extends SwingWorker<String, double[]> {
+            private final long started = System.nanoTime();
+            // Read on the EDT; the worker thread never touches the panel list
+            private final int days = dayPanels.size();
+
+            @Override
+            protected String doInBackground() throws Exception {
+                if (registry == null) {
+                    // The registry knows which models to use for each target; both load in parallel
+                    ModelRegistry opened = ModelRegistry.open();
+                    if (PATHS > 0) {
+                        opened.prefetch("min", "max");
+                    } else {
+                        opened.prefetchDirect("min", "max");
+                    }
+                    registry = opened;
+                }
+                if (PATHS > 0) {
+                    return simulate();
+                }
+                TemperatureSeries history = loadSeries();
+                double[] latest = latestObservation(history);
+                DirectForecaster minDirect = registry.direct("min");
+                DirectForecaster maxDirect = registry.direct("max");
+                if (minDirect != null && maxDirect != null) {
+                    // Every day straight from the latest observation, in one pass per target
+                    double[] minTemps = minDirect.forecast(latest[0], days - 1);
+                    double[] maxTemps = maxDirect.forecast(latest[1], days - 1);
+                    publish(new double[]{0, latest[0], latest[1]});
+                    for (int i = 1; i < days; i++) {
+                        publish(new double[]{i, minTemps[i - 1], maxTemps[i - 1]});
+                    }
+                    return "Min: " + registry.directModel("min") + "  |  Max: " + registry.directModel("max")
+                            + "  (direct, " + Math.min(minDirect.horizons(), maxDirect.horizons()) + " days)";
+                }
+
+                if (!registry.features("min", registry.bestModel("min")).isLagged()
+                        || !registry.features("max", registry.bestModel("max")).isLagged()) {
+                    if (history == null || history.size() == 0) {
+                        throw new IllegalStateException("The models need the observations in " + DATA_FILE);
+                    }
+                    FeatureEngine.Scorer minChain = registry.scorer("min");
+                    FeatureEngine.Scorer maxChain = registry.scorer("max");
+                    minChain.observe(history.epochDays(), history.minTemps(), 0, history.size());
+                    maxChain.observe(history.epochDays(), history.maxTemps(), 0, history.size());
+                    double[] minTemps = minChain.forecast(days - 1);
+                    double[] maxTemps = maxChain.forecast(days - 1);
+                    publish(new double[]{0, latest[0], latest[1]});
+                    for (int i = 1; i < days; i++) {
+                        publish(new double[]{i, minTemps[i - 1], maxTemps[i - 1]});
+                    }
+                    return "Min: " + registry.bestModel("min") + "  |  Max: " + registry.bestModel("max");
+                }
+
+                TemperaturePredictor minScorer = registry.predictor("min");
+                TemperaturePredictor maxScorer = registry.predictor("max");
+                double minTemp = latest[0];
+                double maxTemp = latest[1];
+                for (int i = 0; i < days; i++) {
+                    publish(new double[]{i, minTemp, maxTemp});
+                    if (i + 1 < days) {
+                        // Predict next day's temperatures
+                        minTemp = minScorer.predict(minTemp);
+                        maxTemp = maxScorer.predict(maxTemp);
+                    }
+                }
+                return "Min: " + registry.bestModel("min") + "  |  Max: " + registry.bestModel("max");
+            }
+
+            // Medians and P10-P90 ranges of simulated paths of the chained 1-day models
+            private String simulate() throws Exception {
+                TemperatureSeries history = loadSeries();
+                double[] latest = latestObservation(history);
+                boolean observed = history != null && history.size() > 0;
+                int[] epochDays = observed ? history.epochDays() : null;
+                double[] minValues = observed ? history.minTemps() : null;
+                double[] maxValues = observed ? history.maxTemps() : null;
+                MonteCarloForecaster minSimulator = MonteCarloForecaster.fromRegistry(registry, "min", epochDays,
+                        minValues);
+                MonteCarloForecaster maxSimulator = MonteCarloForecaster.fromRegistry(registry, "max", epochDays,
+                        maxValues);
+                publish(new double[]{0, latest[0], latest[1]});
+                if (days > 1) {
+                    // Paths continue the observed history, or start from the example temperatures
+                    MonteCarloForecaster.Bands min = observed
+                            ? minSimulator.simulate(minSimulator.scorer(epochDays, minValues, minValues.length),
+                                    days - 1, PATHS)
+                            : minSimulator.simulate(latest[0], days - 1, PATHS);
+                    MonteCarloForecaster.Bands max = observed
+                            ? maxSimulator.simulate(maxSimulator.scorer(epochDays, maxValues, maxValues.length),
+                                    days - 1, PATHS)
+                            : maxSimulator.simulate(latest[1], days - 1, PATHS);
+                    for (int i = 1; i < days; i++) {
+                        publish(new double[]{i, min.p50[i - 1], max.p50[i - 1], min.p10[i - 1], min.p90[i - 1],
+                                max.p10[i - 1], max.p90[i - 1]});
+                    }
+                }
+                return "Min: " + registry.bestModel("min") + "  |  Max: " + registry.bestModel("max")
+                        + "  (P10-P90 of " + PATHS + " paths)";
+            }
+
+            @Override
+            protected void process(List<double[]> days) {
+                long start = System.nanoTime();
+                for (double[] day : days) {
+                    if (day.length > 3) {
+                        setDay((int) day[0], day[1], day[2], day[3], day[4], day[5], day[6]);
+                    } else {
+                        setDay((int) day[0], day[1], day[2]);
+                    }
+                }
+                refreshEdtNanos += System.nanoTime() - start;
+            }
+
+            @Override
+            protected void done() {
+                long start = System.nanoTime();
+                try {
+                    statusLabel.setText(get());
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace();
+                    statusLabel.setText("Forecast failed");
+                    errorHandler.accept("Error making predictions: " + e.getCause().getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                refreshButton.setEnabled(true);
+                refreshEdtNanos += System.nanoTime() - start;
+                long now = System.nanoTime();
+                if (firstForecast) {
+                    firstForecast = false;
+                    System.out.printf("First forecast: %.1f ms%n", (now - startNanos) / 1e6);
+                } else {
+                    System.out.printf("Refresh: %.1f ms (%.2f ms on the event thread)%n",
+                            (now - started) / 1e6, refreshEdtNanos / 1e6);
+                }
+                onForecast.run();
+            }
+        }
+
+        // The previous refresh: drop every day panel and build new ones (used by measure mode)
+        void rebuild(double[] minTemps, double[] maxTemps) {
+            int first = getComponentZOrder(dayPanels.get(0));
+            while (getComponentCount() > first) {
+                remove(getComponentCount() - 1);
+            }
+            List<DayPanel> rebuilt = new ArrayList<>();
+            for (int i = 0; i < dayPanels.size(); i++) {
+                DayPanel old = dayPanels.get(i);
+                DayPanel dayPanel = new DayPanel(old.dateLabel.getText(), getRelativeDay(i), i == DAYS_TO_SHOW);
+                dayPanel.setTemperatures(minTemps[i], maxTemps[i]);
+                rebuilt.add(dayPanel);
+                add(dayPanel);
+                add(Box.createVerticalStrut(15));
+            }
+            dayPanels.clear();
+            dayPanels.addAll(rebuilt);
+            revalidate();
+            repaint();
+        }
+    }
+
+    // Start the forecast from the most recent observation when the data file is available
+    private static double[] latestObservation(TemperatureSeries series) {
+        double[] latest = {15.0, 25.0};  // Example temperatures
+        if (series != null && series.size() > 0) {
+            latest[0] = series.minTemp(series.size() - 1);
+            latest[1] = series.maxTemp(series.size() - 1);
+        }
+        return latest;
     }
 
-    private double predictTemperature(Instances dataset, Classifier model, double currentTemp) throws Exception {
-        DenseInstance instance = new DenseInstance(1.0, new double[]{currentTemp, Double.NaN});
-        instance.setDataset(dataset);
-        return model.classifyInstance(instance);
+    // The observations in the data file, or null when it cannot be read
+    private static TemperatureSeries loadSeries() {
+        try {
+            return TemperatureCsvReader.read(DATA_FILE);
+        } catch (java.io.IOException e) {
+            System.err.println("Could not read " + DATA_FILE + ", using example temperatures: " + e.getMessage());
+            return null;
+        }
     }
 
-    private String getRelativeDay(int dayOffset) {
-        switch (dayOffset) {
-            case 0: return "3 days ago";
-            case 1: return "2 days ago";
-            case 2: return "Yesterday";
-            case 3: return "Today";
-            case 4: return "Tomorrow";
-            case 5: return "In 2 days";
-            case 6: return "In 3 days";
-            default: return "";
+    private static String getRelativeDay(int dayOffset) {
+        int days = dayOffset - DAYS_TO_SHOW;
+        if (days == -1) {
+            return "Yesterday";
+        } else if (days == 0) {
+            return "Today";
+        } else if (days == 1) {
+            return "Tomorrow";
+        }
+        return days < 0 ? -days + " days ago" : "In " + days + " days";
+    }
+
+    // One day of the forecast; built once with placeholders and updated in place
+    static class DayPanel extends JPanel {
+        private static final long serialVersionUID = 1L;
+
+        private final JLabel dateLabel;
+        private final JLabel minLabel;
+        private final JLabel maxLabel;
+
+        DayPanel(String date, String relativeDay, boolean isToday) {
+            setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+            setBackground(isToday ? TODAY_BACKGROUND : BACKGROUND);
+            setBorder(BorderFactory.createCompoundBorder(
+                BorderFactory.createLineBorder(isToday ? HIGHLIGHT : Color.LIGHT_GRAY, 2),
+                BorderFactory.createEmptyBorder(15, 20, 15, 20)
+            ));
+            setMaximumSize(new Dimension(450, 120));
+            setAlignmentX(Component.CENTER_ALIGNMENT);
+
+            // Date label
+            dateLabel = new JLabel(date);
+            dateLabel.setFont(DATE_FONT);
+            dateLabel.setForeground(isToday ? HIGHLIGHT : Color.BLACK);
+            dateLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+
+            // Relative day label
+            JLabel relativeDayLabel = new JLabel("(" + relativeDay + ")");
+            relativeDayLabel.setFont(isToday ? TODAY_RELATIVE_FONT : RELATIVE_FONT);
+            relativeDayLabel.setForeground(isToday ? HIGHLIGHT : Color.DARK_GRAY);
+            relativeDayLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+
+            // Temperature labels, placeholders until the forecast arrives
+            minLabel = new JLabel("Min: --");
+            minLabel.setFont(TEMPERATURE_FONT);
+            minLabel.setForeground(PLACEHOLDER);
+            minLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+
+            maxLabel = new JLabel("Max: --");
+            maxLabel.setFont(TEMPERATURE_FONT);
+            maxLabel.setForeground(PLACEHOLDER);
+            maxLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+
+            add(dateLabel);
+            add(Box.createVerticalStrut(5));
+            add(relativeDayLabel);
+            add(Box.createVerticalStrut(10));
+            add(minLabel);
+            add(Box.createVerticalStrut(5));
+            add(maxLabel);
+        }
+
+        void setTemperatures(double minTemp, double maxTemp) {
+            minLabel.setText(String.format("Min: %.1f°C", minTemp));
+            maxLabel.setText(String.format("Max: %.1f°C", maxTemp));
+            minLabel.setForeground(Color.BLACK);
+            maxLabel.setForeground(Color.BLACK);
+        }
+
+        void setTemperatures(double minTemp, double maxTemp, double minLow, double minHigh,
+                             double maxLow, double maxHigh) {
+            minLabel.setText(String.format("Min: %.1f°C  (%.1f to %.1f)", minTemp, minLow, minHigh));
+            maxLabel.setText(String.format("Max: %.1f°C  (%.1f to %.1f)", maxTemp, maxLow, maxHigh));
+            minLabel.setForeground(Color.BLACK);
+            maxLabel.setForeground(Color.BLACK);
         }
     }
 
-    private JPanel createDayPanel(String date, String relativeDay, double minTemp, double maxTemp, boolean isToday) {
-        JPanel dayPanel = new JPanel();
-        dayPanel.setLayout(new BoxLayout(dayPanel, BoxLayout.Y_AXIS));
-        dayPanel.setBackground(isToday ? new Color(230, 240, 255) : new Color(240, 248, 255));
-        dayPanel.setBorder(BorderFactory.createCompoundBorder(
-            BorderFactory.createLineBorder(isToday ? new Color(30, 144, 255) : Color.LIGHT_GRAY, 2),
-            BorderFactory.createEmptyBorder(15, 20, 15, 20)
-        ));
-        dayPanel.setMaximumSize(new Dimension(450, 120));
-        dayPanel.setAlignmentX(Component.CENTER_ALIGNMENT);
-
-        // Date label
-        JLabel dateLabel = new JLabel(date);
-        dateLabel.setFont(new Font("Arial", Font.BOLD, 16));
-        dateLabel.setForeground(isToday ? new Color(30, 144, 255) : Color.BLACK);
-        dateLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
-
-        // Relative day label
-        JLabel relativeDayLabel = new JLabel("(" + relativeDay + ")");
-        relativeDayLabel.setFont(new Font("Arial", isToday ? Font.BOLD : Font.PLAIN, 14));
-        relativeDayLabel.setForeground(isToday ? new Color(30, 144, 255) : Color.DARK_GRAY);
-        relativeDayLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
-
-        // Temperature labels
-        JLabel minLabel = new JLabel(String.format("Min: %.1f°C", minTemp));
-        minLabel.setFont(new Font("Arial", Font.PLAIN, 15));
-        minLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
-
-        JLabel maxLabel = new JLabel(String.format("Max: %.1f°C", maxTemp));
-        maxLabel.setFont(new Font("Arial", Font.PLAIN, 15));
-        maxLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
-
-        dayPanel.add(dateLabel);
-        dayPanel.add(Box.createVerticalStrut(5));
-        dayPanel.add(relativeDayLabel);
-        dayPanel.add(Box.createVerticalStrut(10));
-        dayPanel.add(minLabel);
-        dayPanel.add(Box.createVerticalStrut(5));
-        dayPanel.add(maxLabel);
-
-        return dayPanel;
+    static int horizon() {
+        return Math.max(0, Math.min(MAX_HORIZON, Integer.getInteger("display.horizon", DAYS_TO_SHOW)));
     }
 
+    // java TemperatureDisplay           opens the window
+    // java TemperatureDisplay measure   renders the panel off-screen (works headless) and
+    //                                   compares refreshing in place with rebuilding the panels
     public static void main(String[] args) {
+        long startNanos = System.nanoTime();
+        if (args.length > 0 && args[0].equals("measure")) {
+            try {
+                measure(startNanos);
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
         SwingUtilities.invokeLater(() -> {
-            TemperatureDisplay display = new TemperatureDisplay();
+            TemperatureDisplay display = new TemperatureDisplay(horizon(), startNanos);
             display.setVisible(true);
         });
     }
+
+    private static void measure(long startNanos) throws Exception {
+        int horizon = horizon();
+        ForecastPanel[] panel = new ForecastPanel[1];
+        BufferedImage image = new BufferedImage(460, 4000, BufferedImage.TYPE_INT_RGB);
+        CountDownLatch forecast = new CountDownLatch(1);
+
+        // Before: the window painted nothing until models were loaded and every day predicted
+        // After: the skeleton paints first and the forecast fills it in
+        SwingUtilities.invokeAndWait(() -> {
+            panel[0] = new ForecastPanel(horizon, startNanos);
+            panel[0].setOnForecast(forecast::countDown);
+            paintOffscreen(panel[0], image);
+            panel[0].refresh();
+        });
+        forecast.await();
+        SwingUtilities.invokeAndWait(() -> paintOffscreen(panel[0], image));
+        System.out.println("(Before this change the first paint came after the first forecast)");
+
+        // Refresh cost on the event thread, in place against rebuilding every panel
+        int days = panel[0].days();
+        double[] minTemps = new double[days];
+        double[] maxTemps = new double[days];
+        int rounds = 2000;
+        for (String mode : new String[]{"in place", "rebuild", "in place", "rebuild"}) {
+            long[] elapsed = new long[1];
+            SwingUtilities.invokeAndWait(() -> {
+                long start = System.nanoTime();
+                for (int round = 0; round < rounds; round++) {
+                    for (int i = 0; i < days; i++) {
+                        // Alternate values so every label really changes
+                        minTemps[i] = 10 + i * 0.1 + (round & 1);
+                        maxTemps[i] = 20 + i * 0.1 + (round & 1);
+                    }
+                    if (mode.equals("rebuild")) {
+                        panel[0].rebuild(minTemps, maxTemps);
+                    } else {
+                        for (int i = 0; i < days; i++) {
+                            panel[0].setDay(i, minTemps[i], maxTemps[i]);
+                        }
+                    }
+                    paintOffscreen(panel[0], image);
+                }
+                elapsed[0] = System.nanoTime() - start;
+            });
+            System.out.printf("Refresh %-8s (%d days, layout and paint included): %.1f us%n", mode, days,
+                    elapsed[0] / 1e3 / rounds);
+        }
+    }
+
+    // Lays the panel out at its preferred height and paints it into the image
+    private static void paintOffscreen(JComponent component, BufferedImage image) {
+        Dimension size = component.getPreferredSize();
+        component.setSize(image.getWidth(), Math.min(size.height, image.getHeight()));
+        layoutTree(component);
+        Graphics2D g = image.createGraphics();
+        try {
+            component.paint(g);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    private static void layoutTree(Container container) {
+        container.doLayout();
+        for (Component child : container.getComponents()) {
+            if (child instanceof Container) {
+                layoutTree((Container) child);
+            }
+        }
+    }
 }
@@ -2,185 +2,351 @@ import org.jfree.chart.ChartFactory;
 import org.jfree.chart.ChartUtils;
 import org.jfree.chart.JFreeChart;
 import org.jfree.chart.plot.XYPlot;
+import org.jfree.chart.renderer.xy.DeviationRenderer;
 import org.jfree.chart.renderer.xy.XYLineAndShapeRenderer;
+import org.jfree.data.xy.DefaultXYDataset;
 import org.jfree.data.xy.XYSeries;
 import org.jfree.data.xy.XYSeriesCollection;
-import weka.classifiers.Classifier;
-import weka.core.DenseInstance;
-import weka.core.Instances;
-import weka.core.SerializationHelper;
+import org.jfree.data.xy.YIntervalSeries;
+import org.jfree.data.xy.YIntervalSeriesCollection;
 
 import java.awt.Color;
 import java.awt.Font;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+// Actual vs predicted charts for the best model of each target.
+//
+// Charts cover the last plotter.days days, or the whole history with plotter.days=0.
+// Each line is reduced to at most plotter.maxPoints points with Largest-Triangle-Three-
+// Buckets (see Lttb) and handed to JFreeChart as primitive arrays through
+// DefaultXYDataset. Every chart is rendered and PNG-encoded as its own task on a
+// plotter.parallelism pool, so the min and max charts, or the charts of many stations,
+// are produced in parallel.
+//
+//   java TemperaturePlotter                plots/min_temp_comparison.png, plots/max_temp_comparison.png
+//   java TemperaturePlotter stations       two charts per trained station in plots/stations/, see StationForecaster
+//   java TemperaturePlotter bands [days]   plots/<target>_forecast_bands.png: the last plotter.days days and the
+//                                          P10/P50/P90 forecast of the next days, see MonteCarloForecaster
+//   java TemperaturePlotter bench [years]  rendering time and memory for a synthetic series
+//
+//   -Dplotter.days=30   -Dplotter.maxPoints=2000   -Dplotter.parallelism=<cores>   -Dplotter.paths=10000
 public class TemperaturePlotter {
     private static final String DATA_FILE = "data/daily_temp.csv";
+    private static final String STORE_FILE = "data/daily_temp.tss";
+    private static final int DAYS_TO_PLOT = Integer.getInteger("plotter.days", 30);
+    private static final int MAX_POINTS = Integer.getInteger("plotter.maxPoints", 2000);
+    private static final int PARALLELISM = Integer.getInteger("plotter.parallelism",
+            Runtime.getRuntime().availableProcessors());
+    private static final int PATHS = Integer.getInteger("plotter.paths", 10_000);
     private static final String OUTPUT_DIR = "plots/";
+    private static final String[] TARGETS = {"min", "max"};
+    // Markers only help while individual days can be told apart
+    private static final int MAX_POINTS_WITH_SHAPES = 120;
+    private static final int WIDTH = 1000;
+    private static final int HEIGHT = 600;
+    private static final long MILLIS_PER_DAY = 86_400_000L;
+
+    // One actual vs predicted chart; predicted[i] is the forecast for day i + 1
+    static class Chart {
+        final String title;
+        final File file;
+        final double[] millis;
+        final double[] actual;
+        final double[] predicted;
+
+        Chart(String title, File file, double[] millis, double[] actual, double[] predicted) {
+            this.title = title;
+            this.file = file;
+            this.millis = millis;
+            this.actual = actual;
+            this.predicted = predicted;
+        }
+    }
 
     public static void main(String[] args) {
         try {
-            // Create output directory
-            new File(OUTPUT_DIR).mkdirs();
-
-            // Load models
-            Classifier minModel = (Classifier) SerializationHelper.read("model/min/random_forest.model");
-            Classifier maxModel = (Classifier) SerializationHelper.read("model/max/random_forest.model");
-
-            // Create datasets for plotting
-            XYSeries actualMinTemp = new XYSeries("Actual Min Temperature");
-            XYSeries predictedMinTemp = new XYSeries("Predicted Min Temperature");
-            XYSeries actualMaxTemp = new XYSeries("Actual Max Temperature");
-            XYSeries predictedMaxTemp = new XYSeries("Predicted Max Temperature");
-
-            // Read data and make predictions
-            BufferedReader reader = new BufferedReader(new FileReader(DATA_FILE));
-            reader.readLine(); // Skip header
-
-            String line;
-            int dayIndex = 0;
-            double prevMinTemp = 0;
-            double prevMaxTemp = 0;
-            boolean isFirst = true;
-
-            // Store all lines in memory first
-            ArrayList<String> allLines = new ArrayList<>();
-            while ((line = reader.readLine()) != null) {
-                if (!line.trim().isEmpty()) {
-                    allLines.add(line);
-                }
+            String command = args.length > 0 ? args[0] : "plot";
+            switch (command) {
+                case "plot":
+                    plotBestModels();
+                    break;
+                case "stations":
+                    plotStations();
+                    break;
+                case "bands":
+                    plotBands(args.length > 1 ? Integer.parseInt(args[1]) : 7);
+                    break;
+                case "bench":
+                    benchmark(args.length > 1 ? Integer.parseInt(args[1]) : 20);
+                    break;
+                default:
+                    System.err.println("Usage: TemperaturePlotter [plot | stations | bands [days] | bench [years]]");
+                    System.exit(2);
+            }
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private static void plotBestModels() throws Exception {
+        new File(OUTPUT_DIR).mkdirs();
+
+        // Load the best model for each target
+        ModelRegistry registry = ModelRegistry.open();
+        registry.prefetch(TARGETS);
+        // Feature models need the days before the first plotted one
+        int history = 1;
+        for (String target : TARGETS) {
+            history = Math.max(history, registry.features(target, registry.bestModel(target)).history());
+        }
+        TemperatureSeries series = DAYS_TO_PLOT > 0 ? loadRecentDays(DAYS_TO_PLOT + history - 1) : loadAll();
+
+        long start = System.nanoTime();
+        List<Chart> charts = new ArrayList<>();
+        for (String target : TARGETS) {
+            charts.add(chart(series, DAYS_TO_PLOT, target, registry.scorer(target),
+                    new File(OUTPUT_DIR + target + "_temp_comparison.png")));
+        }
+        renderAll(charts, PARALLELISM, MAX_POINTS);
+        System.out.printf("Plots have been created successfully in the %s directory (%d ms)%n", OUTPUT_DIR,
+                (System.nanoTime() - start) / 1_000_000);
+    }
+
+    // Recent history of each target followed by the simulated forecast range
+    private static void plotBands(int days) throws Exception {
+        new File(OUTPUT_DIR).mkdirs();
+        ModelRegistry registry = ModelRegistry.open();
+        registry.prefetch(TARGETS);
+        TemperatureSeries series = loadAll();
+        if (series.size() == 0) {
+            throw new IllegalStateException("No observations in " + DATA_FILE);
+        }
+
+        long start = System.nanoTime();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        int[] epochDays = series.epochDays();
+        for (String target : TARGETS) {
+            double[] values = target.equals("min") ? series.minTemps() : series.maxTemps();
+            MonteCarloForecaster forecaster = MonteCarloForecaster.fromRegistry(registry, target, epochDays, values);
+            MonteCarloForecaster.Bands bands = forecaster.simulate(
+                    forecaster.scorer(epochDays, values, values.length), days, PATHS);
+            File file = new File(OUTPUT_DIR + target + "_forecast_bands.png");
+            tasks.add(() -> {
+                saveBands(file, series, target, bands, DAYS_TO_PLOT > 0 ? DAYS_TO_PLOT : series.size());
+                return null;
+            });
+        }
+        runAll(tasks, PARALLELISM);
+        System.out.printf("Forecast bands of %d paths have been created in the %s directory (%d ms)%n", PATHS,
+                OUTPUT_DIR, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    static void saveBands(File file, TemperatureSeries series, String target, MonteCarloForecaster.Bands bands,
+                          int historyDays) throws IOException {
+        ChartUtils.saveChartAsPNG(file, createBandsChart(series, target, bands, historyDays), WIDTH, HEIGHT);
+    }
+
+    // Actual values as a line; P50 with a shaded P10-P90 band from the last observation on
+    static JFreeChart createBandsChart(TemperatureSeries series, String target, MonteCarloForecaster.Bands bands,
+                                       int historyDays) {
+        int from = Math.max(0, series.size() - historyDays);
+        int last = series.size() - 1;
+        double[] millis = new double[series.size() - from];
+        double[] actual = new double[millis.length];
+        for (int i = from; i <= last; i++) {
+            millis[i - from] = series.epochDay(i) * (double) MILLIS_PER_DAY;
+            actual[i - from] = target.equals("min") ? series.minTemp(i) : series.maxTemp(i);
+        }
+        DefaultXYDataset history = new DefaultXYDataset();
+        history.addSeries("Actual Temperature", Lttb.downsample(millis, actual, 0, millis.length, MAX_POINTS));
+
+        // The band starts at the last observation so it joins the actual line
+        YIntervalSeries forecast = new YIntervalSeries("Forecast P50 (P10-P90)");
+        double lastValue = actual[actual.length - 1];
+        forecast.add(millis[millis.length - 1], lastValue, lastValue, lastValue);
+        for (int d = 0; d < bands.days(); d++) {
+            forecast.add((series.epochDay(last) + d + 1) * (double) MILLIS_PER_DAY, bands.p50[d], bands.p10[d],
+                    bands.p90[d]);
+        }
+        YIntervalSeriesCollection range = new YIntervalSeriesCollection();
+        range.addSeries(forecast);
+
+        String name = target.equals("min") ? "Minimum" : "Maximum";
+        JFreeChart chart = ChartFactory.createTimeSeriesChart(name + " Temperature: " + bands.days()
+                + "-Day Forecast Range (" + bands.paths + " paths)", "Date", "Temperature (°C)", history);
+        style(chart, millis.length + bands.days() <= MAX_POINTS_WITH_SHAPES);
+        XYPlot plot = chart.getXYPlot();
+        DeviationRenderer renderer = new DeviationRenderer(true, false);
+        renderer.setSeriesPaint(0, new Color(255, 102, 102));
+        renderer.setSeriesFillPaint(0, new Color(255, 102, 102));
+        renderer.setAlpha(0.25f);
+        renderer.setSeriesStroke(0, new java.awt.BasicStroke(2.0f));
+        plot.setDataset(1, range);
+        plot.setRenderer(1, renderer);
+        return chart;
+    }
+
+    // Every station StationForecaster has trained; each station is one task that loads its
+    // data, predicts and renders both charts, so only PARALLELISM stations are in memory
+    private static void plotStations() throws Exception {
+        Path dataDir = Paths.get(System.getProperty("stations.dataDir", "data" + File.separator + "stations"));
+        Path modelDir = Paths.get(System.getProperty("stations.modelDir", "model" + File.separator + "stations"));
+        Path outputDir = Paths.get(OUTPUT_DIR, "stations");
+        Files.createDirectories(outputDir);
+        List<String> stations = StationForecaster.fromProperties(dataDir, modelDir).stations();
+
+        long start = System.nanoTime();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (String station : stations) {
+            if (!Files.isDirectory(modelDir.resolve(station))) {
+                continue;
             }
-            reader.close();
-
-            // Process only the last 30 days
-            int startIndex = Math.max(0, allLines.size() - 30);
-            for (int i = startIndex; i < allLines.size(); i++) {
-                line = allLines.get(i);
-                String[] values = line.split(",");
-                
-                // Parse date and temperatures
-                java.time.LocalDate date = java.time.LocalDate.parse(values[0]);
-                double minTemp = Double.parseDouble(values[1]);
-                double maxTemp = Double.parseDouble(values[2]);
-
-                actualMinTemp.add(dayIndex, minTemp);
-                actualMaxTemp.add(dayIndex, maxTemp);
-
-                if (!isFirst) {
-                    // Create instances for prediction
-                    double predictedMin = makePrediction(minModel, prevMinTemp);
-                    double predictedMax = makePrediction(maxModel, prevMaxTemp);
-                    
-                    predictedMinTemp.add(dayIndex, predictedMin);
-                    predictedMaxTemp.add(dayIndex, predictedMax);
+            tasks.add(() -> {
+                TemperatureSeries series = TemperatureCsvReader.read(dataDir.resolve(station + ".csv").toString());
+                ModelRegistry registry = new ModelRegistry(modelDir.resolve(station).toString(), TARGETS.length);
+                for (String target : TARGETS) {
+                    Chart chart = chart(series, DAYS_TO_PLOT, target, registry.scorer(target),
+                            outputDir.resolve(station + "_" + target + ".png").toFile());
+                    save(chart, MAX_POINTS);
                 }
+                return null;
+            });
+        }
+        runAll(tasks, PARALLELISM);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Plotted %d stations in %.1f s (%.1f charts/s) into %s%n", tasks.size(), seconds,
+                2 * tasks.size() / seconds, outputDir);
+    }
 
-                prevMinTemp = minTemp;
-                prevMaxTemp = maxTemp;
-                isFirst = false;
-                dayIndex++;
+    // Reads only the tail blocks from the columnar store when it is up to date with the CSV
+    private static TemperatureSeries loadRecentDays(int days) throws Exception {
+        File csv = new File(DATA_FILE);
+        File store = new File(STORE_FILE);
+        if (store.exists() && store.lastModified() >= csv.lastModified()) {
+            try (TemperatureStore reader = TemperatureStore.open(STORE_FILE)) {
+                return reader.readTail(days);
             }
+        }
+        return loadAll();
+    }
 
-            // Create and save minimum temperature plot
-            createAndSavePlot(
-                actualMinTemp, 
-                predictedMinTemp, 
-                "Last 30 Days - Minimum Temperature: Actual vs Predicted",
-                "Days",
-                "Temperature (°C)",
-                "min_temp_comparison.png"
-            );
-
-            // Create and save maximum temperature plot
-            createAndSavePlot(
-                actualMaxTemp, 
-                predictedMaxTemp, 
-                "Last 30 Days - Maximum Temperature: Actual vs Predicted",
-                "Days",
-                "Temperature (°C)",
-                "max_temp_comparison.png"
-            );
-
-            System.out.println("Plots have been created successfully in the " + OUTPUT_DIR + " directory");
+    private static TemperatureSeries loadAll() throws Exception {
+        TemperatureSeries series = TemperatureStore.loadSeries(DATA_FILE, STORE_FILE);
+        series.reportMalformedRows();
+        return series;
+    }
 
-        } catch (Exception e) {
-            System.err.println("Error: " + e.getMessage());
-            e.printStackTrace();
+    // The last days of one target (all of them when days is 0), each day predicted after
+    // the scorer has observed the days before it; lag-1 models score them in one batch
+    static Chart chart(TemperatureSeries series, int days, String target, FeatureEngine.Scorer scorer, File file)
+            throws Exception {
+        int start = days > 0 ? Math.max(0, series.size() - days) : 0;
+        int count = series.size() - start;
+        int[] epochDays = series.epochDays();
+        double[] values = target.equals("min") ? series.minTemps() : series.maxTemps();
+        double[] millis = new double[count];
+        for (int i = 0; i < count; i++) {
+            millis[i] = epochDays[start + i] * (double) MILLIS_PER_DAY;
+        }
+        double[] actual = Arrays.copyOfRange(values, start, series.size());
+        scorer.observe(epochDays, values, 0, start);
+        double[] predicted = count > 1 ? scorer.walk(epochDays, values, start, series.size() - 1) : new double[0];
+
+        String span = days > 0 ? "Last " + count + " Days"
+                : count > 0 ? series.date(start) + " to " + series.date(series.size() - 1) : "No Data";
+        String name = target.equals("min") ? "Minimum" : "Maximum";
+        return new Chart(span + " - " + name + " Temperature: Actual vs Predicted", file, millis, actual, predicted);
+    }
+
+    // Renders and encodes the charts in parallel
+    static void renderAll(List<Chart> charts, int parallelism, int maxPoints) throws Exception {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Chart chart : charts) {
+            tasks.add(() -> {
+                save(chart, maxPoints);
+                return null;
+            });
         }
+        runAll(tasks, parallelism);
     }
 
-    private static double makePrediction(Classifier model, double prevTemp) throws Exception {
-        // Create attributes matching the training data structure
-        ArrayList<weka.core.Attribute> attributes = new ArrayList<>();
-        attributes.add(new weka.core.Attribute("prev_temp"));
-        attributes.add(new weka.core.Attribute("month"));
-        attributes.add(new weka.core.Attribute("day"));
-        attributes.add(new weka.core.Attribute("next_temp"));
-
-        Instances dataset = new Instances("PredictionData", attributes, 0);
-        dataset.setClassIndex(3); // next_temp is the target
-        
-        // Create instance with appropriate features
-        double[] values = new double[4];
-        values[0] = prevTemp;
-        // Use current month and day as features (this could be improved by using actual dates)
-        values[1] = java.time.LocalDate.now().getMonthValue();
-        values[2] = java.time.LocalDate.now().getDayOfMonth();
-        values[3] = Double.NaN; // This is what we're predicting
-        
-        DenseInstance instance = new DenseInstance(1.0, values);
-        instance.setDataset(dataset);
-        
-        return model.classifyInstance(instance);
-    }
-
-    private static void createAndSavePlot(
-            XYSeries actualSeries, 
-            XYSeries predictedSeries, 
-            String title,
-            String xLabel,
-            String yLabel,
-            String filename) throws Exception {
-        
-        // Only keep the last 30 days of data
-        int dataSize = actualSeries.getItemCount();
-        if (dataSize > 30) {
-            for (int i = 0; i < dataSize - 30; i++) {
-                actualSeries.remove(0);
-                if (predictedSeries.getItemCount() > 0) {
-                    predictedSeries.remove(0);
+    private static void runAll(List<Callable<Void>> tasks, int parallelism) throws Exception {
+        if (parallelism <= 1 || tasks.size() <= 1) {
+            for (Callable<Void> task : tasks) {
+                task.call();
+            }
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, tasks.size()));
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
                 }
             }
+        } finally {
+            pool.shutdownNow();
         }
+    }
 
-        XYSeriesCollection dataset = new XYSeriesCollection();
-        dataset.addSeries(actualSeries);
-        dataset.addSeries(predictedSeries);
+    static void save(Chart chart, int maxPoints) throws IOException {
+        ChartUtils.saveChartAsPNG(chart.file, createChart(chart, maxPoints), WIDTH, HEIGHT);
+    }
 
-        JFreeChart chart = ChartFactory.createXYLineChart(
-            title,
-            xLabel,
-            yLabel,
-            dataset
-        );
+    // Both lines downsampled to maxPoints and wrapped as primitive arrays
+    static JFreeChart createChart(Chart chart, int maxPoints) {
+        int n = chart.millis.length;
+        double[][] actual = Lttb.downsample(chart.millis, chart.actual, 0, n, maxPoints);
+        // The prediction for day i + 1 is drawn at day i + 1
+        double[] predictedMillis = n > 1 ? Arrays.copyOfRange(chart.millis, 1, n) : new double[0];
+        // Feature models have no forecast until they have seen enough days
+        int first = 0;
+        while (first < chart.predicted.length && Double.isNaN(chart.predicted[first])) {
+            first++;
+        }
+        double[][] predicted = Lttb.downsample(predictedMillis, chart.predicted, first, predictedMillis.length,
+                maxPoints);
 
+        DefaultXYDataset dataset = new DefaultXYDataset();
+        dataset.addSeries("Actual Temperature", actual);
+        dataset.addSeries("Predicted Temperature", predicted);
+        JFreeChart created = ChartFactory.createTimeSeriesChart(chart.title, "Date", "Temperature (°C)", dataset);
+        style(created, actual[0].length <= MAX_POINTS_WITH_SHAPES);
+        return created;
+    }
+
+    private static void style(JFreeChart chart, boolean shapes) {
         // Customize the plot
         XYPlot plot = chart.getXYPlot();
         XYLineAndShapeRenderer renderer = new XYLineAndShapeRenderer();
-        
+
         // Set series colors and styles
         renderer.setSeriesPaint(0, new Color(0, 102, 204));    // Actual temperature - dark blue
         renderer.setSeriesPaint(1, new Color(255, 102, 102));  // Predicted temperature - coral red
-        renderer.setSeriesStroke(0, new java.awt.BasicStroke(2.5f));
-        renderer.setSeriesStroke(1, new java.awt.BasicStroke(2.5f, java.awt.BasicStroke.CAP_ROUND, java.awt.BasicStroke.JOIN_ROUND, 
+        float width = shapes ? 2.5f : 1.0f;
+        renderer.setSeriesStroke(0, new java.awt.BasicStroke(width));
+        renderer.setSeriesStroke(1, new java.awt.BasicStroke(width, java.awt.BasicStroke.CAP_ROUND, java.awt.BasicStroke.JOIN_ROUND,
                                                           1.0f, new float[]{6.0f, 6.0f}, 0.0f));  // Dashed line for predictions
 
-        // Show shapes at data points
-        renderer.setSeriesShapesVisible(0, true);
-        renderer.setSeriesShapesVisible(1, true);
+        // Show shapes at data points while there are few enough of them
+        renderer.setSeriesShapesVisible(0, shapes);
+        renderer.setSeriesShapesVisible(1, shapes);
         renderer.setSeriesShape(0, new java.awt.geom.Ellipse2D.Double(-3, -3, 6, 6));
         renderer.setSeriesShape(1, new java.awt.geom.Rectangle2D.Double(-3, -3, 6, 6));
 
@@ -189,16 +355,16 @@ public class TemperaturePlotter {
         plot.setRangeGridlinePaint(Color.LIGHT_GRAY);
         plot.setDomainGridlinesVisible(true);
         plot.setRangeGridlinesVisible(true);
-        
+
         // Set background
         plot.setBackgroundPaint(Color.WHITE);
         chart.setBackgroundPaint(Color.WHITE);
-        
+
         // Customize the range axis (temperature)
         plot.getRangeAxis().setTickLabelFont(new Font("Arial", Font.PLAIN, 12));
         plot.getRangeAxis().setLabelFont(new Font("Arial", Font.BOLD, 14));
-        
-        // Customize the domain axis (days)
+
+        // Customize the domain axis (dates)
         plot.getDomainAxis().setTickLabelFont(new Font("Arial", Font.PLAIN, 12));
         plot.getDomainAxis().setLabelFont(new Font("Arial", Font.BOLD, 14));
 
@@ -207,13 +373,93 @@ public class TemperaturePlotter {
         // Add legend with custom font
         chart.getLegend().setItemFont(new Font("Arial", Font.PLAIN, 12));
         chart.getTitle().setFont(new Font("Arial", Font.BOLD, 16));
+    }
+
+    // The previous pipeline for comparison: every point as an XYDataItem in an XYSeries
+    private static JFreeChart createSeriesChart(Chart chart) {
+        XYSeries actual = new XYSeries("Actual Temperature");
+        XYSeries predicted = new XYSeries("Predicted Temperature");
+        for (int i = 0; i < chart.millis.length; i++) {
+            actual.add(chart.millis[i], chart.actual[i]);
+            if (i > 0) {
+                predicted.add(chart.millis[i], chart.predicted[i - 1]);
+            }
+        }
+        XYSeriesCollection dataset = new XYSeriesCollection();
+        dataset.addSeries(actual);
+        dataset.addSeries(predicted);
+        JFreeChart created = ChartFactory.createTimeSeriesChart(chart.title, "Date", "Temperature (°C)", dataset);
+        style(created, true);
+        return created;
+    }
+
+    // Renders a synthetic series of the given length with the previous pipeline (all
+    // points in XYSeries, markers on), with primitive arrays only, and with LTTB, then
+    // renders several charts sequentially and on the pool
+    private static void benchmark(int years) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        Path dir = Files.createTempDirectory("plotter-bench");
+        try {
+            StationForecaster.generate(dir, 1, years);
+            TemperatureSeries series = TemperatureCsvReader.read(dir.resolve("ST00000.csv").toString());
+            FeatureEngine.Scorer scorer = ModelRegistry.open().scorer("min");
+            Chart chart = chart(series, 0, "min", scorer, dir.resolve("chart.png").toFile());
+            System.out.printf("%d years, %d days, %dx%d PNG, %d thread(s)%n%n", years, series.size(), WIDTH, HEIGHT,
+                    PARALLELISM);
 
-        // Save the chart as PNG with higher resolution
-        ChartUtils.saveChartAsPNG(
-            new File(OUTPUT_DIR + filename),
-            chart,
-            1000,   // width
-            600     // height
-        );
+            System.out.printf("%-34s %10s %14s %14s %10s%n", "Pipeline", "Time (ms)", "Dataset (KB)",
+                    "Render (MB)", "PNG (KB)");
+            String[] labels = {"XYSeries, all points, markers", "DefaultXYDataset, all points",
+                    "DefaultXYDataset, LTTB " + MAX_POINTS};
+            for (int variant = 0; variant < labels.length; variant++) {
+                long bestNanos = Long.MAX_VALUE;
+                long datasetBytes = 0;
+                long renderBytes = 0;
+                for (int round = 0; round < 5; round++) {
+                    long before = threads.getThreadAllocatedBytes(threadId);
+                    long start = System.nanoTime();
+                    JFreeChart rendered = variant == 0 ? createSeriesChart(chart)
+                            : createChart(chart, variant == 1 ? Integer.MAX_VALUE : MAX_POINTS);
+                    long built = threads.getThreadAllocatedBytes(threadId);
+                    ChartUtils.saveChartAsPNG(chart.file, rendered, WIDTH, HEIGHT);
+                    long nanos = System.nanoTime() - start;
+                    // The first rounds warm up the JIT and the font caches
+                    if (round >= 2 && nanos < bestNanos) {
+                        bestNanos = nanos;
+                        datasetBytes = built - before;
+                        renderBytes = threads.getThreadAllocatedBytes(threadId) - built;
+                    }
+                }
+                System.out.printf("%-34s %10.1f %14.1f %14.1f %10.1f%n", labels[variant], bestNanos / 1e6,
+                        datasetBytes / 1e3, renderBytes / 1e6, chart.file.length() / 1e3);
+            }
+
+            int count = 16;
+            List<Chart> charts = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                charts.add(new Chart(chart.title, dir.resolve("chart" + i + ".png").toFile(), chart.millis,
+                        chart.actual, chart.predicted));
+            }
+            System.out.println();
+            for (int parallelism : new int[]{1, PARALLELISM}) {
+                renderAll(charts, parallelism, MAX_POINTS);
+                long start = System.nanoTime();
+                renderAll(charts, parallelism, MAX_POINTS);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%d charts on %d thread(s): %.2f s (%.1f charts/s)%n", count, parallelism, seconds,
+                        count / seconds);
+                if (PARALLELISM == 1) {
+                    break;
+                }
+            }
+        } finally {
+            try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(dir);
+        }
     }
-}
\ No newline at end of file
+}
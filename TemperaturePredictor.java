@@ -0,0 +1,42 @@
+import weka.classifiers.Classifier;
+import weka.classifiers.functions.LinearRegression;
+import weka.classifiers.functions.SMOreg;
+import weka.classifiers.trees.RandomForest;
+
+// Next-day forecast from the current day's temperature, for one target (min or max)
+public interface TemperaturePredictor {
+    double predict(double currentTemp) throws Exception;
+
+    // Scores inputs[i] into outputs[i]; implementations must not allocate per call
+    void predict(double[] inputs, double[] outputs) throws Exception;
+
+    default double[] predict(double[] inputs) throws Exception {
+        double[] outputs = new double[inputs.length];
+        predict(inputs, outputs);
+        return outputs;
+    }
+
+    // Scores one row of a multi-feature model (see FeatureEngine); a single feature is the
+    // current temperature
+    default double predictRow(double[] features) throws Exception {
+        if (features.length != 1) {
+            throw new IllegalArgumentException("Predictor takes one input, got " + features.length + " features");
+        }
+        return predict(features[0]);
+    }
+
+    // Picks the fastest available scorer for a trained model
+    static TemperaturePredictor forModel(Classifier model, String prefix) throws Exception {
+        if (model instanceof RandomForest) {
+            return CompiledForest.compile((RandomForest) model);
+        }
+        if (model instanceof SMOreg || model instanceof LinearRegression) {
+            try {
+                return CompiledRegression.compile(model);
+            } catch (IllegalArgumentException e) {
+                // kernel, filter or input layout without an exported form
+            }
+        }
+        return new BatchScorer(model, prefix);
+    }
+}
@@ -0,0 +1,100 @@
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Daily (date, min, max) observations held in primitive columns. Dates are stored
+// as epoch days so that no LocalDate objects are needed on the ingestion path.
+public class TemperatureSeries {
+    private int[] epochDays;
+    private double[] minTemps;
+    private double[] maxTemps;
+    private int size;
+    private final List<MalformedRow> malformedRows = new ArrayList<>();
+
+    // A row that could not be parsed, located by line number and byte offset in the source
+    public static class MalformedRow {
+        public final long offset;
+        public final long lineNumber;
+        public final String reason;
+
+        MalformedRow(long offset, long lineNumber, String reason) {
+            this.offset = offset;
+            this.lineNumber = lineNumber;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return "line " + lineNumber + " (byte " + offset + "): " + reason;
+        }
+    }
+
+    public TemperatureSeries(int initialCapacity) {
+        int capacity = Math.max(16, initialCapacity);
+        epochDays = new int[capacity];
+        minTemps = new double[capacity];
+        maxTemps = new double[capacity];
+    }
+
+    public void add(int epochDay, double minTemp, double maxTemp) {
+        if (size == epochDays.length) {
+            int capacity = size + (size >> 1);
+            epochDays = Arrays.copyOf(epochDays, capacity);
+            minTemps = Arrays.copyOf(minTemps, capacity);
+            maxTemps = Arrays.copyOf(maxTemps, capacity);
+        }
+        epochDays[size] = epochDay;
+        minTemps[size] = minTemp;
+        maxTemps[size] = maxTemp;
+        size++;
+    }
+
+    void addMalformed(long offset, long lineNumber, String reason) {
+        malformedRows.add(new MalformedRow(offset, lineNumber, reason));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int epochDay(int index) {
+        return epochDays[index];
+    }
+
+    public LocalDate date(int index) {
+        return LocalDate.ofEpochDay(epochDays[index]);
+    }
+
+    public double minTemp(int index) {
+        return minTemps[index];
+    }
+
+    public double maxTemp(int index) {
+        return maxTemps[index];
+    }
+
+    // Column accessors return trimmed copies so callers cannot see spare capacity
+    public int[] epochDays() {
+        return Arrays.copyOf(epochDays, size);
+    }
+
+    public double[] minTemps() {
+        return Arrays.copyOf(minTemps, size);
+    }
+
+    public double[] maxTemps() {
+        return Arrays.copyOf(maxTemps, size);
+    }
+
+    public List<MalformedRow> malformedRows() {
+        return malformedRows;
+    }
+
+    // Helper method to print skipped rows the way the loaders always have
+    public void reportMalformedRows() {
+        for (MalformedRow row : malformedRows) {
+            System.err.println("Skipping malformed " + row);
+        }
+    }
+}
@@ -0,0 +1,540 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Arrays;
+
+// Append-only columnar store for the (date, min, max) series.
+//
+// The segment file is a sequence of blocks of up to BLOCK_ROWS rows. Inside a block
+// the dates are varint day deltas and each temperature column is XOR-compressed
+// (Gorilla style). A companion .idx file holds one fixed-size entry per block with its
+// date range and position, so range and tail queries only read the blocks they need.
+public class TemperatureStore implements Closeable {
+    private static final int SEGMENT_MAGIC = 0x54535331;  // "TSS1"
+    private static final int INDEX_MAGIC = 0x54534931;    // "TSI1"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int INDEX_ENTRY_BYTES = 24;
+    private static final int BLOCK_ROWS = 256;
+
+    private final FileChannel segment;
+    private final FileChannel index;
+
+    // Block index, loaded once on open and extended on append
+    private int blockCount;
+    private int[] blockFirstDay = new int[16];
+    private int[] blockLastDay = new int[16];
+    private long[] blockOffset = new long[16];
+    private int[] blockRows = new int[16];
+    private int[] blockBytes = new int[16];
+    private int rowCount;
+
+    // Number of blocks decoded by the most recent query
+    private int blocksRead;
+
+    private TemperatureStore(FileChannel segment, FileChannel index) {
+        this.segment = segment;
+        this.index = index;
+    }
+
+    public static TemperatureStore open(String path) throws IOException {
+        Path segmentPath = Paths.get(path);
+        Path indexPath = Paths.get(path + ".idx");
+        FileChannel segment = FileChannel.open(segmentPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        FileChannel index = FileChannel.open(indexPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        TemperatureStore store = new TemperatureStore(segment, index);
+        try {
+            store.initialize();
+        } catch (IOException e) {
+            store.close();
+            throw e;
+        }
+        return store;
+    }
+
+    // Helper method to read the series from the store when it is at least as new as the CSV
+    public static TemperatureSeries loadSeries(String csvPath, String storePath) throws IOException {
+        File csv = new File(csvPath);
+        File store = new File(storePath);
+        if (store.exists() && store.lastModified() >= csv.lastModified()) {
+            try (TemperatureStore reader = open(storePath)) {
+                return reader.readAll();
+            }
+        }
+        return TemperatureCsvReader.read(csvPath);
+    }
+
+    // One-shot conversion of a CSV file into a fresh store
+    public static TemperatureSeries convert(String csvPath, String storePath) throws IOException {
+        TemperatureSeries series = TemperatureCsvReader.read(csvPath);
+        Files.deleteIfExists(Paths.get(storePath));
+        Files.deleteIfExists(Paths.get(storePath + ".idx"));
+        try (TemperatureStore store = open(storePath)) {
+            store.append(series);
+        }
+        return series;
+    }
+
+    private void initialize() throws IOException {
+        if (segment.size() == 0) {
+            writeHeader(segment, SEGMENT_MAGIC);
+            writeHeader(index, INDEX_MAGIC);
+            return;
+        }
+        checkHeader(segment, SEGMENT_MAGIC);
+        checkHeader(index, INDEX_MAGIC);
+
+        // A torn trailing index entry from an interrupted append is ignored
+        int entries = (int) ((index.size() - HEADER_BYTES) / INDEX_ENTRY_BYTES);
+        ByteBuffer buffer = ByteBuffer.allocate(entries * INDEX_ENTRY_BYTES);
+        readFully(index, buffer, HEADER_BYTES);
+        buffer.flip();
+        for (int i = 0; i < entries; i++) {
+            addBlock(buffer.getInt(), buffer.getInt(), buffer.getLong(), buffer.getInt(), buffer.getInt());
+        }
+    }
+
+    // Appends rows dated after the last stored day; returns the number of rows written.
+    // The new rows are checked before anything is written, so a rejected append leaves
+    // the store as it was.
+    public int append(TemperatureSeries series) throws IOException {
+        int lastDay = blockCount == 0 ? Integer.MIN_VALUE : blockLastDay[blockCount - 1];
+        int start = 0;
+        while (start < series.size() && series.epochDay(start) <= lastDay) {
+            start++;
+        }
+        // Row start is after the stored last day; every later row must follow the one
+        // before it, across block boundaries too, or range and tail reads lose rows
+        for (int i = start + 1; i < series.size(); i++) {
+            if (series.epochDay(i) <= series.epochDay(i - 1)) {
+                throw new IOException("Dates must be strictly increasing: " + series.date(i));
+            }
+        }
+
+        // Blocks go after the last indexed block, overwriting any unindexed tail
+        long offset = blockCount == 0 ? HEADER_BYTES : blockOffset[blockCount - 1] + blockBytes[blockCount - 1];
+        ByteBuffer entries = ByteBuffer.allocate(((series.size() - start) / BLOCK_ROWS + 1) * INDEX_ENTRY_BYTES);
+        int written = 0;
+        for (int from = start; from < series.size(); from += BLOCK_ROWS) {
+            int to = Math.min(series.size(), from + BLOCK_ROWS);
+            byte[] block = encodeBlock(series, from, to);
+            writeFully(segment, ByteBuffer.wrap(block), offset);
+
+            entries.putInt(series.epochDay(from)).putInt(series.epochDay(to - 1))
+                   .putLong(offset).putInt(to - from).putInt(block.length);
+            offset += block.length;
+            written += to - from;
+        }
+        segment.truncate(offset);
+        segment.force(false);
+
+        // The index is written last so that it never points at a partial block, and the
+        // blocks are only registered in memory once it has been
+        entries.flip();
+        writeFully(index, entries.duplicate(), HEADER_BYTES + (long) blockCount * INDEX_ENTRY_BYTES);
+        index.truncate(HEADER_BYTES + (long) (blockCount + entries.remaining() / INDEX_ENTRY_BYTES) * INDEX_ENTRY_BYTES);
+        index.force(false);
+        while (entries.hasRemaining()) {
+            addBlock(entries.getInt(), entries.getInt(), entries.getLong(), entries.getInt(), entries.getInt());
+        }
+        return written;
+    }
+
+    public TemperatureSeries readAll() throws IOException {
+        return readBlocks(0, blockCount, Integer.MIN_VALUE, Integer.MAX_VALUE, rowCount);
+    }
+
+    // Rows with from <= date <= to
+    public TemperatureSeries readRange(LocalDate from, LocalDate to) throws IOException {
+        int fromDay = (int) from.toEpochDay();
+        int toDay = (int) to.toEpochDay();
+        // First block whose last day is not before the range
+        int lo = 0;
+        int hi = blockCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (blockLastDay[mid] < fromDay) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int end = lo;
+        int rows = 0;
+        while (end < blockCount && blockFirstDay[end] <= toDay) {
+            rows += blockRows[end];
+            end++;
+        }
+        return readBlocks(lo, end, fromDay, toDay, rows);
+    }
+
+    // The most recent n rows
+    public TemperatureSeries readTail(int n) throws IOException {
+        int start = blockCount;
+        int rows = 0;
+        while (start > 0 && rows < n) {
+            start--;
+            rows += blockRows[start];
+        }
+        TemperatureSeries blocks = readBlocks(start, blockCount, Integer.MIN_VALUE, Integer.MAX_VALUE, rows);
+        TemperatureSeries tail = new TemperatureSeries(n);
+        for (int i = Math.max(0, blocks.size() - n); i < blocks.size(); i++) {
+            tail.add(blocks.epochDay(i), blocks.minTemp(i), blocks.maxTemp(i));
+        }
+        return tail;
+    }
+
+    public int size() {
+        return rowCount;
+    }
+
+    public LocalDate firstDate() {
+        return blockCount == 0 ? null : LocalDate.ofEpochDay(blockFirstDay[0]);
+    }
+
+    public LocalDate lastDate() {
+        return blockCount == 0 ? null : LocalDate.ofEpochDay(blockLastDay[blockCount - 1]);
+    }
+
+    public int blocksRead() {
+        return blocksRead;
+    }
+
+    private TemperatureSeries readBlocks(int startBlock, int endBlock, int fromDay, int toDay, int expectedRows)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        TemperatureSeries result = new TemperatureSeries(expectedRows);
+        blocksRead = 0;
+        if (startBlock >= endBlock) {
+            return result;
+        }
+
+        // Consecutive blocks are contiguous on disk, so one read covers the whole span
+        long start = blockOffset[startBlock];
+        long end = blockOffset[endBlock - 1] + blockBytes[endBlock - 1];
+        ByteBuffer buffer = ByteBuffer.allocate((int) (end - start));
+        readFully(segment, buffer, start);
+        byte[] bytes = buffer.array();
+
+        int[] days = new int[BLOCK_ROWS];
+        double[] mins = new double[BLOCK_ROWS];
+        double[] maxs = new double[BLOCK_ROWS];
+        for (int b = startBlock; b < endBlock; b++) {
+            int rows = blockRows[b];
+            BitReader reader = new BitReader(bytes, (int) (blockOffset[b] - start));
+            decodeBlock(reader, blockFirstDay[b], rows, days, mins, maxs);
+            for (int i = 0; i < rows; i++) {
+                if (days[i] >= fromDay && days[i] <= toDay) {
+                    result.add(days[i], mins[i], maxs[i]);
+                }
+            }
+            blocksRead++;
+        }
+        Metrics.histogram("data_load", "store").recordSince(startNanos);
+        Metrics.increment("rows_ingested", result.size());
+        return result;
+    }
+
+    // Block layout: varint day deltas, then each temperature column XOR-compressed
+    private static byte[] encodeBlock(TemperatureSeries series, int from, int to) {
+        BitWriter writer = new BitWriter((to - from) * 4);
+        for (int i = from + 1; i < to; i++) {
+            writer.writeVarint(series.epochDay(i) - series.epochDay(i - 1));
+        }
+        XorEncoder minEncoder = new XorEncoder();
+        for (int i = from; i < to; i++) {
+            minEncoder.encode(writer, series.minTemp(i));
+        }
+        XorEncoder maxEncoder = new XorEncoder();
+        for (int i = from; i < to; i++) {
+            maxEncoder.encode(writer, series.maxTemp(i));
+        }
+        return writer.toByteArray();
+    }
+
+    private static void decodeBlock(BitReader reader, int firstDay, int rows,
+                                    int[] days, double[] mins, double[] maxs) {
+        days[0] = firstDay;
+        for (int i = 1; i < rows; i++) {
+            days[i] = days[i - 1] + reader.readVarint();
+        }
+        XorDecoder minDecoder = new XorDecoder();
+        for (int i = 0; i < rows; i++) {
+            mins[i] = minDecoder.decode(reader);
+        }
+        XorDecoder maxDecoder = new XorDecoder();
+        for (int i = 0; i < rows; i++) {
+            maxs[i] = maxDecoder.decode(reader);
+        }
+    }
+
+    private void addBlock(int firstDay, int lastDay, long offset, int rows, int bytes) {
+        if (blockCount == blockFirstDay.length) {
+            int capacity = blockCount * 2;
+            blockFirstDay = Arrays.copyOf(blockFirstDay, capacity);
+            blockLastDay = Arrays.copyOf(blockLastDay, capacity);
+            blockOffset = Arrays.copyOf(blockOffset, capacity);
+            blockRows = Arrays.copyOf(blockRows, capacity);
+            blockBytes = Arrays.copyOf(blockBytes, capacity);
+        }
+        blockFirstDay[blockCount] = firstDay;
+        blockLastDay[blockCount] = lastDay;
+        blockOffset[blockCount] = offset;
+        blockRows[blockCount] = rows;
+        blockBytes[blockCount] = bytes;
+        blockCount++;
+        rowCount += rows;
+    }
+
+    private static void writeHeader(FileChannel channel, int magic) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(magic).putInt(VERSION);
+        header.flip();
+        writeFully(channel, header, 0);
+    }
+
+    private static void checkHeader(FileChannel channel, int magic) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != magic) {
+            throw new IOException("Not a temperature store file");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported temperature store version: " + version);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of temperature store");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            segment.close();
+        } finally {
+            index.close();
+        }
+    }
+
+    // Gorilla XOR encoding: unchanged values cost one bit, small changes reuse the
+    // previous window of meaningful bits
+    private static class XorEncoder {
+        private long previous;
+        private int leading = Integer.MAX_VALUE;
+        private int trailing;
+        private boolean first = true;
+
+        void encode(BitWriter writer, double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            if (first) {
+                writer.writeBits(bits, 64);
+                previous = bits;
+                first = false;
+                return;
+            }
+            long xor = bits ^ previous;
+            previous = bits;
+            if (xor == 0) {
+                writer.writeBit(false);
+                return;
+            }
+            writer.writeBit(true);
+            int newLeading = Math.min(31, Long.numberOfLeadingZeros(xor));
+            int newTrailing = Long.numberOfTrailingZeros(xor);
+            if (leading != Integer.MAX_VALUE && newLeading >= leading && newTrailing >= trailing) {
+                writer.writeBit(false);
+                writer.writeBits(xor >>> trailing, 64 - leading - trailing);
+            } else {
+                leading = newLeading;
+                trailing = newTrailing;
+                int meaningful = 64 - leading - trailing;
+                writer.writeBit(true);
+                writer.writeBits(leading, 5);
+                // 64 meaningful bits is stored as 0
+                writer.writeBits(meaningful & 63, 6);
+                writer.writeBits(xor >>> trailing, meaningful);
+            }
+        }
+    }
+
+    private static class XorDecoder {
+        private long previous;
+        private int leading;
+        private int trailing;
+        private boolean first = true;
+
+        double decode(BitReader reader) {
+            if (first) {
+                previous = reader.readBits(64);
+                first = false;
+                return Double.longBitsToDouble(previous);
+            }
+            if (reader.readBit()) {
+                if (reader.readBit()) {
+                    leading = (int) reader.readBits(5);
+                    int meaningful = (int) reader.readBits(6);
+                    if (meaningful == 0) {
+                        meaningful = 64;
+                    }
+                    trailing = 64 - leading - meaningful;
+                }
+                long xor = reader.readBits(64 - leading - trailing) << trailing;
+                previous ^= xor;
+            }
+            return Double.longBitsToDouble(previous);
+        }
+    }
+
+    private static class BitWriter {
+        private byte[] bytes;
+        private long bitPosition;
+
+        BitWriter(int initialBytes) {
+            bytes = new byte[Math.max(16, initialBytes)];
+        }
+
+        void writeBit(boolean bit) {
+            ensureCapacity(1);
+            if (bit) {
+                bytes[(int) (bitPosition >>> 3)] |= (byte) (0x80 >>> (bitPosition & 7));
+            }
+            bitPosition++;
+        }
+
+        void writeBits(long value, int count) {
+            ensureCapacity(count);
+            for (int i = count - 1; i >= 0; i--) {
+                if (((value >>> i) & 1) != 0) {
+                    bytes[(int) (bitPosition >>> 3)] |= (byte) (0x80 >>> (bitPosition & 7));
+                }
+                bitPosition++;
+            }
+        }
+
+        // Zig-zag varint in 7-bit groups
+        void writeVarint(int value) {
+            int zigzag = (value << 1) ^ (value >> 31);
+            while ((zigzag & ~0x7F) != 0) {
+                writeBits((zigzag & 0x7F) | 0x80, 8);
+                zigzag >>>= 7;
+            }
+            writeBits(zigzag, 8);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, (int) ((bitPosition + 7) >>> 3));
+        }
+
+        private void ensureCapacity(int bits) {
+            int needed = (int) ((bitPosition + bits + 7) >>> 3);
+            if (needed > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+            }
+        }
+    }
+
+    private static class BitReader {
+        private final byte[] bytes;
+        private long bitPosition;
+
+        BitReader(byte[] bytes, int byteOffset) {
+            this.bytes = bytes;
+            this.bitPosition = (long) byteOffset << 3;
+        }
+
+        boolean readBit() {
+            boolean bit = (bytes[(int) (bitPosition >>> 3)] & (0x80 >>> (bitPosition & 7))) != 0;
+            bitPosition++;
+            return bit;
+        }
+
+        long readBits(int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                value = (value << 1) | (readBit() ? 1 : 0);
+            }
+            return value;
+        }
+
+        int readVarint() {
+            int zigzag = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = (int) readBits(8);
+                zigzag |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+    }
+
+    // Accepts yyyy-MM-dd, or yyyy-MM for a whole month
+    private static LocalDate parseBound(String text, boolean start) {
+        if (text.length() == 7) {
+            YearMonth month = YearMonth.parse(text);
+            return start ? month.atDay(1) : month.atEndOfMonth();
+        }
+        return LocalDate.parse(text);
+    }
+
+    public static void main(String[] args) {
+        try {
+            if (args.length >= 2 && args[0].equals("convert")) {
+                String csvPath = args[1];
+                String storePath = args.length > 2 ? args[2] : csvPath.replaceAll("\\.csv$", "") + ".tss";
+                TemperatureSeries series = convert(csvPath, storePath);
+                series.reportMalformedRows();
+                System.out.println("Wrote " + series.size() + " rows to " + storePath + " ("
+                        + new File(storePath).length() + " bytes, CSV was " + new File(csvPath).length() + " bytes)");
+            } else if (args.length >= 3 && args[0].equals("range")) {
+                try (TemperatureStore store = open(args[1])) {
+                    LocalDate from = parseBound(args[2], true);
+                    LocalDate to = args.length > 3 ? parseBound(args[3], false) : parseBound(args[2], false);
+                    print(store.readRange(from, to), store);
+                }
+            } else if (args.length >= 3 && args[0].equals("tail")) {
+                try (TemperatureStore store = open(args[1])) {
+                    print(store.readTail(Integer.parseInt(args[2])), store);
+                }
+            } else {
+                System.out.println("Usage: TemperatureStore convert <csv> [store]");
+                System.out.println("       TemperatureStore range <store> <from> [to]   (yyyy-MM or yyyy-MM-dd)");
+                System.out.println("       TemperatureStore tail <store> <days>");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void print(TemperatureSeries series, TemperatureStore store) {
+        for (int i = 0; i < series.size(); i++) {
+            System.out.println(series.date(i) + "," + series.minTemp(i) + "," + series.maxTemp(i));
+        }
+        System.out.println(series.size() + " rows from " + store.blocksRead() + " of " + store.blockCount + " blocks");
+    }
+}
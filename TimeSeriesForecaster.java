@@ -1,27 +1,37 @@
-import weka.classifiers.functions.LinearRegression;
-import weka.classifiers.functions.SMOreg;
-import weka.classifiers.trees.RandomForest;
 import weka.classifiers.evaluation.Evaluation;
-import weka.core.Attribute;
-import weka.core.DenseInstance;
 import weka.core.Instances;
 import weka.core.SerializationHelper;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.util.ArrayList;
-import java.util.Random;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.io.File;
 
 public class TimeSeriesForecaster {
     // Configuration constants
     private static final String DATA_FILE = "data/daily_temp.csv";
+    private static final String STORE_FILE = "data/daily_temp.tss";
     private static final double EXAMPLE_MIN_TEMP = 15.0;
     private static final double EXAMPLE_MAX_TEMP = 25.0;
+    private static final int NUM_FOLDS = 10;
+    private static final String[] MODELS = {"Linear Regression", "Random Forest", "Support Vector Regression"};
+    private static final long CV_SEED = 1;
+    // Number of worker threads for training; override with -Dforecaster.parallelism=N
+    private static final int PARALLELISM = Integer.getInteger("forecaster.parallelism",
+                                                              Runtime.getRuntime().availableProcessors());
+    // "cv" (10-fold cross-validation) or "walkforward" (time-ordered backtest)
+    private static final boolean WALK_FORWARD = "walkforward".equals(System.getProperty("forecaster.evaluation", "cv"));
+    private static final int BACKTEST_WINDOW = 3 * 365;
+    private static final int BACKTEST_HORIZONS = 7;
+    private static final int BACKTEST_REFIT_EVERY = Integer.getInteger("backtest.refitEvery", 90);
+    // Training rows: "lag1" (today's value) or "engine" (lags, rolling window and season
+    // from -Dfeatures.lags and -Dfeatures.window), see FeatureEngine
+    private static final FeatureEngine FEATURES = FeatureEngine.named(
+            System.getProperty("forecaster.features", "lag1"), 1);
+    // Reuse models trained on identical data and settings, see TrainingCache; -Dforecaster.cache=false retrains
+    private static final TrainingCache CACHE = Boolean.parseBoolean(System.getProperty("forecaster.cache", "true"))
+            ? TrainingCache.open() : null;
 
-    private static class ModelMetrics {
+    static class ModelMetrics {
         double rmse;
         double mae;
         double correlation;
@@ -35,10 +45,26 @@ public class TimeSeriesForecaster {
         }
     }
 
-    private static ModelMetrics evaluateModel(String modelName, weka.classifiers.Classifier model, Instances dataset) throws Exception {
-        // Perform 10-fold cross-validation
-        Evaluation eval = new Evaluation(dataset);
-        eval.crossValidateModel(model, dataset, 10, new Random(1));
+    // Scores the model by walk-forward backtest; selection uses the 1-day horizon
+    private static ModelMetrics backtestModel(String modelName, ParallelTrainer.TrainingResult result,
+                                              double[] values, String prefix) throws Exception {
+        WalkForwardBacktester backtester = new WalkForwardBacktester(BACKTEST_WINDOW, BACKTEST_HORIZONS,
+                                                                     BACKTEST_REFIT_EVERY, PARALLELISM);
+        // Every candidate is refit on the same schedule with its trained options, so the
+        // scores compare like with like
+        WalkForwardBacktester.Result backtest = backtester.run(
+                WalkForwardBacktester.wekaLearner(result.model, prefix), values);
+        backtest.print(modelName);
+
+        return new ModelMetrics(backtest.rmse(1),
+                              backtest.mae(1),
+                              backtest.correlation(1),
+                              result.model);
+    }
+
+    private static ModelMetrics evaluateModel(String modelName, ParallelTrainer.TrainingResult result) throws Exception {
+        // 10-fold cross-validation results, merged by the trainer in fold order
+        Evaluation eval = result.evaluation;
 
         // Print evaluation metrics
         System.out.println("\n=== " + modelName + " ===");
@@ -47,10 +73,29 @@ public class TimeSeriesForecaster {
         System.out.println("Correlation Coefficient: " + eval.correlationCoefficient());
         System.out.println("Relative Absolute Error: " + eval.relativeAbsoluteError() + "%");
 
-        return new ModelMetrics(eval.rootMeanSquaredError(), 
-                              eval.meanAbsoluteError(), 
+        return crossValidated(modelName, result);
+    }
+
+    // The cross-validation metrics of a trained model, without printing them
+    static ModelMetrics crossValidated(String modelName, ParallelTrainer.TrainingResult result) throws Exception {
+        Evaluation eval = result.evaluation;
+        return new ModelMetrics(eval.rootMeanSquaredError(),
+                              eval.meanAbsoluteError(),
                               eval.correlationCoefficient(),
-                              model);
+                              result.model);
+    }
+
+    // Cross-validation metrics, or the walk-forward backtest of the target's values
+    private static Evaluator evaluator(String prefix, double[] values) {
+        if (WALK_FORWARD) {
+            return (modelName, result) -> backtestModel(modelName, result, values, prefix);
+        }
+        return TimeSeriesForecaster::evaluateModel;
+    }
+
+    // Combined score (lower is better) - weighted average of normalized metrics
+    static double score(double rmse, double mae, double correlation) {
+        return rmse * 0.4 + mae * 0.4 + (1 - correlation) * 0.2;
     }
 
     private static String findBestModel(Map<String, ModelMetrics> models) {
@@ -58,11 +103,7 @@ public class TimeSeriesForecaster {
         double bestScore = Double.POSITIVE_INFINITY;
 
         for (Map.Entry<String, ModelMetrics> entry : models.entrySet()) {
-            // Combined score (lower is better) - weighted average of normalized metrics
-            double score = entry.getValue().rmse * 0.4 + 
-                          entry.getValue().mae * 0.4 + 
-                          (1 - entry.getValue().correlation) * 0.2;
-            
+            double score = score(entry.getValue().rmse, entry.getValue().mae, entry.getValue().correlation);
             if (score < bestScore) {
                 bestScore = score;
                 bestModel = entry.getKey();
@@ -72,102 +113,172 @@ public class TimeSeriesForecaster {
         return bestModel;
     }
 
-    // Helper method to create dataset attributes
-    private static ArrayList<Attribute> createAttributes(String prefix) {
-        ArrayList<Attribute> attributes = new ArrayList<>();
-        attributes.add(new Attribute("current_" + prefix + "_temp"));
-        attributes.add(new Attribute("next_" + prefix + "_temp"));
-        return attributes;
+    // Scores a trained candidate for model selection
+    interface Evaluator {
+        ModelMetrics evaluate(String modelName, ParallelTrainer.TrainingResult result) throws Exception;
     }
 
-    // Helper method to load data from CSV
-    private static void loadDataFromCSV(BufferedReader reader, Instances minDataset, Instances maxDataset) throws Exception {
-        String line;
-        reader.readLine(); // Skip header
-        
-        while ((line = reader.readLine()) != null) {
-            String[] values = line.split(",");
-            if (values.length < 3) {
-                System.err.println("Skipping malformed line: " + line);
-                continue;
-            }
+    // The training of one target, shared by main, Pipeline and StationForecaster. Every
+    // candidate is fit on the same feature rows and recorded with its metrics and, when
+    // cross-validated, its out-of-fold residuals for MonteCarloForecaster. The best by
+    // score() becomes the target's model, and the direct horizons are trained with it.
+    static class TargetTraining {
+        final String target;
+        // Metrics per candidate, in the order they were submitted
+        final Map<String, ModelMetrics> models = new LinkedHashMap<>();
+        private final ModelRegistry registry;
+        private final FeatureEngine features;
+        private final String[] modelNames;
+        private final ParallelTrainer.PendingModel[] pending;
+        private final double[] values;
+        private String best;
 
-            double minTemp = Double.parseDouble(values[1]);
-            double maxTemp = Double.parseDouble(values[2]);
+        // Submits every candidate's fits without waiting, so both targets can share a pool
+        TargetTraining(ParallelTrainer trainer, ModelRegistry registry, String target, String[] modelNames,
+                       FeatureEngine features, int[] days, double[] values) throws Exception {
+            this.target = target;
+            this.registry = registry;
+            this.features = features;
+            this.modelNames = modelNames;
+            this.values = values;
+            // Options chosen by HyperparameterSearch are used where it has been run
+            Instances rows = features.dataset(target, days, values, 0, values.length);
+            pending = new ParallelTrainer.PendingModel[modelNames.length];
+            for (int m = 0; m < modelNames.length; m++) {
+                pending[m] = trainer.submit(registry.newLearner(target, modelNames[m]), rows);
+            }
+        }
 
-            // Add to datasets
-            addToDataset(minDataset, minTemp);
-            addToDataset(maxDataset, maxTemp);
+        // Waits for the fits in submission order, records every model and the winner with
+        // the range of values it was trained on; the caller saves the registry
+        String select(Evaluator evaluator) throws Exception {
+            for (int m = 0; m < modelNames.length; m++) {
+                ParallelTrainer.TrainingResult result = pending[m].get();
+                ModelMetrics metrics = evaluator.evaluate(modelNames[m], result);
+                models.put(modelNames[m], metrics);
+                registry.record(target, modelNames[m], result.model, features,
+                        metrics.rmse, metrics.mae, metrics.correlation);
+                if (result.evaluation != null) {
+                    registry.recordResiduals(target, modelNames[m], MonteCarloForecaster.residuals(result.evaluation));
+                }
+            }
+            best = findBestModel(models);
+            registry.setBest(target, best);
+            recordInputRange(registry, target, values);
+            return best;
         }
-    }
 
-    // Helper method to add temperature to dataset
-    private static void addToDataset(Instances dataset, double temp) {
-        dataset.add(new DenseInstance(1.0, new double[]{temp, Double.NaN}));
-        if (dataset.size() > 1) {
-            dataset.instance(dataset.size() - 2).setValue(1, temp);
+        // One model per horizon with the winning learner, see DirectForecaster. They take
+        // today's value only, so feature models drop them and forecast recursively instead;
+        // horizons == 0 drops them too. Returns whether any were trained.
+        boolean trainDirect(ParallelTrainer trainer, int horizons) throws Exception {
+            if (horizons <= 0 || !features.isLagged()) {
+                registry.removeDirect(target);
+                return false;
+            }
+            weka.classifiers.Classifier[] direct = DirectForecaster.train(trainer,
+                    registry.newLearner(target, best), target, values, 0, values.length, horizons);
+            registry.recordDirect(target, best, direct);
+            return true;
         }
     }
 
-    // Helper method to train and evaluate a specific type of model
-    private static void trainAndEvaluateModel(String modelType, weka.classifiers.Classifier model, 
-                                            Instances dataset, Map<String, ModelMetrics> models,
-                                            String temperatureType) throws Exception {
-        model.buildClassifier(dataset);
-        models.put(modelType, evaluateModel(modelType, model, dataset));
-        
+    // Helper method to save the lag-1 models of a target as .model files
+    private static void saveModels(TargetTraining training) throws Exception {
         // Create directory if it doesn't exist
-        String modelDir = "model/" + temperatureType.toLowerCase();
+        String modelDir = "model/" + training.target.toLowerCase();
         new File(modelDir).mkdirs();
-        
-        // Save the trained model
-        String modelPath = modelDir + "/" + modelType.toLowerCase().replace(" ", "_") + ".model";
-        SerializationHelper.write(modelPath, model);
-        System.out.println("Saved " + temperatureType + " " + modelType + " model to: " + modelPath);
+
+        for (Map.Entry<String, ModelMetrics> entry : training.models.entrySet()) {
+            String modelPath = modelDir + "/" + entry.getKey().toLowerCase().replace(" ", "_") + ".model";
+            SerializationHelper.write(modelPath, entry.getValue().model);
+            System.out.println("Saved " + training.target + " " + entry.getKey() + " model to: " + modelPath);
+        }
+    }
+
+    // Helper method to record the range of values the models were trained on
+    static void recordInputRange(ModelRegistry registry, String target, double[] values) {
+        double low = Double.POSITIVE_INFINITY;
+        double high = Double.NEGATIVE_INFINITY;
+        for (double value : values) {
+            low = Math.min(low, value);
+            high = Math.max(high, value);
+        }
+        if (values.length > 0) {
+            registry.setInputRange(target, low, high);
+        }
     }
 
-    // Helper method to make predictions
-    private static double predict(Instances dataset, Map<String, ModelMetrics> models, 
-                                String bestModel, double currentTemp) throws Exception {
-        DenseInstance instance = new DenseInstance(1.0, new double[]{currentTemp, Double.NaN});
-        instance.setDataset(dataset);
-        return models.get(bestModel).model.classifyInstance(instance);
+    // Helper method to make predictions: currentTemp is observed as the day after the history
+    private static double predict(String prefix, Map<String, ModelMetrics> models, String bestModel,
+                                  int[] days, double[] values, double currentTemp) throws Exception {
+        FeatureEngine.Scorer scorer = FEATURES.new Scorer(models.get(bestModel).model, prefix);
+        scorer.observe(days, values, 0, values.length);
+        scorer.observe(days[days.length - 1] + 1, currentTemp);
+        return scorer.predict();
     }
 
     public static void main(String[] args) {
         try {
-            // Initialize datasets
-            Instances minTempDataset = new Instances("MinTemperatureData", createAttributes("min"), 0);
-            Instances maxTempDataset = new Instances("MaxTemperatureData", createAttributes("max"), 0);
-            minTempDataset.setClassIndex(1);
-            maxTempDataset.setClassIndex(1);
-
             // Load data
-            try (BufferedReader reader = new BufferedReader(new FileReader(DATA_FILE))) {
-                loadDataFromCSV(reader, minTempDataset, maxTempDataset);
+            TemperatureSeries series = TemperatureStore.loadSeries(DATA_FILE, STORE_FILE);
+            series.reportMalformedRows();
+            int[] days = series.epochDays();
+            double[] minValues = series.minTemps();
+            double[] maxValues = series.maxTemps();
+            if (WALK_FORWARD && !FEATURES.isLagged()) {
+                throw new IllegalArgumentException("The walk-forward backtest scores lag-1 models only;"
+                        + " use -Dforecaster.evaluation=cv with -Dforecaster.features=" + FEATURES.describe());
             }
 
-            // Remove last incomplete instances
-            minTempDataset.delete(minTempDataset.size() - 1);
-            maxTempDataset.delete(maxTempDataset.size() - 1);
+            System.out.println("Features: " + FEATURES.describe());
 
-            // Train and evaluate models for minimum temperature
-            System.out.println("\n=== Minimum Temperature Models ===");
-            Map<String, ModelMetrics> minTempModels = new HashMap<>();
-            trainAndEvaluateModel("Linear Regression", new LinearRegression(), minTempDataset, minTempModels, "min");
-            trainAndEvaluateModel("Random Forest", new RandomForest(), minTempDataset, minTempModels, "min");
-            trainAndEvaluateModel("Support Vector Regression", new SMOreg(), minTempDataset, minTempModels, "min");
+            ModelRegistry registry = ModelRegistry.open();
+            TargetTraining min;
+            TargetTraining max;
+            // Walk-forward mode backtests instead of cross-validating, so only full fits are needed
+            try (ParallelTrainer trainer = new ParallelTrainer(PARALLELISM, WALK_FORWARD ? 0 : NUM_FOLDS, CV_SEED)) {
+                trainer.setCache(CACHE);
+                // Schedule every model x target x fold fit up front, on (today, tomorrow)
+                // pairs or FeatureEngine rows read from primitive arrays, see SeriesDataset
+                min = new TargetTraining(trainer, registry, "min", MODELS, FEATURES, days, minValues);
+                max = new TargetTraining(trainer, registry, "max", MODELS, FEATURES, days, maxValues);
 
-            // Train and evaluate models for maximum temperature
-            System.out.println("\n=== Maximum Temperature Models ===");
-            Map<String, ModelMetrics> maxTempModels = new HashMap<>();
-            trainAndEvaluateModel("Linear Regression", new LinearRegression(), maxTempDataset, maxTempModels, "max");
-            trainAndEvaluateModel("Random Forest", new RandomForest(), maxTempDataset, maxTempModels, "max");
-            trainAndEvaluateModel("Support Vector Regression", new SMOreg(), maxTempDataset, maxTempModels, "max");
+                // Train and evaluate models for minimum temperature
+                System.out.println("\n=== Minimum Temperature Models ===");
+                min.select(evaluator("min", minValues));
 
-            // Find best models
-            String bestMinTempModel = findBestModel(minTempModels);
-            String bestMaxTempModel = findBestModel(maxTempModels);
+                // Train and evaluate models for maximum temperature
+                System.out.println("\n=== Maximum Temperature Models ===");
+                max.select(evaluator("max", maxValues));
+            }
+            if (FEATURES.isLagged()) {
+                // The .model files are read back as lag-1 models
+                saveModels(min);
+                saveModels(max);
+            }
+            String bestMinTempModel = min.best;
+            String bestMaxTempModel = max.best;
+            Map<String, ModelMetrics> minTempModels = min.models;
+            Map<String, ModelMetrics> maxTempModels = max.models;
+            registry.setLastObservedDay(series.epochDay(series.size() - 1));
+
+            // Direct multi-horizon models with the winning learner of each target; feature
+            // models forecast recursively instead
+            try (ParallelTrainer trainer = new ParallelTrainer(PARALLELISM, 0, CV_SEED)) {
+                trainer.setCache(CACHE);
+                for (TargetTraining training : new TargetTraining[]{min, max}) {
+                    long start = System.nanoTime();
+                    if (training.trainDirect(trainer, DirectForecaster.DEFAULT_HORIZONS)) {
+                        System.out.printf("Trained %d direct %s %s horizons in %.1f s%n", DirectForecaster.DEFAULT_HORIZONS,
+                                training.target, training.best, (System.nanoTime() - start) / 1e9);
+                    }
+                }
+            }
+            registry.save();
+            if (CACHE != null) {
+                System.out.println("\nTraining cache: " + CACHE.hits() + " hits, " + CACHE.misses() + " misses");
+            }
 
             // Print results
             System.out.println("\n=== Model Comparison Results ===");
@@ -179,8 +290,8 @@ public class TimeSeriesForecaster {
             System.out.println("Current min temp: " + EXAMPLE_MIN_TEMP);
             System.out.println("Current max temp: " + EXAMPLE_MAX_TEMP);
 
-            double predictedMinTemp = predict(minTempDataset, minTempModels, bestMinTempModel, EXAMPLE_MIN_TEMP);
-            double predictedMaxTemp = predict(maxTempDataset, maxTempModels, bestMaxTempModel, EXAMPLE_MAX_TEMP);
+            double predictedMinTemp = predict("min", minTempModels, bestMinTempModel, days, minValues, EXAMPLE_MIN_TEMP);
+            double predictedMaxTemp = predict("max", maxTempModels, bestMaxTempModel, days, maxValues, EXAMPLE_MAX_TEMP);
 
             System.out.println("Predicted min temperature: " + predictedMinTemp);
             System.out.println("Predicted max temperature: " + predictedMaxTemp);
@@ -0,0 +1,173 @@
+import weka.classifiers.Classifier;
+import weka.classifiers.evaluation.Evaluation;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.OptionHandler;
+import weka.core.SerializationHelper;
+import weka.core.Utils;
+import weka.core.Version;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Content-addressed store of trained models and their cross-validation results.
+//
+// The key is a SHA-256 over everything a fit depends on: the learner class and its
+// options, the dataset schema and every value and weight in it, the number of folds and
+// the seed, and the Weka version. Equal keys give equal models, so a hit returns the
+// stored model and Evaluation instead of training again. Entries are single files,
+// <key>.cache, written atomically. Reading an entry refreshes its modification time,
+// and the least recently used entries are deleted once the directory exceeds
+// cache.maxMB.
+//
+//   -Dcache.dir=model/cache   -Dcache.maxMB=512
+public class TrainingCache {
+    private static final String EXTENSION = ".cache";
+    private static final int FORMAT = 1;
+
+    private final Path dir;
+    private final long maxBytes;
+    private int hits;
+    private int misses;
+
+    public static class Entry {
+        public final Classifier model;
+        // null when the model was trained without cross-validation
+        public final Evaluation evaluation;
+
+        Entry(Classifier model, Evaluation evaluation) {
+            this.model = model;
+            this.evaluation = evaluation;
+        }
+    }
+
+    public TrainingCache(Path dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    public static TrainingCache open() {
+        return new TrainingCache(Paths.get(System.getProperty("cache.dir", "model" + File.separator + "cache")),
+                Long.getLong("cache.maxMB", 512) << 20);
+    }
+
+    public static String key(Classifier template, Instances dataset, int numFolds, long seed) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        StringBuilder settings = new StringBuilder();
+        settings.append(FORMAT).append('\n').append(Version.VERSION).append('\n');
+        settings.append(template.getClass().getName()).append('\n');
+        if (template instanceof OptionHandler) {
+            settings.append(Utils.joinOptions(((OptionHandler) template).getOptions())).append('\n');
+        }
+        settings.append(numFolds).append('/').append(seed).append('\n');
+        settings.append(dataset.relationName()).append('/').append(dataset.classIndex()).append('\n');
+        for (int a = 0; a < dataset.numAttributes(); a++) {
+            settings.append(dataset.attribute(a)).append('\n');
+        }
+        digest.update(settings.toString().getBytes(StandardCharsets.UTF_8));
+
+        int attributes = dataset.numAttributes();
+        ByteBuffer row = ByteBuffer.allocate((attributes + 1) * Double.BYTES);
+        for (int i = 0; i < dataset.numInstances(); i++) {
+            Instance instance = dataset.instance(i);
+            row.clear();
+            for (int a = 0; a < attributes; a++) {
+                row.putDouble(instance.value(a));
+            }
+            row.putDouble(instance.weight());
+            digest.update(row.array());
+        }
+
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    // The stored result for a key, or null; unreadable entries count as misses
+    public Entry get(String key) {
+        Path path = path(key);
+        if (!Files.exists(path)) {
+            miss();
+            return null;
+        }
+        try {
+            Object[] stored = SerializationHelper.readAll(path.toString());
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            synchronized (this) {
+                hits++;
+            }
+            Metrics.increment("training_cache_hits", 1);
+            return new Entry((Classifier) stored[0], (Evaluation) stored[1]);
+        } catch (Exception e) {
+            System.err.println("Ignoring unreadable cache entry " + path + ": " + e);
+            miss();
+            return null;
+        }
+    }
+
+    private synchronized void miss() {
+        misses++;
+        Metrics.increment("training_cache_misses", 1);
+    }
+
+    public void put(String key, Classifier model, Evaluation evaluation) throws Exception {
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, key, ".tmp");
+        try {
+            SerializationHelper.writeAll(temp.toString(), new Object[]{model, evaluation});
+            Files.move(temp, path(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        evict();
+    }
+
+    // Deletes least recently used entries until the cache fits in maxBytes
+    public synchronized void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(file -> file.getFileName().toString().endsWith(EXTENSION)).forEach(entries::add);
+        }
+        long total = 0;
+        List<long[]> stats = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            long size = Files.size(entries.get(i));
+            total += size;
+            stats.add(new long[]{Files.getLastModifiedTime(entries.get(i)).toMillis(), size, i});
+        }
+        stats.sort(Comparator.comparingLong(entry -> entry[0]));
+        for (long[] entry : stats) {
+            if (total <= maxBytes) {
+                break;
+            }
+            Files.deleteIfExists(entries.get((int) entry[2]));
+            total -= entry[1];
+        }
+    }
+
+    public synchronized int hits() {
+        return hits;
+    }
+
+    public synchronized int misses() {
+        return misses;
+    }
+
+    private Path path(String key) {
+        return dir.resolve(key + EXTENSION);
+    }
+}
@@ -0,0 +1,327 @@
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.UpdateableClassifier;
+import weka.classifiers.trees.RandomForest;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+// Time-ordered, expanding-window backtest. At every forecast origin t the model has
+// seen the pairs (values[i], values[i + 1]) for i < t only, and forecasts t + 1 .. t + H
+// recursively from values[t], the same way the display chains its predictions.
+//
+// Learners are advanced one pair at a time instead of being refit from zero per
+// window: linear models and UpdateableClassifiers are always current, other Weka
+// learners are refit every refitEvery origins on a schedule anchored at the first
+// origin. Origins are split into contiguous chunks that run on separate cores; each
+// chunk replays the schedule up to its start, so results do not depend on parallelism.
+public class WalkForwardBacktester {
+    private static final String DATA_FILE = "data/daily_temp.csv";
+    private static final String STORE_FILE = "data/daily_temp.tss";
+
+    private final int initialWindow;
+    private final int horizons;
+    private final int refitEvery;
+    private final int parallelism;
+
+    // Training state advanced pair by pair
+    public interface Learner {
+        void add(double x, double y) throws Exception;
+
+        // Called at scheduled refit points; incremental learners can ignore it
+        void refit() throws Exception;
+
+        TemperaturePredictor model() throws Exception;
+    }
+
+    // Per-horizon error sums, h = 1..horizons stored at index h - 1
+    public static class Result {
+        final long[] count;
+        final double[] sumSquared;
+        final double[] sumAbsolute;
+        final double[] sumPredicted;
+        final double[] sumActual;
+        final double[] sumPredictedSquared;
+        final double[] sumActualSquared;
+        final double[] sumProduct;
+        long elapsedNanos;
+
+        Result(int horizons) {
+            count = new long[horizons];
+            sumSquared = new double[horizons];
+            sumAbsolute = new double[horizons];
+            sumPredicted = new double[horizons];
+            sumActual = new double[horizons];
+            sumPredictedSquared = new double[horizons];
+            sumActualSquared = new double[horizons];
+            sumProduct = new double[horizons];
+        }
+
+        void add(int h, double predicted, double actual) {
+            double error = predicted - actual;
+            count[h]++;
+            sumSquared[h] += error * error;
+            sumAbsolute[h] += Math.abs(error);
+            sumPredicted[h] += predicted;
+            sumActual[h] += actual;
+            sumPredictedSquared[h] += predicted * predicted;
+            sumActualSquared[h] += actual * actual;
+            sumProduct[h] += predicted * actual;
+        }
+
+        public int horizons() {
+            return count.length;
+        }
+
+        public double rmse(int horizon) {
+            return Math.sqrt(sumSquared[horizon - 1] / count[horizon - 1]);
+        }
+
+        public double mae(int horizon) {
+            return sumAbsolute[horizon - 1] / count[horizon - 1];
+        }
+
+        public double correlation(int horizon) {
+            int h = horizon - 1;
+            double n = count[h];
+            double covariance = sumProduct[h] - sumPredicted[h] * sumActual[h] / n;
+            double varPredicted = sumPredictedSquared[h] - sumPredicted[h] * sumPredicted[h] / n;
+            double varActual = sumActualSquared[h] - sumActual[h] * sumActual[h] / n;
+            return covariance / Math.sqrt(varPredicted * varActual);
+        }
+
+        public long forecasts(int horizon) {
+            return count[horizon - 1];
+        }
+
+        public long elapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public void print(String title) {
+            System.out.println("\n=== " + title + " (walk-forward) ===");
+            System.out.println("Horizon  Forecasts      RMSE       MAE");
+            for (int h = 1; h <= horizons(); h++) {
+                System.out.printf("%7d  %9d  %8.4f  %8.4f%n", h, forecasts(h), rmse(h), mae(h));
+            }
+            System.out.printf("Backtest time: %.3f s%n", elapsedNanos / 1e9);
+        }
+    }
+
+    public WalkForwardBacktester(int initialWindow, int horizons, int refitEvery, int parallelism) {
+        this.initialWindow = initialWindow;
+        this.horizons = horizons;
+        this.refitEvery = Math.max(1, refitEvery);
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    // Linear model on running sufficient statistics, exact at every origin; used by the
+    // cost benchmark to compare against refitting from scratch
+    public static Supplier<Learner> linearLearner() {
+        return () -> new Learner() {
+            private final OnlineLinearRegression model = new OnlineLinearRegression();
+
+            @Override
+            public void add(double x, double y) {
+                model.update(x, y);
+            }
+
+            @Override
+            public void refit() {
+            }
+
+            @Override
+            public TemperaturePredictor model() {
+                return model;
+            }
+        };
+    }
+
+    // Any Weka learner: the training set grows in place and the model is rebuilt on refit,
+    // or updated per pair when the learner supports it
+    public static Supplier<Learner> wekaLearner(Classifier template, String prefix) {
+        return () -> new Learner() {
+            private final Instances data = new Instances(BatchScorer.createHeader(prefix), 1024);
+            private Classifier classifier;
+            private TemperaturePredictor predictor;
+
+            @Override
+            public void add(double x, double y) throws Exception {
+                DenseInstance instance = new DenseInstance(1.0, new double[]{x, y});
+                data.add(instance);
+                if (classifier instanceof UpdateableClassifier) {
+                    instance.setDataset(data);
+                    ((UpdateableClassifier) classifier).updateClassifier(instance);
+                }
+            }
+
+            @Override
+            public void refit() throws Exception {
+                if (classifier instanceof UpdateableClassifier) {
+                    return;
+                }
+                classifier = AbstractClassifier.makeCopy(template);
+                classifier.buildClassifier(data);
+                predictor = TemperaturePredictor.forModel(classifier, prefix);
+            }
+
+            @Override
+            public TemperaturePredictor model() throws Exception {
+                if (predictor == null) {
+                    refit();
+                }
+                return predictor;
+            }
+        };
+    }
+
+    public Result run(Supplier<Learner> learners, double[] values) throws Exception {
+        long start = System.nanoTime();
+        int firstOrigin = initialWindow;
+        int lastOrigin = values.length - 2;
+        if (lastOrigin < firstOrigin) {
+            throw new IllegalArgumentException("Need more than " + (initialWindow + 1) + " values");
+        }
+
+        // forecasts[o][h] is the forecast made at origin firstOrigin + o, merged in origin order
+        int origins = lastOrigin - firstOrigin + 1;
+        double[][] forecasts = new double[origins][];
+        int chunks = Math.min(parallelism, origins);
+        ExecutorService pool = Executors.newFixedThreadPool(chunks);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int c = 0; c < chunks; c++) {
+                int from = firstOrigin + (int) ((long) origins * c / chunks);
+                int to = firstOrigin + (int) ((long) origins * (c + 1) / chunks);
+                futures.add(pool.submit(() -> {
+                    runChunk(learners.get(), values, from, to, forecasts, firstOrigin);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Result result = new Result(horizons);
+        for (int o = 0; o < origins; o++) {
+            int origin = firstOrigin + o;
+            for (int h = 0; h < horizons && origin + h + 1 < values.length; h++) {
+                result.add(h, forecasts[o][h], values[origin + h + 1]);
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private void runChunk(Learner learner, double[] values, int from, int to,
+                          double[][] forecasts, int firstOrigin) throws Exception {
+        // Replay the refit schedule: fit at the last scheduled origin before this chunk,
+        // then add the remaining pairs without refitting
+        int lastRefit = firstOrigin + (from - firstOrigin) / refitEvery * refitEvery;
+        for (int i = 0; i < lastRefit; i++) {
+            learner.add(values[i], values[i + 1]);
+        }
+        learner.refit();
+        for (int i = lastRefit; i < from; i++) {
+            learner.add(values[i], values[i + 1]);
+        }
+
+        for (int origin = from; origin < to; origin++) {
+            if (origin > from && (origin - firstOrigin) % refitEvery == 0) {
+                learner.refit();
+            }
+            TemperaturePredictor model = learner.model();
+            double[] path = new double[horizons];
+            double current = values[origin];
+            for (int h = 0; h < horizons; h++) {
+                current = model.predict(current);
+                path[h] = current;
+            }
+            forecasts[origin - firstOrigin] = path;
+            // The pair ending at origin + 1 becomes known before the next origin
+            learner.add(values[origin], values[origin + 1]);
+        }
+    }
+
+    // Baseline for the benchmark: a fresh learner trained from zero at every origin
+    public Result runNaive(Supplier<Learner> learners, double[] values, int originStride) throws Exception {
+        long start = System.nanoTime();
+        Result result = new Result(horizons);
+        for (int origin = initialWindow; origin <= values.length - 2; origin += originStride) {
+            Learner learner = learners.get();
+            for (int i = 0; i < origin; i++) {
+                learner.add(values[i], values[i + 1]);
+            }
+            learner.refit();
+            TemperaturePredictor model = learner.model();
+            double current = values[origin];
+            for (int h = 0; h < horizons && origin + h + 1 < values.length; h++) {
+                current = model.predict(current);
+                result.add(h, current, values[origin + h + 1]);
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    // java WalkForwardBacktester [min|max] [model name]      per-horizon report
+    // java WalkForwardBacktester bench                       incremental vs naive refitting
+    public static void main(String[] args) {
+        try {
+            int initialWindow = Integer.getInteger("backtest.initialWindow", 3 * 365);
+            int horizons = Integer.getInteger("backtest.horizons", 7);
+            int refitEvery = Integer.getInteger("backtest.refitEvery", 90);
+            int parallelism = Integer.getInteger("backtest.parallelism", Runtime.getRuntime().availableProcessors());
+            WalkForwardBacktester backtester = new WalkForwardBacktester(initialWindow, horizons, refitEvery, parallelism);
+
+            TemperatureSeries series = TemperatureStore.loadSeries(DATA_FILE, STORE_FILE);
+            if (args.length > 0 && args[0].equals("bench")) {
+                benchmark(backtester, series.minTemps());
+                return;
+            }
+
+            String target = args.length > 0 ? args[0] : "min";
+            String modelName = args.length > 1 ? args[1] : "Linear Regression";
+            double[] values = target.equals("min") ? series.minTemps() : series.maxTemps();
+            // The learner TimeSeriesForecaster trains, on the schedule it is scored with
+            Supplier<Learner> learner = wekaLearner(ModelRegistry.open().newLearner(target, modelName), target);
+            backtester.run(learner, values).print(target + " " + modelName);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void benchmark(WalkForwardBacktester backtester, double[] values) throws Exception {
+        int origins = values.length - 1 - backtester.initialWindow;
+
+        Result incremental = backtester.run(linearLearner(), values);
+        Result naive = backtester.runNaive(linearLearner(), values, 1);
+        System.out.println("\n=== Linear model, daily steps over " + origins + " origins ===");
+        System.out.printf("Incremental: %.3f s%n", incremental.elapsedNanos() / 1e9);
+        System.out.printf("Naive refit: %.3f s (%.1fx)%n", naive.elapsedNanos() / 1e9,
+                (double) naive.elapsedNanos() / incremental.elapsedNanos());
+
+        // A naive Random Forest backtest is far too slow to run in full, so time a sample of
+        // origins and extrapolate
+        int stride = Math.max(1, origins / 10);
+        Supplier<Learner> forest = wekaLearner(new RandomForest(), "min");
+        Result forestIncremental = backtester.run(forest, values);
+        Result forestNaive = backtester.runNaive(forest, values, stride);
+        double naiveEstimate = (double) forestNaive.elapsedNanos() / forestNaive.forecasts(1) * origins;
+        System.out.println("\n=== Random Forest, daily steps over " + origins + " origins, refit every "
+                + backtester.refitEvery + " days ===");
+        System.out.printf("Incremental: %.1f s%n", forestIncremental.elapsedNanos() / 1e9);
+        System.out.printf("Naive refit: %.1f s estimated from %d sampled origins (%.1fx)%n",
+                naiveEstimate / 1e9, forestNaive.forecasts(1), naiveEstimate / forestIncremental.elapsedNanos());
+    }
+}
@@ -0,0 +1,129 @@
+import bench.Workloads;
+import weka.classifiers.AbstractClassifier;
+import weka.classifiers.Classifier;
+import weka.classifiers.evaluation.Evaluation;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.SerializationHelper;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Random;
+
+// Builds the operations of the JMH benchmarks in jmh/bench from the forecaster's
+// classes. Each operation does what the matching PipelineBenchmark stage does, so
+// both harnesses time the same work.
+public class PipelineWorkloads implements Workloads {
+    private final Path root = Workloads.root();
+    private TemperatureSeries base;
+
+    private TemperatureSeries base() throws Exception {
+        if (base == null) {
+            base = TemperatureCsvReader.read(dataFile());
+        }
+        return base;
+    }
+
+    private Path dataFile() {
+        return root.resolve("data").resolve("daily_temp.csv");
+    }
+
+    private Path file(int scale) throws Exception {
+        return scale == 1 ? dataFile() : PipelineBenchmark.syntheticCsv(base(), scale);
+    }
+
+    private String modelDir() {
+        return root.resolve(ModelRegistry.DEFAULT_DIR).toString();
+    }
+
+    @Override
+    public Operation csvLoad(int scale) throws Exception {
+        Path file = file(scale);
+        return i -> TemperatureCsvReader.read(file);
+    }
+
+    @Override
+    public Operation train(String modelName, int scale) throws Exception {
+        Instances data = SeriesDataset.lagged("min", TemperatureCsvReader.read(file(scale)).minTemps());
+        Classifier template = ModelRegistry.defaultLearner(modelName);
+        return i -> {
+            Classifier model = AbstractClassifier.makeCopy(template);
+            model.buildClassifier(data);
+            return model;
+        };
+    }
+
+    @Override
+    public Operation crossValidate(String modelName) throws Exception {
+        Instances data = SeriesDataset.lagged("min", base().minTemps());
+        Classifier template = ModelRegistry.defaultLearner(modelName);
+        return i -> {
+            Evaluation eval = new Evaluation(data);
+            eval.crossValidateModel(AbstractClassifier.makeCopy(template), data, 10, new Random(1));
+            return eval.rootMeanSquaredError();
+        };
+    }
+
+    @Override
+    public Operation predict(String path, String target, String modelName) throws Exception {
+        // Cycle through real inputs so every call takes a realistic path through the model
+        double[] inputs = base().minTemps();
+        if (path.equals("registry")) {
+            TemperaturePredictor predictor = new ModelRegistry(modelDir(), 8).predictor(target, modelName);
+            return i -> predictor.predict(inputs[i % inputs.length]);
+        }
+        Classifier model = readModel(target, modelName);
+        Instances header = BatchScorer.createHeader(target);
+        return i -> {
+            Instance instance = new DenseInstance(1.0, new double[]{inputs[i % inputs.length], Double.NaN});
+            instance.setDataset(header);
+            return model.classifyInstance(instance);
+        };
+    }
+
+    @Override
+    public Operation sevenDayForecast(String path) throws Exception {
+        double[] inputs = base().minTemps();
+        ModelRegistry registry = new ModelRegistry(modelDir(), 8);
+        if (path.equals("registry")) {
+            TemperaturePredictor minScorer = registry.predictor("min");
+            TemperaturePredictor maxScorer = registry.predictor("max");
+            return i -> {
+                double minTemp = inputs[i % inputs.length];
+                double maxTemp = minTemp + 8;
+                for (int day = 0; day < 7; day++) {
+                    minTemp = minScorer.predict(minTemp);
+                    maxTemp = maxScorer.predict(maxTemp);
+                }
+                return minTemp + maxTemp;
+            };
+        }
+        Classifier minModel = readModel("min", registry.bestModel("min"));
+        Classifier maxModel = readModel("max", registry.bestModel("max"));
+        Instances minHeader = BatchScorer.createHeader("min");
+        Instances maxHeader = BatchScorer.createHeader("max");
+        return i -> {
+            double minTemp = inputs[i % inputs.length];
+            double maxTemp = minTemp + 8;
+            for (int day = 0; day < 7; day++) {
+                Instance minInstance = new DenseInstance(1.0, new double[]{minTemp, Double.NaN});
+                minInstance.setDataset(minHeader);
+                Instance maxInstance = new DenseInstance(1.0, new double[]{maxTemp, Double.NaN});
+                maxInstance.setDataset(maxHeader);
+                minTemp = minModel.classifyInstance(minInstance);
+                maxTemp = maxModel.classifyInstance(maxInstance);
+            }
+            return minTemp + maxTemp;
+        };
+    }
+
+    private Classifier readModel(String target, String modelName) throws Exception {
+        File modelFile = new File(modelDir() + File.separator + target + File.separator
+                + ModelRegistry.slug(modelName) + ".model");
+        if (!modelFile.exists()) {
+            throw new IllegalStateException("No " + modelFile + "; train the models with TimeSeriesForecaster first");
+        }
+        return (Classifier) SerializationHelper.read(modelFile.getPath());
+    }
+}
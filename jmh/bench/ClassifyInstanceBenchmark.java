@@ -0,0 +1,47 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// One prediction from each saved model: classifyInstance on a DenseInstance ("weka")
+// and the same model served by ModelRegistry ("registry")
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class ClassifyInstanceBenchmark {
+    @Param({"weka", "registry"})
+    public String path;
+
+    @Param({"min", "max"})
+    public String target;
+
+    @Param({"Linear Regression", "Random Forest", "Support Vector Regression"})
+    public String model;
+
+    private Workloads.Operation operation;
+    private int invocation;
+
+    @Setup
+    public void setup() throws Exception {
+        operation = Workloads.load().predict(path, target, model);
+    }
+
+    @Benchmark
+    public Object predict() throws Exception {
+        return operation.run(invocation++);
+    }
+}
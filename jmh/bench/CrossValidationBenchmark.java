@@ -0,0 +1,41 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// 10-fold crossValidateModel; SMOreg's takes minutes, so it is opt-in with
+// -p model="Support Vector Regression"
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class CrossValidationBenchmark {
+    @Param({"Linear Regression", "Random Forest"})
+    public String model;
+
+    private Workloads.Operation operation;
+    private int invocation;
+
+    @Setup
+    public void setup() throws Exception {
+        operation = Workloads.load().crossValidate(model);
+    }
+
+    @Benchmark
+    public Object crossValidateModel() throws Exception {
+        return operation.run(invocation++);
+    }
+}
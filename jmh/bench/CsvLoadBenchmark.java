@@ -0,0 +1,40 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// TemperatureCsvReader on the real file and synthetic 10x, 100x and 1000x copies
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class CsvLoadBenchmark {
+    @Param({"1", "10", "100", "1000"})
+    public int scale;
+
+    private Workloads.Operation operation;
+    private int invocation;
+
+    @Setup
+    public void setup() throws Exception {
+        operation = Workloads.load().csvLoad(scale);
+    }
+
+    @Benchmark
+    public Object read() throws Exception {
+        return operation.run(invocation++);
+    }
+}
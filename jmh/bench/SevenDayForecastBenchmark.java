@@ -0,0 +1,41 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// The display's loop: 7 chained min and max predictions with the best models, through
+// Weka's classifyInstance or the registry's compiled predictors
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class SevenDayForecastBenchmark {
+    @Param({"weka", "registry"})
+    public String path;
+
+    private Workloads.Operation operation;
+    private int invocation;
+
+    @Setup
+    public void setup() throws Exception {
+        operation = Workloads.load().sevenDayForecast(path);
+    }
+
+    @Benchmark
+    public Object forecast() throws Exception {
+        return operation.run(invocation++);
+    }
+}
@@ -0,0 +1,44 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// buildClassifier for each model type on the lag-1 min temperature dataset; SMOreg
+// takes minutes above 1x, so larger scales are opt-in with -p scale=1,10
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class TrainBenchmark {
+    @Param({"Linear Regression", "Random Forest", "Support Vector Regression"})
+    public String model;
+
+    @Param({"1"})
+    public int scale;
+
+    private Workloads.Operation operation;
+    private int invocation;
+
+    @Setup
+    public void setup() throws Exception {
+        operation = Workloads.load().train(model, scale);
+    }
+
+    @Benchmark
+    public Object buildClassifier() throws Exception {
+        return operation.run(invocation++);
+    }
+}
@@ -0,0 +1,42 @@
+package bench;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// The pipeline operations the JMH benchmarks time. JMH only runs benchmarks in a named
+// package, and a named package cannot import the forecaster's default-package classes,
+// so the operations are built by PipelineWorkloads in the default package and looked
+// up by name once per trial; the measured call is a plain interface call.
+//   -Dbench.root=<dir>   directory holding data/ and model/ (default: working directory)
+public interface Workloads {
+    String[] TARGETS = {"min", "max"};
+    String[] MODELS = {"Linear Regression", "Random Forest", "Support Vector Regression"};
+
+    interface Operation {
+        Object run(int invocation) throws Exception;
+    }
+
+    // TemperatureCsvReader on the real file (scale 1) or a synthetic scale-times copy
+    Operation csvLoad(int scale) throws Exception;
+
+    // buildClassifier on a copy of the model's default learner
+    Operation train(String modelName, int scale) throws Exception;
+
+    // 10-fold Evaluation.crossValidateModel on the real data
+    Operation crossValidate(String modelName) throws Exception;
+
+    // One prediction from the saved model: classifyInstance on a DenseInstance ("weka")
+    // or the compiled predictor served by ModelRegistry ("registry")
+    Operation predict(String path, String target, String modelName) throws Exception;
+
+    // The display's recursive 7-day min and max forecast with the best models
+    Operation sevenDayForecast(String path) throws Exception;
+
+    static Path root() {
+        return Paths.get(System.getProperty("bench.root", "."));
+    }
+
+    static Workloads load() throws ReflectiveOperationException {
+        return (Workloads) Class.forName("PipelineWorkloads").getDeclaredConstructor().newInstance();
+    }
+}
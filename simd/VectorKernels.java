@@ -0,0 +1,68 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Vector API engine for CompiledRegression. Each input is scored against SPECIES.length()
+// support vectors per step with lane-wise EXP/POW, and the lanes are reduced once per
+// input. Summing in lane order instead of SMOreg's order changes the last bits of the
+// result, well inside the 1e-9 CompiledRegression checks for.
+//
+// Kept out of the main source directory because it needs the incubator module:
+//   javac --add-modules jdk.incubator.vector -cp "lib/*:." -d . simd/VectorKernels.java
+//   java --add-modules jdk.incubator.vector -cp "lib/*:." CompiledRegression
+public class VectorKernels implements CompiledRegression.Engine {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public void poly(double[] vectors, double[] coefficients, double exponent, boolean lowerOrder, double start,
+                     double[] values, int n) {
+        int bound = SPECIES.loopBound(vectors.length);
+        double offset = lowerOrder ? 1.0 : 0.0;
+        for (int j = 0; j < n; j++) {
+            double z = values[j];
+            DoubleVector sum = DoubleVector.zero(SPECIES);
+            int i = 0;
+            for (; i < bound; i += SPECIES.length()) {
+                DoubleVector kernel = DoubleVector.fromArray(SPECIES, vectors, i).mul(z).add(offset);
+                if (exponent != 1.0) {
+                    kernel = kernel.lanewise(VectorOperators.POW, exponent);
+                }
+                sum = sum.add(DoubleVector.fromArray(SPECIES, coefficients, i).mul(kernel));
+            }
+            double result = start + sum.reduceLanes(VectorOperators.ADD);
+            for (; i < vectors.length; i++) {
+                double kernel = z * vectors[i] + offset;
+                result += coefficients[i] * (exponent != 1.0 ? Math.pow(kernel, exponent) : kernel);
+            }
+            values[j] = result;
+        }
+    }
+
+    @Override
+    public void rbf(double[] vectors, double[] squares, double[] coefficients, double gamma, double start,
+                    double[] values, int n) {
+        int bound = SPECIES.loopBound(vectors.length);
+        for (int j = 0; j < n; j++) {
+            double z = values[j];
+            double zz = z * z;
+            DoubleVector sum = DoubleVector.zero(SPECIES);
+            int i = 0;
+            for (; i < bound; i += SPECIES.length()) {
+                DoubleVector distance = DoubleVector.fromArray(SPECIES, vectors, i).mul(z).mul(2.0).neg().add(zz)
+                        .add(DoubleVector.fromArray(SPECIES, squares, i));
+                DoubleVector kernel = distance.mul(-gamma).lanewise(VectorOperators.EXP);
+                sum = sum.add(DoubleVector.fromArray(SPECIES, coefficients, i).mul(kernel));
+            }
+            double result = start + sum.reduceLanes(VectorOperators.ADD);
+            for (; i < vectors.length; i++) {
+                result += coefficients[i] * Math.exp(-gamma * (zz - 2.0 * (z * vectors[i]) + squares[i]));
+            }
+            values[j] = result;
+        }
+    }
+
+    @Override
+    public String name() {
+        return "vector (" + SPECIES.length() + " x double)";
+    }
+}